@@ -1,16 +1,24 @@
 package techbook;
 
 import techbook.data.DBConnector;
+import techbook.server.TechbookServer;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Example {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+
+        if (args.length > 0 && args[0].equals("serve")) {
+            TechbookServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 
         javaStringExample();
         arrayListExample();
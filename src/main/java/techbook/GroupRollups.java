@@ -0,0 +1,367 @@
+package techbook;
+
+import techbook.business.GroupActivity;
+import techbook.business.ReturnValue;
+import techbook.data.BackgroundJob;
+import techbook.data.DBConnector;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static techbook.Solution.*;
+
+/*
+ * Per group rollups for the admin dashboards:
+ * GroupCounters holds the current number of members, GroupDailyStats the posts, likes, joins and leaves per day.
+ * Both are updated by Solution right after the mutation they count. Updates that bypass Solution
+ * (cascading deletes, failed rollup updates) make the tables drift, reconcile() recomputes them from
+ * Members, Posts and Likes. Joins and leaves have no source of truth to be recomputed from.
+ * Failed updates are counted (getFailedUpdates), as they are the drift that only reconcile() fixes.
+ */
+class GroupRollups {
+
+    static final String POSTS = "posts";
+    static final String LIKES = "likes";
+    static final String JOINS = "joins";
+    static final String LEAVES = "leaves";
+
+    private static final AtomicLong failedUpdates = new AtomicLong();
+
+    private static final BackgroundJob reconciler = new BackgroundJob("group-rollups-reconciler");
+
+    static void createTables(Connection connection) {
+        queryStatement(connection, "CREATE TABLE GroupCounters\n" +
+                "(\n" +
+                "    group_id integer NOT NULL,\n" +
+                "    members integer NOT NULL DEFAULT 0,\n" +
+                "    PRIMARY KEY (group_id),\n" +
+                "    CONSTRAINT group_exists FOREIGN KEY (group_id) REFERENCES Groups(id) ON DELETE CASCADE\n" +
+                ")");
+        queryStatement(connection, "CREATE TABLE GroupDailyStats\n" +
+                "(\n" +
+                "    group_id integer NOT NULL,\n" +
+                "    day date NOT NULL,\n" +
+                "    posts integer NOT NULL DEFAULT 0,\n" +
+                "    likes integer NOT NULL DEFAULT 0,\n" +
+                "    joins integer NOT NULL DEFAULT 0,\n" +
+                "    leaves integer NOT NULL DEFAULT 0,\n" +
+                "    PRIMARY KEY (group_id, day),\n" +
+                "    CONSTRAINT group_exists FOREIGN KEY (group_id) REFERENCES Groups(id) ON DELETE CASCADE\n" +
+                ")");
+    }
+
+    static void clearTables(Connection connection) {
+        queryStatement(connection, "DELETE FROM GroupCounters");
+        queryStatement(connection, "DELETE FROM GroupDailyStats");
+    }
+
+    static void dropTables(Connection connection) {
+        queryStatement(connection, "DROP TABLE IF EXISTS GroupCounters CASCADE");
+        queryStatement(connection, "DROP TABLE IF EXISTS GroupDailyStats CASCADE");
+    }
+
+    static void memberJoined(Connection connection, String groupName) {
+        update(connection, groupName, null, JOINS, 1);
+    }
+
+    static void memberLeft(Connection connection, String groupName) {
+        update(connection, groupName, null, LEAVES, -1);
+    }
+
+    /*
+     * Adds delta to the given daily column of the group (given by id or by name), and for joins/leaves
+     * also to the member counter. A null day means today.
+     * Failures are counted and printed, not thrown: the mutation itself already succeeded, and reconcile() fixes
+     * the rollups.
+     */
+    static void update(Connection connection, Object group, Date day, String column, int delta) {
+        String groupExpr = group instanceof String ? "(SELECT id FROM Groups WHERE  name = (?))" : "?";
+        boolean membership = JOINS.equals(column) || LEAVES.equals(column);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "WITH g AS (SELECT " + groupExpr + " AS id), \n" +
+                    "counters AS ( \n" +
+                    "    INSERT INTO GroupCounters(group_id, members) SELECT id, ? FROM g WHERE ? \n" +
+                    "    ON CONFLICT (group_id) DO UPDATE SET members = GroupCounters.members + EXCLUDED.members \n" +
+                    ") \n" +
+                    "INSERT INTO GroupDailyStats(group_id, day, " + column + ") \n" +
+                    "SELECT id, COALESCE(?, current_date), ? FROM g \n" +
+                    "ON CONFLICT (group_id, day) DO UPDATE \n" +
+                    "    SET " + column + " = GroupDailyStats." + column + " + EXCLUDED." + column);
+            if (group instanceof String) {
+                pstmt.setString(1, (String) group);
+            } else {
+                pstmt.setInt(1, (Integer) group);
+            }
+            pstmt.setInt(2, delta);
+            pstmt.setBoolean(3, membership);
+            pstmt.setDate(4, day);
+            pstmt.setInt(5, LEAVES.equals(column) ? -delta : delta);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            failedUpdates.incrementAndGet();
+            e.printStackTrace();
+        } finally {
+            close_statement(pstmt);
+        }
+    }
+
+    /*
+     * Takes posts that are about to be removed in bulk out of the rollups, in one statement: each post on its day and
+     * its likes on theirs. Posts of deleted students are left out, deleting the student already took them out.
+     * Unlike update() this throws, so the removal can be rolled back with it.
+     */
+    static void postsRemoved(Connection connection, Array postIds) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(
+                "UPDATE GroupDailyStats s SET posts = s.posts - d.posts, likes = s.likes - d.likes \n" +
+                "FROM ( \n" +
+                "    SELECT group_id, day, SUM(posts) AS posts, SUM(likes) AS likes FROM ( \n" +
+                "        SELECT group_id, pdate::date AS day, COUNT(*) AS posts, 0 AS likes \n" +
+                "        FROM LivePosts WHERE id = ANY(?) AND group_id IS NOT NULL GROUP BY 1, 2 \n" +
+                "      UNION ALL \n" +
+                "        SELECT p.group_id, l.liked_at::date, 0, COUNT(*) \n" +
+                "        FROM LiveLikes l, LivePosts p \n" +
+                "        WHERE p.id = l.post_id AND p.id = ANY(?) AND p.group_id IS NOT NULL GROUP BY 1, 2 \n" +
+                "    ) removed GROUP BY group_id, day \n" +
+                ") d WHERE s.group_id = d.group_id AND s.day = d.day");
+        try {
+            pstmt.setArray(1, postIds);
+            pstmt.setArray(2, postIds);
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /*
+     * What deleting a student takes out of the rollups: posts and likes per group and day, and the memberships that
+     * ended today. remove() writes all of it with one statement instead of an update() per row.
+     */
+    static class Removal {
+        /* (group id, day or null for today) -> {posts, likes, leaves} */
+        private final Map<List<Object>, int[]> deltas = new LinkedHashMap<>();
+
+        void posts(int groupId, Date day, int posts) {
+            delta(groupId, day)[0] += posts;
+        }
+
+        void likes(int groupId, Date day, int likes) {
+            delta(groupId, day)[1] += likes;
+        }
+
+        void left(int groupId) {
+            delta(groupId, null)[2]++;
+        }
+
+        private int[] delta(int groupId, Date day) {
+            return deltas.computeIfAbsent(Arrays.asList(groupId, day == null ? null : day.toString()),
+                    key -> new int[3]);
+        }
+    }
+
+    /*
+     * Applies the removal to GroupDailyStats and to the member counters. Like update(), failures are counted and
+     * printed, not thrown.
+     */
+    static void remove(Connection connection, Removal removal) {
+        if (removal.deltas.isEmpty())
+            return;
+        int size = removal.deltas.size();
+        Integer[] groupIds = new Integer[size];
+        String[] days = new String[size];
+        Integer[][] columns = new Integer[3][size];
+        int i = 0;
+        for (Map.Entry<List<Object>, int[]> delta : removal.deltas.entrySet()) {
+            groupIds[i] = (Integer) delta.getKey().get(0);
+            days[i] = (String) delta.getKey().get(1);
+            for (int column = 0; column < 3; column++) {
+                columns[column][i] = delta.getValue()[column];
+            }
+            i++;
+        }
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "WITH d AS ( \n" +
+                    "    SELECT group_id, COALESCE(day, current_date) AS day, \n" +
+                    "           SUM(posts) AS posts, SUM(likes) AS likes, SUM(leaves) AS leaves \n" +
+                    "    FROM unnest(?::integer[], ?::text[]::date[], ?::integer[], ?::integer[], ?::integer[]) \n" +
+                    "         AS d(group_id, day, posts, likes, leaves) \n" +
+                    "    GROUP BY 1, 2 \n" +
+                    "), \n" +
+                    "counters AS ( \n" +
+                    "    INSERT INTO GroupCounters(group_id, members) \n" +
+                    "    SELECT group_id, -SUM(leaves) FROM d WHERE leaves > 0 GROUP BY group_id \n" +
+                    "    ON CONFLICT (group_id) DO UPDATE SET members = GroupCounters.members + EXCLUDED.members \n" +
+                    ") \n" +
+                    "INSERT INTO GroupDailyStats(group_id, day, posts, likes, leaves) \n" +
+                    "SELECT group_id, day, -posts, -likes, leaves FROM d \n" +
+                    "ON CONFLICT (group_id, day) DO UPDATE SET posts = GroupDailyStats.posts + EXCLUDED.posts, \n" +
+                    "    likes = GroupDailyStats.likes + EXCLUDED.likes, \n" +
+                    "    leaves = GroupDailyStats.leaves + EXCLUDED.leaves");
+            pstmt.setArray(1, connection.createArrayOf("integer", groupIds));
+            pstmt.setArray(2, connection.createArrayOf("text", days));
+            for (int column = 0; column < 3; column++) {
+                pstmt.setArray(3 + column, connection.createArrayOf("integer", columns[column]));
+            }
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            failedUpdates.incrementAndGet();
+            e.printStackTrace();
+        } finally {
+            close_statement(pstmt);
+        }
+    }
+
+    /* The number of rollup updates that failed since startup */
+    static long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    /*
+     * Reads the (day, likes) columns of the current row of results and of the rows after it, as returned for a
+     * deleted post joined with its likes per day (null day for a post without likes)
+     */
+    static LinkedHashMap<Date, Integer> likesPerDay(ResultSet results, int dayColumn) throws SQLException {
+        LinkedHashMap<Date, Integer> likes = new LinkedHashMap<>();
+        do {
+            Date day = results.getDate(dayColumn);
+            if (day != null)
+                likes.put(day, results.getInt(dayColumn + 1));
+        } while (results.next());
+        return likes;
+    }
+
+    /* Takes a deleted post of the group out of the rollups: the post on its day, and its likes on theirs */
+    static void postDeleted(Connection connection, Integer groupId, Date pdate, Map<Date, Integer> likesPerDay) {
+        update(connection, groupId, pdate, POSTS, -1);
+        for (Map.Entry<Date, Integer> likes : likesPerDay.entrySet()) {
+            update(connection, groupId, likes.getKey(), LIKES, -likes.getValue());
+        }
+    }
+
+    static Integer getMemberCount(String groupName) {
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT COALESCE(c.members, 0) FROM Groups g LEFT JOIN GroupCounters c ON c.group_id = g.id " +
+                    "WHERE g.name = (?)");
+            pstmt.setString(1, groupName);
+            ResultSet results = pstmt.executeQuery();
+            Integer members = results.next() ? results.getInt(1) : -1;
+            results.close();
+            return members;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+    }
+
+    static ArrayList<GroupActivity> getActivity(String groupName, LocalDate from, LocalDate to) {
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        PreparedStatement pstmt = null;
+        ArrayList<GroupActivity> activity = new ArrayList<>();
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT day, posts, likes, joins, leaves FROM GroupDailyStats " +
+                    "WHERE group_id = (SELECT id FROM Groups WHERE  name = (?)) AND day BETWEEN ? AND ? " +
+                    "ORDER BY day");
+            pstmt.setString(1, groupName);
+            pstmt.setDate(2, Date.valueOf(from));
+            pstmt.setDate(3, Date.valueOf(to));
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                GroupActivity a = new GroupActivity();
+                a.setDay(results.getDate(1).toLocalDate());
+                a.setPosts(results.getInt(2));
+                a.setLikes(results.getInt(3));
+                a.setJoins(results.getInt(4));
+                a.setLeaves(results.getInt(5));
+                activity.add(a);
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+        return activity;
+    }
+
+    /*
+     * Recomputes the member counters and the daily posts/likes from the base tables in one transaction.
+     * This scans Members, Posts and Likes, so it is meant to run periodically and not per request.
+     */
+    static ReturnValue reconcile() {
+        Connection connection = DBConnector.getAnalyticalConnection();
+        if (connection == null)
+            return ReturnValue.ERROR;
+        PreparedStatement pstmt = null;
+        try {
+            connection.setAutoCommit(false);
+            pstmt = connection.prepareStatement(
+                    "INSERT INTO GroupCounters(group_id, members) \n" +
+                    "SELECT g.id, (SELECT COUNT(*) FROM LiveMembers m WHERE m.group_id = g.id) FROM Groups g \n" +
+                    "ON CONFLICT (group_id) DO UPDATE SET members = EXCLUDED.members");
+            pstmt.executeUpdate();
+
+            // with sharding Posts and Likes are not on this database, only the member counters can be recomputed
+            if (!DBConnector.isSharded()) {
+                pstmt.close();
+                // the days up to the archive cutoff lost posts and likes to the archive, their rollups are kept
+                Date from = PostArchiver.isEnabled() ? Date.valueOf(PostArchiver.cutoff().toLocalDate().plusDays(1))
+                        : null;
+                pstmt = connection.prepareStatement("UPDATE GroupDailyStats SET posts = 0, likes = 0 " +
+                        "WHERE (posts <> 0 OR likes <> 0) AND day >= COALESCE(?::date, '-infinity')");
+                pstmt.setDate(1, from);
+                pstmt.executeUpdate();
+                pstmt.close();
+
+                pstmt = connection.prepareStatement(
+                        "INSERT INTO GroupDailyStats(group_id, day, posts, likes) \n" +
+                        "SELECT group_id, day, SUM(posts), SUM(likes) FROM ( \n" +
+                        "    SELECT group_id, pdate::date AS day, COUNT(*) AS posts, 0 AS likes \n" +
+                        "    FROM LivePosts WHERE group_id IS NOT NULL GROUP BY 1, 2 \n" +
+                        "  UNION ALL \n" +
+                        "    SELECT p.group_id, l.liked_at::date, 0, COUNT(*) \n" +
+                        "    FROM LiveLikes l, LivePosts p \n" +
+                        "    WHERE p.id = l.post_id AND p.group_id IS NOT NULL GROUP BY 1, 2 \n" +
+                        ") actual WHERE day >= COALESCE(?::date, '-infinity') GROUP BY group_id, day \n" +
+                        "ON CONFLICT (group_id, day) DO UPDATE SET posts = EXCLUDED.posts, likes = EXCLUDED.likes");
+                pstmt.setDate(1, from);
+                pstmt.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                rollbackException.printStackTrace();
+            }
+            return errorReturnValue(e);
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+        return ReturnValue.OK;
+    }
+
+    static void startReconciler(long periodMillis) {
+        reconciler.start(GroupRollups::reconcile, periodMillis, periodMillis);
+    }
+
+    static void stopReconciler() {
+        reconciler.stop();
+    }
+}
@@ -0,0 +1,268 @@
+package techbook;
+
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.data.BackgroundJob;
+import techbook.data.DBConnector;
+import techbook.data.PostArchive;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static techbook.Solution.*;
+
+/*
+ * Moves cold posts out of Posts and Likes into the PostArchive in archive.directory (unsharded databases only,
+ * off while archive.directory is empty).
+ *
+ * run() takes the posts older than archive.afterDays, oldest first, archive.batchSize at a time: each batch is
+ * locked, written with its like counts as one segment file, and then deleted from Posts (cascading to its likes)
+ * in the same transaction. Likes racing with the archiving wait for the lock and then find the post gone. If the
+ * transaction fails after the segment was written, the next run deletes the already archived posts without
+ * writing them again.
+ *
+ * Archived posts are read-only: getPost and the feeds still find them, with the like count they had when they were
+ * archived, but updatePost, deletePost and likePost treat them as missing. Their ids stay taken.
+ * The archived posts of a deleted student are removed with tombstones (see PostArchive): right after deleteStudent
+ * on the deleting instance, and again by the purge before the student's id may be used again.
+ *
+ * With several app instances, archive.directory must be storage they all share. A transaction level advisory lock
+ * lets one instance archive at a time, and every instance maps the segments written by the others within
+ * archive.refreshMillis (until then, posts the other instance just archived are missing from its reads). The refresh
+ * runs on a background thread of its own; reads take the current archive from a volatile field, without locking and
+ * without touching the directory.
+ */
+class PostArchiver {
+
+    /* key of the advisory lock held by the archiving instance */
+    private static final long ARCHIVER_LOCK = 0x54425041L; // "TBPA"
+
+    private static volatile PostArchive archive = null;
+    private static final BackgroundJob archiver = new BackgroundJob("post-archiver");
+    private static final BackgroundJob refresher = new BackgroundJob("post-archive-refresh");
+
+    static boolean isEnabled() {
+        return !DBConnector.isSharded() && !DBConnector.getProperty("archive.directory", "").trim().isEmpty();
+    }
+
+    /*
+     * The archive, mapped on first use and refreshed every archive.refreshMillis in the background.
+     * null when archiving is off or the archive can't be read
+     */
+    static PostArchive archive() {
+        if (!isEnabled())
+            return null;
+        PostArchive current = archive;
+        return current != null ? current : load();
+    }
+
+    private static synchronized PostArchive load() {
+        if (archive != null)
+            return archive;
+        String directory = DBConnector.getProperty("archive.directory", "").trim();
+        PostArchive loaded = new PostArchive(Paths.get(directory));
+        try {
+            loaded.load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        archive = loaded;
+        long refreshMillis = Long.parseLong(DBConnector.getProperty("archive.refreshMillis", "1000"));
+        refresher.start(PostArchiver::refresh, refreshMillis, refreshMillis);
+        return loaded;
+    }
+
+    private static void refresh() {
+        try {
+            archive.refresh();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* The archive if it holds any post, the read paths skip it otherwise */
+    static PostArchive nonEmptyArchive() {
+        PostArchive current = archive();
+        return current == null || current.isEmpty() ? null : current;
+    }
+
+    /* Posts older than this are archived, GroupRollups leaves the days before it alone */
+    static LocalDateTime cutoff() {
+        return LocalDateTime.now().minusDays(Long.parseLong(DBConnector.getProperty("archive.afterDays", "365")));
+    }
+
+    static void createTables(Connection connection) {
+        if (isEnabled())
+            queryStatement(connection, "CREATE INDEX posts_pdate ON Posts (pdate)");
+    }
+
+    static void clearTables() {
+        PostArchive current = archive();
+        if (current == null)
+            return;
+        try {
+            current.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static ReturnValue run() {
+        PostArchive current = archive();
+        if (current == null)
+            return ReturnValue.OK;
+        int batchSize = Integer.parseInt(DBConnector.getProperty("archive.batchSize", "10000"));
+        Timestamp cutoff = Timestamp.valueOf(cutoff());
+        Connection connection = DBConnector.getAnalyticalConnection();
+        if (connection == null)
+            return ReturnValue.ERROR;
+        try {
+            connection.setAutoCommit(false);
+            if (!lock(connection)) { // another instance is archiving
+                connection.commit();
+                return ReturnValue.OK;
+            }
+            current.removeTemporaryFiles();
+            connection.commit();
+            while (archiveBatch(connection, current, cutoff, batchSize) == batchSize) {
+                // next batch
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            rollback(connection);
+            return errorReturnValue(e);
+        } catch (IOException e) {
+            e.printStackTrace();
+            rollback(connection);
+            return ReturnValue.ERROR;
+        } finally {
+            close_connection(connection);
+        }
+        return ReturnValue.OK;
+    }
+
+    /* Takes the archiver lock until the end of the transaction, false if another instance holds it */
+    private static boolean lock(Connection connection) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement("SELECT pg_try_advisory_xact_lock(?)");
+        try {
+            pstmt.setLong(1, ARCHIVER_LOCK);
+            ResultSet results = pstmt.executeQuery();
+            results.next();
+            boolean locked = results.getBoolean(1);
+            results.close();
+            return locked;
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /* Removes the archived posts of a deleted student from the reads of this instance, see PostArchive.removeAuthor */
+    static void removeAuthor(int studentId) {
+        PostArchive current = nonEmptyArchive();
+        if (current == null)
+            return;
+        try {
+            current.removeAuthor(studentId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Same for the purge, which must not miss a post: waits for the archiver lock (held until the end of the
+     * caller's transaction), so a batch that read the student's posts before the deletion committed has written
+     * its segment, and batches after it skip the deleted student.
+     */
+    static void removeAuthor(Connection connection, int studentId) throws SQLException, IOException {
+        PostArchive current = archive();
+        if (current == null)
+            return;
+        PreparedStatement pstmt = connection.prepareStatement("SELECT pg_advisory_xact_lock(?)");
+        try {
+            pstmt.setLong(1, ARCHIVER_LOCK);
+            pstmt.executeQuery().close();
+        } finally {
+            pstmt.close();
+        }
+        current.refresh();
+        current.removeAuthor(studentId);
+    }
+
+    /* Archives one batch in its own transaction, returns the number of posts it took */
+    private static int archiveBatch(Connection connection, PostArchive current, Timestamp cutoff, int batchSize)
+            throws SQLException, IOException {
+        if (!lock(connection)) {
+            connection.commit();
+            return 0;
+        }
+        current.refresh(); // the segments of the instance that archived last
+        List<Post> posts = new ArrayList<>();
+        List<Integer> groupIds = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT p.id, p.author, p.group_id, p.contents, p.pdate, \n" +
+                "       (SELECT COUNT(*) FROM LiveLikes l WHERE l.post_id = p.id) \n" +
+                "FROM Posts p WHERE p.pdate < ? \n" +
+                "    AND NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = p.author) -- left to the purge \n" +
+                "ORDER BY p.pdate, p.id LIMIT ? FOR UPDATE OF p");
+        try {
+            pstmt.setTimestamp(1, cutoff);
+            pstmt.setInt(2, batchSize);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                int id = results.getInt(1);
+                ids.add(id);
+                if (current.contains(id))
+                    continue; // archived by a run whose delete failed
+                Post p = new Post();
+                p.setId(id);
+                p.setAuthor(results.getInt(2));
+                int groupId = results.getInt(3);
+                groupIds.add(results.wasNull() ? null : groupId);
+                p.setText(results.getString(4));
+                p.setTimeStamp(results.getTimestamp(5));
+                p.setLikes(results.getInt(6));
+                posts.add(p);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        if (ids.isEmpty()) {
+            connection.commit();
+            return 0;
+        }
+
+        current.write(posts, groupIds);
+        pstmt = connection.prepareStatement("DELETE FROM Posts WHERE id = ANY(?)");
+        try {
+            pstmt.setArray(1, connection.createArrayOf("integer", ids.toArray()));
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+        connection.commit();
+        return ids.size();
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException rollbackException) {
+            rollbackException.printStackTrace();
+        }
+    }
+
+    static void start(long periodMillis) {
+        archiver.start(PostArchiver::run, 0, periodMillis);
+    }
+
+    static void stop() {
+        archiver.stop();
+    }
+}
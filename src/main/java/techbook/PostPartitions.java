@@ -0,0 +1,242 @@
+package techbook;
+
+import techbook.business.ReturnValue;
+import techbook.data.AdmissionControl;
+import techbook.data.BackgroundJob;
+import techbook.data.DBConnector;
+
+import java.sql.*;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+
+import static techbook.Solution.*;
+
+/*
+ * Posts range partitioned on pdate, enabled by posts.partitioning=day|week|month (unsharded databases only).
+ *
+ * A partitioned table can only enforce uniqueness together with the partition key, so post ids are kept unique by
+ * PostIds(id, pdate), which triggers on Posts fill and empty. Likes references PostIds instead of Posts: deleting a
+ * post still cascades to its likes, and likePost still gets NOT_EXISTS for a missing post. Likes itself is not
+ * partitioned, since it would lose its (post_id, student_id) primary key the same way.
+ *
+ * maintain() creates the partitions for the next posts.partitionsAhead periods, and drops (or, with
+ * posts.retentionMode=detach, detaches) the partitions entirely older than posts.retentionDays. The PostIds rows of
+ * such a partition, and through them its likes, are deleted first in bounded batches, each taking its posts out of
+ * the group rollups. Posts outside every partition go to Posts_default.
+ */
+class PostPartitions {
+
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final int DELETE_BATCH = 10000;
+
+    private static final BackgroundJob maintainer = new BackgroundJob("post-partitions-maintenance");
+
+    static boolean isEnabled() {
+        return !DBConnector.isSharded() && !interval().isEmpty();
+    }
+
+    private static String interval() {
+        return DBConnector.getProperty("posts.partitioning", "").trim().toLowerCase();
+    }
+
+    static void createTables(Connection connection) {
+        queryStatement(connection, "CREATE TABLE PostIds\n" +
+                "(\n" +
+                "    id integer NOT NULL,\n" +
+                "    pdate timestamp NOT NULL,\n" +
+                "    PRIMARY KEY (id)\n" +
+                ")");
+        queryStatement(connection, "CREATE INDEX postids_pdate ON PostIds (pdate)");
+        queryStatement(connection, "CREATE TABLE Posts\n" +
+                "(\n" +
+                "    id integer NOT NULL,\n" +
+                "    author integer NOT NULL,\n" +
+                "    group_id integer,\n" +
+                "    contents text NOT NULL,\n" +
+                "    pdate timestamp  NOT NULL,\n" +
+                "    PRIMARY KEY (id, pdate),\n" +
+                "    CHECK (id > 0),\n" +
+                "    CONSTRAINT student_exists FOREIGN KEY (author) REFERENCES Students(id) ON DELETE CASCADE,\n" +
+                "    CONSTRAINT group_exists FOREIGN KEY (group_id) REFERENCES Groups(id) ON DELETE CASCADE\n" +
+                ") PARTITION BY RANGE (pdate)");
+        queryStatement(connection, "CREATE TABLE Posts_default PARTITION OF Posts DEFAULT");
+        queryStatement(connection, "CREATE INDEX posts_author_pdate ON Posts (author, pdate DESC)");
+        queryStatement(connection, "CREATE INDEX posts_group_pdate ON Posts (group_id, pdate DESC)");
+        queryStatement(connection, "CREATE FUNCTION register_post() RETURNS trigger AS $$\n" +
+                "BEGIN\n" +
+                "    INSERT INTO PostIds (id, pdate) VALUES (NEW.id, NEW.pdate);\n" +
+                "    RETURN NULL;\n" +
+                "END $$ LANGUAGE plpgsql");
+        queryStatement(connection, "CREATE FUNCTION unregister_post() RETURNS trigger AS $$\n" +
+                "BEGIN\n" +
+                "    DELETE FROM PostIds WHERE id = OLD.id;\n" +
+                "    RETURN NULL;\n" +
+                "END $$ LANGUAGE plpgsql");
+        queryStatement(connection, "CREATE TRIGGER posts_register AFTER INSERT ON Posts " +
+                "FOR EACH ROW EXECUTE PROCEDURE register_post()");
+        queryStatement(connection, "CREATE TRIGGER posts_unregister AFTER DELETE ON Posts " +
+                "FOR EACH ROW EXECUTE PROCEDURE unregister_post()");
+        createPartitions(connection, LocalDate.now().minusDays(retentionDays()));
+    }
+
+    /* The post_exists constraint of Likes in partitioned mode */
+    static String likesPostReference() {
+        return "REFERENCES PostIds (id)";
+    }
+
+    static void clearTables(Connection connection) {
+        queryStatement(connection, "DELETE FROM PostIds");
+    }
+
+    static void dropTables(Connection connection) {
+        queryStatement(connection, "DROP TABLE IF EXISTS PostIds CASCADE");
+        queryStatement(connection, "DROP FUNCTION IF EXISTS register_post() CASCADE");
+        queryStatement(connection, "DROP FUNCTION IF EXISTS unregister_post() CASCADE");
+    }
+
+    /*
+     * Creates the upcoming partitions and applies the retention policy.
+     * Runs one DDL statement at a time, so only the removed partitions are locked, each for a moment.
+     */
+    static ReturnValue maintain() {
+        if (!isEnabled())
+            return ReturnValue.OK;
+        Connection connection = DBConnector.getAnalyticalConnection();
+        if (connection == null)
+            return ReturnValue.ERROR;
+        try {
+            // partition DDL waits for locks held by long readers, don't let that exceed the bulkhead's timeout
+            AdmissionControl.clearStatementTimeout(connection);
+            createPartitions(connection, LocalDate.now());
+            if (retentionDays() > 0)
+                removeExpired(connection, LocalDate.now().minusDays(retentionDays()));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return errorReturnValue(e);
+        } finally {
+            close_connection(connection);
+        }
+        return ReturnValue.OK;
+    }
+
+    static void startMaintenance(long periodMillis) {
+        maintainer.start(PostPartitions::maintain, 0, periodMillis);
+    }
+
+    static void stopMaintenance() {
+        maintainer.stop();
+    }
+
+    private static long retentionDays() {
+        return Long.parseLong(DBConnector.getProperty("posts.retentionDays", "0"));
+    }
+
+    /* Creates every missing partition from the one holding from up to posts.partitionsAhead periods after today */
+    private static void createPartitions(Connection connection, LocalDate from) {
+        int ahead = Integer.parseInt(DBConnector.getProperty("posts.partitionsAhead", "3"));
+        LocalDate last = next(periodStart(LocalDate.now()), ahead);
+        for (LocalDate start = periodStart(from); !start.isAfter(last); start = next(start, 1)) {
+            // rows of this period already in Posts_default make the creation fail, they stay there
+            queryStatement(connection, "CREATE TABLE IF NOT EXISTS Posts_p" + start.format(SUFFIX) +
+                    " PARTITION OF Posts FOR VALUES FROM ('" + start + "') TO ('" + next(start, 1) + "')");
+        }
+    }
+
+    private static void removeExpired(Connection connection, LocalDate cutoff) throws SQLException {
+        boolean detach = "detach".equalsIgnoreCase(DBConnector.getProperty("posts.retentionMode", "drop"));
+        for (LocalDate start : partitions(connection)) {
+            LocalDate end = next(start, 1);
+            if (end.isAfter(cutoff))
+                continue;
+            String partition = "Posts_p" + start.format(SUFFIX);
+            deletePostIds(connection, start, end);
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.execute(detach ? "ALTER TABLE Posts DETACH PARTITION " + partition
+                        : "DROP TABLE " + partition);
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+
+    /*
+     * Deletes the ids of a partition about to be removed (cascading to their likes) and takes its posts out of the
+     * rollups, a batch per transaction. This runs before the partition is dropped or detached: if a batch fails, the
+     * partition is still there and the next maintain() carries on with the ids left.
+     */
+    private static void deletePostIds(Connection connection, LocalDate start, LocalDate end) throws SQLException {
+        connection.setAutoCommit(false);
+        PreparedStatement select = connection.prepareStatement(
+                "SELECT array_agg(id) FROM \n" +
+                "    (SELECT id FROM PostIds WHERE pdate >= ? AND pdate < ? \n" +
+                "     LIMIT " + DELETE_BATCH + " FOR UPDATE) batch");
+        PreparedStatement delete = connection.prepareStatement("DELETE FROM PostIds WHERE id = ANY(?)");
+        try {
+            select.setTimestamp(1, Timestamp.valueOf(start.atStartOfDay()));
+            select.setTimestamp(2, Timestamp.valueOf(end.atStartOfDay()));
+            while (true) {
+                ResultSet results = select.executeQuery();
+                results.next();
+                Array ids = results.getArray(1);
+                results.close();
+                if (ids == null)
+                    break;
+                GroupRollups.postsRemoved(connection, ids);
+                delete.setArray(1, ids);
+                delete.executeUpdate();
+                connection.commit();
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+        } finally {
+            select.close();
+            delete.close();
+        }
+    }
+
+    /* Start dates of the existing range partitions, read from their names */
+    private static List<LocalDate> partitions(Connection connection) throws SQLException {
+        List<LocalDate> starts = new ArrayList<>();
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid \n" +
+                "WHERE i.inhparent = 'posts'::regclass AND c.relname LIKE 'posts\\_p%' ORDER BY c.relname");
+        try {
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                starts.add(LocalDate.parse(results.getString(1).substring("posts_p".length()), SUFFIX));
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        return starts;
+    }
+
+    private static LocalDate periodStart(LocalDate day) {
+        switch (interval()) {
+            case "day":
+                return day;
+            case "week":
+                return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            default:
+                return day.withDayOfMonth(1);
+        }
+    }
+
+    private static LocalDate next(LocalDate start, int periods) {
+        switch (interval()) {
+            case "day":
+                return start.plus(periods, ChronoUnit.DAYS);
+            case "week":
+                return start.plus(periods, ChronoUnit.WEEKS);
+            default:
+                return start.plus(periods, ChronoUnit.MONTHS);
+        }
+    }
+}
@@ -0,0 +1,817 @@
+package techbook;
+
+import techbook.business.Feed;
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.data.DBConnector;
+import techbook.data.LikeWindowCounter;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+import static techbook.Solution.*;
+
+/*
+ * Posts and Likes partitioned by author id across the databases listed in the 'shards' property.
+ * Students, Groups, Friends and Members stay on the coordinator (the main database), together with
+ * PostDirectory which maps every post id to its author and group. The directory keeps post ids globally unique,
+ * enforces the author/group foreign keys and lets single-post operations go straight to the right shard.
+ * A post's likes are stored on the post's shard, so the like count is a local join.
+ * Soft deleted students (see StudentPurger) are handled on the coordinator: a trigger rejects directory rows of a
+ * deleted author, and reads go through LivePostDirectory, LiveMembers and LiveStudents. Their posts and likes
+ * stay on the shards until StudentPurger.purge walks the shards.
+ * The group rollups (see GroupRollups) live on the coordinator and are updated after every shard write.
+ * Solution delegates its post related methods here when DBConnector.isSharded().
+ */
+class ShardedPosts {
+
+    static final Comparator<Post> FEED_ORDER = Comparator.comparing(Post::getDate).reversed()
+            .thenComparing(Comparator.comparing(Post::getLikes).reversed());
+
+    /*
+     * At most shards.scatterThreads shard queries run at once, with up to shards.scatterQueue waiting.
+     * Past that the caller runs its shard query itself, which slows down the callers instead of growing the pool.
+     */
+    private static final ExecutorService scatterPool = scatterPool(
+            Integer.parseInt(DBConnector.getProperty("shards.scatterThreads", "16")),
+            Integer.parseInt(DBConnector.getProperty("shards.scatterQueue", "256")));
+
+    private static ExecutorService scatterPool(int threads, int queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, "shard-scatter");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    static void createTables() {
+        Connection connection = DBConnector.getConnection();
+        queryStatement(connection, "CREATE TABLE PostDirectory\n" +
+                "(\n" +
+                "    id integer NOT NULL,\n" +
+                "    author integer NOT NULL,\n" +
+                "    group_id integer,\n" +
+                "    PRIMARY KEY (id),\n" +
+                "    CHECK (id > 0),\n" +
+                "    CONSTRAINT student_exists FOREIGN KEY (author) REFERENCES Students(id) ON DELETE CASCADE,\n" +
+                "    CONSTRAINT group_exists FOREIGN KEY (group_id) REFERENCES Groups(id) ON DELETE CASCADE\n" +
+                ")");
+        // the purge removes a deleted author's rows in batches
+        queryStatement(connection, "CREATE INDEX postdirectory_author ON PostDirectory (author)");
+        queryStatement(connection, "CREATE VIEW LivePostDirectory AS SELECT id, author, group_id " +
+                "FROM PostDirectory p WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = p.author)");
+        queryStatement(connection, "CREATE TRIGGER postdirectory_live_author AFTER INSERT ON PostDirectory " +
+                "FOR EACH ROW EXECUTE PROCEDURE reject_deleted_students('author')");
+        close_connection(connection);
+
+        /* Shards hold no Students/Groups, so the referential checks are done on the coordinator */
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            connection = DBConnector.getShardConnection(shard);
+            queryStatement(connection, "CREATE TABLE Posts\n" +
+                    "(\n" +
+                    "    id integer NOT NULL,\n" +
+                    "    author integer NOT NULL,\n" +
+                    "    group_id integer,\n" +
+                    "    contents text NOT NULL,\n" +
+                    "    pdate timestamp  NOT NULL,\n" +
+                    "    PRIMARY KEY (id),\n" +
+                    "    CHECK (id > 0)\n" +
+                    ")");
+            queryStatement(connection, "CREATE INDEX posts_author_pdate ON Posts (author, pdate DESC)");
+            queryStatement(connection, "CREATE INDEX posts_group_pdate ON Posts (group_id, pdate DESC)");
+            queryStatement(connection, "CREATE INDEX posts_contents_fts ON Posts " +
+                    "USING GIN (to_tsvector('english', contents))");
+            queryStatement(connection, "CREATE TABLE Likes\n" +
+                    "(\n" +
+                    "    post_id integer NOT NULL,\n" +
+                    "    student_id integer NOT NULL,\n" +
+                    "    liked_at timestamptz NOT NULL DEFAULT now(),\n" +
+                    "    CONSTRAINT post_exists FOREIGN KEY (post_id)\n" +
+                    "        REFERENCES Posts (id) MATCH SIMPLE\n" +
+                    "        ON UPDATE NO ACTION\n" +
+                    "        ON DELETE CASCADE,\n" +
+                    "   PRIMARY KEY (post_id, student_id)" +
+                    ")");
+            queryStatement(connection, "CREATE INDEX likes_student ON Likes (student_id)");
+            queryStatement(connection, "CREATE INDEX likes_liked_at ON Likes (liked_at)");
+            close_connection(connection);
+        }
+    }
+
+    static void clearTables() {
+        Connection connection = DBConnector.getConnection();
+        queryStatement(connection, "DELETE FROM PostDirectory");
+        close_connection(connection);
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            connection = DBConnector.getShardConnection(shard);
+            queryStatement(connection, "DELETE FROM Likes");
+            queryStatement(connection, "DELETE FROM Posts");
+            close_connection(connection);
+        }
+    }
+
+    static void dropTables() {
+        Connection connection = DBConnector.getConnection();
+        queryStatement(connection, "DROP TABLE IF EXISTS PostDirectory CASCADE");
+        close_connection(connection);
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            connection = DBConnector.getShardConnection(shard);
+            queryStatement(connection, "DROP TABLE IF EXISTS Likes CASCADE");
+            queryStatement(connection, "DROP TABLE IF EXISTS Posts CASCADE");
+            close_connection(connection);
+        }
+    }
+
+    /*
+     * The directory row is inserted first on the coordinator (membership, uniqueness and foreign keys),
+     * then the post itself on the author's shard. If the shard insert fails the directory row is removed again.
+     */
+    static ReturnValue addPost(Post post, String groupName) {
+        Connection connection = DBConnector.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            Integer groupId = null;
+            if (groupName != null) {
+                pstmt = connection.prepareStatement(
+                        "INSERT INTO PostDirectory(id, author, group_id)\n" +
+                                "SELECT ?, ?, group_id FROM LiveMembers WHERE student_id=? " +
+                                "    AND group_id=(SELECT id FROM Groups WHERE  name = (?)) " +
+                                "RETURNING group_id");
+                pstmt.setObject(1, post.getId(), Types.INTEGER);
+                pstmt.setObject(2, post.getAuthor(), Types.INTEGER);
+                pstmt.setObject(3, post.getAuthor(), Types.INTEGER);
+                pstmt.setString(4, groupName);
+                ResultSet results = pstmt.executeQuery();
+                if (!results.next()) {
+                    return ReturnValue.NOT_EXISTS;
+                }
+                groupId = results.getInt(1);
+                results.close();
+            } else {
+                pstmt = connection.prepareStatement(
+                        "INSERT INTO PostDirectory(id, author) VALUES (?, ?)");
+                // null ids are rejected by the NOT NULL constraints, before a shard is picked by author
+                pstmt.setObject(1, post.getId(), Types.INTEGER);
+                pstmt.setObject(2, post.getAuthor(), Types.INTEGER);
+                pstmt.executeUpdate();
+            }
+
+            ReturnValue result = insertIntoShard(post, groupId);
+            if (result != ReturnValue.OK) {
+                removeFromDirectory(connection, post.getId());
+                return result;
+            }
+            DBConnector.markWrite(post.getAuthor());
+            if (groupId != null) {
+                GroupRollups.update(connection, groupId, new Date(post.getTimeStamp().getTime()),
+                        GroupRollups.POSTS, 1);
+            }
+            return result;
+        } catch (SQLException e) {
+            return sqlExceptionToReturnValue(e);
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return ReturnValue.ERROR;
+            }
+        }
+    }
+
+    private static ReturnValue insertIntoShard(Post post, Integer groupId) {
+        Connection connection = DBConnector.getShardConnection(DBConnector.shardOf(post.getAuthor()));
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "INSERT INTO Posts(id, author, group_id, contents, pdate) VALUES (?, ?, ?, ?, ?)");
+            pstmt.setInt(1, post.getId());
+            pstmt.setInt(2, post.getAuthor());
+            if (groupId == null) {
+                pstmt.setNull(3, Types.INTEGER);
+            } else {
+                pstmt.setInt(3, groupId);
+            }
+            pstmt.setString(4, post.getText());
+            pstmt.setTimestamp(5, post.getTimeStamp());
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            return sqlExceptionToReturnValue(e);
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return ReturnValue.ERROR;
+            }
+        }
+        return ReturnValue.OK;
+    }
+
+    private static void removeFromDirectory(Connection connection, Integer postId) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement("DELETE FROM PostDirectory WHERE id = ?");
+        try {
+            pstmt.setInt(1, postId);
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /* Returns the author of the post according to the directory, or null if the post does not exist */
+    private static Integer getAuthor(Integer postId, boolean forWrite) throws SQLException {
+        Connection connection = forWrite ? DBConnector.getConnection() : DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT author FROM LivePostDirectory WHERE id = ?");
+            pstmt.setInt(1, postId);
+            ResultSet results = pstmt.executeQuery();
+            Integer author = results.next() ? results.getInt(1) : null;
+            results.close();
+            return author;
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+    }
+
+    private static boolean isLive(Integer studentId) throws SQLException {
+        Connection connection = DBConnector.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT 1 FROM LiveStudents WHERE id = ?");
+            pstmt.setInt(1, studentId);
+            ResultSet results = pstmt.executeQuery();
+            boolean live = results.next();
+            results.close();
+            return live;
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+    }
+
+    static ReturnValue deletePost(Integer postId) {
+        Connection connection = DBConnector.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "DELETE FROM PostDirectory WHERE id = ? RETURNING author, group_id");
+            pstmt.setInt(1, postId);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
+                return ReturnValue.NOT_EXISTS;
+            }
+            int author = results.getInt(1);
+            Integer groupId = results.getInt(2);
+            if (results.wasNull())
+                groupId = null;
+            results.close();
+            DBConnector.markWrite(author);
+            trendingLikes.remove(postId, groupId == null ? LikeWindowCounter.PUBLIC_GROUP : groupId);
+
+            return deleteFromShard(connection, author, postId, groupId) ? ReturnValue.OK : ReturnValue.NOT_EXISTS;
+        } catch (SQLException e) {
+            return errorReturnValue(e);
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return ReturnValue.ERROR;
+            }
+        }
+    }
+
+    /*
+     * Deletes the post from the author's shard and takes it and its likes out of the group's rollups on the
+     * coordinator. Returns false if the post was not on the shard.
+     */
+    private static boolean deleteFromShard(Connection coordinator, Integer author, Integer postId, Integer groupId)
+            throws SQLException {
+        Connection connection = DBConnector.getShardConnection(DBConnector.shardOf(author));
+        PreparedStatement pstmt = null;
+        try {
+            // the likes are cascaded away after the statement, so the join still counts them
+            pstmt = connection.prepareStatement(
+                    "WITH deleted AS (DELETE FROM Posts WHERE id = ? RETURNING pdate) \n" +
+                    "SELECT d.pdate, l.day, l.likes FROM deleted d \n" +
+                    "LEFT JOIN (SELECT liked_at::date AS day, COUNT(*) AS likes FROM Likes \n" +
+                    "           WHERE post_id = ? GROUP BY 1) l ON true");
+            pstmt.setInt(1, postId);
+            pstmt.setInt(2, postId);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
+                return false;
+            }
+            Date pdate = new Date(results.getTimestamp(1).getTime());
+            Map<Date, Integer> likesPerDay = GroupRollups.likesPerDay(results, 2);
+            results.close();
+            if (groupId != null) {
+                GroupRollups.postDeleted(coordinator, groupId, pdate, likesPerDay);
+            }
+            return true;
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+    }
+
+    static Post getPost(Integer postId) {
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        try {
+            Integer author = getAuthor(postId, false);
+            if (author == null) {
+                return Post.badPost();
+            }
+            connection = DBConnector.getShardConnection(DBConnector.shardOf(author));
+            pstmt = connection.prepareStatement("SELECT id, author, contents, pdate, " +
+                    "(SELECT COUNT(*) FROM Likes WHERE  post_id = (?))" +
+                    "FROM Posts " +
+                    "WHERE id = (?)");
+            pstmt.setInt(1, postId);
+            pstmt.setInt(2, postId);
+
+            ResultSet results = pstmt.executeQuery();
+            if (results.next()) {
+                Post p = new Post();
+                p.setId(results.getInt(1));
+                p.setAuthor(results.getInt(2));
+                p.setText(results.getString(3));
+                p.setTimeStamp(results.getTimestamp(4));
+                p.setLikes(results.getInt(5));
+                return p;
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return Post.badPost();
+    }
+
+    /* Bulk getPost: one directory query, then one query per shard holding any of the posts */
+    static HashMap<Integer, Post> getPosts(List<Integer> postIds) {
+        HashMap<Integer, Post> posts = new HashMap<>();
+        List<List<Integer>> idsByShard = new ArrayList<>();
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            idsByShard.add(new ArrayList<>());
+        }
+
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT id, author FROM LivePostDirectory WHERE id = ANY (?)");
+            pstmt.setArray(1, connection.createArrayOf("integer", postIds.toArray()));
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                idsByShard.get(DBConnector.shardOf(results.getInt(2))).add(results.getInt(1));
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return posts;
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+
+        List<Callable<Feed>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < idsByShard.size(); shard++) {
+            List<Integer> ids = idsByShard.get(shard);
+            if (ids.isEmpty())
+                continue;
+            final int s = shard;
+            tasks.add(() -> queryShardFeed(s,
+                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM Posts WHERE id = ANY (?)", ids.toArray(new Integer[0])));
+        }
+        for (Post p : scatterGather(tasks)) {
+            posts.put(p.getId(), p);
+        }
+        return posts;
+    }
+
+    static ReturnValue updatePost(Post post) {
+        try {
+            Integer author = getAuthor(post.getId(), true);
+            if (author == null) {
+                return ReturnValue.NOT_EXISTS;
+            }
+            if (post.getText() == null) {
+                return ReturnValue.BAD_PARAMS;
+            }
+            Connection connection = DBConnector.getShardConnection(DBConnector.shardOf(author));
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = connection.prepareStatement("UPDATE Posts SET contents=? WHERE id=?");
+                pstmt.setString(1, post.getText());
+                pstmt.setInt(2, post.getId());
+                if (pstmt.executeUpdate() == 0) {
+                    return ReturnValue.NOT_EXISTS;
+                }
+                DBConnector.markWrite(author);
+                return ReturnValue.OK;
+            } finally {
+                Solution.finalize(connection, pstmt);
+            }
+        } catch (SQLException e) {
+            return errorReturnValue(e);
+        }
+    }
+
+    /*
+     * The visibility check (student is a member of the post's group, or the post is public)
+     * runs on the coordinator, the like itself is stored on the post's shard.
+     */
+    static ReturnValue likePost(Integer studentId, Integer postId) {
+        Connection connection = DBConnector.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT p.author, p.group_id FROM LivePostDirectory p, LiveMembers m \n" +
+                    "WHERE (m.group_id=p.group_id OR p.group_id IS NULL) \n" +
+                    "  AND p.id=? AND m.student_id=? \n" +
+                    "LIMIT 1");
+            pstmt.setInt(1, postId);
+            pstmt.setInt(2, studentId);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
+                return ReturnValue.NOT_EXISTS;
+            }
+            int author = results.getInt(1);
+            int group = results.getInt(2);
+            boolean isPublic = results.wasNull();
+            results.close();
+
+            Timestamp likedAt = insertLike(author, postId, studentId);
+            if (!isPublic) {
+                GroupRollups.update(connection, group, new Date(likedAt.getTime()), GroupRollups.LIKES, 1);
+            }
+            trendingLikes.like(postId, group, likedAt.getTime());
+            DBConnector.markWrite(studentId);
+            return ReturnValue.OK;
+        } catch (SQLException e) {
+            return sqlExceptionToReturnValue(e);
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return ReturnValue.ERROR;
+            }
+        }
+    }
+
+    /* Stores the like on the post's shard, returns the time it was stored at */
+    private static Timestamp insertLike(Integer author, Integer postId, Integer studentId) throws SQLException {
+        Connection connection = DBConnector.getShardConnection(DBConnector.shardOf(author));
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "INSERT INTO Likes(post_id, student_id) VALUES (?, ?) RETURNING liked_at");
+            pstmt.setInt(1, postId);
+            pstmt.setInt(2, studentId);
+            ResultSet results = pstmt.executeQuery();
+            results.next();
+            Timestamp likedAt = results.getTimestamp(1);
+            results.close();
+            return likedAt;
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+    }
+
+    static ReturnValue unlikePost(Integer studentId, Integer postId) {
+        try {
+            Integer author = getAuthor(postId, true);
+            // a deleted student's likes stay on the shards until the purge, but are already gone
+            if (author == null || !isLive(studentId)) {
+                return ReturnValue.NOT_EXISTS;
+            }
+            Timestamp likedAt;
+            int group;
+            boolean isPublic;
+            Connection connection = DBConnector.getShardConnection(DBConnector.shardOf(author));
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = connection.prepareStatement(
+                        "DELETE FROM Likes WHERE post_id = ? AND student_id = ? " +
+                        "RETURNING liked_at, (SELECT group_id FROM Posts WHERE id = post_id)");
+                pstmt.setInt(1, postId);
+                pstmt.setInt(2, studentId);
+                ResultSet results = pstmt.executeQuery();
+                if (!results.next()) {
+                    return ReturnValue.NOT_EXISTS;
+                }
+                likedAt = results.getTimestamp(1);
+                group = results.getInt(2);
+                isPublic = results.wasNull();
+                results.close();
+            } finally {
+                Solution.finalize(connection, pstmt);
+            }
+
+            if (!isPublic) {
+                updateRollups(group, likedAt, GroupRollups.LIKES, -1);
+            }
+            trendingLikes.unlike(postId, group, likedAt.getTime());
+            DBConnector.markWrite(studentId);
+            return ReturnValue.OK;
+        } catch (SQLException e) {
+            return errorReturnValue(e);
+        }
+    }
+
+    /* Updates the rollups of the group on the coordinator, for writes that only had a shard connection */
+    private static void updateRollups(Integer groupId, Timestamp day, String column, int delta) {
+        Connection connection = DBConnector.getConnection();
+        try {
+            GroupRollups.update(connection, groupId, new Date(day.getTime()), column, delta);
+        } finally {
+            close_connection(connection);
+        }
+    }
+
+    /* Rebuilds the trending counters from the like times persisted on every shard */
+    static boolean loadTrendingLikes() {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - trendingLikes.getMaxWindowMillis());
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            Connection connection = DBConnector.getShardConnection(shard);
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = connection.prepareStatement(
+                        "SELECT l.post_id, p.group_id, l.liked_at FROM Likes l, Posts p " +
+                        "WHERE p.id = l.post_id AND l.liked_at >= ?");
+                pstmt.setTimestamp(1, cutoff);
+                ResultSet results = pstmt.executeQuery();
+                while (results.next()) {
+                    trendingLikes.like(results.getInt(1), results.getInt(2), results.getTimestamp(3).getTime());
+                }
+                results.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                trendingLikes.clear();
+                return false;
+            } finally {
+                finalizePrintExceptionStack(connection, pstmt);
+            }
+        }
+        trendingLikes.setLoaded(true);
+        return true;
+    }
+
+    /*
+     * The authors (the student and his\her friends) are resolved on the coordinator, then each shard
+     * is asked only for the authors that live on it.
+     */
+    static Feed getStudentFeed(Integer id) {
+        List<List<Integer>> authorsByShard = new ArrayList<>();
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            authorsByShard.add(new ArrayList<>());
+        }
+
+        Connection connection = DBConnector.getReadConnection(id);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT id2 FROM FriendPairs WHERE id1 = (?) " +
+                    "UNION SELECT id FROM LiveStudents WHERE id = (?)");
+            pstmt.setInt(1, id);
+            pstmt.setInt(2, id);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                int author = results.getInt(1);
+                authorsByShard.get(DBConnector.shardOf(author)).add(author);
+            }
+            results.close();
+        } catch (SQLException e) {
+            return new Feed();
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new Feed();
+            }
+        }
+
+        List<Callable<Feed>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < authorsByShard.size(); shard++) {
+            List<Integer> authors = authorsByShard.get(shard);
+            if (authors.isEmpty())
+                continue;
+            final int s = shard;
+            tasks.add(() -> queryShardFeed(s,
+                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM Posts WHERE author = ANY (?) " +
+                    "ORDER BY pdate DESC, n_likes DESC ", authors.toArray(new Integer[0])));
+        }
+        return scatterGather(tasks);
+    }
+
+    static Feed getGroupFeed(String groupName) {
+        Integer groupId;
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
+            pstmt.setString(1, groupName);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
+                return new Feed();
+            }
+            groupId = results.getInt(1);
+            results.close();
+        } catch (SQLException e) {
+            return new Feed();
+        } finally {
+            try {
+                Solution.finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new Feed();
+            }
+        }
+
+        List<Callable<Feed>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            final int s = shard;
+            tasks.add(() -> queryShardFeed(s,
+                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM Posts WHERE group_id = ? " +
+                    "ORDER BY pdate DESC, n_likes DESC ", groupId));
+        }
+        return scatterGather(tasks);
+    }
+
+    /*
+     * Every shard returns its own top matches ranked by relevance, the best limit posts of all shards are kept.
+     * The group id is resolved on the coordinator since shards have no Groups table.
+     */
+    static Feed searchPosts(String query, String groupName, Integer limit) {
+        Integer groupId = null;
+        if (groupName != null) {
+            Connection connection = DBConnector.getReadConnection();
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
+                pstmt.setString(1, groupName);
+                ResultSet results = pstmt.executeQuery();
+                if (!results.next()) {
+                    return new Feed();
+                }
+                groupId = results.getInt(1);
+                results.close();
+            } catch (SQLException e) {
+                return new Feed();
+            } finally {
+                finalizePrintExceptionStack(connection, pstmt);
+            }
+        }
+
+        final Integer group = groupId;
+        List<Callable<List<RankedPost>>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+            final int s = shard;
+            tasks.add(() -> searchShard(s, query, group, limit));
+        }
+        List<RankedPost> ranked = new ArrayList<>();
+        try {
+            for (Future<List<RankedPost>> future : scatterPool.invokeAll(tasks)) {
+                ranked.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Feed();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return new Feed();
+        }
+        ranked.sort(Comparator.comparingDouble((RankedPost r) -> r.rank).reversed()
+                .thenComparing(r -> r.post.getDate(), Comparator.reverseOrder()));
+
+        Feed feed = new Feed();
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            feed.add(ranked.get(i).post);
+        }
+        return feed;
+    }
+
+    private static class RankedPost {
+        final Post post;
+        final double rank;
+
+        RankedPost(Post post, double rank) {
+            this.post = post;
+            this.rank = rank;
+        }
+    }
+
+    private static List<RankedPost> searchShard(int shard, String query, Integer groupId, Integer limit)
+            throws SQLException {
+        Connection connection = DBConnector.getShardConnection(shard);
+        PreparedStatement pstmt = null;
+        List<RankedPost> ranked = new ArrayList<>();
+        try {
+            connection.setReadOnly(true);
+            pstmt = connection.prepareStatement(
+                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate, " +
+                    "       ts_rank(to_tsvector('english', contents), query) AS rank " +
+                    "FROM Posts, plainto_tsquery('english', ?) query " +
+                    "   WHERE to_tsvector('english', contents) @@ query " +
+                    "     AND " + (groupId != null ? "group_id = ? " : "group_id IS NULL ") +
+                    "   ORDER BY rank DESC, pdate DESC " +
+                    "   LIMIT ?");
+            int i = 1;
+            pstmt.setString(i++, query);
+            if (groupId != null)
+                pstmt.setInt(i++, groupId);
+            pstmt.setInt(i, limit);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                Post p = new Post();
+                p.setId(results.getInt(1));
+                p.setAuthor(results.getInt(2));
+                p.setLikes(results.getInt(3));
+                p.setText(results.getString(4));
+                p.setTimeStamp(results.getTimestamp(5));
+                ranked.add(new RankedPost(p, results.getDouble(6)));
+            }
+            results.close();
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+        return ranked;
+    }
+
+    private static Feed queryShardFeed(int shard, String query, Object param) throws SQLException {
+        Connection connection = DBConnector.getShardConnection(shard);
+        PreparedStatement pstmt = null;
+        Feed feed = new Feed();
+        try {
+            connection.setReadOnly(true);
+            pstmt = connection.prepareStatement(query);
+            if (param instanceof Integer[]) {
+                pstmt.setArray(1, connection.createArrayOf("integer", (Integer[]) param));
+            } else {
+                pstmt.setInt(1, (Integer) param);
+            }
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                Post p = new Post();
+                p.setId(results.getInt(1));
+                p.setAuthor(results.getInt(2));
+                p.setLikes(results.getInt(3));
+                p.setText(results.getString(4));
+                p.setTimeStamp(results.getTimestamp(5));
+                feed.add(p);
+            }
+            results.close();
+        } finally {
+            Solution.finalize(connection, pstmt);
+        }
+        return feed;
+    }
+
+    /* Runs the per-shard queries in parallel and k-way merges their already ordered results */
+    private static Feed scatterGather(List<Callable<Feed>> tasks) {
+        List<Feed> partial = new ArrayList<>();
+        try {
+            for (Future<Feed> future : scatterPool.invokeAll(tasks)) {
+                partial.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Feed();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return new Feed();
+        }
+        return merge(partial);
+    }
+
+    static Feed merge(List<Feed> feeds) {
+        Feed merged = new Feed();
+        // heap entries are {feed index, position in feed}
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(feeds.size(), 1),
+                (a, b) -> FEED_ORDER.compare(feeds.get(a[0]).get(a[1]), feeds.get(b[0]).get(b[1])));
+        for (int i = 0; i < feeds.size(); i++) {
+            if (!feeds.get(i).isEmpty())
+                heap.add(new int[]{i, 0});
+        }
+        while (!heap.isEmpty()) {
+            int[] top = heap.poll();
+            Feed feed = feeds.get(top[0]);
+            merged.add(feed.get(top[1]));
+            if (top[1] + 1 < feed.size())
+                heap.add(new int[]{top[0], top[1] + 1});
+        }
+        return merged;
+    }
+}
@@ -1,16 +1,44 @@
 package techbook;
 
 import techbook.business.*;
+import techbook.data.AdmissionControl;
+import techbook.data.ChangeFeed;
 import techbook.data.DBConnector;
+import techbook.data.LikeWindowCounter;
+import techbook.data.PostArchive;
 import techbook.data.PostgreSQLErrorCodes;
+import techbook.data.PrefixIndex;
+import techbook.data.SingleFlight;
+import techbook.graph.BidirectionalBfs;
+import techbook.graph.FriendGraph;
 
 import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
 
 import static techbook.data.PostgreSQLErrorCodes.*;
 
 public class Solution {
 
+    /*
+     * Type-ahead indexes over Students.name and Groups.name, loaded by loadAutocompleteIndexes at startup
+     * (or on first use), empty and loaded right after createTables and clearTables
+     */
+    private static final PrefixIndex studentNames = new PrefixIndex();
+    private static final PrefixIndex groupNames = new PrefixIndex();
+    /* Likes per post in one minute buckets over the last day, fed by likePost/unlikePost, see getTrendingPosts */
+    static final LikeWindowCounter trendingLikes = new LikeWindowCounter(60 * 1000, 24 * 60);
+    /* In-process friendship graph for the separation queries, see setFriendGraph */
+    private static volatile FriendGraph friendGraph = null;
+
     public static void createTables() {
         Connection connection = DBConnector.getConnection();
 
@@ -63,18 +91,28 @@ public class Solution {
                 "        ON UPDATE NO ACTION\n" +
                 "        ON DELETE CASCADE,\n" +
                 "   PRIMARY KEY (id1, id2)" +
-                "); ALTER TABLE Friends add CONSTRAINT not_self_friend CHECK (id1 <> id2)";
+                "); ALTER TABLE Friends add CONSTRAINT not_self_friend CHECK (id1 <> id2)" +
+                "; ALTER TABLE Friends add CONSTRAINT canonical_pair CHECK (id1 < id2)";
+
+        /* Every friendship is stored once, as (smaller id, bigger id). FriendPairs lists it in both directions,
+         * so "the friends of x" is SELECT id2 FROM FriendPairs WHERE id1 = x, served by the primary key for the
+         * first branch and by friends_id2 for the second. */
+        String friends_index = "CREATE INDEX friends_id2 ON Friends (id2, id1)";
+        String friend_pairs_view = "CREATE VIEW FriendPairs AS " +
+                "SELECT id1, id2 FROM LiveFriends UNION ALL SELECT id2, id1 FROM LiveFriends";
 
         String likes_query = "CREATE TABLE Likes\n" +
                 "(\n" +
                 "    post_id integer NOT NULL,\n" +
                 "    student_id integer NOT NULL,\n" +
+                "    liked_at timestamptz NOT NULL DEFAULT now(),\n" +
                 "    CONSTRAINT student_exists FOREIGN KEY (student_id)\n" +
                 "        REFERENCES Students (id) MATCH SIMPLE\n" +
                 "        ON UPDATE NO ACTION\n" +
                 "        ON DELETE CASCADE,\n" +
                 "    CONSTRAINT post_exists FOREIGN KEY (post_id)\n" +
-                "        REFERENCES Posts (id) MATCH SIMPLE\n" +
+                "        " + (PostPartitions.isEnabled() ? PostPartitions.likesPostReference() : "REFERENCES Posts (id)") +
+                " MATCH SIMPLE\n" +
                 "        ON UPDATE NO ACTION\n" +
                 "        ON DELETE CASCADE,\n" +
                 "   PRIMARY KEY (post_id, student_id)" +
@@ -95,14 +133,36 @@ public class Solution {
                 "    CONSTRAINT group_exists FOREIGN KEY (group_id) REFERENCES Groups(id) ON DELETE CASCADE\n" +
                 ")";
 
+        /* Expression index for searchPosts, kept up to date by Postgres on every insert/update/delete of a post */
+        String posts_search_index = "CREATE INDEX posts_contents_fts ON Posts " +
+                "USING GIN (to_tsvector('english', contents))";
+
         queryStatement(connection, groups_query);
         queryStatement(connection, students_query);
         queryStatement(connection, members_query);
         queryStatement(connection, friends_query);
-        queryStatement(connection, posts_query);
+        queryStatement(connection, friends_index);
+        if (PostPartitions.isEnabled()) {
+            PostPartitions.createTables(connection);
+        } else {
+            queryStatement(connection, posts_query);
+        }
         queryStatement(connection, likes_query);
+        queryStatement(connection, posts_search_index);
+        queryStatement(connection, "CREATE INDEX likes_liked_at ON Likes (liked_at)");
+        // FriendPairs hides the friendships of deleted students through LiveFriends
+        StudentPurger.createTables(connection);
+        queryStatement(connection, friend_pairs_view);
+        PostArchiver.createTables(connection);
+        GroupRollups.createTables(connection);
+        ChangeFeed.createTables(connection);
 
         close_connection(connection);
+
+        if (DBConnector.isSharded())
+            ShardedPosts.createTables();
+
+        loadEmptyAutocompleteIndexes();
     }
 
     public static void clearTables() {
@@ -121,11 +181,27 @@ public class Solution {
         queryStatement(connection, delete_friends);
         queryStatement(connection, delete_likes);
         queryStatement(connection, delete_posts);
+        if (PostPartitions.isEnabled())
+            PostPartitions.clearTables(connection);
+        StudentPurger.clearTables(connection);
+        GroupRollups.clearTables(connection);
+        ChangeFeed.clearTables(connection);
 
         close_connection(connection);
+
+        if (DBConnector.isSharded())
+            ShardedPosts.clearTables();
+
+        PostArchiver.clearTables();
+        SingleFlight.forgetResults();
+        loadEmptyAutocompleteIndexes();
+        trendingLikes.clear();
     }
 
     public static void dropTables() {
+        if (DBConnector.isSharded())
+            ShardedPosts.dropTables();
+
         Connection connection = DBConnector.getConnection();
 
         String drop_groups = "DROP TABLE IF EXISTS Groups CASCADE";
@@ -141,11 +217,20 @@ public class Solution {
         queryStatement(connection, drop_friends);
         queryStatement(connection, drop_likes);
         queryStatement(connection, drop_posts);
+        PostPartitions.dropTables(connection);
+        StudentPurger.dropTables(connection);
+        GroupRollups.dropTables(connection);
+        ChangeFeed.dropTables(connection);
 
         close_connection(connection);
+
+        SingleFlight.forgetResults();
+        studentNames.clear();
+        groupNames.clear();
+        trendingLikes.clear();
     }
 
-    private static void queryStatement(Connection connection, String query) {
+    static void queryStatement(Connection connection, String query) {
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement(query);
@@ -170,14 +255,21 @@ public class Solution {
         Connection connection = DBConnector.getConnection();
 
         try {
+            begin(connection);
             Long group_id = createGroup(connection, student.getFaculty());
             insertStudent(connection, student, group_id);
+            ChangeFeed.record(connection, ChangeEvent.STUDENT, student.getId(), student.getId(), null,
+                    student.getFaculty());
+            commit(connection);
+            groupNames.add(student.getFaculty(), group_id.intValue());
+            studentNames.add(student.getName(), student.getId());
+            DBConnector.markWrite(student.getId());
             joinGroup(student.getId(), student.getFaculty());
         } catch (SQLException e) {
             return sqlExceptionToReturnValue(e);
         } finally {
             try {
-                connection.close();
+                finalize(connection, null);
             } catch (SQLException e) {
                 return ReturnValue.ERROR;
             }
@@ -190,7 +282,7 @@ public class Solution {
         try {
             pstmt = connection.prepareStatement("INSERT INTO Students (id, name, faculty_id)" +
                     "   VALUES (?, ?, ?);");
-            pstmt.setInt(1, student.getId());
+            pstmt.setObject(1, student.getId(), Types.INTEGER); // a null id fails the NOT NULL check, BAD_PARAMS
             pstmt.setString(2, student.getName());
             pstmt.setLong(3, group_id);
             pstmt.executeUpdate();
@@ -202,6 +294,9 @@ public class Solution {
     /**
      * Deletes a student from the database
      * Deleting a student will cause him\her to leave their group, delete their posts and likes history, and friendships
+     * The student's memberships, likes and friendships are removed right away. The student and his\her posts are
+     * only marked as deleted and disappear from every read and from the rollups, they are removed later by
+     * purgeDeletedStudents (see StudentPurger)
      * input: student
      * output: ReturnValue with the following conditions:
      * OK in case of success
@@ -212,17 +307,29 @@ public class Solution {
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
-            pstmt = connection.prepareStatement(
-                    "DELETE FROM Students " +
-                            "WHERE id = ?");
-            pstmt.setInt(1, studentId);
-
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+            begin(connection);
+            StudentPurger.Deletion deletion = StudentPurger.markDeleted(connection, studentId);
+            if (deletion == null) {
                 return ReturnValue.NOT_EXISTS;
             }
+            ChangeFeed.record(connection, ChangeEvent.STUDENT, studentId, studentId, null, null);
+            commit(connection);
+            GroupRollups.remove(connection, deletion.rollups);
+            for (int i = 0; i < deletion.likedPosts.size(); i++) {
+                Integer groupId = deletion.likedGroups.get(i);
+                trendingLikes.unlike(deletion.likedPosts.get(i),
+                        groupId == null ? LikeWindowCounter.PUBLIC_GROUP : groupId, deletion.likedAt.get(i).getTime());
+            }
+            for (int i = 0; i < deletion.trendingPosts.size(); i++) {
+                Integer groupId = deletion.trendingGroups.get(i);
+                trendingLikes.remove(deletion.trendingPosts.get(i),
+                        groupId == null ? LikeWindowCounter.PUBLIC_GROUP : groupId);
+            }
+            PostArchiver.removeAuthor(studentId);
+            studentNames.remove(deletion.name, studentId);
+            DBConnector.markWrite(studentId);
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -239,12 +346,15 @@ public class Solution {
      * output: The student profile in case the student exists. BadStudent otherwise
      */
     public static Student getStudentProfile(Integer studentId) {
-        Connection connection = DBConnector.getConnection();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(studentId, "getStudentProfile", () -> getStudentProfile(studentId),
+                    Solution::copyOf, studentId);
+        Connection connection = DBConnector.getReadConnection(studentId);
         PreparedStatement pstmt = null;
         try {
-            pstmt = connection.prepareStatement("SELECT Students.id, Students.name, Groups.name " +
-                    "FROM (Students INNER JOIN Groups ON Students.faculty_id = Groups.id) " +
-                    "WHERE Students.id = (?)");
+            pstmt = connection.prepareStatement("SELECT LiveStudents.id, LiveStudents.name, Groups.name " +
+                    "FROM (LiveStudents INNER JOIN Groups ON LiveStudents.faculty_id = Groups.id) " +
+                    "WHERE LiveStudents.id = (?)");
             pstmt.setInt(1, studentId);
 
             ResultSet results = pstmt.executeQuery();
@@ -266,6 +376,50 @@ public class Solution {
         return Student.badStudent();
     }
 
+    /**
+     * Bulk getStudentProfile: returns the profiles of all the given students with one query
+     * input: student ids
+     * output: the profiles in the order of the ids, BadStudent for every id with no student (and for null ids).
+     * In case of an error, return BadStudent for every id
+     */
+    public static ArrayList<Student> getStudentProfiles(List<Integer> studentIds) {
+        if (!SingleFlight.isExecuting()) {
+            List<Integer> key = new ArrayList<>(studentIds);
+            return SingleFlight.execute("getStudentProfiles", () -> getStudentProfiles(key), Solution::copyOfStudents,
+                    key);
+        }
+        HashMap<Integer, Student> found = new HashMap<>();
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT LiveStudents.id, LiveStudents.name, Groups.name " +
+                    "FROM (LiveStudents INNER JOIN Groups ON LiveStudents.faculty_id = Groups.id) " +
+                    "WHERE LiveStudents.id = ANY (?)");
+            pstmt.setArray(1, connection.createArrayOf("integer", studentIds.toArray()));
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                Student s = new Student();
+                s.setId(results.getInt(1));
+                s.setName(results.getString(2));
+                s.setFaculty(results.getString(3));
+                found.put(s.getId(), s);
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            found.clear();
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+
+        ArrayList<Student> students = new ArrayList<>(studentIds.size());
+        for (Integer studentId : studentIds) {
+            Student s = studentId == null ? null : found.get(studentId);
+            students.add(s != null ? s : Student.badStudent());
+        }
+        return students;
+    }
+
     /**
      * Updates a student faculty to the new given value.
      * The student should join the group of the new faculty, and stay in the old faculty’s group.
@@ -293,10 +447,15 @@ public class Solution {
             if (!result.equals(ReturnValue.OK))
                 return result;
 
+            begin(connection);
             pstmt.executeUpdate();
+            ChangeFeed.record(connection, ChangeEvent.STUDENT, student.getId(), student.getId(), null,
+                    student.getFaculty());
+            commit(connection);
+            DBConnector.markWrite(student.getId());
 
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -319,6 +478,10 @@ public class Solution {
      * ERROR in case of database error
      */
     public static ReturnValue addPost(Post post, String groupName) {
+        if (DBConnector.isSharded())
+            return published(ShardedPosts.addPost(post, groupName),
+                    ChangeEvent.POST, post.getId(), post.getAuthor(), null, groupName);
+
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
@@ -329,26 +492,38 @@ public class Solution {
                                 "    ?, ?, (SELECT id FROM Groups WHERE  name = (?)), ?, ? \n" +
                                 "    FROM Members WHERE student_id=? " +
                                 "    AND group_id=(SELECT id FROM Groups WHERE  name = (?));");
-                pstmt.setInt(1, post.getId());
-                pstmt.setInt(2, post.getAuthor());
+                pstmt.setObject(1, post.getId(), Types.INTEGER);
+                pstmt.setObject(2, post.getAuthor(), Types.INTEGER);
                 pstmt.setString(3, groupName);
                 pstmt.setString(4, post.getText());
                 pstmt.setTimestamp(5, post.getTimeStamp());
-                pstmt.setInt(6, post.getAuthor());
+                pstmt.setObject(6, post.getAuthor(), Types.INTEGER);
                 pstmt.setString(7, groupName);
             } else {
                 pstmt = connection.prepareStatement(
                         "INSERT INTO Posts(id, author, contents, pdate)\n" +
                                 "VALUES (?, ?, ?, ?);");
-                pstmt.setInt(1, post.getId());
-                pstmt.setInt(2, post.getAuthor());
+                pstmt.setObject(1, post.getId(), Types.INTEGER);
+                pstmt.setObject(2, post.getAuthor(), Types.INTEGER);
                 pstmt.setString(3, post.getText());
                 pstmt.setTimestamp(4, post.getTimeStamp());
             }
+            begin(connection);
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
                 return ReturnValue.NOT_EXISTS;
             }
+            // archived posts keep their ids, the insert is rolled back
+            PostArchive archive = PostArchiver.nonEmptyArchive();
+            if (archive != null && archive.contains(post.getId()))
+                return ReturnValue.ALREADY_EXISTS;
+            ChangeFeed.record(connection, ChangeEvent.POST, post.getId(), post.getAuthor(), null, groupName);
+            commit(connection);
+            DBConnector.markWrite(post.getAuthor());
+            if (groupName != null) {
+                GroupRollups.update(connection, groupName, new Date(post.getTimeStamp().getTime()),
+                        GroupRollups.POSTS, 1);
+            }
         } catch (SQLException e) {
             return sqlExceptionToReturnValue(e);
         } finally {
@@ -370,20 +545,46 @@ public class Solution {
      * ERROR in case of database error
      */
     public static ReturnValue deletePost(Integer postId) {
+        if (DBConnector.isSharded())
+            return published(ShardedPosts.deletePost(postId), ChangeEvent.POST, postId, null, null, null);
+
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
+            // the likes are cascaded away after the statement, so the join still counts them. The posts of a deleted
+            // student are already gone for the reads, the purge removes them
             pstmt = connection.prepareStatement(
-                    "DELETE FROM Posts " +
-                            "WHERE id=?");
+                    "WITH deleted AS (DELETE FROM Posts WHERE id=? \n" +
+                            "    AND NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = Posts.author) \n" +
+                            "    RETURNING group_id, pdate, author) \n" +
+                            "SELECT d.group_id, d.pdate, d.author, l.day, l.likes FROM deleted d \n" +
+                            "LEFT JOIN (SELECT liked_at::date AS day, COUNT(*) AS likes FROM LiveLikes \n" +
+                            "           WHERE post_id=? GROUP BY 1) l ON true");
             pstmt.setInt(1, postId);
+            pstmt.setInt(2, postId);
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+            begin(connection);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
                 return ReturnValue.NOT_EXISTS;
             }
+            Integer groupId = results.getInt(1);
+            if (results.wasNull())
+                groupId = null;
+            Date pdate = new Date(results.getTimestamp(2).getTime());
+            int author = results.getInt(3);
+            LinkedHashMap<Date, Integer> likesPerDay = GroupRollups.likesPerDay(results, 4);
+            results.close();
+            ChangeFeed.record(connection, ChangeEvent.POST, postId, author, groupId, null);
+            commit(connection);
+            // a public post reads as group 0, PUBLIC_GROUP
+            trendingLikes.remove(postId, groupId == null ? LikeWindowCounter.PUBLIC_GROUP : groupId);
+            if (groupId != null) {
+                GroupRollups.postDeleted(connection, groupId, pdate, likesPerDay);
+            }
+            DBConnector.markWrite(author);
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -400,12 +601,17 @@ public class Solution {
      * output: Post if the post exists. BadPost otherwise
      */
     public static Post getPost(Integer postId) {
-        Connection connection = DBConnector.getConnection();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getPost", () -> getPost(postId), Solution::copyOf, postId);
+        if (DBConnector.isSharded())
+            return ShardedPosts.getPost(postId);
+
+        Connection connection = DBConnector.getReadConnection();
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement("SELECT id, author, contents, pdate, " +
-                    "(SELECT COUNT(*) FROM Likes WHERE  post_id = (?))" +
-                    "FROM Posts " +
+                    "(SELECT COUNT(*) FROM LiveLikes WHERE  post_id = (?))" +
+                    "FROM LivePosts " +
                     "WHERE id = (?)");
             pstmt.setInt(1, postId);
             pstmt.setInt(2, postId);
@@ -423,6 +629,11 @@ public class Solution {
 
             results.close();
 
+            PostArchive archive = PostArchiver.nonEmptyArchive();
+            Post archived = archive == null ? null : archive.get(postId);
+            if (archived != null)
+                return archived;
+
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -431,6 +642,58 @@ public class Solution {
         return Post.badPost();
     }
 
+    /**
+     * Bulk getPost: returns all the given posts with one query (one per shard when sharded)
+     * input: post ids
+     * output: the posts in the order of the ids, BadPost for every id with no post (and for null ids).
+     * In case of an error, return BadPost for every id
+     */
+    public static ArrayList<Post> getPosts(List<Integer> postIds) {
+        if (!SingleFlight.isExecuting()) {
+            List<Integer> key = new ArrayList<>(postIds);
+            return SingleFlight.execute("getPosts", () -> getPosts(key), Solution::copyOfPosts, key);
+        }
+        HashMap<Integer, Post> found = new HashMap<>();
+        if (DBConnector.isSharded()) {
+            found = ShardedPosts.getPosts(postIds);
+        } else {
+            Connection connection = DBConnector.getReadConnection();
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = connection.prepareStatement(
+                        "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, " +
+                        "       contents, pdate " +
+                        "FROM LivePosts " +
+                        "   WHERE id = ANY (?)");
+                pstmt.setArray(1, connection.createArrayOf("integer", postIds.toArray()));
+                for (Post p : readFeed(pstmt)) {
+                    found.put(p.getId(), p);
+                }
+
+                PostArchive archive = PostArchiver.nonEmptyArchive();
+                if (archive != null) {
+                    for (Integer postId : postIds) {
+                        Post archived = postId == null || found.containsKey(postId) ? null : archive.get(postId);
+                        if (archived != null)
+                            found.put(postId, archived);
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                found.clear();
+            } finally {
+                finalizePrintExceptionStack(connection, pstmt);
+            }
+        }
+
+        ArrayList<Post> posts = new ArrayList<>(postIds.size());
+        for (Integer postId : postIds) {
+            Post p = postId == null ? null : found.get(postId);
+            posts.add(p != null ? p : Post.badPost());
+        }
+        return posts;
+    }
+
     /**
      * Updates a post’s text
      * input: updated post
@@ -441,25 +704,39 @@ public class Solution {
      * ERROR in case of database error
      */
     public static ReturnValue updatePost(Post post) {
+        if (DBConnector.isSharded())
+            return published(ShardedPosts.updatePost(post), ChangeEvent.POST, post.getId(), null, null, null);
+
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement(
                     "UPDATE Posts " +
                             "SET contents=?\n" +
-                            "WHERE id=? " + ";");
+                            "WHERE id=? " + "RETURNING author, group_id;");
             pstmt.setString(1, post.getText());
             pstmt.setInt(2, post.getId());
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+            begin(connection);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
                 return ReturnValue.NOT_EXISTS;
             }
+            int author = results.getInt(1);
+            Integer groupId = results.getInt(2);
+            if (results.wasNull())
+                groupId = null;
+            results.close();
+            ChangeFeed.record(connection, ChangeEvent.POST, post.getId(), author, groupId, null);
+            commit(connection);
+            DBConnector.markWrite(author);
         } catch (SQLException e) {
             if (sqlStateMatches(e, CHECK_VIOLATION) || sqlStateMatches(e, NOT_NULL_VIOLATION)) {
                 return ReturnValue.BAD_PARAMS;
+            } else if (sqlStateMatches(e, FOREIGN_KEY_VIOLATION)) { // the author is deleted
+                return ReturnValue.NOT_EXISTS;
             } else {
-                return ReturnValue.ERROR;
+                return errorReturnValue(e);
             }
         } finally {
             try {
@@ -486,13 +763,18 @@ public class Solution {
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement("INSERT INTO Friends (id1, id2) " +
-                    " VALUES (?, ?), (?, ?)");
+                    " VALUES (LEAST(?, ?), GREATEST(?, ?))");
             pstmt.setInt(1, studentId1);
             pstmt.setInt(2, studentId2);
-            pstmt.setInt(3, studentId2);
-            pstmt.setInt(4, studentId1);
+            pstmt.setInt(3, studentId1);
+            pstmt.setInt(4, studentId2);
 
+            begin(connection);
             pstmt.executeUpdate();
+            ChangeFeed.record(connection, ChangeEvent.FRIEND, studentId2, studentId1, null, null);
+            commit(connection);
+            DBConnector.markWrite(studentId1);
+            DBConnector.markWrite(studentId2);
         } catch (SQLException e) {
             return sqlExceptionToReturnValue(e);
         } finally {
@@ -519,18 +801,23 @@ public class Solution {
         try {
             pstmt = connection.prepareStatement(
                     "DELETE FROM Friends " +
-                            "where (id1 = ? AND id2 = ?) OR (id2 = ? AND id1 = ?)");
+                            "where id1 = LEAST(?, ?) AND id2 = GREATEST(?, ?)");
             pstmt.setInt(1, studentId1);
             pstmt.setInt(2, studentId2);
             pstmt.setInt(3, studentId1);
             pstmt.setInt(4, studentId2);
 
+            begin(connection);
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
                 return ReturnValue.NOT_EXISTS;
             }
+            ChangeFeed.record(connection, ChangeEvent.FRIEND, studentId2, studentId1, null, null);
+            commit(connection);
+            DBConnector.markWrite(studentId1);
+            DBConnector.markWrite(studentId2);
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -551,27 +838,44 @@ public class Solution {
      * ERROR in case of database error
      */
     public static ReturnValue likePost(Integer studentId, Integer postId) {
+        if (DBConnector.isSharded())
+            return published(ShardedPosts.likePost(studentId, postId),
+                    ChangeEvent.LIKE, postId, studentId, null, null);
+
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement("INSERT INTO likes(post_id, student_id)\n" +
                     "SELECT ?, ?\n" +
                     "WHERE EXISTS (\n" +
-                    "        SELECT * FROM posts p ,members m \n" +
+                    "        SELECT * FROM LivePosts p ,members m \n" +
                     "        -- student is member of a group, or post is public\n" +
                     "        WHERE (m.group_id=p.group_id OR p.group_id IS NULL) \n" +
                     "        -- post and student exist\n" +
                     "        AND p.id=? AND m.student_id=? \n" +
-                    "    );");
+                    "    )\n" +
+                    "RETURNING liked_at, (SELECT group_id FROM Posts WHERE id = post_id);");
             pstmt.setInt(1, postId);
             pstmt.setInt(2, studentId);
             pstmt.setInt(3, postId);
             pstmt.setInt(4, studentId);
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+            begin(connection);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
                 return ReturnValue.NOT_EXISTS;
             }
+            Timestamp likedAt = results.getTimestamp(1);
+            int groupId = results.getInt(2);
+            boolean isPublic = results.wasNull();
+            results.close();
+            ChangeFeed.record(connection, ChangeEvent.LIKE, postId, studentId, isPublic ? null : groupId, null);
+            commit(connection);
+            if (!isPublic) {
+                GroupRollups.update(connection, groupId, new Date(likedAt.getTime()), GroupRollups.LIKES, 1);
+            }
+            trendingLikes.like(postId, groupId, likedAt.getTime());
+            DBConnector.markWrite(studentId);
         } catch (SQLException e) {
             return sqlExceptionToReturnValue(e);
         } finally {
@@ -593,21 +897,38 @@ public class Solution {
      * ERROR in case of database error
      */
     public static ReturnValue unlikePost(Integer studentId, Integer postId) {
+        if (DBConnector.isSharded())
+            return published(ShardedPosts.unlikePost(studentId, postId),
+                    ChangeEvent.LIKE, postId, studentId, null, null);
+
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
             pstmt = connection.prepareStatement(
                     "DELETE FROM Likes " +
-                            "where student_id = ? AND post_id = ?");
+                            "where student_id = ? AND post_id = ? " +
+                            "RETURNING liked_at, (SELECT group_id FROM Posts WHERE id = post_id)");
             pstmt.setInt(1, studentId);
             pstmt.setInt(2, postId);
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
+            begin(connection);
+            ResultSet results = pstmt.executeQuery();
+            if (!results.next()) {
                 return ReturnValue.NOT_EXISTS;
             }
+            Timestamp likedAt = results.getTimestamp(1);
+            int groupId = results.getInt(2);
+            boolean isPublic = results.wasNull();
+            results.close();
+            ChangeFeed.record(connection, ChangeEvent.LIKE, postId, studentId, isPublic ? null : groupId, null);
+            commit(connection);
+            if (!isPublic) {
+                GroupRollups.update(connection, groupId, new Date(likedAt.getTime()), GroupRollups.LIKES, -1);
+            }
+            trendingLikes.unlike(postId, groupId, likedAt.getTime());
+            DBConnector.markWrite(studentId);
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -631,7 +952,8 @@ public class Solution {
         Connection connection = DBConnector.getConnection();
         PreparedStatement pstmt = null;
         try {
-            createGroup(connection, groupName); // if group exists - no effect
+            begin(connection);
+            Long groupId = createGroup(connection, groupName); // if group exists - no effect
             pstmt = connection.prepareStatement(
                     "INSERT INTO Members(group_id, student_id) " +
                             "VALUES (" +
@@ -640,6 +962,11 @@ public class Solution {
             pstmt.setString(1, groupName);
             pstmt.setInt(2, studentId);
             pstmt.execute();
+            ChangeFeed.record(connection, ChangeEvent.MEMBER, studentId, studentId, null, groupName);
+            commit(connection);
+            groupNames.add(groupName, groupId.intValue());
+            GroupRollups.memberJoined(connection, groupName);
+            DBConnector.markWrite(studentId);
         } catch (SQLException e) {
             return sqlExceptionToReturnValue(e);
         } finally {
@@ -672,12 +999,17 @@ public class Solution {
             pstmt.setString(1, groupName);
             pstmt.setInt(2, studentId);
 
+            begin(connection);
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows == 0) {
                 return ReturnValue.NOT_EXISTS;
             }
+            ChangeFeed.record(connection, ChangeEvent.MEMBER, studentId, studentId, null, groupName);
+            commit(connection);
+            GroupRollups.memberLeft(connection, groupName);
+            DBConnector.markWrite(studentId);
         } catch (SQLException e) {
-            return ReturnValue.ERROR;
+            return errorReturnValue(e);
         } finally {
             try {
                 finalize(connection, pstmt);
@@ -694,15 +1026,20 @@ public class Solution {
      * output: Feed the containing the relevant posts. In case of an error, return an empty feed
      */
     public static Feed getStudentFeed(Integer id) {
-        Connection connection = DBConnector.getConnection();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(id, "getStudentFeed", () -> getStudentFeed(id), Solution::copyOf, id);
+        if (DBConnector.isSharded())
+            return ShardedPosts.getStudentFeed(id);
+
+        Connection connection = DBConnector.getReadConnection(id);
         PreparedStatement pstmt = null;
         Feed feed = new Feed();
         try {
             pstmt = connection.prepareStatement(
-                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate " +
-                    "FROM Posts " +
-                    "   WHERE author IN (SELECT id2 FROM Friends WHERE  id1 = (?))" +
-                    "       OR author=?" +
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts " +
+                    "   WHERE author IN (SELECT id2 FROM FriendPairs WHERE  id1 = (?))" +
+                    "       OR author=? " +
                     "ORDER BY pdate DESC, n_likes DESC ");
             pstmt.setInt(1, id);
             pstmt.setInt(2, id);
@@ -719,6 +1056,7 @@ public class Solution {
             }
 
             results.close();
+            feed = merged(feed, archivedStudentPosts(connection, id, null, null), null);
 
         } catch (SQLException e) {
             return new Feed();
@@ -738,13 +1076,18 @@ public class Solution {
      * output: Feed the containing the relevant posts. In case of an error, return an empty feed
      */
     public static Feed getGroupFeed(String groupName) {
-        Connection connection = DBConnector.getConnection();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getGroupFeed", () -> getGroupFeed(groupName), Solution::copyOf, groupName);
+        if (DBConnector.isSharded())
+            return ShardedPosts.getGroupFeed(groupName);
+
+        Connection connection = DBConnector.getReadConnection();
         PreparedStatement pstmt = null;
         Feed feed = new Feed();
         try {
             pstmt = connection.prepareStatement(
-                    "SELECT id, author, (SELECT COUNT(*) FROM Likes WHERE post_id = id) AS n_likes, contents, pdate " +
-                    "FROM Posts " +
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts " +
                     "   WHERE group_id = (SELECT id FROM Groups WHERE  name = (?))" +
                     "   ORDER BY pdate DESC, n_likes DESC ");
             pstmt.setString(1, groupName);
@@ -761,6 +1104,7 @@ public class Solution {
             }
 
             results.close();
+            feed = merged(feed, archivedGroupPosts(connection, groupName, null, null), null);
 
         } catch (SQLException e) {
             return new Feed();
@@ -775,212 +1119,1497 @@ public class Solution {
     }
 
     /**
-     * Gets a list of students that the given student may know.
-     * Denote the given the student by s. The returned list should consist of every student x in the database that holds the following:
-     * - s ≠ x.
-     * - s and x are not friends.
-     * - There exists a student y such that y ≠ s, y ≠ x, s and y are friends, and y and x are friends.
-     * - There exists a group such that both s and x are members of.
-     * input: student
-     * output: an ArrayList containing the students. In case of an error, return an empty ArrayList
+     * Bulk getGroupFeed: returns the feeds of all the given groups with one query
+     * (with sharding, one scatter-gather per group)
+     * input: group names
+     * output: the feeds in the order of the names, an empty feed for every unknown group (and for null names).
+     * In case of an error, return an empty feed for every name
      */
-    public static ArrayList<Student> getPeopleYouMayKnowList(Integer studentId) {
-
-        Connection connection = DBConnector.getConnection();
-        PreparedStatement pstmt = null;
-        ArrayList<Student> students = new ArrayList<>();
-        try {
-            pstmt = connection.prepareStatement(
-                    "SELECT id, name, (SELECT name From Groups WHERE id = Students.faculty_id) FROM Students \n" +
-                    "WHERE id IN -- friends of 2nd degree \n" +
-                    "( \n" +
-                    "    SELECT id2 FROM Friends   \n" +
-                    "    WHERE id1 IN (SELECT id2 FROM Friends WHERE id1 = (?)) \n" +
-                    "      AND id2 <> (?) \n" +
-                    "      AND id2 NOT IN (SELECT id2 FROM Friends WHERE id1 = (?)) \n" +
-                    "      AND EXISTS -- some commmon group \n" +
-                    "      (\n" +
-                    "            SELECT group_id FROM Members \n" +
-                    "            WHERE student_id = (?) \n" +
-                    "              AND group_id IN (SELECT group_id FROM Members WHERE student_id = id2) \n" +
-                    "        )\n" +
-                    ");");
-
-            pstmt.setInt(1, studentId);
-            pstmt.setInt(2, studentId);
-            pstmt.setInt(3, studentId);
-            pstmt.setInt(4, studentId);
-            ResultSet results = pstmt.executeQuery();
-
-            while (results.next()) {
-                Student s = new Student();
-                s.setId(results.getInt(1));
-                s.setName(results.getString(2));
-                s.setFaculty(results.getString(3));
-                students.add(s);
+    public static ArrayList<Feed> getGroupFeeds(List<String> groupNames) {
+        if (!SingleFlight.isExecuting()) {
+            List<String> key = new ArrayList<>(groupNames);
+            return SingleFlight.execute("getGroupFeeds", () -> getGroupFeeds(key), Solution::copyOfFeeds, key);
+        }
+        HashMap<String, Feed> found = new HashMap<>();
+        if (DBConnector.isSharded()) {
+            for (String groupName : groupNames) {
+                if (groupName != null && !found.containsKey(groupName))
+                    found.put(groupName, ShardedPosts.getGroupFeed(groupName));
             }
-
-            results.close();
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return new ArrayList<>();
-        } finally {
+        } else {
+            Connection connection = DBConnector.getReadConnection();
+            PreparedStatement pstmt = null;
             try {
-                finalize(connection, pstmt);
+                // every group gets a row, with a NULL post if it has none, so archived posts can be found by group id
+                pstmt = connection.prepareStatement(
+                        "SELECT g.name, g.id, p.id, p.author, " +
+                        "       (SELECT COUNT(*) FROM LiveLikes WHERE post_id = p.id) AS n_likes, " +
+                        "       p.contents, p.pdate " +
+                        "FROM Groups g LEFT JOIN LivePosts p ON p.group_id = g.id " +
+                        "   WHERE g.name = ANY (?) " +
+                        "   ORDER BY p.pdate DESC, n_likes DESC ");
+                pstmt.setArray(1, connection.createArrayOf("text", groupNames.toArray()));
+                ResultSet results = pstmt.executeQuery();
+                HashMap<String, Integer> groupIds = new HashMap<>();
+                while (results.next()) {
+                    String groupName = results.getString(1);
+                    Feed feed = found.computeIfAbsent(groupName, name -> new Feed());
+                    groupIds.put(groupName, results.getInt(2));
+                    int postId = results.getInt(3);
+                    if (results.wasNull())
+                        continue;
+                    Post p = new Post();
+                    p.setId(postId);
+                    p.setAuthor(results.getInt(4));
+                    p.setLikes(results.getInt(5));
+                    p.setText(results.getString(6));
+                    p.setTimeStamp(results.getTimestamp(7));
+                    feed.add(p);
+                }
+                results.close();
+
+                PostArchive archive = PostArchiver.nonEmptyArchive();
+                if (archive != null) {
+                    for (Map.Entry<String, Integer> group : groupIds.entrySet()) {
+                        found.put(group.getKey(), merged(found.get(group.getKey()),
+                                archive.getGroupFeed(group.getValue(), null, null), null));
+                    }
+                }
             } catch (SQLException e) {
-                return new ArrayList<>();
+                e.printStackTrace();
+                found.clear();
+            } finally {
+                finalizePrintExceptionStack(connection, pstmt);
             }
         }
-        return students;
+
+        ArrayList<Feed> feeds = new ArrayList<>(groupNames.size());
+        for (String groupName : groupNames) {
+            Feed feed = new Feed();
+            if (groupName != null && found.containsKey(groupName))
+                feed.addAll(found.get(groupName));
+            feeds.add(feed);
+        }
+        return feeds;
     }
 
     /**
-     * Returns a list of student id pairs (s1, s2) such that the degrees of separation (definition follows)
-     * between s1 and s2 is at least 5.
-     * To define the notion of degrees of separation let us consider a graph, called the friendship graph,
-     * where its nodes are the students in the database, and there is an edge between two students iff they are friends.
-     * The degrees of separation between students s1 and s2 is defined as the length of the shortest path
-     * connecting s1 and s2 in the undirected friendship graph.
-     * input: none
-     * output: an ArrayList containing the student pairs. In case of an error, return an empty ArrayList
+     * One page of getStudentFeed, ordered by date and id, both descending: the posts that follow the (before, beforeId)
+     * cursor, i.e. the date and id of the last post of the previous page. The id breaks the ties of posts of the
+     * same date, so the next page starts right after the previous one, even within one date.
+     * The pdate bound and the limit let Postgres skip the newer partitions of a partitioned Posts table and stop
+     * after the partitions that fill the page.
+     * input: student id, date of the cursor (null for the first page), id of the cursor (null to start strictly
+     * before the date), page size
+     * output: Feed containing the relevant posts. In case of an error or a null or negative limit, return an empty
+     * feed
      */
-    public static ArrayList<StudentIdPair> getRemotelyConnectedPairs() {
-        Connection connection = DBConnector.getConnection();
+    public static Feed getStudentFeedPage(Integer id, Timestamp before, Integer beforeId, Integer limit) {
+        if (id == null || limit == null || limit < 0)
+            return new Feed();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(id, "getStudentFeedPage",
+                    () -> getStudentFeedPage(id, before, beforeId, limit),
+                    Solution::copyOf, id, before, beforeId, limit);
+        if (DBConnector.isSharded())
+            return page(ShardedPosts.getStudentFeed(id), before, beforeId, limit);
+
+        Connection connection = DBConnector.getReadConnection(id);
         PreparedStatement pstmt = null;
-        ArrayList<StudentIdPair> pairs = new ArrayList<>();
         try {
             pstmt = connection.prepareStatement(
-                    "WITH RECURSIVE traverse(id1, id2, distance, visited) AS \n" +
-                    "(\n" +
-                    " 	SELECT id1, id2, 1, ARRAY[id1] \n" +
-                    "	FROM Friends f \n" +
-                    "UNION ALL\n" +
-                    " 	SELECT t.id1, f.id2, t.distance + 1, t.visited || f.id2\n" +
-                    "	FROM Friends f, traverse t \n" +
-                    "	WHERE f.id1 = t.id2 AND NOT f.id2=ANY(t.visited) \n" +
-                    ") \n" +
-                    "SELECT id1, id2 \n" +
-                    "FROM traverse \n" +
-                    "WHERE id1>id2 \n" + // eliminate duplicates such as: (a,b) (b,a)
-                    "GROUP BY id1, id2 \n" +
-                    "HAVING MIN(distance) >= 5;");
-
-            ResultSet results = pstmt.executeQuery();
-            while (results.next()) {
-                StudentIdPair p = new StudentIdPair();
-                p.setStudentId1(results.getInt(1));
-                p.setStudentId2(results.getInt(2));
-                pairs.add(p);
-            }
-            results.close();
-
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts " +
+                    "   WHERE (author IN (SELECT id2 FROM FriendPairs WHERE  id1 = (?)) OR author = ?) " +
+                    pageCondition(before, beforeId) +
+                    "ORDER BY pdate DESC, id DESC LIMIT ?");
+            pstmt.setInt(1, id);
+            pstmt.setInt(2, id);
+            int index = bindPageCondition(pstmt, 3, before, beforeId);
+            pstmt.setInt(index, limit);
+            Feed feed = readFeed(pstmt);
+            return coversArchive(feed, limit) ? feed
+                    : mergedPage(feed, archivedStudentPage(connection, id, before, beforeId, limit), limit);
         } catch (SQLException e) {
-            return new ArrayList<>();
+            return new Feed();
         } finally {
-            try {
-                finalize(connection, pstmt);
-            } catch (SQLException e) {
-                return new ArrayList<>();
-            }
+            finalizePrintExceptionStack(connection, pstmt);
         }
-        return pairs;
     }
 
-    /*
-     * Creates group, returns auto-generated id in case of success. Otherwise - exception is thrown
+    /**
+     * One page of getGroupFeed, same order and cursor as getStudentFeedPage
+     * input: group name, date of the cursor (null for the first page), id of the cursor (null to start strictly
+     * before the date), page size
+     * output: Feed containing the relevant posts. In case of an error or a null or negative limit, return an empty
+     * feed
      */
-    private static Long createGroup(Connection connection, String group_name) throws SQLException {
+    public static Feed getGroupFeedPage(String groupName, Timestamp before, Integer beforeId, Integer limit) {
+        if (groupName == null || limit == null || limit < 0)
+            return new Feed();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getGroupFeedPage",
+                    () -> getGroupFeedPage(groupName, before, beforeId, limit),
+                    Solution::copyOf, groupName, before, beforeId, limit);
+        if (DBConnector.isSharded())
+            return page(ShardedPosts.getGroupFeed(groupName), before, beforeId, limit);
+
+        Connection connection = DBConnector.getReadConnection();
         PreparedStatement pstmt = null;
-        Long group_id = null;
-
         try {
             pstmt = connection.prepareStatement(
-                    "INSERT INTO Groups (name) VALUES (?);",
-                    Statement.RETURN_GENERATED_KEYS);
-            pstmt.setString(1, group_name);
-            pstmt.execute();
-
-            ResultSet generatedKeys = pstmt.getGeneratedKeys();
-            if (generatedKeys.next()) {
-                group_id = generatedKeys.getLong(1);
-                return group_id;
-            } else {
-                group_id = getGroupId(connection, group_name);
-            }
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts " +
+                    "   WHERE group_id = (SELECT id FROM Groups WHERE  name = (?)) " +
+                    pageCondition(before, beforeId) +
+                    "ORDER BY pdate DESC, id DESC LIMIT ?");
+            pstmt.setString(1, groupName);
+            int index = bindPageCondition(pstmt, 2, before, beforeId);
+            pstmt.setInt(index, limit);
+            Feed feed = readFeed(pstmt);
+            return coversArchive(feed, limit) ? feed
+                    : mergedPage(feed, archivedGroupPage(connection, groupName, before, beforeId, limit), limit);
         } catch (SQLException e) {
-            if (sqlStateMatches(e, UNIQUE_VIOLATION)) { // Group existed before - return it's id
-                group_id = getGroupId(connection, group_name);
-            } else {
-                throw e;
-            }
+            return new Feed();
         } finally {
-            close_statement(pstmt);
+            finalizePrintExceptionStack(connection, pstmt);
         }
-        return group_id;
     }
 
-    /* Returns group id in case of success, otherwise throws SQLException */
-    private static Long getGroupId(Connection connection, String group_name) throws SQLException {
-        PreparedStatement pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
-        pstmt.setString(1, group_name);
+    /*
+     * The cursor condition of a feed page. The first page has none, so nothing hides the bound from the planner,
+     * and the plain pdate bound next to the row comparison is what prunes the partitions of the later pages.
+     */
+    private static String pageCondition(Timestamp before, Integer beforeId) {
+        if (before == null)
+            return "";
+        return beforeId == null ? "       AND pdate < ? "
+                : "       AND pdate <= ? AND (pdate, id) < (?, ?) ";
+    }
 
-        ResultSet results = null;
-        try {
-            results = pstmt.executeQuery();
-            results.next();
-            Long group_id = results.getLong(1);
-            return group_id;
-        } finally {
-            pstmt.close();
+    /* Binds the parameters of pageCondition from the given index on, returns the index of the next parameter */
+    private static int bindPageCondition(PreparedStatement pstmt, int index, Timestamp before, Integer beforeId)
+            throws SQLException {
+        if (before == null)
+            return index;
+        pstmt.setTimestamp(index++, before);
+        if (beforeId != null) {
+            pstmt.setTimestamp(index++, before);
+            pstmt.setInt(index++, beforeId);
         }
+        return index;
     }
 
-    private static void finalize(Connection connection, PreparedStatement pstmt) throws SQLException {
-        try {
-            if (pstmt != null)
-                pstmt.close();
-        } finally {
-            if (connection!=null)
-                connection.close();
-        }
+    /* Reads (id, author, n_likes, contents, pdate) rows into a Feed */
+    private static Feed readFeed(PreparedStatement pstmt) throws SQLException {
+        return readFeed(pstmt.executeQuery());
     }
 
-    private static void finalizePrintExceptionStack(Connection connection, PreparedStatement pstmt) {
-        close_statement(pstmt);
-        close_connection(connection);
+    private static Feed readFeed(ResultSet results) throws SQLException {
+        Feed feed = new Feed();
+        while (results.next()) {
+            Post p = new Post();
+            p.setId(results.getInt(1));
+            p.setAuthor(results.getInt(2));
+            p.setLikes(results.getInt(3));
+            p.setText(results.getString(4));
+            p.setTimeStamp(results.getTimestamp(5));
+            feed.add(p);
+        }
+        results.close();
+        return feed;
     }
 
-    private static void close_statement(PreparedStatement pstmt) {
-        try {
-            pstmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /* The first limit posts of a feed, for the sharded path */
+    private static Feed page(Feed feed, Integer limit) {
+        Feed page = new Feed();
+        for (Post p : feed) {
+            if (page.size() >= limit)
+                break;
+            page.add(p);
         }
+        return page;
     }
 
-    private static void close_connection(Connection connection) {
-        try {
+    /* A page of a whole feed in the order and with the cursor of getStudentFeedPage, for the sharded path */
+    private static Feed page(Feed feed, Timestamp before, Integer beforeId, Integer limit) {
+        List<Post> posts = new ArrayList<>(feed.size());
+        for (Post p : feed) {
+            if (before == null || p.getTimeStamp().before(before)
+                    || (beforeId != null && p.getTimeStamp().equals(before) && p.getId() < beforeId))
+                posts.add(p);
+        }
+        posts.sort((a, b) -> precedesInPage(a, b) ? -1 : precedesInPage(b, a) ? 1 : 0);
+        Feed page = new Feed();
+        for (int i = 0; i < posts.size() && i < limit; i++) {
+            page.add(posts.get(i));
+        }
+        return page;
+    }
+
+    /* The archived posts of the student and his\her friends, see PostArchiver. Empty if nothing is archived */
+    private static Feed archivedStudentPosts(Connection connection, Integer id, Timestamp before, Integer limit)
+            throws SQLException {
+        PostArchive archive = PostArchiver.nonEmptyArchive();
+        if (archive == null)
+            return new Feed();
+        return archive.getAuthorsFeed(feedAuthors(connection, id), before, limit);
+    }
+
+    /* A page of the archived posts of the student and his\her friends, see getStudentFeedPage */
+    private static Feed archivedStudentPage(Connection connection, Integer id, Timestamp before, Integer beforeId,
+                                            Integer limit) throws SQLException {
+        PostArchive archive = PostArchiver.nonEmptyArchive();
+        if (archive == null)
+            return new Feed();
+        return archive.getAuthorsPage(feedAuthors(connection, id), before, beforeId, limit);
+    }
+
+    /* The archived posts of the group, see PostArchiver. Empty if nothing is archived */
+    private static Feed archivedGroupPosts(Connection connection, String groupName, Timestamp before, Integer limit)
+            throws SQLException {
+        PostArchive archive = PostArchiver.nonEmptyArchive();
+        if (archive == null)
+            return new Feed();
+        Integer groupId = groupId(connection, groupName);
+        return groupId == null ? new Feed() : archive.getGroupFeed(groupId, before, limit);
+    }
+
+    /* A page of the archived posts of the group, see getGroupFeedPage */
+    private static Feed archivedGroupPage(Connection connection, String groupName, Timestamp before, Integer beforeId,
+                                          Integer limit) throws SQLException {
+        PostArchive archive = PostArchiver.nonEmptyArchive();
+        if (archive == null)
+            return new Feed();
+        Integer groupId = groupId(connection, groupName);
+        return groupId == null ? new Feed() : archive.getGroupPage(groupId, before, beforeId, limit);
+    }
+
+    /* The student and his\her friends, whose posts make the student's feed */
+    private static List<Integer> feedAuthors(Connection connection, Integer id) throws SQLException {
+        List<Integer> authors = new ArrayList<>();
+        authors.add(id);
+        PreparedStatement pstmt = connection.prepareStatement("SELECT id2 FROM FriendPairs WHERE id1 = (?)");
+        try {
+            pstmt.setInt(1, id);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                authors.add(results.getInt(1));
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        return authors;
+    }
+
+    /* The id of the group, null if there is no such group */
+    private static Integer groupId(Connection connection, String groupName) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
+        try {
+            pstmt.setString(1, groupName);
+            ResultSet results = pstmt.executeQuery();
+            Integer groupId = results.next() ? results.getInt(1) : null;
+            results.close();
+            return groupId;
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /* True if a full page of hot posts is newer than every archived post, so the archive can't add to it */
+    private static boolean coversArchive(Feed page, Integer limit) {
+        PostArchive archive = PostArchiver.nonEmptyArchive();
+        return archive == null
+                || (page.size() >= limit && page.get(page.size() - 1).getTimeStamp().after(archive.getNewest()));
+    }
+
+    /*
+     * Merges two feeds ordered by date and likes (both descending) into one, keeping at most limit posts (null for
+     * all). A post in both, archived by a run that failed to delete it, is only taken from the first.
+     */
+    private static Feed merged(Feed hot, Feed archived, Integer limit) {
+        return merged(hot, archived, limit, Solution::precedes);
+    }
+
+    /* Same as merged, for two pages ordered by date and id (both descending) */
+    private static Feed mergedPage(Feed hot, Feed archived, Integer limit) {
+        return merged(hot, archived, limit, Solution::precedesInPage);
+    }
+
+    private static Feed merged(Feed hot, Feed archived, Integer limit, BiPredicate<Post, Post> precedes) {
+        if (archived.isEmpty())
+            return hot;
+        Set<Integer> hotIds = new HashSet<>();
+        for (Post p : hot) {
+            hotIds.add(p.getId());
+        }
+        Feed feed = new Feed();
+        int i = 0;
+        int j = 0;
+        while ((i < hot.size() || j < archived.size()) && (limit == null || feed.size() < limit)) {
+            if (j < archived.size() && hotIds.contains(archived.get(j).getId())) {
+                j++;
+            } else if (j >= archived.size() || (i < hot.size() && !precedes.test(archived.get(j), hot.get(i)))) {
+                feed.add(hot.get(i++));
+            } else {
+                feed.add(archived.get(j++));
+            }
+        }
+        return feed;
+    }
+
+    /* Same as merged, for the compact feeds: the rows are copied over, no Post is built */
+    private static CompactFeed merged(CompactFeed hot, CompactFeed archived) {
+        if (archived.isEmpty())
+            return hot;
+        Set<Integer> hotIds = new HashSet<>();
+        for (int i = 0; i < hot.size(); i++) {
+            hotIds.add(hot.getId(i));
+        }
+        CompactFeed feed = new CompactFeed(hot.size() + archived.size());
+        int i = 0;
+        int j = 0;
+        while (i < hot.size() || j < archived.size()) {
+            if (j < archived.size() && hotIds.contains(archived.getId(j))) {
+                j++;
+            } else if (j >= archived.size() || (i < hot.size() && !precedes(archived, j, hot, i))) {
+                feed.add(hot, i++);
+            } else {
+                feed.add(archived, j++);
+            }
+        }
+        return feed;
+    }
+
+    private static boolean precedes(CompactFeed a, int i, CompactFeed b, int j) {
+        long byDate = Long.compare(a.getDateMicros(i), b.getDateMicros(j));
+        return byDate != 0 ? byDate > 0 : a.getLikes(i) > b.getLikes(j);
+    }
+
+    /* True if post a comes before post b in a feed */
+    private static boolean precedes(Post a, Post b) {
+        int byDate = a.getTimeStamp().compareTo(b.getTimeStamp());
+        return byDate != 0 ? byDate > 0 : a.getLikes() > b.getLikes();
+    }
+
+    /* True if post a comes before post b in a feed page */
+    private static boolean precedesInPage(Post a, Post b) {
+        int byDate = a.getTimeStamp().compareTo(b.getTimeStamp());
+        return byDate != 0 ? byDate > 0 : a.getId() > b.getId();
+    }
+
+    /**
+     * Same as getStudentFeed, but the posts are read directly into a column oriented CompactFeed
+     * input: student id
+     * output: CompactFeed containing the relevant posts. In case of an error, return an empty feed
+     */
+    public static CompactFeed getCompactStudentFeed(Integer id) {
+        if (DBConnector.isSharded())
+            return toCompactFeed(ShardedPosts.getStudentFeed(id));
+
+        Connection connection = DBConnector.getReadConnection(id);
+        PreparedStatement pstmt = null;
+        CompactFeed feed;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, " +
+                    "       (EXTRACT(EPOCH FROM pdate) * 1000000)::bigint " +
+                    "FROM LivePosts " +
+                    "   WHERE author IN (SELECT id2 FROM FriendPairs WHERE  id1 = (?))" +
+                    "       OR author=? " +
+                    "ORDER BY pdate DESC, n_likes DESC ");
+            pstmt.setInt(1, id);
+            pstmt.setInt(2, id);
+            ResultSet results = pstmt.executeQuery();
+            feed = CompactFeed.fromResultSet(results);
+            results.close();
+            PostArchive archive = PostArchiver.nonEmptyArchive();
+            if (archive != null)
+                feed = merged(feed, archive.getCompactAuthorsFeed(feedAuthors(connection, id), null, null));
+
+        } catch (SQLException e) {
+            return new CompactFeed();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new CompactFeed();
+            }
+        }
+        return feed;
+    }
+
+    /**
+     * Same as getGroupFeed, but the posts are read directly into a column oriented CompactFeed
+     * input: group
+     * output: CompactFeed containing the relevant posts. In case of an error, return an empty feed
+     */
+    public static CompactFeed getCompactGroupFeed(String groupName) {
+        if (DBConnector.isSharded())
+            return toCompactFeed(ShardedPosts.getGroupFeed(groupName));
+
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        CompactFeed feed;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, " +
+                    "       (EXTRACT(EPOCH FROM pdate) * 1000000)::bigint " +
+                    "FROM LivePosts " +
+                    "   WHERE group_id = (SELECT id FROM Groups WHERE  name = (?))" +
+                    "   ORDER BY pdate DESC, n_likes DESC ");
+            pstmt.setString(1, groupName);
+            ResultSet results = pstmt.executeQuery();
+            feed = CompactFeed.fromResultSet(results);
+            results.close();
+            PostArchive archive = PostArchiver.nonEmptyArchive();
+            Integer groupId = archive == null ? null : groupId(connection, groupName);
+            if (groupId != null)
+                feed = merged(feed, archive.getCompactGroupFeed(groupId, null, null));
+
+        } catch (SQLException e) {
+            return new CompactFeed();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new CompactFeed();
+            }
+        }
+        return feed;
+    }
+
+    /**
+     * Full text search over posts contents. Posts are ranked by relevance, and by date (descending) among equally
+     * relevant posts.
+     * When groupName is given only the posts of that group are searched, otherwise only public posts are searched.
+     * input: search query (plain text), group name or null, maximal number of posts to return
+     * output: Feed containing at most limit matching posts. In case of an error or illegal parameters, return an empty feed
+     */
+    public static Feed searchPosts(String query, String groupName, Integer limit) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("searchPosts", () -> searchPosts(query, groupName, limit), Solution::copyOf,
+                    query, groupName, limit);
+        if (query == null || query.trim().isEmpty() || limit == null || limit <= 0)
+            return new Feed();
+        if (DBConnector.isSharded())
+            return ShardedPosts.searchPosts(query, groupName, limit);
+
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        Feed feed = new Feed();
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts, plainto_tsquery('english', ?) query " +
+                    "   WHERE to_tsvector('english', contents) @@ query " +
+                    "     AND " + (groupName != null ? "group_id = (SELECT id FROM Groups WHERE  name = (?)) "
+                                                     : "group_id IS NULL ") +
+                    "   ORDER BY ts_rank(to_tsvector('english', contents), query) DESC, pdate DESC " +
+                    "   LIMIT ?");
+            int i = 1;
+            pstmt.setString(i++, query);
+            if (groupName != null)
+                pstmt.setString(i++, groupName);
+            pstmt.setInt(i, limit);
+            ResultSet results = pstmt.executeQuery();
+
+            while (results.next()) {
+                Post p = new Post();
+                p.setId(results.getInt(1));
+                p.setAuthor(results.getInt(2));
+                p.setLikes(results.getInt(3));
+                p.setText(results.getString(4));
+                p.setTimeStamp(results.getTimestamp(5));
+                feed.add(p);
+            }
+
+            results.close();
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new Feed();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new Feed();
+            }
+        }
+        return feed;
+    }
+
+    /**
+     * Returns the students whose name starts with the given prefix (ignoring case), ordered by name.
+     * Served from an in-memory index, the returned students have only their id and name set.
+     * input: name prefix, maximal number of students to return
+     * output: an ArrayList containing the students. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<Student> autocompleteStudents(String prefix, Integer limit) {
+        ArrayList<Student> students = new ArrayList<>();
+        if (prefix == null || limit == null || limit <= 0 || !ensureAutocompleteIndexes())
+            return students;
+        for (PrefixIndex.Entry entry : studentNames.lookup(prefix, limit)) {
+            Student s = new Student();
+            s.setId(entry.getId());
+            s.setName(entry.getName());
+            students.add(s);
+        }
+        return students;
+    }
+
+    /**
+     * Returns the names of the groups that start with the given prefix (ignoring case), ordered by name.
+     * input: name prefix, maximal number of groups to return
+     * output: an ArrayList containing the group names. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<String> autocompleteGroups(String prefix, Integer limit) {
+        ArrayList<String> groups = new ArrayList<>();
+        if (prefix == null || limit == null || limit <= 0 || !ensureAutocompleteIndexes())
+            return groups;
+        for (PrefixIndex.Entry entry : groupNames.lookup(prefix, limit)) {
+            groups.add(entry.getName());
+        }
+        return groups;
+    }
+
+    /*
+     * Bulk loads the autocomplete indexes from Students and Groups on the primary. Meant to be called once at
+     * startup, afterwards the indexes are kept up to date by addStudent, deleteStudent and group creation.
+     * Those changes keep coming during the load, the indexes replay them on top of what was read.
+     */
+    public static ReturnValue loadAutocompleteIndexes() {
+        studentNames.beginLoad();
+        groupNames.beginLoad();
+        boolean studentsLoaded = false;
+        boolean groupsLoaded = false;
+        Connection connection = DBConnector.getAnalyticalConnection();
+        PreparedStatement pstmt = null;
+        try {
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<Integer> ids = new ArrayList<>();
+            pstmt = connection.prepareStatement("SELECT id, name FROM LiveStudents");
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                ids.add(results.getInt(1));
+                names.add(results.getString(2));
+            }
+            results.close();
+            pstmt.close();
+            studentNames.load(names, ids);
+            studentsLoaded = true;
+
+            names.clear();
+            ids.clear();
+            pstmt = connection.prepareStatement("SELECT id, name FROM Groups");
+            results = pstmt.executeQuery();
+            while (results.next()) {
+                ids.add(results.getInt(1));
+                names.add(results.getString(2));
+            }
+            results.close();
+            groupNames.load(names, ids);
+            groupsLoaded = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return errorReturnValue(e);
+        } finally {
+            if (!studentsLoaded)
+                studentNames.cancelLoad();
+            if (!groupsLoaded)
+                groupNames.cancelLoad();
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return ReturnValue.ERROR;
+            }
+        }
+        return ReturnValue.OK;
+    }
+
+    /* The tables were just created or cleared, so are the indexes */
+    private static void loadEmptyAutocompleteIndexes() {
+        studentNames.load(new ArrayList<>(), new ArrayList<>());
+        groupNames.load(new ArrayList<>(), new ArrayList<>());
+    }
+
+    private static boolean ensureAutocompleteIndexes() {
+        if (studentNames.isLoaded() && groupNames.isLoaded())
+            return true;
+        synchronized (studentNames) {
+            return (studentNames.isLoaded() && groupNames.isLoaded())
+                    || loadAutocompleteIndexes() == ReturnValue.OK;
+        }
+    }
+
+    /**
+     * Gets the posts of a group that received the most likes within the given time window, ordered by the number of
+     * likes received within the window (descending). Public posts are ranked when groupName is null.
+     * Windows longer than a day are cut to a day.
+     * input: group name or null, time window, maximal number of posts to return
+     * output: Feed containing the trending posts. In case of an error or illegal parameters, return an empty feed
+     */
+    public static Feed getTrendingPosts(String groupName, Duration window, Integer k) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getTrendingPosts", () -> getTrendingPosts(groupName, window, k),
+                    Solution::copyOf, groupName, window, k);
+        if (window == null || window.isNegative() || window.isZero() || k == null || k <= 0)
+            return new Feed();
+        if (!ensureTrendingLikes())
+            return new Feed();
+
+        Connection connection = DBConnector.getReadConnection();
+        PreparedStatement pstmt = null;
+        Feed feed = new Feed();
+        try {
+            int group = LikeWindowCounter.PUBLIC_GROUP;
+            if (groupName != null) {
+                pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
+                pstmt.setString(1, groupName);
+                ResultSet results = pstmt.executeQuery();
+                if (!results.next()) {
+                    return feed;
+                }
+                group = results.getInt(1);
+                results.close();
+                pstmt.close();
+                pstmt = null;
+            }
+
+            int[] postIds = trendingLikes.top(group, window.toMillis(), k);
+            if (postIds.length == 0) {
+                return feed;
+            }
+            if (DBConnector.isSharded()) {
+                List<Integer> ids = new ArrayList<>(postIds.length);
+                for (int postId : postIds) {
+                    ids.add(postId);
+                }
+                HashMap<Integer, Post> posts = ShardedPosts.getPosts(ids);
+                for (int postId : postIds) {
+                    Post p = posts.get(postId);
+                    if (p != null)
+                        feed.add(p);
+                }
+                return feed;
+            }
+
+            Integer[] ids = new Integer[postIds.length];
+            for (int i = 0; i < postIds.length; i++) {
+                ids[i] = postIds[i];
+            }
+            pstmt = connection.prepareStatement(
+                    "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                    "FROM LivePosts " +
+                    "   WHERE id = ANY (?)");
+            pstmt.setArray(1, connection.createArrayOf("integer", ids));
+            ResultSet results = pstmt.executeQuery();
+
+            HashMap<Integer, Post> posts = new HashMap<>();
+            while (results.next()) {
+                Post p = new Post();
+                p.setId(results.getInt(1));
+                p.setAuthor(results.getInt(2));
+                p.setLikes(results.getInt(3));
+                p.setText(results.getString(4));
+                p.setTimeStamp(results.getTimestamp(5));
+                posts.put(p.getId(), p);
+            }
+            results.close();
+
+            // keep the trending order, posts deleted in the meantime are skipped
+            for (int postId : postIds) {
+                Post p = posts.get(postId);
+                if (p != null)
+                    feed.add(p);
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new Feed();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new Feed();
+            }
+        }
+        return feed;
+    }
+
+    /* Rebuilds the trending counters from the persisted like times, once after startup */
+    private static synchronized boolean ensureTrendingLikes() {
+        if (trendingLikes.isLoaded())
+            return true;
+        if (DBConnector.isSharded())
+            return ShardedPosts.loadTrendingLikes();
+
+        // likes counted before the load are in the table as well
+        trendingLikes.clear();
+
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT l.post_id, p.group_id, l.liked_at FROM LiveLikes l, LivePosts p " +
+                    "WHERE p.id = l.post_id AND l.liked_at >= ?");
+            pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - trendingLikes.getMaxWindowMillis()));
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                trendingLikes.like(results.getInt(1), results.getInt(2), results.getTimestamp(3).getTime());
+            }
+            results.close();
+            trendingLikes.setLoaded(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of members of a group, as maintained by the group rollups
+     * input: group name
+     * output: number of members, -1 if the group does not exist or in case of an error
+     */
+    public static Integer getGroupMemberCount(String groupName) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getGroupMemberCount", () -> getGroupMemberCount(groupName), count -> count,
+                    groupName);
+        return GroupRollups.getMemberCount(groupName);
+    }
+
+    /**
+     * Returns the posts, likes, joins and leaves per day of a group, for the days between from and to (inclusive)
+     * on which there was any activity, ordered by day
+     * input: group name, first day, last day
+     * output: an ArrayList containing the activity per day. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<GroupActivity> getGroupActivity(String groupName, LocalDate from, LocalDate to) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getGroupActivity", () -> getGroupActivity(groupName, from, to),
+                    Solution::copyOfActivity, groupName, from, to);
+        if (groupName == null || from == null || to == null)
+            return new ArrayList<>();
+        return GroupRollups.getActivity(groupName, from, to);
+    }
+
+    /**
+     * Returns the number of group rollup updates that failed since startup. Each one leaves the rollups off
+     * until the next reconcileGroupStats (joins and leaves for good, as they cannot be recomputed)
+     * output: number of failed updates
+     */
+    public static long getFailedGroupStatsUpdates() {
+        return GroupRollups.getFailedUpdates();
+    }
+
+    /**
+     * Recomputes the group rollups (member counts, posts and likes per day) from Members, Posts and Likes
+     * output: ReturnValue with the following conditions:
+     * OK in case of success
+     * ERROR in case of database error
+     */
+    public static ReturnValue reconcileGroupStats() {
+        return GroupRollups.reconcile();
+    }
+
+    /* Runs reconcileGroupStats every periodMillis in a background thread, until stopGroupStatsReconciler */
+    public static void startGroupStatsReconciler(long periodMillis) {
+        GroupRollups.startReconciler(periodMillis);
+    }
+
+    public static void stopGroupStatsReconciler() {
+        GroupRollups.stopReconciler();
+    }
+
+    /**
+     * With posts.partitioning set, creates the upcoming Posts partitions and drops or detaches the partitions
+     * older than posts.retentionDays (see PostPartitions). Does nothing otherwise.
+     * output: ReturnValue with the following conditions:
+     * OK in case of success
+     * ERROR in case of database error
+     */
+    public static ReturnValue maintainPostPartitions() {
+        return PostPartitions.maintain();
+    }
+
+    /* Runs maintainPostPartitions now and then every periodMillis in a background thread */
+    public static void startPostPartitionMaintenance(long periodMillis) {
+        PostPartitions.startMaintenance(periodMillis);
+    }
+
+    public static void stopPostPartitionMaintenance() {
+        PostPartitions.stopMaintenance();
+    }
+
+    /**
+     * With archive.directory set, moves the posts older than archive.afterDays, with their like counts, from Posts
+     * and Likes to the local archive, in batches of archive.batchSize (see PostArchiver). Does nothing otherwise.
+     * getPost and the feeds keep returning the archived posts.
+     * output: ReturnValue with the following conditions:
+     * OK in case of success
+     * ERROR in case of database or archive error
+     */
+    public static ReturnValue archivePosts() {
+        return PostArchiver.run();
+    }
+
+    /* Runs archivePosts now and then every periodMillis in a background thread */
+    public static void startPostArchiver(long periodMillis) {
+        PostArchiver.start(periodMillis);
+    }
+
+    public static void stopPostArchiver() {
+        PostArchiver.stop();
+    }
+
+    /**
+     * Removes the rows of the students deleted so far in small transactions, see StudentPurger
+     * output: ReturnValue with the following conditions:
+     * OK in case of success
+     * ERROR in case of database error
+     */
+    public static ReturnValue purgeDeletedStudents() {
+        return StudentPurger.purge();
+    }
+
+    /* Runs purgeDeletedStudents now and then every periodMillis in a background thread */
+    public static void startStudentPurger(long periodMillis) {
+        StudentPurger.start(periodMillis);
+    }
+
+    public static void stopStudentPurger() {
+        StudentPurger.stop();
+    }
+
+    /**
+     * Deletes the change feed events older than changes.retentionHours, subscriptions can't catch up past that point
+     * output: the number of events deleted (0 in case of a database error)
+     */
+    public static int purgeChangeEvents() {
+        return ChangeFeed.purge();
+    }
+
+    /* Runs purgeChangeEvents now and then every periodMillis in a background thread */
+    public static void startChangeEventPurger(long periodMillis) {
+        ChangeFeed.startPurger(periodMillis);
+    }
+
+    public static void stopChangeEventPurger() {
+        ChangeFeed.stopPurger();
+    }
+
+    /**
+     * Returns the students that are deleted but not purged yet
+     * output: student id -> number of rows purged so far, oldest deletion first. In case of an error, return an
+     * empty map
+     */
+    public static LinkedHashMap<Integer, Long> getPendingStudentDeletions() {
+        return StudentPurger.getPending();
+    }
+
+    /**
+     * Gets a list of students that the given student may know.
+     * Denote the given the student by s. The returned list should consist of every student x in the database that holds the following:
+     * - s ≠ x.
+     * - s and x are not friends.
+     * - There exists a student y such that y ≠ s, y ≠ x, s and y are friends, and y and x are friends.
+     * - There exists a group such that both s and x are members of.
+     * input: student
+     * output: an ArrayList containing the students. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<Student> getPeopleYouMayKnowList(Integer studentId) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(studentId, "getPeopleYouMayKnowList",
+                    () -> getPeopleYouMayKnowList(studentId),
+                    Solution::copyOfStudents, studentId);
+
+        Connection connection = DBConnector.getReadConnection(studentId);
+        PreparedStatement pstmt = null;
+        ArrayList<Student> students = new ArrayList<>();
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT id, name, (SELECT name From Groups WHERE id = Students.faculty_id) FROM Students \n" +
+                    "WHERE id IN -- friends of 2nd degree \n" +
+                    "( \n" +
+                    "    SELECT id2 FROM FriendPairs   \n" +
+                    "    WHERE id1 IN (SELECT id2 FROM FriendPairs WHERE id1 = (?)) \n" +
+                    "      AND id2 <> (?) \n" +
+                    "      AND id2 NOT IN (SELECT id2 FROM FriendPairs WHERE id1 = (?)) \n" +
+                    "      AND EXISTS -- some commmon group \n" +
+                    "      (\n" +
+                    "            SELECT group_id FROM Members \n" +
+                    "            WHERE student_id = (?) \n" +
+                    "              AND group_id IN (SELECT group_id FROM Members WHERE student_id = id2) \n" +
+                    "        )\n" +
+                    ");");
+
+            pstmt.setInt(1, studentId);
+            pstmt.setInt(2, studentId);
+            pstmt.setInt(3, studentId);
+            pstmt.setInt(4, studentId);
+            ResultSet results = pstmt.executeQuery();
+
+            while (results.next()) {
+                Student s = new Student();
+                s.setId(results.getInt(1));
+                s.setName(results.getString(2));
+                s.setFaculty(results.getString(3));
+                students.add(s);
+            }
+
+            results.close();
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new ArrayList<>();
+            }
+        }
+        return students;
+    }
+
+    /**
+     * Returns what the home page of a student shows: the profile, the newest feedLimit posts of getStudentFeed and
+     * at most pymkLimit students of getPeopleYouMayKnowList, ordered by id.
+     * The three queries are sent together as one multi-statement on one connection, so the page costs a single
+     * round trip (and one more for the archived posts, when the archive may hold some of the feed).
+     * input: student id, maximal number of posts, maximal number of students (null for no limit)
+     * output: HomePage of the student. BadHomePage if the student does not exist, in case of an error or of illegal
+     * parameters
+     */
+    public static HomePage getHomePage(Integer studentId, Integer feedLimit, Integer pymkLimit) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(studentId, "getHomePage", () -> getHomePage(studentId, feedLimit, pymkLimit),
+                    Solution::copyOf, studentId, feedLimit, pymkLimit);
+        if (studentId == null || (feedLimit != null && feedLimit < 0) || (pymkLimit != null && pymkLimit < 0))
+            return HomePage.badHomePage();
+
+        // the posts of a sharded database are not on this connection
+        boolean sharded = DBConnector.isSharded();
+        String feedQuery = sharded ? "" :
+                "SELECT id, author, (SELECT COUNT(*) FROM LiveLikes WHERE post_id = id) AS n_likes, contents, pdate " +
+                "FROM LivePosts " +
+                "   WHERE author IN (SELECT id2 FROM FriendPairs WHERE  id1 = (?)) OR author = ? " +
+                "ORDER BY pdate DESC, n_likes DESC LIMIT ?; \n";
+        Connection connection = DBConnector.getReadConnection(studentId);
+        PreparedStatement pstmt = null;
+        HomePage page = new HomePage();
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT LiveStudents.id, LiveStudents.name, Groups.name " +
+                    "FROM (LiveStudents INNER JOIN Groups ON LiveStudents.faculty_id = Groups.id) " +
+                    "WHERE LiveStudents.id = (?); \n" +
+                    feedQuery +
+                    "SELECT id, name, (SELECT name From Groups WHERE id = Students.faculty_id) FROM Students \n" +
+                    "WHERE id IN -- friends of 2nd degree \n" +
+                    "( \n" +
+                    "    SELECT id2 FROM FriendPairs   \n" +
+                    "    WHERE id1 IN (SELECT id2 FROM FriendPairs WHERE id1 = (?)) \n" +
+                    "      AND id2 <> (?) \n" +
+                    "      AND id2 NOT IN (SELECT id2 FROM FriendPairs WHERE id1 = (?)) \n" +
+                    "      AND EXISTS -- some commmon group \n" +
+                    "      (\n" +
+                    "            SELECT group_id FROM Members \n" +
+                    "            WHERE student_id = (?) \n" +
+                    "              AND group_id IN (SELECT group_id FROM Members WHERE student_id = id2) \n" +
+                    "        )\n" +
+                    ") \n" +
+                    "ORDER BY id LIMIT ?");
+            int i = 1;
+            pstmt.setInt(i++, studentId);
+            if (!sharded) {
+                pstmt.setInt(i++, studentId);
+                pstmt.setInt(i++, studentId);
+                pstmt.setObject(i++, feedLimit, Types.INTEGER);
+            }
+            for (int j = 0; j < 4; j++) {
+                pstmt.setInt(i++, studentId);
+            }
+            pstmt.setObject(i, pymkLimit, Types.INTEGER);
+            pstmt.execute();
+
+            ResultSet results = pstmt.getResultSet();
+            if (!results.next())
+                return HomePage.badHomePage();
+            Student student = new Student();
+            student.setId(results.getInt(1));
+            student.setName(results.getString(2));
+            student.setFaculty(results.getString(3));
+            page.setStudent(student);
+            results.close();
+
+            if (!sharded) {
+                pstmt.getMoreResults();
+                Feed feed = readFeed(pstmt.getResultSet());
+                if (feedLimit == null || !coversArchive(feed, feedLimit))
+                    feed = merged(feed, archivedStudentPosts(connection, studentId, null, feedLimit), feedLimit);
+                page.setFeed(feed);
+            }
+
+            pstmt.getMoreResults();
+            results = pstmt.getResultSet();
+            while (results.next()) {
+                Student s = new Student();
+                s.setId(results.getInt(1));
+                s.setName(results.getString(2));
+                s.setFaculty(results.getString(3));
+                page.getPeopleYouMayKnow().add(s);
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return HomePage.badHomePage();
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+
+        if (sharded) {
+            Feed feed = ShardedPosts.getStudentFeed(studentId);
+            page.setFeed(feedLimit == null ? feed : page(feed, feedLimit));
+        }
+        return page;
+    }
+
+    /**
+     * Gets the students that are friends of both given students, ordered by id.
+     * The two adjacency lists are intersected by a join on FriendPairs, both sides driven by the friends indexes.
+     * input: student id 1, student id 2, maximal number of students to return (null for all of them)
+     * output: an ArrayList containing the students. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<Student> getMutualFriends(Integer studentId1, Integer studentId2, Integer limit) {
+        if (studentId1 == null || studentId2 == null || (limit != null && limit < 0))
+            return new ArrayList<>();
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.executeFor(studentId1, "getMutualFriends",
+                    () -> getMutualFriends(studentId1, studentId2, limit),
+                    Solution::copyOfStudents, studentId1, studentId2, limit);
+        Connection connection = DBConnector.getReadConnection(studentId1);
+        PreparedStatement pstmt = null;
+        ArrayList<Student> students = new ArrayList<>();
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT s.id, s.name, (SELECT name From Groups WHERE id = s.faculty_id) \n" +
+                    "FROM FriendPairs a, FriendPairs b, Students s \n" +
+                    "WHERE a.id1 = (?) AND b.id1 = (?) AND b.id2 = a.id2 AND s.id = a.id2 \n" +
+                    "ORDER BY s.id LIMIT ?");
+            pstmt.setInt(1, studentId1);
+            pstmt.setInt(2, studentId2);
+            if (limit == null) {
+                pstmt.setNull(3, Types.INTEGER); // LIMIT NULL is no limit
+            } else {
+                pstmt.setInt(3, limit);
+            }
+            ResultSet results = pstmt.executeQuery();
+
+            while (results.next()) {
+                Student s = new Student();
+                s.setId(results.getInt(1));
+                s.setName(results.getString(2));
+                s.setFaculty(results.getString(3));
+                students.add(s);
+            }
+            results.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+        return students;
+    }
+
+    /**
+     * Counts the mutual friends of a student with each of the candidates (e.g. the people he/she may know),
+     * all in one query.
+     * input: student id, candidate student ids
+     * output: candidate id -> number of mutual friends (0 for none, or for a null id), in the order of the candidates.
+     * In case of an error, return an empty map
+     */
+    public static LinkedHashMap<Integer, Integer> getMutualFriendCounts(Integer studentId, List<Integer> candidates) {
+        if (candidates == null)
+            return new LinkedHashMap<>();
+        if (!SingleFlight.isExecuting()) {
+            List<Integer> key = new ArrayList<>(candidates);
+            return SingleFlight.executeFor(studentId, "getMutualFriendCounts",
+                    () -> getMutualFriendCounts(studentId, key),
+                    LinkedHashMap::new, studentId, key);
+        }
+        LinkedHashMap<Integer, Integer> counts = new LinkedHashMap<>();
+        if (candidates.isEmpty())
+            return counts;
+        Connection connection = DBConnector.getReadConnection(studentId);
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement(
+                    "SELECT c.id, COUNT(f.id2) \n" +
+                    "FROM (SELECT DISTINCT id FROM unnest(?::integer[]) AS u(id) WHERE id IS NOT NULL) AS c \n" +
+                    "    LEFT JOIN FriendPairs f \n" +
+                    "        ON f.id1 = c.id AND f.id2 IN (SELECT id2 FROM FriendPairs WHERE id1 = (?)) \n" +
+                    "GROUP BY c.id");
+            pstmt.setArray(1, connection.createArrayOf("integer", candidates.toArray()));
+            if (studentId == null) {
+                pstmt.setNull(2, Types.INTEGER);
+            } else {
+                pstmt.setInt(2, studentId);
+            }
+            ResultSet results = pstmt.executeQuery();
+
+            HashMap<Integer, Integer> found = new HashMap<>();
+            while (results.next()) {
+                found.put(results.getInt(1), results.getInt(2));
+            }
+            results.close();
+            for (Integer candidate : candidates) {
+                counts.put(candidate, found.getOrDefault(candidate, 0));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new LinkedHashMap<>();
+        } finally {
+            finalizePrintExceptionStack(connection, pstmt);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns a list of student id pairs (s1, s2) such that the degrees of separation (definition follows)
+     * between s1 and s2 is at least 5.
+     * To define the notion of degrees of separation let us consider a graph, called the friendship graph,
+     * where its nodes are the students in the database, and there is an edge between two students iff they are friends.
+     * The degrees of separation between students s1 and s2 is defined as the length of the shortest path
+     * connecting s1 and s2 in the undirected friendship graph.
+     * input: none
+     * output: an ArrayList containing the student pairs. In case of an error, return an empty ArrayList
+     */
+    public static ArrayList<StudentIdPair> getRemotelyConnectedPairs() {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getRemotelyConnectedPairs", () -> getRemotelyConnectedPairs(), ArrayList::new);
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        PreparedStatement pstmt = null;
+        ArrayList<StudentIdPair> pairs = new ArrayList<>();
+        try {
+            pstmt = connection.prepareStatement(
+                    "WITH RECURSIVE traverse(id1, id2, distance, visited) AS \n" +
+                    "(\n" +
+                    " 	SELECT id1, id2, 1, ARRAY[id1] \n" +
+                    "	FROM FriendPairs f \n" +
+                    "UNION ALL\n" +
+                    " 	SELECT t.id1, f.id2, t.distance + 1, t.visited || f.id2\n" +
+                    "	FROM FriendPairs f, traverse t \n" +
+                    "	WHERE f.id1 = t.id2 AND NOT f.id2=ANY(t.visited) \n" +
+                    ") \n" +
+                    "SELECT id1, id2 \n" +
+                    "FROM traverse \n" +
+                    "WHERE id1>id2 \n" + // eliminate duplicates such as: (a,b) (b,a)
+                    "GROUP BY id1, id2 \n" +
+                    "HAVING MIN(distance) >= 5;");
+
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                StudentIdPair p = new StudentIdPair();
+                p.setStudentId1(results.getInt(1));
+                p.setStudentId2(results.getInt(2));
+                pairs.add(p);
+            }
+            results.close();
+
+        } catch (SQLException e) {
+            return new ArrayList<>();
+        } finally {
+            try {
+                finalize(connection, pstmt);
+            } catch (SQLException e) {
+                return new ArrayList<>();
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Returns the degrees of separation between two students (see getRemotelyConnectedPairs), searching at most
+     * maxDepth friendships away. The search is a bidirectional BFS over the FriendGraph given to setFriendGraph,
+     * or over FriendPairs (one query per BFS level) if there is none.
+     * input: student id 1, student id 2, maximal depth
+     * output: the degrees of separation (0 for the same student), -1 if the students are not connected within
+     * maxDepth, for null parameters or in case of an error
+     */
+    public static Integer getDegreesOfSeparation(Integer studentId1, Integer studentId2, Integer maxDepth) {
+        if (maxDepth == null)
+            return -1;
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getDegreesOfSeparation",
+                    () -> getDegreesOfSeparation(studentId1, studentId2, maxDepth), degrees -> degrees,
+                    studentId1, studentId2, maxDepth);
+        ArrayList<Integer> path = connectionPath(studentId1, studentId2, maxDepth);
+        return path.isEmpty() ? -1 : path.size() - 1;
+    }
+
+    /**
+     * Returns a shortest chain of friends connecting two students.
+     * input: student id 1, student id 2
+     * output: an ArrayList of student ids starting with student 1 and ending with student 2.
+     * In case the students are not connected or of an error, return an empty ArrayList
+     */
+    public static ArrayList<Integer> getConnectionPath(Integer studentId1, Integer studentId2) {
+        if (!SingleFlight.isExecuting())
+            return SingleFlight.execute("getConnectionPath", () -> getConnectionPath(studentId1, studentId2),
+                    ArrayList::new, studentId1, studentId2);
+        return connectionPath(studentId1, studentId2, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Serves getDegreesOfSeparation and getConnectionPath from an in-process friendship graph instead of the
+     * database. The caller keeps it current with FriendGraph.catchUp(), e.g. from a ChangeFeed subscription.
+     * input: the graph, or null to go back to the database
+     */
+    public static void setFriendGraph(FriendGraph graph) {
+        friendGraph = graph;
+    }
+
+    private static ArrayList<Integer> connectionPath(Integer studentId1, Integer studentId2, int maxDepth) {
+        if (studentId1 == null || studentId2 == null)
+            return new ArrayList<>();
+        FriendGraph graph = friendGraph;
+        if (graph != null) {
+            try {
+                return new ArrayList<>(BidirectionalBfs.shortestPath(BidirectionalBfs.of(graph),
+                        studentId1, studentId2, maxDepth));
+            } catch (SQLException e) {
+                return new ArrayList<>();
+            }
+        }
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        try {
+            return new ArrayList<>(BidirectionalBfs.shortestPath(BidirectionalBfs.of(connection),
+                    studentId1, studentId2, maxDepth));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            close_connection(connection);
+        }
+    }
+
+    /* Copies of a shared read result, for the callers that did not execute it (see SingleFlight) */
+    private static Post copyOf(Post post) {
+        Post p = new Post();
+        p.setId(post.getId());
+        p.setAuthor(post.getAuthor());
+        p.setText(post.getText());
+        p.setLikes(post.getLikes());
+        p.setDate(post.getDate());
+        return p;
+    }
+
+    private static Student copyOf(Student student) {
+        Student s = new Student();
+        s.setId(student.getId());
+        s.setName(student.getName());
+        s.setFaculty(student.getFaculty());
+        return s;
+    }
+
+    private static Feed copyOf(Feed feed) {
+        Feed copy = new Feed();
+        copy.ensureCapacity(feed.size());
+        for (Post p : feed) {
+            copy.add(copyOf(p));
+        }
+        return copy;
+    }
+
+    private static HomePage copyOf(HomePage page) {
+        HomePage copy = new HomePage();
+        copy.setStudent(copyOf(page.getStudent()));
+        copy.setFeed(copyOf(page.getFeed()));
+        copy.setPeopleYouMayKnow(copyOfStudents(page.getPeopleYouMayKnow()));
+        return copy;
+    }
+
+    private static ArrayList<Post> copyOfPosts(ArrayList<Post> posts) {
+        ArrayList<Post> copy = new ArrayList<>(posts.size());
+        for (Post p : posts) {
+            copy.add(copyOf(p));
+        }
+        return copy;
+    }
+
+    private static ArrayList<Feed> copyOfFeeds(ArrayList<Feed> feeds) {
+        ArrayList<Feed> copy = new ArrayList<>(feeds.size());
+        for (Feed feed : feeds) {
+            copy.add(copyOf(feed));
+        }
+        return copy;
+    }
+
+    private static ArrayList<GroupActivity> copyOfActivity(ArrayList<GroupActivity> activity) {
+        ArrayList<GroupActivity> copy = new ArrayList<>(activity.size());
+        for (GroupActivity a : activity) {
+            GroupActivity c = new GroupActivity();
+            c.setDay(a.getDay());
+            c.setPosts(a.getPosts());
+            c.setLikes(a.getLikes());
+            c.setJoins(a.getJoins());
+            c.setLeaves(a.getLeaves());
+            copy.add(c);
+        }
+        return copy;
+    }
+
+    private static ArrayList<Student> copyOfStudents(ArrayList<Student> students) {
+        ArrayList<Student> copy = new ArrayList<>(students.size());
+        for (Student s : students) {
+            copy.add(copyOf(s));
+        }
+        return copy;
+    }
+
+    /* Publishes a change made by one of the delegating (sharded) paths, if it succeeded */
+    private static ReturnValue published(ReturnValue result, String entity, Object entityId, Integer studentId,
+                                         Integer groupId, String groupName) {
+        if (result == ReturnValue.OK)
+            ChangeFeed.publish(entity, entityId, studentId, groupId, groupName);
+        return result;
+    }
+
+    private static CompactFeed toCompactFeed(Feed feed) {
+        CompactFeed compactFeed = new CompactFeed(feed.size());
+        for (Post p : feed) {
+            compactFeed.add(p);
+        }
+        return compactFeed;
+    }
+
+    /*
+     * Creates group, returns auto-generated id in case of success. Otherwise - exception is thrown
+     * Runs in the caller's transaction (a unique violation would abort it, hence ON CONFLICT), the caller adds the
+     * group to groupNames once it committed.
+     */
+    private static Long createGroup(Connection connection, String group_name) throws SQLException {
+        PreparedStatement pstmt = null;
+        Long group_id = null;
+
+        try {
+            pstmt = connection.prepareStatement(
+                    "INSERT INTO Groups (name) VALUES (?) ON CONFLICT (name) DO NOTHING RETURNING id;");
+            pstmt.setString(1, group_name);
+
+            ResultSet generatedKeys = pstmt.executeQuery();
+            if (generatedKeys.next()) {
+                group_id = generatedKeys.getLong(1);
+                ChangeFeed.record(connection, ChangeEvent.GROUP, group_id, null, group_id.intValue(), null);
+            } else { // Group existed before - return it's id
+                group_id = getGroupId(connection, group_name);
+            }
+            generatedKeys.close();
+        } finally {
+            close_statement(pstmt);
+        }
+        return group_id;
+    }
+
+    /* Returns group id in case of success, otherwise throws SQLException */
+    private static Long getGroupId(Connection connection, String group_name) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement("SELECT id FROM Groups WHERE  name = (?)");
+        pstmt.setString(1, group_name);
+
+        ResultSet results = null;
+        try {
+            results = pstmt.executeQuery();
+            results.next();
+            Long group_id = results.getLong(1);
+            return group_id;
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /*
+     * A write and the ChangeEvents row of its change (ChangeFeed.record) commit together: begin() before the write,
+     * commit() after the record. finalize() and close_connection() roll back what an early return or an exception
+     * left open.
+     */
+    static void begin(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+    }
+
+    static void commit(Connection connection) throws SQLException {
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    static void finalize(Connection connection, PreparedStatement pstmt) throws SQLException {
+        try {
+            if (pstmt != null)
+                pstmt.close();
+        } finally {
+            if (connection!=null) {
+                rollbackOpenTransaction(connection);
+                connection.close();
+            }
+        }
+    }
+
+    static void finalizePrintExceptionStack(Connection connection, PreparedStatement pstmt) {
+        close_statement(pstmt);
+        close_connection(connection);
+    }
+
+    static void close_statement(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void close_connection(Connection connection) {
+        try {
+            rollbackOpenTransaction(connection);
             connection.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
+    private static void rollbackOpenTransaction(Connection connection) {
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit())
+                connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     /* Suitable for most cases of handling SQLException */
-    private static ReturnValue sqlExceptionToReturnValue(SQLException e) {
+    static ReturnValue sqlExceptionToReturnValue(SQLException e) {
         if (sqlStateMatches(e, FOREIGN_KEY_VIOLATION)) {
             return ReturnValue.NOT_EXISTS;
         } else if (sqlStateMatches(e, UNIQUE_VIOLATION)) {
             return ReturnValue.ALREADY_EXISTS;
         } else if (sqlStateMatches(e, CHECK_VIOLATION) || sqlStateMatches(e, NOT_NULL_VIOLATION)) {
             return ReturnValue.BAD_PARAMS;
+        } else if (AdmissionControl.isRejection(e)) {
+            return ReturnValue.OVERLOADED;
         } else {
             return ReturnValue.ERROR;
         }
     }
 
-    private static boolean sqlStateMatches(SQLException e, PostgreSQLErrorCodes errorCode) {
+    /* For operations that report any failure as ERROR: OVERLOADED if the call was shed by admission control */
+    static ReturnValue errorReturnValue(SQLException e) {
+        return AdmissionControl.isRejection(e) ? ReturnValue.OVERLOADED : ReturnValue.ERROR;
+    }
+
+    static boolean sqlStateMatches(SQLException e, PostgreSQLErrorCodes errorCode) {
         String errorString = Integer.toString(errorCode.getValue());
         return e.getSQLState().equals(errorString);
     }
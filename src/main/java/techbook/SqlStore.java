@@ -0,0 +1,182 @@
+package techbook;
+
+import techbook.business.Feed;
+import techbook.business.HomePage;
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.business.Student;
+import techbook.business.StudentIdPair;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/* The Postgres engine: the calls of Solution, configured as usual through config.properties */
+public class SqlStore implements TechbookStore {
+
+    @Override
+    public void createTables() {
+        Solution.createTables();
+    }
+
+    @Override
+    public void clearTables() {
+        Solution.clearTables();
+    }
+
+    @Override
+    public void dropTables() {
+        Solution.dropTables();
+    }
+
+    @Override
+    public ReturnValue addStudent(Student student) {
+        return Solution.addStudent(student);
+    }
+
+    @Override
+    public ReturnValue deleteStudent(Integer studentId) {
+        return Solution.deleteStudent(studentId);
+    }
+
+    @Override
+    public ReturnValue purgeDeletedStudents() {
+        return Solution.purgeDeletedStudents();
+    }
+
+    @Override
+    public Student getStudentProfile(Integer studentId) {
+        return Solution.getStudentProfile(studentId);
+    }
+
+    @Override
+    public ArrayList<Student> getStudentProfiles(List<Integer> studentIds) {
+        return Solution.getStudentProfiles(studentIds);
+    }
+
+    @Override
+    public ReturnValue updateStudentFaculty(Student student) {
+        return Solution.updateStudentFaculty(student);
+    }
+
+    @Override
+    public ReturnValue addPost(Post post, String groupName) {
+        return Solution.addPost(post, groupName);
+    }
+
+    @Override
+    public ReturnValue deletePost(Integer postId) {
+        return Solution.deletePost(postId);
+    }
+
+    @Override
+    public Post getPost(Integer postId) {
+        return Solution.getPost(postId);
+    }
+
+    @Override
+    public ArrayList<Post> getPosts(List<Integer> postIds) {
+        return Solution.getPosts(postIds);
+    }
+
+    @Override
+    public ReturnValue updatePost(Post post) {
+        return Solution.updatePost(post);
+    }
+
+    @Override
+    public ReturnValue likePost(Integer studentId, Integer postId) {
+        return Solution.likePost(studentId, postId);
+    }
+
+    @Override
+    public ReturnValue unlikePost(Integer studentId, Integer postId) {
+        return Solution.unlikePost(studentId, postId);
+    }
+
+    @Override
+    public ReturnValue makeAsFriends(Integer studentId1, Integer studentId2) {
+        return Solution.makeAsFriends(studentId1, studentId2);
+    }
+
+    @Override
+    public ReturnValue makeAsNotFriends(Integer studentId1, Integer studentId2) {
+        return Solution.makeAsNotFriends(studentId1, studentId2);
+    }
+
+    @Override
+    public ReturnValue joinGroup(Integer studentId, String groupName) {
+        return Solution.joinGroup(studentId, groupName);
+    }
+
+    @Override
+    public ReturnValue leaveGroup(Integer studentId, String groupName) {
+        return Solution.leaveGroup(studentId, groupName);
+    }
+
+    @Override
+    public Integer getGroupMemberCount(String groupName) {
+        return Solution.getGroupMemberCount(groupName);
+    }
+
+    @Override
+    public Feed getStudentFeed(Integer id) {
+        return Solution.getStudentFeed(id);
+    }
+
+    @Override
+    public Feed getGroupFeed(String groupName) {
+        return Solution.getGroupFeed(groupName);
+    }
+
+    @Override
+    public ArrayList<Feed> getGroupFeeds(List<String> groupNames) {
+        return Solution.getGroupFeeds(groupNames);
+    }
+
+    @Override
+    public Feed getStudentFeedPage(Integer id, Timestamp before, Integer beforeId, Integer limit) {
+        return Solution.getStudentFeedPage(id, before, beforeId, limit);
+    }
+
+    @Override
+    public Feed getGroupFeedPage(String groupName, Timestamp before, Integer beforeId, Integer limit) {
+        return Solution.getGroupFeedPage(groupName, before, beforeId, limit);
+    }
+
+    @Override
+    public HomePage getHomePage(Integer studentId, Integer feedLimit, Integer pymkLimit) {
+        return Solution.getHomePage(studentId, feedLimit, pymkLimit);
+    }
+
+    @Override
+    public ArrayList<Student> getPeopleYouMayKnowList(Integer studentId) {
+        return Solution.getPeopleYouMayKnowList(studentId);
+    }
+
+    @Override
+    public ArrayList<Student> getMutualFriends(Integer studentId1, Integer studentId2, Integer limit) {
+        return Solution.getMutualFriends(studentId1, studentId2, limit);
+    }
+
+    @Override
+    public LinkedHashMap<Integer, Integer> getMutualFriendCounts(Integer studentId, List<Integer> candidates) {
+        return Solution.getMutualFriendCounts(studentId, candidates);
+    }
+
+    @Override
+    public ArrayList<StudentIdPair> getRemotelyConnectedPairs() {
+        return Solution.getRemotelyConnectedPairs();
+    }
+
+    @Override
+    public Integer getDegreesOfSeparation(Integer studentId1, Integer studentId2, Integer maxDepth) {
+        return Solution.getDegreesOfSeparation(studentId1, studentId2, maxDepth);
+    }
+
+    @Override
+    public ArrayList<Integer> getConnectionPath(Integer studentId1, Integer studentId2) {
+        return Solution.getConnectionPath(studentId1, studentId2);
+    }
+}
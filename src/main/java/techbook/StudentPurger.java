@@ -0,0 +1,428 @@
+package techbook;
+
+import techbook.business.ReturnValue;
+import techbook.data.BackgroundJob;
+import techbook.data.DBConnector;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static techbook.Solution.*;
+
+/*
+ * Soft delete of students.
+ * deleteStudent adds the student to DeletedStudents and, in the same transaction, removes the student's own rows:
+ * memberships, likes and friendships (a student has few of them, and leaveGroup, unlikePost and makeAsNotFriends
+ * must find them gone). The posts stay, and every read goes through views that leave out the rows of deleted
+ * students: LiveStudents, LiveMembers, LiveFriends (and through it FriendPairs), LivePosts and LiveLikes. Triggers
+ * reject new posts, likes, memberships and friendships of a deleted student as foreign key violations, so writes
+ * get NOT_EXISTS as if the student was already gone.
+ *
+ * The posts, and the likes on them and by the student, are taken out of the group rollups and the trending
+ * counters right away.
+ *
+ * purge() then removes the posts of each deleted student, oldest deletion first, purge.batchSize rows per
+ * transaction with purge.pauseMillis between transactions: the likes on the student's posts, the posts, the
+ * archived posts (see PostArchiver), and finally the student itself. No statement cascades to more than a batch,
+ * so no lock is held for long. When sharded (see ShardedPosts) the shards have no DeletedStudents to hide rows by,
+ * so deleting the student leaves its likes and posts on the shards to the purge, which walks every shard in the
+ * same batches: the likes the student gave, then on the student's shard the likes on its posts and the posts,
+ * then the post directory on the coordinator. Until then, like counts read from the shards still include the
+ * deleted student's likes. DeletedStudents.purged_rows counts the rows removed so far, and a student leaves
+ * DeletedStudents (and the id can be used again) once the purge is done.
+ */
+class StudentPurger {
+
+    private static final String[] BATCHES = {
+            "DELETE FROM Likes WHERE (post_id, student_id) IN \n" +
+            "    (SELECT l.post_id, l.student_id FROM Likes l JOIN Posts p ON p.id = l.post_id \n" +
+            "     WHERE p.author = ? LIMIT ?)",
+            "DELETE FROM Posts WHERE id IN (SELECT id FROM Posts WHERE author = ? LIMIT ?)",
+    };
+
+    /* When sharded, on every shard: the likes the student gave */
+    private static final String SHARD_LIKES_BATCH =
+            "DELETE FROM Likes WHERE (post_id, student_id) IN \n" +
+            "    (SELECT post_id, student_id FROM Likes WHERE student_id = ? LIMIT ?)";
+
+    /* When sharded, on the coordinator once the shards are done: the student's rows of the post directory */
+    private static final String DIRECTORY_BATCH =
+            "DELETE FROM PostDirectory WHERE id IN (SELECT id FROM PostDirectory WHERE author = ? LIMIT ?)";
+
+    private static final BackgroundJob purger = new BackgroundJob("student-purger");
+
+    static void createTables(Connection connection) {
+        queryStatement(connection, "CREATE TABLE DeletedStudents\n" +
+                "(\n" +
+                "    id integer NOT NULL,\n" +
+                "    deleted_at timestamptz NOT NULL DEFAULT now(),\n" +
+                "    purged_rows bigint NOT NULL DEFAULT 0,\n" +
+                "    PRIMARY KEY (id)\n" +
+                ")");
+        queryStatement(connection, "CREATE VIEW LiveStudents AS SELECT id, name, faculty_id FROM Students s " +
+                "WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = s.id)");
+        queryStatement(connection, "CREATE VIEW LiveMembers AS SELECT group_id, student_id FROM Members m " +
+                "WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = m.student_id)");
+        queryStatement(connection, "CREATE VIEW LiveFriends AS SELECT id1, id2 FROM Friends f " +
+                "WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id IN (f.id1, f.id2))");
+        queryStatement(connection, "CREATE VIEW LivePosts AS SELECT id, author, group_id, contents, pdate " +
+                "FROM Posts p WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = p.author)");
+        queryStatement(connection, "CREATE VIEW LiveLikes AS SELECT post_id, student_id, liked_at FROM Likes l " +
+                "WHERE NOT EXISTS (SELECT 1 FROM DeletedStudents d WHERE d.id = l.student_id)");
+
+        // the purge batches look the rows up by student
+        queryStatement(connection, "CREATE INDEX likes_student ON Likes (student_id)");
+        if (!PostPartitions.isEnabled())
+            queryStatement(connection, "CREATE INDEX posts_author_pdate ON Posts (author, pdate DESC)");
+
+        queryStatement(connection, "CREATE FUNCTION reject_deleted_students() RETURNS trigger AS $$\n" +
+                "DECLARE\n" +
+                "    fields jsonb := to_jsonb(NEW);\n" +
+                "    student text;\n" +
+                "BEGIN\n" +
+                "    FOREACH student IN ARRAY TG_ARGV LOOP\n" +
+                "        IF EXISTS (SELECT 1 FROM DeletedStudents WHERE id = (fields ->> student)::integer) THEN\n" +
+                "            RAISE foreign_key_violation\n" +
+                "                USING MESSAGE = 'student ' || (fields ->> student) || ' is deleted';\n" +
+                "        END IF;\n" +
+                "    END LOOP;\n" +
+                "    RETURN NULL;\n" +
+                "END $$ LANGUAGE plpgsql");
+        queryStatement(connection, "CREATE TRIGGER posts_live_author AFTER INSERT OR UPDATE ON Posts " +
+                "FOR EACH ROW EXECUTE PROCEDURE reject_deleted_students('author')");
+        queryStatement(connection, "CREATE TRIGGER likes_live_student AFTER INSERT ON Likes " +
+                "FOR EACH ROW EXECUTE PROCEDURE reject_deleted_students('student_id')");
+        queryStatement(connection, "CREATE TRIGGER members_live_student AFTER INSERT ON Members " +
+                "FOR EACH ROW EXECUTE PROCEDURE reject_deleted_students('student_id')");
+        queryStatement(connection, "CREATE TRIGGER friends_live_students AFTER INSERT ON Friends " +
+                "FOR EACH ROW EXECUTE PROCEDURE reject_deleted_students('id1', 'id2')");
+    }
+
+    static void clearTables(Connection connection) {
+        queryStatement(connection, "DELETE FROM DeletedStudents");
+    }
+
+    static void dropTables(Connection connection) {
+        queryStatement(connection, "DROP TABLE IF EXISTS DeletedStudents CASCADE");
+        queryStatement(connection, "DROP FUNCTION IF EXISTS reject_deleted_students() CASCADE");
+    }
+
+    /* What markDeleted took away, for the rollups and counters the caller updates once the transaction commits */
+    static class Deletion {
+        final String name;
+        /* the memberships, the student's posts, and the likes on and by the student, per group and day */
+        final GroupRollups.Removal rollups = new GroupRollups.Removal();
+        /* the posts the student liked, with their group (null for public posts) and the time of the like */
+        final List<Integer> likedPosts = new ArrayList<>();
+        final List<Integer> likedGroups = new ArrayList<>();
+        final List<Timestamp> likedAt = new ArrayList<>();
+        /* the student's posts that were liked within the trending windows, with their group (null for public posts) */
+        final List<Integer> trendingPosts = new ArrayList<>();
+        final List<Integer> trendingGroups = new ArrayList<>();
+
+        Deletion(String name) {
+            this.name = name;
+        }
+    }
+
+    /*
+     * Marks the student as deleted and removes his\her memberships, likes and friendships, in the caller's
+     * transaction. Returns what was removed, together with the student's posts and the likes on them, which stay
+     * until the purge but are out of every read from now on. Returns null if there is no such (live) student.
+     * When sharded, the likes and posts are read from the shards here and only removed by the purge: a shard that
+     * can't be read fails the deletion, before anything is committed.
+     */
+    static Deletion markDeleted(Connection connection, Integer studentId) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(
+                "WITH deleted AS ( \n" +
+                "    INSERT INTO DeletedStudents (id) SELECT id FROM LiveStudents WHERE id = ? \n" +
+                "    ON CONFLICT DO NOTHING RETURNING id \n" +
+                ") \n" +
+                "SELECT s.name FROM Students s JOIN deleted d ON d.id = s.id");
+        Deletion deletion;
+        try {
+            pstmt.setInt(1, studentId);
+            ResultSet results = pstmt.executeQuery();
+            deletion = results.next() ? new Deletion(results.getString(1)) : null;
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        if (deletion == null)
+            return null;
+
+        pstmt = connection.prepareStatement("DELETE FROM Members WHERE student_id = ? RETURNING group_id");
+        try {
+            pstmt.setInt(1, studentId);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                deletion.rollups.left(results.getInt(1));
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+
+        if (DBConnector.isSharded()) {
+            for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+                Connection shardConnection = shardConnection(shard);
+                try {
+                    // the shards can't hide them like LiveLikes does, the purge removes them
+                    addLikes(deletion, shardConnection, studentId,
+                            "SELECT l.post_id, p.group_id, l.liked_at, l.liked_at::date \n" +
+                            "FROM Likes l JOIN Posts p ON p.id = l.post_id WHERE l.student_id = ?");
+                    if (shard == DBConnector.shardOf(studentId))
+                        addPosts(deletion, shardConnection, studentId);
+                } finally {
+                    close_connection(shardConnection);
+                }
+            }
+        } else {
+            addLikes(deletion, connection, studentId,
+                    "DELETE FROM Likes l USING Posts p WHERE l.student_id = ? AND p.id = l.post_id \n" +
+                    "RETURNING l.post_id, p.group_id, l.liked_at, l.liked_at::date");
+            addPosts(deletion, connection, studentId);
+        }
+
+        pstmt = connection.prepareStatement("DELETE FROM Friends WHERE id1 = ? OR id2 = ?");
+        try {
+            pstmt.setInt(1, studentId);
+            pstmt.setInt(2, studentId);
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+        return deletion;
+    }
+
+    /* Adds the likes the student gave, as returned by query: post, group, time and day of the like */
+    private static void addLikes(Deletion deletion, Connection connection, Integer studentId, String query)
+            throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(query);
+        try {
+            pstmt.setInt(1, studentId);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                deletion.likedPosts.add(results.getInt(1));
+                int groupId = results.getInt(2);
+                boolean isPublic = results.wasNull();
+                deletion.likedGroups.add(isPublic ? null : groupId);
+                deletion.likedAt.add(results.getTimestamp(3));
+                if (!isPublic)
+                    deletion.rollups.likes(groupId, results.getDate(4), 1);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /*
+     * Adds the student's posts and the likes of other students on them, per group and day, and the posts with
+     * likes recent enough to be counted by trendingLikes. The student's own likes were added by addLikes.
+     */
+    private static void addPosts(Deletion deletion, Connection connection, Integer studentId) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT group_id, pdate::date, COUNT(*), 0 FROM Posts \n" +
+                "WHERE author = ? AND group_id IS NOT NULL GROUP BY 1, 2 \n" +
+                "UNION ALL \n" +
+                "SELECT p.group_id, l.liked_at::date, 0, COUNT(*) FROM Likes l JOIN Posts p ON p.id = l.post_id \n" +
+                "WHERE p.author = ? AND l.student_id <> ? AND p.group_id IS NOT NULL GROUP BY 1, 2");
+        try {
+            pstmt.setInt(1, studentId);
+            pstmt.setInt(2, studentId);
+            pstmt.setInt(3, studentId);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                deletion.rollups.posts(results.getInt(1), results.getDate(2), results.getInt(3));
+                deletion.rollups.likes(results.getInt(1), results.getDate(2), results.getInt(4));
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+
+        pstmt = connection.prepareStatement(
+                "SELECT DISTINCT p.id, p.group_id FROM Posts p JOIN Likes l ON l.post_id = p.id \n" +
+                "WHERE p.author = ? AND l.liked_at >= ?");
+        try {
+            pstmt.setInt(1, studentId);
+            pstmt.setTimestamp(2,
+                    new Timestamp(System.currentTimeMillis() - trendingLikes.getMaxWindowMillis()));
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                deletion.trendingPosts.add(results.getInt(1));
+                int groupId = results.getInt(2);
+                deletion.trendingGroups.add(results.wasNull() ? null : groupId);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    private static Connection shardConnection(int shard) throws SQLException {
+        Connection connection = DBConnector.getShardConnection(shard);
+        if (connection == null)
+            throw new SQLException("No connection to shard " + shard, "08001");
+        return connection;
+    }
+
+    /* Deleted students -> rows purged so far, oldest deletion first */
+    static LinkedHashMap<Integer, Long> getPending() {
+        Connection connection = DBConnector.getReadConnection();
+        if (connection == null)
+            return new LinkedHashMap<>();
+        try {
+            return pending(connection);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new LinkedHashMap<>();
+        } finally {
+            close_connection(connection);
+        }
+    }
+
+    private static LinkedHashMap<Integer, Long> pending(Connection connection) throws SQLException {
+        LinkedHashMap<Integer, Long> pending = new LinkedHashMap<>();
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT id, purged_rows FROM DeletedStudents ORDER BY deleted_at, id");
+        try {
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                pending.put(results.getInt(1), results.getLong(2));
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        return pending;
+    }
+
+    /* Purges every student deleted so far */
+    static ReturnValue purge() {
+        int batchSize = Integer.parseInt(DBConnector.getProperty("purge.batchSize", "1000"));
+        long pauseMillis = Long.parseLong(DBConnector.getProperty("purge.pauseMillis", "50"));
+        Connection connection = DBConnector.getAnalyticalConnection();
+        if (connection == null)
+            return ReturnValue.ERROR;
+        try {
+            for (Integer studentId : pending(connection).keySet()) {
+                purge(connection, studentId, batchSize, pauseMillis);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                rollbackException.printStackTrace();
+            }
+            return errorReturnValue(e);
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                rollbackException.printStackTrace();
+            }
+            return ReturnValue.ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ReturnValue.ERROR;
+        } finally {
+            close_connection(connection);
+        }
+        return ReturnValue.OK;
+    }
+
+    private static void purge(Connection connection, Integer studentId, int batchSize, long pauseMillis)
+            throws SQLException, IOException, InterruptedException {
+        connection.setAutoCommit(false);
+        PreparedStatement progress = connection.prepareStatement(
+                "UPDATE DeletedStudents SET purged_rows = purged_rows + ? WHERE id = ?");
+        try {
+            if (DBConnector.isSharded()) {
+                for (int shard = 0; shard < DBConnector.getShardCount(); shard++) {
+                    Connection shardConnection = shardConnection(shard);
+                    try {
+                        shardConnection.setAutoCommit(false);
+                        deleteInBatches(connection, progress, shardConnection, SHARD_LIKES_BATCH,
+                                studentId, batchSize, pauseMillis);
+                        if (shard == DBConnector.shardOf(studentId)) {
+                            for (String batch : BATCHES) {
+                                deleteInBatches(connection, progress, shardConnection, batch,
+                                        studentId, batchSize, pauseMillis);
+                            }
+                        }
+                    } finally {
+                        close_connection(shardConnection);
+                    }
+                }
+                deleteInBatches(connection, progress, connection, DIRECTORY_BATCH, studentId, batchSize, pauseMillis);
+            } else {
+                for (String batch : BATCHES) {
+                    deleteInBatches(connection, progress, connection, batch, studentId, batchSize, pauseMillis);
+                }
+            }
+
+            // nothing is left to cascade to. The archived posts go first, the id may be used again afterwards
+            PostArchiver.removeAuthor(connection, studentId);
+            PreparedStatement pstmt = connection.prepareStatement(
+                    "WITH student AS (DELETE FROM Students WHERE id = ?) \n" +
+                    "DELETE FROM DeletedStudents WHERE id = ?");
+            try {
+                pstmt.setInt(1, studentId);
+                pstmt.setInt(2, studentId);
+                pstmt.executeUpdate();
+                connection.commit();
+            } finally {
+                pstmt.close();
+            }
+        } finally {
+            progress.close();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /*
+     * Runs the batch on target (the coordinator or a shard) until it deletes less than batchSize rows, committing
+     * each batch and its progress on the coordinator
+     */
+    private static void deleteInBatches(Connection connection, PreparedStatement progress, Connection target,
+                                        String batch, Integer studentId, int batchSize, long pauseMillis)
+            throws SQLException, InterruptedException {
+        PreparedStatement pstmt = target.prepareStatement(batch);
+        try {
+            int params = batch.length() - batch.replace("?", "").length();
+            for (int i = 1; i < params; i++) {
+                pstmt.setInt(i, studentId);
+            }
+            pstmt.setInt(params, batchSize);
+            int deleted;
+            do {
+                deleted = pstmt.executeUpdate();
+                if (target != connection)
+                    target.commit();
+                progress.setLong(1, deleted);
+                progress.setInt(2, studentId);
+                progress.executeUpdate();
+                connection.commit();
+                if (deleted > 0 && pauseMillis > 0)
+                    Thread.sleep(pauseMillis);
+            } while (deleted == batchSize);
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    static void start(long periodMillis) {
+        purger.start(StudentPurger::purge, 0, periodMillis);
+    }
+
+    static void stop() {
+        purger.stop();
+    }
+}
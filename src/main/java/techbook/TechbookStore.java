@@ -0,0 +1,102 @@
+package techbook;
+
+import techbook.business.Feed;
+import techbook.business.HomePage;
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.business.Student;
+import techbook.business.StudentIdPair;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+ * The techbook API as an interface, so callers and tests can pick the storage engine:
+ * SqlStore runs every call against Postgres (it delegates to Solution), and techbook.memory.InMemoryStore keeps
+ * everything in process. Both return the same ReturnValues and results for the same calls; the methods are
+ * documented on their Solution counterparts.
+ *
+ * Operational features that only exist for the database (compact feeds, search, autocomplete, trending posts,
+ * group activity, archiving, the background purger and partition maintenance) stay on Solution.
+ */
+public interface TechbookStore {
+
+    void createTables();
+
+    void clearTables();
+
+    void dropTables();
+
+    /* Students */
+
+    ReturnValue addStudent(Student student);
+
+    ReturnValue deleteStudent(Integer studentId);
+
+    /* Removes what deleteStudent left behind, the ids of the deleted students and posts are free again afterwards */
+    ReturnValue purgeDeletedStudents();
+
+    Student getStudentProfile(Integer studentId);
+
+    ArrayList<Student> getStudentProfiles(List<Integer> studentIds);
+
+    ReturnValue updateStudentFaculty(Student student);
+
+    /* Posts and likes */
+
+    ReturnValue addPost(Post post, String groupName);
+
+    ReturnValue deletePost(Integer postId);
+
+    Post getPost(Integer postId);
+
+    ArrayList<Post> getPosts(List<Integer> postIds);
+
+    ReturnValue updatePost(Post post);
+
+    ReturnValue likePost(Integer studentId, Integer postId);
+
+    ReturnValue unlikePost(Integer studentId, Integer postId);
+
+    /* Friends and groups */
+
+    ReturnValue makeAsFriends(Integer studentId1, Integer studentId2);
+
+    ReturnValue makeAsNotFriends(Integer studentId1, Integer studentId2);
+
+    ReturnValue joinGroup(Integer studentId, String groupName);
+
+    ReturnValue leaveGroup(Integer studentId, String groupName);
+
+    Integer getGroupMemberCount(String groupName);
+
+    /* Feeds */
+
+    Feed getStudentFeed(Integer id);
+
+    Feed getGroupFeed(String groupName);
+
+    ArrayList<Feed> getGroupFeeds(List<String> groupNames);
+
+    Feed getStudentFeedPage(Integer id, Timestamp before, Integer beforeId, Integer limit);
+
+    Feed getGroupFeedPage(String groupName, Timestamp before, Integer beforeId, Integer limit);
+
+    HomePage getHomePage(Integer studentId, Integer feedLimit, Integer pymkLimit);
+
+    /* The friendship graph */
+
+    ArrayList<Student> getPeopleYouMayKnowList(Integer studentId);
+
+    ArrayList<Student> getMutualFriends(Integer studentId1, Integer studentId2, Integer limit);
+
+    LinkedHashMap<Integer, Integer> getMutualFriendCounts(Integer studentId, List<Integer> candidates);
+
+    ArrayList<StudentIdPair> getRemotelyConnectedPairs();
+
+    Integer getDegreesOfSeparation(Integer studentId1, Integer studentId2, Integer maxDepth);
+
+    ArrayList<Integer> getConnectionPath(Integer studentId1, Integer studentId2);
+}
@@ -0,0 +1,99 @@
+package techbook.business;
+
+/*
+ * A change made by one of the mutating Solution methods.
+ * entityId identifies the changed row: a student id for STUDENT/MEMBER, a post id for POST/LIKE, a group id for GROUP
+ * and the second student's id for FRIEND. studentId and groupId are the student and group whose views are affected
+ * (either may be null).
+ */
+public class ChangeEvent {
+
+    public static final String STUDENT = "student";
+    public static final String GROUP = "group";
+    public static final String MEMBER = "member";
+    public static final String FRIEND = "friend";
+    public static final String POST = "post";
+    public static final String LIKE = "like";
+
+    Long seq = -1L;
+    String entity = null;
+    String entityId = null;
+    Integer studentId = null;
+    Integer groupId = null;
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public void setEntity(String entity) {
+        this.entity = entity;
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public void setEntityId(String entityId) {
+        this.entityId = entityId;
+    }
+
+    public Integer getStudentId() {
+        return studentId;
+    }
+
+    public void setStudentId(Integer studentId) {
+        this.studentId = studentId;
+    }
+
+    public Integer getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(Integer groupId) {
+        this.groupId = groupId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChangeEvent)) return false;
+
+        ChangeEvent that = (ChangeEvent) o;
+
+        if (getSeq() != null ? !getSeq().equals(that.getSeq()) : that.getSeq() != null) return false;
+        if (getEntity() != null ? !getEntity().equals(that.getEntity()) : that.getEntity() != null) return false;
+        if (getEntityId() != null ? !getEntityId().equals(that.getEntityId()) : that.getEntityId() != null) return false;
+        if (getStudentId() != null ? !getStudentId().equals(that.getStudentId()) : that.getStudentId() != null) return false;
+        return getGroupId() != null ? getGroupId().equals(that.getGroupId()) : that.getGroupId() == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = getSeq() != null ? getSeq().hashCode() : 0;
+        result = 31 * result + (getEntity() != null ? getEntity().hashCode() : 0);
+        result = 31 * result + (getEntityId() != null ? getEntityId().hashCode() : 0);
+        result = 31 * result + (getStudentId() != null ? getStudentId().hashCode() : 0);
+        result = 31 * result + (getGroupId() != null ? getGroupId().hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ChangeEvent{");
+        sb.append("seq=").append(seq);
+        sb.append(", entity='").append(entity).append('\'');
+        sb.append(", entityId='").append(entityId).append('\'');
+        sb.append(", studentId=").append(studentId);
+        sb.append(", groupId=").append(groupId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package techbook.business;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/*
+ * Column oriented alternative to Feed. Every post is kept as a row index into parallel primitive arrays,
+ * and all the post texts share a single character buffer, so a feed of n posts costs a handful of arrays
+ * instead of ~6 objects per post. Texts are decoded from the UTF-8 bytes of the driver (or of an archive block)
+ * straight into that buffer, without a String per post. Post objects are only created on demand by getPost(i).
+ */
+public class CompactFeed {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    private int size = 0;
+    private int[] ids;
+    private int[] authors;
+    private int[] likes;
+    private long[] dates; // micros since 1970-01-01T00:00, pdate is a timestamp without time zone
+    private int[] textOffsets; // text i is texts[textOffsets[i], textOffsets[i + 1])
+    private final StringBuilder texts = new StringBuilder();
+
+    public CompactFeed() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CompactFeed(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new int[capacity];
+        authors = new int[capacity];
+        likes = new int[capacity];
+        dates = new long[capacity];
+        textOffsets = new int[capacity + 1];
+    }
+
+    /*
+     * Appends every remaining row of the given result set. The expected columns are
+     * (id, author, n_likes, contents, pdate_micros), pdate_micros being the post date in epoch micros.
+     * The driver hands out the contents as the UTF-8 bytes it received (it talks UTF-8 to the server), so no String
+     * is built for them.
+     */
+    public static CompactFeed fromResultSet(ResultSet results) throws SQLException {
+        CompactFeed feed = new CompactFeed();
+        while (results.next()) {
+            byte[] text = results.getBytes(4);
+            feed.add(results.getInt(1), results.getInt(2), results.getInt(3), text, 0, text.length,
+                    results.getLong(5));
+        }
+        return feed;
+    }
+
+    public void add(int id, int author, int likesCount, CharSequence text, long dateMicros) {
+        texts.append(text);
+        addRow(id, author, likesCount, dateMicros);
+    }
+
+    /* Same as add, the text being the UTF-8 bytes utf8[offset, offset + length) */
+    public void add(int id, int author, int likesCount, byte[] utf8, int offset, int length, long dateMicros) {
+        appendUtf8(utf8, offset, offset + length);
+        addRow(id, author, likesCount, dateMicros);
+    }
+
+    /* Appends row i of the other feed */
+    public void add(CompactFeed other, int i) {
+        other.checkIndex(i);
+        texts.append(other.texts, other.textOffsets[i], other.textOffsets[i + 1]);
+        addRow(other.ids[i], other.authors[i], other.likes[i], other.dates[i]);
+    }
+
+    public void add(Post post) {
+        add(post.getId(), post.getAuthor(), post.getLikes(), post.getText(), toMicros(post.getDate()));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getId(int i) {
+        checkIndex(i);
+        return ids[i];
+    }
+
+    public int getAuthor(int i) {
+        checkIndex(i);
+        return authors[i];
+    }
+
+    public int getLikes(int i) {
+        checkIndex(i);
+        return likes[i];
+    }
+
+    public long getDateMicros(int i) {
+        checkIndex(i);
+        return dates[i];
+    }
+
+    public CharSequence getText(int i) {
+        checkIndex(i);
+        return texts.subSequence(textOffsets[i], textOffsets[i + 1]);
+    }
+
+    /*
+     * The buffer shared by all the texts, text i being getTexts()[getTextStart(i), getTextEnd(i)).
+     * For writers that copy the texts out without a String per post, the buffer must not be kept.
+     */
+    public CharSequence getTexts() {
+        return texts;
+    }
+
+    public int getTextStart(int i) {
+        checkIndex(i);
+        return textOffsets[i];
+    }
+
+    public int getTextEnd(int i) {
+        checkIndex(i);
+        return textOffsets[i + 1];
+    }
+
+    public LocalDateTime getDate(int i) {
+        return toLocalDateTime(getDateMicros(i));
+    }
+
+    /* Materializes row i as a regular Post */
+    public Post getPost(int i) {
+        checkIndex(i);
+        Post p = new Post();
+        p.setId(ids[i]);
+        p.setAuthor(authors[i]);
+        p.setLikes(likes[i]);
+        p.setText(texts.substring(textOffsets[i], textOffsets[i + 1]));
+        p.setDate(toLocalDateTime(dates[i]));
+        return p;
+    }
+
+    public Feed toFeed() {
+        Feed feed = new Feed();
+        feed.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            feed.add(getPost(i));
+        }
+        return feed;
+    }
+
+    public static long toMicros(LocalDateTime date) {
+        if (date == null)
+            return 0;
+        return date.toEpochSecond(ZoneOffset.UTC) * MICROS_PER_SECOND + date.getNano() / 1000;
+    }
+
+    public static LocalDateTime toLocalDateTime(long micros) {
+        long seconds = Math.floorDiv(micros, MICROS_PER_SECOND);
+        int nanos = (int) Math.floorMod(micros, MICROS_PER_SECOND) * 1000;
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    private void addRow(int id, int author, int likesCount, long dateMicros) {
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        authors[size] = author;
+        likes[size] = likesCount;
+        dates[size] = dateMicros;
+        textOffsets[size + 1] = texts.length();
+        size++;
+    }
+
+    /* Decodes UTF-8 into the text buffer, malformed sequences become U+FFFD like in new String(bytes, UTF_8) */
+    private void appendUtf8(byte[] utf8, int from, int to) {
+        texts.ensureCapacity(texts.length() + (to - from));
+        int i = from;
+        while (i < to) {
+            int b = utf8[i];
+            if (b >= 0) {
+                texts.append((char) b);
+                i++;
+                continue;
+            }
+            int length = (b & 0xe0) == 0xc0 ? 2 : (b & 0xf0) == 0xe0 ? 3 : (b & 0xf8) == 0xf0 ? 4 : 0;
+            int codePoint = length == 0 || i + length > to ? -1 : decode(utf8, i, length);
+            if (codePoint < 0) {
+                // rare: let the JDK decoder handle whatever is malformed from here on
+                texts.append(new String(utf8, i, to - i, StandardCharsets.UTF_8));
+                return;
+            }
+            texts.appendCodePoint(codePoint);
+            i += length;
+        }
+    }
+
+    /* The code point of the length byte sequence at utf8[i], -1 if it is not well formed */
+    private static int decode(byte[] utf8, int i, int length) {
+        int codePoint = utf8[i] & (0x7f >> length);
+        for (int j = i + 1; j < i + length; j++) {
+            if ((utf8[j] & 0xc0) != 0x80)
+                return -1;
+            codePoint = (codePoint << 6) | (utf8[j] & 0x3f);
+        }
+        int smallest = length == 2 ? 0x80 : length == 3 ? 0x800 : 0x10000; // shorter forms are overlong
+        if (codePoint < smallest || codePoint > Character.MAX_CODE_POINT
+                || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+            return -1;
+        return codePoint;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length)
+            return;
+        int newCapacity = Math.max(capacity, ids.length * 2);
+        ids = Arrays.copyOf(ids, newCapacity);
+        authors = Arrays.copyOf(authors, newCapacity);
+        likes = Arrays.copyOf(likes, newCapacity);
+        dates = Arrays.copyOf(dates, newCapacity);
+        textOffsets = Arrays.copyOf(textOffsets, newCapacity + 1);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("CompactFeed{");
+        sb.append("size=").append(size);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package techbook.business;
+
+import java.time.LocalDate;
+
+public class GroupActivity {
+
+    LocalDate day = null;
+    Integer posts = 0;
+    Integer likes = 0;
+    Integer joins = 0;
+    Integer leaves = 0;
+
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
+    public Integer getPosts() {
+        return posts;
+    }
+
+    public void setPosts(Integer posts) {
+        this.posts = posts;
+    }
+
+    public Integer getLikes() {
+        return likes;
+    }
+
+    public void setLikes(Integer likes) {
+        this.likes = likes;
+    }
+
+    public Integer getJoins() {
+        return joins;
+    }
+
+    public void setJoins(Integer joins) {
+        this.joins = joins;
+    }
+
+    public Integer getLeaves() {
+        return leaves;
+    }
+
+    public void setLeaves(Integer leaves) {
+        this.leaves = leaves;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GroupActivity)) return false;
+
+        GroupActivity that = (GroupActivity) o;
+
+        if (getDay() != null ? !getDay().equals(that.getDay()) : that.getDay() != null) return false;
+        if (getPosts() != null ? !getPosts().equals(that.getPosts()) : that.getPosts() != null) return false;
+        if (getLikes() != null ? !getLikes().equals(that.getLikes()) : that.getLikes() != null) return false;
+        if (getJoins() != null ? !getJoins().equals(that.getJoins()) : that.getJoins() != null) return false;
+        return getLeaves() != null ? getLeaves().equals(that.getLeaves()) : that.getLeaves() == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = getDay() != null ? getDay().hashCode() : 0;
+        result = 31 * result + (getPosts() != null ? getPosts().hashCode() : 0);
+        result = 31 * result + (getLikes() != null ? getLikes().hashCode() : 0);
+        result = 31 * result + (getJoins() != null ? getJoins().hashCode() : 0);
+        result = 31 * result + (getLeaves() != null ? getLeaves().hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("GroupActivity{");
+        sb.append("day=").append(day);
+        sb.append(", posts=").append(posts);
+        sb.append(", likes=").append(likes);
+        sb.append(", joins=").append(joins);
+        sb.append(", leaves=").append(leaves);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,71 @@
+package techbook.business;
+
+import java.util.ArrayList;
+
+public class HomePage {
+
+    Student student = Student.badStudent();
+    Feed feed = new Feed();
+    ArrayList<Student> peopleYouMayKnow = new ArrayList<>();
+
+    public Student getStudent() {
+        return student;
+    }
+
+    public void setStudent(Student student) {
+        this.student = student;
+    }
+
+    public Feed getFeed() {
+        return feed;
+    }
+
+    public void setFeed(Feed feed) {
+        this.feed = feed;
+    }
+
+    public ArrayList<Student> getPeopleYouMayKnow() {
+        return peopleYouMayKnow;
+    }
+
+    public void setPeopleYouMayKnow(ArrayList<Student> peopleYouMayKnow) {
+        this.peopleYouMayKnow = peopleYouMayKnow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HomePage)) return false;
+
+        HomePage homePage = (HomePage) o;
+
+        if (getStudent() != null ? !getStudent().equals(homePage.getStudent()) : homePage.getStudent() != null)
+            return false;
+        if (getFeed() != null ? !getFeed().equals(homePage.getFeed()) : homePage.getFeed() != null) return false;
+        return getPeopleYouMayKnow() != null ? getPeopleYouMayKnow().equals(homePage.getPeopleYouMayKnow())
+                : homePage.getPeopleYouMayKnow() == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = getStudent() != null ? getStudent().hashCode() : 0;
+        result = 31 * result + (getFeed() != null ? getFeed().hashCode() : 0);
+        result = 31 * result + (getPeopleYouMayKnow() != null ? getPeopleYouMayKnow().hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("HomePage{");
+        sb.append("student=").append(student);
+        sb.append(", feed=").append(feed);
+        sb.append(", peopleYouMayKnow=").append(peopleYouMayKnow);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public static HomePage badHomePage()
+    {
+        return new HomePage();
+    }
+}
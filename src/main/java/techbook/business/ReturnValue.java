@@ -1,5 +1,5 @@
 package techbook.business;
 
 public enum ReturnValue {
-    OK, NOT_EXISTS, ALREADY_EXISTS,  ERROR, BAD_PARAMS
+    OK, NOT_EXISTS, ALREADY_EXISTS,  ERROR, BAD_PARAMS, OVERLOADED
 }
@@ -0,0 +1,315 @@
+package techbook.data;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+ * Admission control for the connections handed out by DBConnector.
+ * Operations are split into two bulkheads, INTERACTIVE (the per request API calls) and ANALYTICAL (graph scans,
+ * reports, exports, imports), so a burst of heavy queries can't take the connections the cheap ones need.
+ * Each bulkhead admits a limited number of connections at once; the limit adapts to the latency of the operations
+ * (the time a connection is held): additive increase while they finish within the target latency, multiplicative
+ * decrease (down to minLimit) when they don't. Callers over the limit wait in a bounded queue for a bounded time, and are rejected right
+ * away once it is full, getting a connection whose every call throws an SQLException with the SQLState of
+ * PostgreSQLErrorCodes.TOO_MANY_CONNECTIONS. Each admitted connection also gets the bulkhead's statement_timeout,
+ * or the one of its operation (the techbook method asking for the connection) if admission.statementTimeout.<operation>
+ * is set. A thread that already holds a connection of a bulkhead gets further connections of it without waiting. Each
+ * connection remembers its own slot, so it is given back right whichever thread closes the connection.
+ * A connection that can't be opened is handed out as one whose every call throws an SQLException (SQLState 08001),
+ * so callers handle it like any other database error.
+ * Admission control is on unless admission.enabled is false.
+ */
+public class AdmissionControl {
+
+    public static final Bulkhead INTERACTIVE = new Bulkhead("interactive", 20, 10, 100, 50, 100, 500, 2000);
+    public static final Bulkhead ANALYTICAL = new Bulkhead("analytical", 2, 1, 4, 4, 1000, 5000, 60000);
+
+    private static final String OPERATION_TIMEOUT_PREFIX = "admission.statementTimeout.";
+    /* sqlclient_unable_to_establish_sqlconnection */
+    private static final String CONNECTION_FAILURE = "08001";
+
+    private static volatile boolean enabled = true;
+    /* whether a connection was refused to the thread since clearRejected() */
+    private static final ThreadLocal<Boolean> rejected = ThreadLocal.withInitial(() -> false);
+    /* operation -> statement timeout in millis, overriding the bulkhead's */
+    private static volatile Map<String, Long> operationTimeouts = Collections.emptyMap();
+
+    /* The slot of one admitted connection */
+    private static class Slot {
+        /* connections of the bulkhead held by the thread that got this one */
+        final AtomicInteger held;
+        /* false for a connection admitted without waiting, to a thread that already held one */
+        final boolean counted;
+
+        Slot(AtomicInteger held, boolean counted) {
+            this.held = held;
+            this.counted = counted;
+        }
+    }
+
+    public static class Bulkhead {
+
+        private final String name;
+        private double limit;
+        private int minLimit;
+        private int maxLimit;
+        private int maxQueue;
+        private long maxWaitMillis;
+        private long targetLatencyMillis;
+        private long statementTimeoutMillis;
+
+        private int inFlight = 0;
+        private int queued = 0;
+        private long admitted = 0;
+        private long rejected = 0;
+        /* connections of this bulkhead currently held by the thread */
+        private final ThreadLocal<AtomicInteger> held = ThreadLocal.withInitial(AtomicInteger::new);
+
+        private Bulkhead(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue, long maxWaitMillis,
+                         long targetLatencyMillis, long statementTimeoutMillis) {
+            this.name = name;
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.maxQueue = maxQueue;
+            this.maxWaitMillis = maxWaitMillis;
+            this.targetLatencyMillis = targetLatencyMillis;
+            this.statementTimeoutMillis = statementTimeoutMillis;
+        }
+
+        private synchronized void configure(Properties props) {
+            String prefix = "admission." + name + ".";
+            limit = Integer.parseInt(props.getProperty(prefix + "initialLimit", String.valueOf((int) limit)));
+            minLimit = Integer.parseInt(props.getProperty(prefix + "minLimit", String.valueOf(minLimit)));
+            maxLimit = Integer.parseInt(props.getProperty(prefix + "maxLimit", String.valueOf(maxLimit)));
+            maxQueue = Integer.parseInt(props.getProperty(prefix + "maxQueue", String.valueOf(maxQueue)));
+            maxWaitMillis = Long.parseLong(props.getProperty(prefix + "maxWaitMillis", String.valueOf(maxWaitMillis)));
+            targetLatencyMillis = Long.parseLong(
+                    props.getProperty(prefix + "targetLatencyMillis", String.valueOf(targetLatencyMillis)));
+            statementTimeoutMillis = Long.parseLong(
+                    props.getProperty(prefix + "statementTimeoutMillis", String.valueOf(statementTimeoutMillis)));
+        }
+
+        /* Returns null if the caller is rejected */
+        private Slot acquire() {
+            AtomicInteger threadHeld = held.get();
+            if (threadHeld.get() > 0) {
+                threadHeld.incrementAndGet();
+                return new Slot(threadHeld, false);
+            }
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    if (queued >= maxQueue) {
+                        rejected++;
+                        return null;
+                    }
+                    queued++;
+                    try {
+                        long deadline = System.currentTimeMillis() + maxWaitMillis;
+                        while (inFlight >= (int) limit) {
+                            long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                rejected++;
+                                return null;
+                            }
+                            wait(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejected++;
+                        return null;
+                    } finally {
+                        queued--;
+                    }
+                }
+                inFlight++;
+                admitted++;
+            }
+            threadHeld.incrementAndGet();
+            return new Slot(threadHeld, true);
+        }
+
+        private void release(Slot slot, long latencyMillis) {
+            slot.held.decrementAndGet();
+            if (!slot.counted)
+                return;
+            synchronized (this) {
+                boolean saturated = inFlight >= (int) limit;
+                inFlight--;
+                if (latencyMillis > targetLatencyMillis) {
+                    limit = Math.max(Math.max(1, minLimit), limit * 0.9);
+                } else if (saturated) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                notifyAll();
+            }
+        }
+
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        public synchronized int getQueued() {
+            return queued;
+        }
+
+        public synchronized long getAdmitted() {
+            return admitted;
+        }
+
+        public synchronized long getRejected() {
+            return rejected;
+        }
+
+        public long getStatementTimeoutMillis() {
+            return statementTimeoutMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder sb = new StringBuilder("Bulkhead{");
+            sb.append("name='").append(name).append('\'');
+            sb.append(", limit=").append((int) limit);
+            sb.append(", inFlight=").append(inFlight);
+            sb.append(", queued=").append(queued);
+            sb.append(", admitted=").append(admitted);
+            sb.append(", rejected=").append(rejected);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /* Reads the admission.* settings, called once the configuration is loaded */
+    static void configure(Properties props) {
+        enabled = Boolean.parseBoolean(props.getProperty("admission.enabled", "true"));
+        INTERACTIVE.configure(props);
+        ANALYTICAL.configure(props);
+        Map<String, Long> timeouts = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(OPERATION_TIMEOUT_PREFIX))
+                timeouts.put(key.substring(OPERATION_TIMEOUT_PREFIX.length()), Long.parseLong(props.getProperty(key)));
+        }
+        operationTimeouts = timeouts;
+    }
+
+    /* True if the exception comes from a connection that admission control rejected */
+    public static boolean isRejection(SQLException e) {
+        return String.valueOf(PostgreSQLErrorCodes.TOO_MANY_CONNECTIONS.getValue()).equals(e.getSQLState());
+    }
+
+    /*
+     * Lifts the statement timeout of an admitted connection, for work bounded by the size of its data rather than by
+     * latency (exports, snapshots of whole tables, partition DDL waiting for locks)
+     */
+    /*
+     * True if a connection was refused to the current thread (or to the flight it shared, see SingleFlight) since
+     * clearRejected(). Reads report being shed as an empty result or a bad student/post, this tells them apart.
+     */
+    public static boolean wasRejected() {
+        return rejected.get();
+    }
+
+    public static void clearRejected() {
+        rejected.set(false);
+    }
+
+    static void markRejected() {
+        rejected.set(true);
+    }
+
+    public static void clearStatementTimeout(Connection connection) throws SQLException {
+        setStatementTimeout(connection, 0);
+    }
+
+    static void setStatementTimeout(Connection connection, long millis) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SET statement_timeout = " + millis);
+        }
+    }
+
+    /*
+     * Admits a connection to the bulkhead: waits for a slot, opens the connection and sets its statement timeout.
+     * The slot is given back when the connection is closed.
+     * output: the connection, a rejecting connection if the bulkhead is overloaded, a failing connection if
+     * connecting failed
+     */
+    static Connection admit(Bulkhead bulkhead, Supplier<Connection> connect) {
+        if (DBConnector.getProperties() == null)
+            return failing(bulkhead, "Failed to make connection!", CONNECTION_FAILURE);
+        if (!enabled) {
+            Connection connection = connect.get();
+            return connection == null ? failing(bulkhead, "Failed to make connection!", CONNECTION_FAILURE)
+                    : connection;
+        }
+        Slot slot = bulkhead.acquire();
+        if (slot == null) {
+            rejected.set(true);
+            return failing(bulkhead, "Rejected by admission control: " + bulkhead.name + " is overloaded",
+                    String.valueOf(PostgreSQLErrorCodes.TOO_MANY_CONNECTIONS.getValue()));
+        }
+
+        long start = System.currentTimeMillis();
+        Connection connection = connect.get();
+        if (connection == null) {
+            bulkhead.release(slot, 0);
+            return failing(bulkhead, "Failed to make connection!", CONNECTION_FAILURE);
+        }
+        Long operationTimeout = operationTimeouts.isEmpty() ? null
+                : operationTimeouts.get(DBConnector.callerOperation());
+        long timeout = operationTimeout != null ? operationTimeout : bulkhead.statementTimeoutMillis;
+        if (timeout > 0 || operationTimeout != null) {
+            try {
+                setStatementTimeout(connection, timeout);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                        bulkhead.release(slot, System.currentTimeMillis() - start);
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /* A connection whose every call but close throws an SQLException with the given message and SQLState */
+    private static Connection failing(Bulkhead bulkhead, String message, String sqlState) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            return null;
+                        case "isClosed":
+                            return true;
+                        case "toString":
+                            return "FailingConnection{" + bulkhead.name + ", " + sqlState + "}";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new SQLException(message, sqlState);
+                    }
+                });
+    }
+}
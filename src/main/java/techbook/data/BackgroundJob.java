@@ -0,0 +1,49 @@
+package techbook.data;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A periodic maintenance job (reconcile, archive, purge, ...) on a daemon thread of its own, between start and stop.
+ * scheduleWithFixedDelay cancels a task for good the first time it throws, so a RuntimeException of one run
+ * (e.g. while the database is away) is printed and the job still runs after the next delay.
+ */
+public class BackgroundJob {
+
+    private final String threadName;
+    private ScheduledExecutorService executor = null;
+    private ScheduledFuture<?> task = null;
+
+    public BackgroundJob(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /* Runs the job after initialDelayMillis and then every periodMillis after the end of the previous run */
+    public synchronized void start(Runnable job, long initialDelayMillis, long periodMillis) {
+        stop();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, threadName);
+            t.setDaemon(true);
+            return t;
+        });
+        task = executor.scheduleWithFixedDelay(() -> {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* A run in progress finishes, no further run starts */
+    public synchronized void stop() {
+        if (executor == null)
+            return;
+        task.cancel(false);
+        executor.shutdown();
+        executor = null;
+        task = null;
+    }
+}
@@ -0,0 +1,366 @@
+package techbook.data;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import techbook.business.ChangeEvent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Change data feed between app instances sharing a database.
+ * Every change is written to the ChangeEvents outbox table and announced with NOTIFY on the same round trip, inside
+ * the transaction of the change itself, the notification payload being the event itself
+ * ("seq|entity|entityId|studentId|groupId"). The change and its event commit or roll back together, and since NOTIFY
+ * is transactional, subscribers only hear about committed changes.
+ * A subscription owns a dedicated connection and thread: it LISTENs, waits on the connection for notifications and
+ * hands them to its ChangeListener in batches. After a connection loss it reconnects and first replays the outbox
+ * from the last sequence it has seen, so no event is lost while disconnected.
+ * Events older than changes.retentionHours are purged, by purge() or in the background between startPurger and
+ * stopPurger.
+ */
+public class ChangeFeed {
+
+    public static final String CHANNEL = "techbook_changes";
+    private static final int CATCH_UP_BATCH = 1000;
+
+    private static final BackgroundJob purger = new BackgroundJob("change-feed-purger");
+
+    public static void createTables(Connection connection) {
+        execute(connection, "CREATE TABLE ChangeEvents\n" +
+                "(\n" +
+                "    seq bigserial NOT NULL,\n" +
+                "    entity text NOT NULL,\n" +
+                "    entity_id text NOT NULL,\n" +
+                "    student_id integer,\n" +
+                "    group_id integer,\n" +
+                "    created_at timestamptz NOT NULL DEFAULT now(),\n" +
+                "    PRIMARY KEY (seq)\n" +
+                ")");
+    }
+
+    public static void clearTables(Connection connection) {
+        execute(connection, "DELETE FROM ChangeEvents");
+    }
+
+    public static void dropTables(Connection connection) {
+        execute(connection, "DROP TABLE IF EXISTS ChangeEvents CASCADE");
+    }
+
+    /*
+     * Records and announces a change, as part of the transaction open on the connection (the notification goes out
+     * when it commits). The affected group is given either by id or by name (the other being null).
+     */
+    public static void record(Connection connection, String entity, Object entityId, Integer studentId,
+                              Integer groupId, String groupName) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(
+                "WITH e AS ( \n" +
+                "    INSERT INTO ChangeEvents(entity, entity_id, student_id, group_id) \n" +
+                "    VALUES (?, ?, ?, COALESCE(?, (SELECT id FROM Groups WHERE  name = (?)))) \n" +
+                "    RETURNING seq, entity, entity_id, student_id, group_id \n" +
+                ") \n" +
+                "SELECT pg_notify('" + CHANNEL + "', seq || '|' || entity || '|' || entity_id || '|' || \n" +
+                "    COALESCE(student_id::text, '') || '|' || COALESCE(group_id::text, '')) FROM e");
+        try {
+            pstmt.setString(1, entity);
+            pstmt.setString(2, String.valueOf(entityId));
+            if (studentId == null) {
+                pstmt.setNull(3, Types.INTEGER);
+            } else {
+                pstmt.setInt(3, studentId);
+            }
+            if (groupId == null) {
+                pstmt.setNull(4, Types.INTEGER);
+            } else {
+                pstmt.setInt(4, groupId);
+            }
+            pstmt.setString(5, groupName);
+            pstmt.executeQuery().close();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /*
+     * Records and announces a change made outside of the coordinator database (on the shards), on a connection of its
+     * own. The change is already committed, so publishing never fails the caller's operation, errors are only printed.
+     */
+    public static void publish(String entity, Object entityId, Integer studentId, Integer groupId, String groupName) {
+        Connection connection = DBConnector.getConnection();
+        if (connection == null)
+            return;
+        try {
+            record(connection, entity, entityId, studentId, groupId, groupName);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Deletes outbox events older than the given time, subscribers can't catch up past that point */
+    public static int purge(Timestamp olderThan) {
+        Connection connection = DBConnector.getConnection();
+        if (connection == null)
+            return 0;
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("DELETE FROM ChangeEvents WHERE created_at < ?");
+            pstmt.setTimestamp(1, olderThan);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            try {
+                if (pstmt != null)
+                    pstmt.close();
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* Deletes the outbox events older than changes.retentionHours */
+    public static int purge() {
+        long retentionHours = Long.parseLong(DBConnector.getProperty("changes.retentionHours", "24"));
+        return purge(new Timestamp(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours)));
+    }
+
+    /* Runs purge() now and then every periodMillis in a background thread, until stopPurger */
+    public static void startPurger(long periodMillis) {
+        purger.start(ChangeFeed::purge, 0, periodMillis);
+    }
+
+    public static void stopPurger() {
+        purger.stop();
+    }
+
+    /*
+     * Starts delivering changes to the listener. With fromSeq < 0 only changes from now on are delivered,
+     * otherwise the outbox is first replayed from fromSeq (exclusive).
+     */
+    public static Subscription subscribe(ChangeListener listener, long fromSeq, int waitMillis) {
+        Subscription subscription = new Subscription(listener, fromSeq, waitMillis);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    public static Subscription subscribe(ChangeListener listener) {
+        return subscribe(listener, -1, 1000);
+    }
+
+    public static class Subscription {
+
+        private static final long MIN_BACKOFF_MILLIS = 10;
+        private static final long MAX_BACKOFF_MILLIS = 5000;
+        private static final int RECENT_SEQS = 4096;
+
+        private final ChangeListener listener;
+        /* the longest wait for notifications, close() and connection losses are noticed within it */
+        private final int waitMillis;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long lastSeq;
+        private Connection connection = null;
+        /* seqs delivered lately, to drop the events seen both by the replay and as notifications */
+        private final Set<Long> recentSeqs = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > RECENT_SEQS;
+            }
+        });
+
+        private Subscription(ChangeListener listener, long fromSeq, int waitMillis) {
+            this.listener = listener;
+            this.lastSeq = fromSeq;
+            this.waitMillis = Math.max(1, waitMillis); // 0 would wait forever
+            this.thread = new Thread(this::run, "change-feed-listener");
+            this.thread.setDaemon(true);
+        }
+
+        /*
+         * The highest sequence number delivered, can be used to resume a later subscription.
+         * Concurrent transactions may commit their events out of seq order, so resuming from it can miss an event
+         * committed right around the time this subscription was closed.
+         */
+        public long getLastSeq() {
+            return lastSeq;
+        }
+
+        public void close() {
+            running = false;
+            thread.interrupt();
+        }
+
+        private void run() {
+            long backoff = MIN_BACKOFF_MILLIS;
+            while (running) {
+                try {
+                    if (connection == null) {
+                        connect();
+                        backoff = MIN_BACKOFF_MILLIS;
+                    }
+                    // blocks on the socket until notifications arrive or waitMillis passed
+                    PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications(waitMillis);
+                    if (notifications != null && notifications.length > 0) {
+                        deliver(parse(notifications));
+                    }
+                } catch (SQLException e) {
+                    if (!running)
+                        break;
+                    e.printStackTrace();
+                    disconnect();
+                    sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+            disconnect();
+        }
+
+        /* LISTEN first, then replay: an event committed in between is seen twice and delivered once */
+        private void connect() throws SQLException {
+            connection = DBConnector.getDedicatedConnection();
+            if (connection == null)
+                throw new SQLException("Failed to make connection!");
+            Statement stmt = connection.createStatement();
+            stmt.execute("LISTEN " + CHANNEL);
+            stmt.close();
+            if (lastSeq < 0) {
+                lastSeq = currentSeq();
+                return;
+            }
+            List<ChangeEvent> events;
+            do {
+                events = readOutbox(lastSeq);
+                deliver(events);
+            } while (events.size() == CATCH_UP_BATCH);
+        }
+
+        private long currentSeq() throws SQLException {
+            Statement stmt = connection.createStatement();
+            try {
+                ResultSet results = stmt.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM ChangeEvents");
+                results.next();
+                return results.getLong(1);
+            } finally {
+                stmt.close();
+            }
+        }
+
+        private List<ChangeEvent> readOutbox(long afterSeq) throws SQLException {
+            List<ChangeEvent> events = new ArrayList<>();
+            PreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT seq, entity, entity_id, student_id, group_id FROM ChangeEvents " +
+                    "WHERE seq > ? ORDER BY seq LIMIT " + CATCH_UP_BATCH);
+            try {
+                pstmt.setLong(1, afterSeq);
+                ResultSet results = pstmt.executeQuery();
+                while (results.next()) {
+                    ChangeEvent e = new ChangeEvent();
+                    e.setSeq(results.getLong(1));
+                    e.setEntity(results.getString(2));
+                    e.setEntityId(results.getString(3));
+                    int studentId = results.getInt(4);
+                    e.setStudentId(results.wasNull() ? null : studentId);
+                    int groupId = results.getInt(5);
+                    e.setGroupId(results.wasNull() ? null : groupId);
+                    events.add(e);
+                }
+                results.close();
+            } finally {
+                pstmt.close();
+            }
+            return events;
+        }
+
+        private static List<ChangeEvent> parse(PGNotification[] notifications) {
+            List<ChangeEvent> events = new ArrayList<>(notifications.length);
+            for (PGNotification notification : notifications) {
+                String[] fields = notification.getParameter().split("\\|", -1);
+                if (fields.length != 5)
+                    continue;
+                ChangeEvent e = new ChangeEvent();
+                e.setSeq(Long.parseLong(fields[0]));
+                e.setEntity(fields[1]);
+                e.setEntityId(fields[2]);
+                e.setStudentId(fields[3].isEmpty() ? null : Integer.valueOf(fields[3]));
+                e.setGroupId(fields[4].isEmpty() ? null : Integer.valueOf(fields[4]));
+                events.add(e);
+            }
+            return events;
+        }
+
+        private void deliver(List<ChangeEvent> events) {
+            List<ChangeEvent> fresh = new ArrayList<>(events.size());
+            for (ChangeEvent e : events) {
+                if (recentSeqs.add(e.getSeq())) {
+                    fresh.add(e);
+                }
+            }
+            if (fresh.isEmpty())
+                return;
+            for (ChangeEvent e : fresh) {
+                lastSeq = Math.max(lastSeq, e.getSeq());
+            }
+            try {
+                listener.onChanges(fresh);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void disconnect() {
+            if (connection == null)
+                return;
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            connection = null;
+        }
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void execute(Connection connection, String query) {
+        Statement stmt = null;
+        try {
+            stmt = connection.createStatement();
+            stmt.execute(query);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (stmt != null)
+                    stmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package techbook.data;
+
+import techbook.business.ChangeEvent;
+
+import java.util.List;
+
+public interface ChangeListener {
+
+    /* Called from the subscription's listener thread with the events received since the previous call */
+    void onChanges(List<ChangeEvent> events);
+}
@@ -0,0 +1,144 @@
+package techbook.data;
+
+import org.postgresql.PGConnection;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Streams tables and queries out of the database with COPY ... TO STDOUT.
+ * The driver hands the COPY data over in chunks as it arrives, and it goes through a fixed size buffer
+ * (and optionally gzip) straight into the target, so memory use does not depend on the table size.
+ * All methods return the number of exported rows, or -1 in case of an error.
+ */
+public class CopyExporter {
+
+    public enum Format {
+        CSV("csv", ".csv"),
+        BINARY("binary", ".bin");
+
+        private final String option;
+        private final String extension;
+
+        Format(String option, String extension) {
+            this.option = option;
+            this.extension = extension;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /* Exports a whole table into the given output stream, the stream is not closed */
+    public static long exportTable(String table, OutputStream out, Format format) {
+        if (!IDENTIFIER.matcher(table).matches())
+            return -1;
+        return copyOut("COPY " + table + " TO STDOUT WITH (" + options(format) + ")", out);
+    }
+
+    /* Exports the result of a SELECT query into the given output stream, the stream is not closed */
+    public static long exportQuery(String query, OutputStream out, Format format) {
+        return copyOut("COPY (" + query + ") TO STDOUT WITH (" + options(format) + ")", out);
+    }
+
+    /* Exports a whole table into a file, replacing it if it exists */
+    public static long exportTable(String table, Path file, Format format, boolean compress) {
+        if (!IDENTIFIER.matcher(table).matches())
+            return -1;
+        return exportToFile("COPY " + table + " TO STDOUT WITH (" + options(format) + ")", file, compress);
+    }
+
+    /* Exports the result of a SELECT query into a file, replacing it if it exists */
+    public static long exportQuery(String query, Path file, Format format, boolean compress) {
+        return exportToFile("COPY (" + query + ") TO STDOUT WITH (" + options(format) + ")", file, compress);
+    }
+
+    /*
+     * Exports every table into its own file in the given directory (table name + .csv/.bin, + .gz when compressed),
+     * running up to parallelism exports at once, each on its own connection.
+     * output: table name -> exported rows (-1 for a failed table), in the given order
+     */
+    public static Map<String, Long> exportTables(List<String> tables, Path directory, Format format,
+                                                 boolean compress, int parallelism) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, tables.size())));
+        Map<String, Long> rows = new LinkedHashMap<>();
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (String table : tables) {
+                Path file = directory.resolve(table.toLowerCase() + format.extension + (compress ? ".gz" : ""));
+                futures.add(pool.submit(() -> exportTable(table, file, format, compress)));
+            }
+            for (int i = 0; i < tables.size(); i++) {
+                long count;
+                try {
+                    count = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    count = -1;
+                }
+                rows.put(tables.get(i), count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return rows;
+    }
+
+    private static String options(Format format) {
+        return format == Format.CSV ? "FORMAT csv, HEADER" : "FORMAT binary";
+    }
+
+    private static long exportToFile(String copy, Path file, boolean compress) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            if (compress)
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            long rows = copyOut(copy, out);
+            out.close();
+            return rows;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private static long copyOut(String copy, OutputStream out) {
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        if (connection == null)
+            return -1;
+        try {
+            // an export is bounded by its size, not by the analytical statement timeout
+            AdmissionControl.clearStatementTimeout(connection);
+            return connection.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, out);
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
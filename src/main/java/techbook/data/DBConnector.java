@@ -6,31 +6,71 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DBConnector {
 
 
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    /* student id -> time (millis) of the student's last write, used for read-your-writes routing */
+    private static final ConcurrentHashMap<Integer, Long> lastWrites = new ConcurrentHashMap<>();
+
+    /*
+     * The configuration, loaded once by the class loader on first use: reading it afterwards takes no lock,
+     * which matters since every connection, isSharded and admission call reads it.
+     */
+    private static class Config {
+        private static final List<Replica> replicas = new ArrayList<>();
+        /* Posts/Likes shard urls, empty if Posts and Likes live on the main database */
+        private static final List<String> shards = new ArrayList<>();
+        private static final Properties props = load();
+        private static final double maxLagSeconds =
+                Double.parseDouble(getProperty("replica.maxLagSeconds", "5"));
+        private static final boolean readYourWrites =
+                Boolean.parseBoolean(getProperty("replica.readYourWrites", "false"));
+        private static final long readYourWritesMillis =
+                Long.parseLong(getProperty("replica.readYourWritesMillis", "5000"));
+
+        private static String getProperty(String key, String defaultValue) {
+            return props == null ? defaultValue : props.getProperty(key, defaultValue);
+        }
+    }
+
+    /* A connection to the primary for an interactive operation, see AdmissionControl */
     public static Connection getConnection()
     {
-        try {
+        return SlowQueryLog.wrap(AdmissionControl.admit(AdmissionControl.INTERACTIVE, DBConnector::connect));
+    }
 
-            Class.forName("org.postgresql.Driver");
+    /* A connection to the primary for an analytical operation (scans, reports, bulk jobs), see AdmissionControl */
+    public static Connection getAnalyticalConnection()
+    {
+        return SlowQueryLog.wrap(AdmissionControl.admit(AdmissionControl.ANALYTICAL, DBConnector::connect));
+    }
 
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            return null;
+    /* Same as getReadConnection(), for an analytical operation */
+    public static Connection getAnalyticalReadConnection()
+    {
+        return SlowQueryLog.wrap(AdmissionControl.admit(AdmissionControl.ANALYTICAL, DBConnector::connectRead));
+    }
 
-        }
+    /* A connection to the primary outside admission control, for long lived connections (listeners, bulk loads) */
+    public static Connection getDedicatedConnection()
+    {
+        return connect();
+    }
 
-        ClassLoader loader = Thread.currentThread().getContextClassLoader();
-        InputStream stream = loader.getResourceAsStream("config.properties");
-        Properties props = new Properties();
-        try {
-            props.load(stream);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private static Connection connect()
+    {
+        Properties props = getProperties();
+        if (props == null)
+            return null;
 
         Connection connection = null;
 
@@ -55,6 +95,200 @@ public class DBConnector {
         return connection;
     }
 
+    /*
+     * Returns a read-only connection to a healthy replica whose replay lag is within replica.maxLagSeconds.
+     * Replicas are picked round robin; if none is usable (or none is configured) the primary is used.
+     */
+    public static Connection getReadConnection()
+    {
+        return SlowQueryLog.wrap(AdmissionControl.admit(AdmissionControl.INTERACTIVE, DBConnector::connectRead));
+    }
+
+    private static Connection connectRead()
+    {
+        Properties props = getProperties();
+        if (props == null)
+            return null;
+
+        List<Replica> replicas = Config.replicas;
+        int count = replicas.size();
+        int start = count == 0 ? 0 : nextReplica.getAndIncrement();
+        for (int i = 0; i < count; i++) {
+            Replica replica = replicas.get(Math.floorMod(start + i, count));
+            if (!replica.isUsable(Config.maxLagSeconds))
+                continue;
+            try {
+                Connection connection = replica.connect(props);
+                connection.setReadOnly(true);
+                return connection;
+            } catch (SQLException e) {
+                replica.markFailed();
+            }
+        }
+
+        Connection connection = connect();
+        try {
+            if (connection != null)
+                connection.setReadOnly(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return connection;
+    }
+
+    /*
+     * Same as getReadConnection(), but when replica.readYourWrites is enabled and the given student wrote
+     * within the last replica.readYourWritesMillis, the primary is used so the student sees their own writes.
+     */
+    public static Connection getReadConnection(Integer studentId)
+    {
+        return hasRecentWrite(studentId) ? getConnection() : getReadConnection();
+    }
+
+    /* Records that the student has just written, see getReadConnection(Integer) */
+    public static void markWrite(Integer studentId)
+    {
+        if (studentId != null && getProperties() != null && !Config.replicas.isEmpty())
+            lastWrites.put(studentId, System.currentTimeMillis());
+    }
+
+    /* True if read-your-writes is enabled and the student wrote within the last replica.readYourWritesMillis */
+    public static boolean hasRecentWrite(Integer studentId)
+    {
+        if (studentId == null || getProperties() == null || !Config.readYourWrites)
+            return false;
+        Long lastWrite = lastWrites.get(studentId);
+        if (lastWrite == null)
+            return false;
+        if (System.currentTimeMillis() - lastWrite <= Config.readYourWritesMillis)
+            return true;
+        lastWrites.remove(studentId, lastWrite);
+        return false;
+    }
+
+    /* A setting of config.properties, or the default if it is not set */
+    public static String getProperty(String key, String defaultValue)
+    {
+        Properties props = getProperties();
+        return props == null ? defaultValue : props.getProperty(key, defaultValue);
+    }
+
+    public static boolean isSharded()
+    {
+        return getProperties() != null && !Config.shards.isEmpty();
+    }
+
+    public static int getShardCount()
+    {
+        return isSharded() ? Config.shards.size() : 0;
+    }
+
+    /* Posts and their Likes are placed on the shard of the post's author */
+    public static int shardOf(Integer author)
+    {
+        return Math.floorMod(author, getShardCount());
+    }
+
+    public static Connection getShardConnection(int shard)
+    {
+        Properties props = getProperties();
+        if (props == null)
+            return null;
+        try {
+            return DriverManager.getConnection(Config.shards.get(shard), props);
+        } catch (SQLException e) {
+            System.out.println("Connection to shard " + shard + " Failed!");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+     * The operation asking for a connection: the first techbook method outside techbook.data on the stack.
+     * Names the per operation settings of the slow query log and of admission control.
+     */
+    static String callerOperation()
+    {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            if (frame.getClassName().startsWith("techbook.") && !frame.getClassName().startsWith("techbook.data.")
+                    && !frame.getMethodName().startsWith("lambda$"))
+                return frame.getMethodName();
+        }
+        return "unknown";
+    }
+
+    /* The configuration, or null if the driver is missing */
+    static Properties getProperties()
+    {
+        return Config.props;
+    }
+
+    /* Called once, while the Config class is initialized */
+    private static Properties load()
+    {
+        try {
+
+            Class.forName("org.postgresql.Driver");
+
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+
+        }
+
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        InputStream stream = loader.getResourceAsStream("config.properties");
+        Properties loaded = new Properties();
+        try {
+            loaded.load(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // replicas=jdbc:postgresql://host1:5432/db,jdbc:postgresql://host2:5432/db
+        String replicaUrls = loaded.getProperty("replicas", "");
+        for (String url : replicaUrls.split(",")) {
+            if (!url.trim().isEmpty())
+                Config.replicas.add(new Replica(url.trim()));
+        }
+
+        // shards=jdbc:postgresql://host1:5432/db,jdbc:postgresql://host2:5432/db
+        String shardUrls = loaded.getProperty("shards", "");
+        for (String url : shardUrls.split(",")) {
+            if (!url.trim().isEmpty())
+                Config.shards.add(url.trim());
+        }
+
+        AdmissionControl.configure(loaded);
+        SlowQueryLog.configure(loaded);
+        SingleFlight.configure(loaded);
+        startHealthChecks(Config.replicas, loaded);
+        return loaded;
+    }
+
+    /*
+     * Checks every replica in the background, every replica.checkIntervalMillis, one thread per replica so a
+     * replica that is down (and blocks its check for up to replica.checkTimeoutSeconds) does not delay the others.
+     * Routing a read only looks at the result of the last check.
+     */
+    private static void startHealthChecks(List<Replica> replicas, Properties props)
+    {
+        if (replicas.isEmpty())
+            return;
+        long interval = Long.parseLong(props.getProperty("replica.checkIntervalMillis", "1000"));
+        Properties checkProps = new Properties(props);
+        checkProps.setProperty("connectTimeout", props.getProperty("replica.checkTimeoutSeconds", "2"));
+        checkProps.setProperty("socketTimeout", props.getProperty("replica.checkTimeoutSeconds", "2"));
+
+        ScheduledExecutorService checker = Executors.newScheduledThreadPool(replicas.size(), runnable -> {
+            Thread thread = new Thread(runnable, "replica-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Replica replica : replicas) {
+            checker.scheduleWithFixedDelay(() -> replica.check(checkProps), 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
 
     public static ArrayList<Pair<String, String>> getSchema(ResultSet results)
     {
@@ -116,43 +350,117 @@ public class DBConnector {
 
     }
 
+    /*
+     * Prints the columns of every table and view, read from information_schema only: no table is scanned,
+     * however big it is.
+     */
     public static void printTablesSchemas()
     {
         Connection connection = getConnection();
         PreparedStatement pstmt = null;
         try {
-            pstmt = connection.prepareStatement("SELECT table_name\n" +
-                    "  FROM information_schema.tables\n" +
-                    " WHERE table_schema='public'\n" +
-                    "   AND table_type='BASE TABLE';");
+            pstmt = connection.prepareStatement("SELECT t.table_type, c.table_name, c.column_name, c.udt_name\n" +
+                    "  FROM information_schema.columns c\n" +
+                    "  JOIN information_schema.tables t USING (table_schema, table_name)\n" +
+                    " WHERE c.table_schema='public'\n" +
+                    "   AND t.table_type IN ('BASE TABLE', 'VIEW')\n" +
+                    " ORDER BY t.table_type, c.table_name, c.ordinal_position;");
             ResultSet resultSet = pstmt.executeQuery();
-            System.out.println(System.lineSeparator() + "Printing Tables Schemas");
+            String tableType = null;
+            String tableName = null;
+            ArrayList<Pair<String, String>> schema = new ArrayList<>();
             while (resultSet.next())
             {
-                String tableName = resultSet.getString("table_name");
-                System.out.println(tableName);
-                pstmt = connection.prepareStatement("SELECT * From "+ tableName);
-                ResultSet tableResultSet = pstmt.executeQuery();
-                printSchema(tableResultSet);
+                if (!resultSet.getString("table_name").equals(tableName) ||
+                        !resultSet.getString("table_type").equals(tableType))
+                {
+                    if (tableName != null)
+                        printSchema(schema);
+                    if (!resultSet.getString("table_type").equals(tableType))
+                    {
+                        tableType = resultSet.getString("table_type");
+                        System.out.println(System.lineSeparator() +
+                                (tableType.equals("VIEW") ? "Printing Views Schemas" : "Printing Tables Schemas"));
+                    }
+                    tableName = resultSet.getString("table_name");
+                    System.out.println(tableName);
+                    schema = new ArrayList<>();
+                }
+                schema.add(new Pair<>(resultSet.getString("column_name"), resultSet.getString("udt_name")));
             }
-            pstmt = connection.prepareStatement("SELECT table_name\n" +
-                    "  FROM information_schema.views\n" +
-                    " WHERE table_schema='public';");
+            if (tableName != null)
+                printSchema(schema);
+            resultSet.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(connection, pstmt);
+        }
+    }
 
+    /*
+     * Prints, per table: the planner's row estimate, the heap, index, TOAST and total sizes, sequential vs index
+     * scans, and dead tuples as a bloat estimate (the share of dead row versions waiting for vacuum);
+     * then per index: its size and how often it was used, unused indexes first.
+     * Everything comes from pg_class and the statistics views, so the report is cheap on any data size.
+     * Sizes are in bytes. The statistics are since the last stats reset.
+     * Runs on the primary: a replica has its own scan and vacuum statistics, not those of the primary.
+     */
+    public static void printCapacityReport()
+    {
+        Connection connection = getAnalyticalConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = connection.prepareStatement("SELECT c.relname AS table_name,\n" +
+                    "       c.reltuples::bigint AS row_estimate,\n" +
+                    "       pg_total_relation_size(c.oid) AS total_bytes,\n" +
+                    "       pg_relation_size(c.oid) AS heap_bytes,\n" +
+                    "       pg_indexes_size(c.oid) AS index_bytes,\n" +
+                    "       COALESCE(pg_total_relation_size(NULLIF(c.reltoastrelid, 0)), 0) AS toast_bytes,\n" +
+                    "       s.seq_scan, s.idx_scan, s.n_live_tup, s.n_dead_tup,\n" +
+                    "       round(100.0 * s.n_dead_tup / NULLIF(s.n_live_tup + s.n_dead_tup, 0), 1) AS dead_pct,\n" +
+                    "       GREATEST(s.last_vacuum, s.last_autovacuum) AS last_vacuum\n" +
+                    "  FROM pg_class c\n" +
+                    "  JOIN pg_namespace n ON n.oid = c.relnamespace\n" +
+                    "  LEFT JOIN pg_stat_user_tables s ON s.relid = c.oid\n" +
+                    " WHERE n.nspname = 'public'\n" +
+                    "   AND c.relkind IN ('r', 'p')\n" +
+                    " ORDER BY pg_total_relation_size(c.oid) DESC;");
+            ResultSet resultSet = pstmt.executeQuery();
+            System.out.println(System.lineSeparator() + "Printing Tables Capacity");
+            printResults(resultSet);
+            resultSet.close();
+            pstmt.close();
+
+            pstmt = connection.prepareStatement("SELECT s.relname AS table_name, s.indexrelname AS index_name,\n" +
+                    "       pg_relation_size(s.indexrelid) AS index_bytes,\n" +
+                    "       s.idx_scan, s.idx_tup_read, s.idx_tup_fetch,\n" +
+                    "       i.indisunique AS is_unique\n" +
+                    "  FROM pg_stat_user_indexes s\n" +
+                    "  JOIN pg_index i ON i.indexrelid = s.indexrelid\n" +
+                    " WHERE s.schemaname = 'public'\n" +
+                    " ORDER BY s.idx_scan, pg_relation_size(s.indexrelid) DESC;");
             resultSet = pstmt.executeQuery();
-            System.out.println(System.lineSeparator() + "Printing Views Schemas");
-            while (resultSet.next())
-            {
-                String tableName = resultSet.getString("table_name");
-                System.out.println(tableName);
-                pstmt = connection.prepareStatement("SELECT * From "+ tableName);
-                ResultSet tableResultSet = pstmt.executeQuery();
-                printSchema(tableResultSet);
-            }
+            System.out.println("Printing Index Usage");
+            printResults(resultSet);
+            resultSet.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            closeQuietly(connection, pstmt);
         }
     }
 
+    private static void closeQuietly(Connection connection, PreparedStatement pstmt)
+    {
+        try {
+            if (pstmt != null)
+                pstmt.close();
+            if (connection != null)
+                connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 
 }
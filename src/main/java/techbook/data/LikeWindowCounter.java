@@ -0,0 +1,295 @@
+package techbook.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Sliding window like counters for trending posts.
+ * Time is cut into buckets of bucketMillis, and for every post liked within the last bucketCount buckets
+ * we keep a short sparse list of (bucket, likes in bucket). A top-K query sums the buckets of the window for the
+ * posts of one group and keeps the best k in a heap.
+ *
+ * Every group has its own lock, so likes and queries of different groups never wait for each other.
+ * The answer of a query is cached per (window, k) in its group until the current bucket changes, or a like/unlike
+ * could change it: an unlike of one of the returned posts, or a like that lifts another post past the last one
+ * returned. Repeated queries for a hot group mostly cost a map lookup.
+ * Posts whose likes all left the horizon are dropped when their group is queried, and every group is swept
+ * every bucketCount / 24 buckets, so groups that are never queried do not keep them either.
+ */
+public class LikeWindowCounter {
+
+    /* Group key used for public posts, group ids are SERIAL and start at 1 */
+    public static final int PUBLIC_GROUP = 0;
+    private static final int MAX_CACHED_QUERIES = 64;
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final long sweepBuckets;
+    private final ConcurrentHashMap<Integer, Group> groups = new ConcurrentHashMap<>();
+    /* the bucket of the last sweep over every group */
+    private final AtomicLong lastSweep = new AtomicLong(Long.MIN_VALUE);
+    private volatile boolean loaded = false;
+
+    private static class Counter {
+        long[] buckets = new long[2];
+        int[] counts = new int[2];
+        int size = 0;
+
+        void add(long bucket, int delta, long oldest) {
+            prune(oldest);
+            for (int i = size - 1; i >= 0; i--) {
+                if (buckets[i] == bucket) {
+                    counts[i] = Math.max(0, counts[i] + delta);
+                    return;
+                }
+                if (buckets[i] < bucket)
+                    break;
+            }
+            if (delta <= 0)
+                return;
+            // likes almost always arrive in the newest bucket, so this is usually an append
+            int pos = size;
+            while (pos > 0 && buckets[pos - 1] > bucket)
+                pos--;
+            if (size == buckets.length) {
+                buckets = Arrays.copyOf(buckets, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(buckets, pos, buckets, pos + 1, size - pos);
+            System.arraycopy(counts, pos, counts, pos + 1, size - pos);
+            buckets[pos] = bucket;
+            counts[pos] = delta;
+            size++;
+        }
+
+        void prune(long oldest) {
+            int stale = 0;
+            while (stale < size && buckets[stale] < oldest)
+                stale++;
+            if (stale == 0)
+                return;
+            System.arraycopy(buckets, stale, buckets, 0, size - stale);
+            System.arraycopy(counts, stale, counts, 0, size - stale);
+            size -= stale;
+        }
+
+        int sum(long from) {
+            int sum = 0;
+            for (int i = size - 1; i >= 0 && buckets[i] >= from; i--)
+                sum += counts[i];
+            return sum;
+        }
+    }
+
+    private static class CachedTop {
+        final long bucket;
+        final int windowBuckets;
+        final int k;
+        final int[] postIds;
+        /* likes within the window of the last returned post */
+        final int lastLikes;
+
+        CachedTop(long bucket, int windowBuckets, int k, int[] postIds, int lastLikes) {
+            this.bucket = bucket;
+            this.windowBuckets = windowBuckets;
+            this.k = k;
+            this.postIds = postIds;
+            this.lastLikes = lastLikes;
+        }
+
+        boolean contains(int postId) {
+            for (int id : postIds) {
+                if (id == postId)
+                    return true;
+            }
+            return false;
+        }
+
+        /* True if a post that is not returned, with the given likes in the window, now belongs to the answer */
+        boolean isBeatenBy(int postId, int likes) {
+            if (likes == 0)
+                return false;
+            if (postIds.length < k)
+                return true;
+            return likes > lastLikes || (likes == lastLikes && postId > postIds[postIds.length - 1]);
+        }
+    }
+
+    /* The counters of the posts of one group and its cached answers, guarded by the group's monitor */
+    private static class Group {
+        final HashMap<Integer, Counter> counters = new HashMap<>();
+        final HashMap<Long, CachedTop> cache = new HashMap<>();
+        /* set once a sweep dropped the group from groups, changes then go to a new Group */
+        boolean removed = false;
+
+        void prune(long oldest) {
+            for (Iterator<Counter> it = counters.values().iterator(); it.hasNext(); ) {
+                Counter counter = it.next();
+                counter.prune(oldest);
+                if (counter.size == 0)
+                    it.remove();
+            }
+        }
+
+        /* Drops the cached answers that the change of the post's likes may alter */
+        void invalidate(int postId, Counter counter, boolean increased) {
+            for (Iterator<CachedTop> it = cache.values().iterator(); it.hasNext(); ) {
+                CachedTop cached = it.next();
+                if (cached.contains(postId) || (increased && counter != null
+                        && cached.isBeatenBy(postId, counter.sum(cached.bucket - cached.windowBuckets + 1))))
+                    it.remove();
+            }
+        }
+    }
+
+    public LikeWindowCounter(long bucketMillis, int bucketCount) {
+        this.bucketMillis = bucketMillis;
+        this.bucketCount = bucketCount;
+        this.sweepBuckets = Math.max(1, bucketCount / 24);
+    }
+
+    /* The longest window that can be answered */
+    public long getMaxWindowMillis() {
+        return bucketMillis * bucketCount;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    public void clear() {
+        groups.clear();
+        loaded = false;
+    }
+
+    public void like(int postId, int group, long likedAtMillis) {
+        update(postId, group, likedAtMillis, 1);
+    }
+
+    /* Takes back a like from the bucket it was counted in, likedAtMillis being the time of the original like */
+    public void unlike(int postId, int group, long likedAtMillis) {
+        update(postId, group, likedAtMillis, -1);
+    }
+
+    /* Stops counting the likes of a deleted post */
+    public void remove(int postId, int group) {
+        Group g = groups.get(group);
+        if (g == null)
+            return;
+        synchronized (g) {
+            if (g.counters.remove(postId) != null)
+                g.invalidate(postId, null, false);
+        }
+    }
+
+    private void update(int postId, int group, long likedAtMillis, int delta) {
+        long now = System.currentTimeMillis() / bucketMillis;
+        long oldest = now - bucketCount + 1;
+        long bucket = likedAtMillis / bucketMillis;
+        if (bucket < oldest)
+            return;
+        sweepIfNeeded(now, oldest);
+        while (true) {
+            Group g = delta > 0 ? groups.computeIfAbsent(group, key -> new Group()) : groups.get(group);
+            if (g == null)
+                return;
+            synchronized (g) {
+                if (g.removed)
+                    continue;
+                Counter counter = g.counters.get(postId);
+                if (counter == null) {
+                    if (delta < 0)
+                        return;
+                    counter = new Counter();
+                    g.counters.put(postId, counter);
+                }
+                counter.add(bucket, delta, oldest);
+                if (counter.size == 0)
+                    g.counters.remove(postId);
+                g.invalidate(postId, counter, delta > 0);
+                return;
+            }
+        }
+    }
+
+    /* Prunes every group once every sweepBuckets buckets, on the thread that first notices */
+    private void sweepIfNeeded(long now, long oldest) {
+        long last = lastSweep.get();
+        if (now - last < sweepBuckets || !lastSweep.compareAndSet(last, now))
+            return;
+        for (Map.Entry<Integer, Group> entry : groups.entrySet()) {
+            Group g = entry.getValue();
+            synchronized (g) {
+                g.prune(oldest);
+                if (g.counters.isEmpty()) {
+                    g.removed = true;
+                    groups.remove(entry.getKey(), g);
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the ids of (at most) k posts of the group with the most likes received within the last windowMillis,
+     * ordered by that number of likes descending. Posts without likes in the window are not returned.
+     * The array is the caller's own, the cache keeps its copy.
+     */
+    public int[] top(int group, long windowMillis, int k) {
+        if (k <= 0)
+            return new int[0];
+        long now = System.currentTimeMillis() / bucketMillis;
+        int windowBuckets = (int) Math.min(bucketCount, Math.max(1, (windowMillis + bucketMillis - 1) / bucketMillis));
+        long oldest = now - bucketCount + 1;
+        sweepIfNeeded(now, oldest);
+        Group g = groups.get(group);
+        if (g == null)
+            return new int[0];
+
+        synchronized (g) {
+            long key = ((long) windowBuckets << 32) | k;
+            CachedTop cached = g.cache.get(key);
+            if (cached != null && cached.bucket == now)
+                return cached.postIds.clone();
+
+            long from = now - windowBuckets + 1;
+            // min-heap of {likes in window, post id}, ties broken by the higher post id (more recent post)
+            PriorityQueue<long[]> heap = new PriorityQueue<>(k,
+                    (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            for (Iterator<Map.Entry<Integer, Counter>> it = g.counters.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Counter> entry = it.next();
+                Counter counter = entry.getValue();
+                counter.prune(oldest);
+                if (counter.size == 0) {
+                    // nothing left in the horizon, stop tracking the post
+                    it.remove();
+                    continue;
+                }
+                int likes = counter.sum(from);
+                if (likes == 0)
+                    continue;
+                heap.add(new long[]{likes, entry.getKey()});
+                if (heap.size() > k)
+                    heap.poll();
+            }
+
+            int lastLikes = heap.isEmpty() ? 0 : (int) heap.peek()[0];
+            int[] postIds = new int[heap.size()];
+            for (int i = postIds.length - 1; i >= 0; i--) {
+                postIds[i] = (int) heap.poll()[1];
+            }
+            if (g.cache.size() >= MAX_CACHED_QUERIES)
+                g.cache.clear();
+            g.cache.put(key, new CachedTop(now, windowBuckets, k, postIds, lastLikes));
+            return postIds.clone();
+        }
+    }
+}
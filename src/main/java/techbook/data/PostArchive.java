@@ -0,0 +1,682 @@
+package techbook.data;
+
+import techbook.business.CompactFeed;
+import techbook.business.Feed;
+import techbook.business.Post;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.IntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Local store of archived posts: immutable segment files, each holding a batch of posts sorted by id.
+ *
+ *   header     magic (int), format version (int), post count n (int), block count b (int),
+ *              oldest pdate (long), newest pdate (long)
+ *   directory  n entries of id (int), author (int), group id or 0 (int), likes (int), pdate (long), ascending ids
+ *   blocks     b entries of file offset (long), compressed length (int), raw length (int)
+ *   data       the contents of posts [64 * k, 64 * (k + 1)) deflated together as block k, each one a UTF-8 byte
+ *              count (int) followed by the bytes
+ *
+ * All values are big endian, dates are epoch micros of the timestamp without time zone (see CompactFeed).
+ * The segments are mapped read-only: lookups binary search the directory of the segments whose id range holds the
+ * post. When a segment is mapped, its entries are also indexed by author and by group in memory (two sorted int
+ * pairs per post), so a feed scan only visits the entries of its authors or group in the segments whose date range
+ * can match, and only the blocks of the returned posts are inflated.
+ *
+ * The directory may be shared by several app instances (e.g. a network mount): segments are immutable and appear
+ * under their final name only once complete, and refresh() maps the segments other instances added since.
+ * Writers must be serialized (see PostArchiver), they refresh() before picking the next segment number.
+ *
+ * Segments are never rewritten, so the archived posts of a deleted student are removed with tombstones instead:
+ * removeAuthor() writes the ids of the student's posts to a new tombstone file (a random name, so any instance may
+ * write one), and get() and the feeds leave out every post in a tombstone file, as of the last load or refresh.
+ * contains() still finds them, their ids stay taken.
+ */
+public class PostArchive {
+
+    static final int MAGIC = 0x54425041; // "TBPA"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 24;
+    static final int BLOCK_ENTRY_SIZE = 16;
+    static final int BLOCK_POSTS = 64;
+    private static final String SUFFIX = ".seg";
+    private static final String TOMBSTONE_SUFFIX = ".del";
+    /* tombstones are written without the archiver lock, a temporary one this recent may still be renamed */
+    private static final long STALE_TOMBSTONE_MILLIS = 60 * 1000;
+
+    private final Path directory;
+    /* replaced as a whole when a segment is added, readers work on the list they got */
+    private volatile List<Segment> segments = Collections.emptyList();
+    private long nextSegment = 1;
+    /* the ids of the removed posts in ascending order, replaced as a whole like segments */
+    private volatile int[] removed = new int[0];
+    private final Set<Path> tombstones = new HashSet<>();
+
+    /* Visits the entries of a segment that belong to a feed */
+    private interface Match {
+        void forEach(Segment segment, IntConsumer entry);
+    }
+
+    /* Hits (segment index, entry index, date, likes, id) in feed order: newest first, then by likes */
+    private static final Comparator<long[]> FEED_ORDER =
+            (a, b) -> a[2] != b[2] ? Long.compare(b[2], a[2]) : Long.compare(b[3], a[3]);
+    /* Hits in page order: newest first, then by id descending */
+    private static final Comparator<long[]> PAGE_ORDER =
+            (a, b) -> a[2] != b[2] ? Long.compare(b[2], a[2]) : Long.compare(b[4], a[4]);
+
+    /* The inflated contents of a block: the UTF-8 text of its post i is raw[starts[i], starts[i] + lengths[i]) */
+    private static class Block {
+        final byte[] raw;
+        final int[] starts;
+        final int[] lengths;
+
+        Block(byte[] raw, int[] starts, int[] lengths) {
+            this.raw = raw;
+            this.starts = starts;
+            this.lengths = lengths;
+        }
+
+        String text(int i) {
+            return new String(raw, starts[i], lengths[i], StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Segment {
+        final Path file;
+        final ByteBuffer buffer;
+        final int count;
+        final int blockCount;
+        final long oldest;
+        final long newest;
+        /* the authors of the entries in ascending order, authorEntries[i] being the entry of authors[i] */
+        final int[] authors;
+        final int[] authorEntries;
+        /* same for the group ids of the group posts */
+        final int[] groups;
+        final int[] groupEntries;
+
+        Segment(Path file, ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.count = buffer.getInt(8);
+            this.blockCount = buffer.getInt(12);
+            this.oldest = buffer.getLong(16);
+            this.newest = buffer.getLong(24);
+
+            long[] byAuthor = new long[count];
+            long[] byGroup = new long[count];
+            int grouped = 0;
+            for (int i = 0; i < count; i++) {
+                byAuthor[i] = (long) author(i) << 32 | i;
+                if (groupId(i) != 0)
+                    byGroup[grouped++] = (long) groupId(i) << 32 | i;
+            }
+            Arrays.sort(byAuthor);
+            Arrays.sort(byGroup, 0, grouped);
+            this.authors = new int[count];
+            this.authorEntries = new int[count];
+            split(byAuthor, count, authors, authorEntries);
+            this.groups = new int[grouped];
+            this.groupEntries = new int[grouped];
+            split(byGroup, grouped, groups, groupEntries);
+        }
+
+        /* Splits (key << 32 | entry) values into their keys and entries */
+        private static void split(long[] packed, int length, int[] keys, int[] entries) {
+            for (int i = 0; i < length; i++) {
+                keys[i] = (int) (packed[i] >> 32);
+                entries[i] = (int) packed[i];
+            }
+        }
+
+        void forEachOfAuthor(int author, IntConsumer entry) {
+            forEachOf(authors, authorEntries, author, entry);
+        }
+
+        void forEachOfGroup(int groupId, IntConsumer entry) {
+            forEachOf(groups, groupEntries, groupId, entry);
+        }
+
+        private static void forEachOf(int[] keys, int[] entries, int key, IntConsumer entry) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (int i = low; i < keys.length && keys[i] == key; i++) {
+                entry.accept(entries[i]);
+            }
+        }
+
+        int id(int i) {
+            return buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+        }
+
+        int author(int i) {
+            return buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE + 4);
+        }
+
+        int groupId(int i) {
+            return buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE + 8);
+        }
+
+        int likes(int i) {
+            return buffer.getInt(HEADER_SIZE + i * ENTRY_SIZE + 12);
+        }
+
+        long date(int i) {
+            return buffer.getLong(HEADER_SIZE + i * ENTRY_SIZE + 16);
+        }
+
+        int indexOf(int postId) {
+            if (count == 0 || postId < id(0) || postId > id(count - 1))
+                return -1;
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int id = id(mid);
+                if (id < postId)
+                    low = mid + 1;
+                else if (id > postId)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        /* The contents of the posts of block k, in directory order */
+        Block block(int k) {
+            int position = HEADER_SIZE + count * ENTRY_SIZE + k * BLOCK_ENTRY_SIZE;
+            long offset = buffer.getLong(position);
+            byte[] compressed = new byte[buffer.getInt(position + 8)];
+            byte[] raw = new byte[buffer.getInt(position + 12)];
+            ByteBuffer data = buffer.duplicate();
+            data.position((int) offset);
+            data.get(compressed);
+
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                inflater.inflate(raw);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt archive segment " + file, e);
+            } finally {
+                inflater.end();
+            }
+            ByteBuffer contents = ByteBuffer.wrap(raw);
+            int[] starts = new int[Math.min(BLOCK_POSTS, count - k * BLOCK_POSTS)];
+            int[] lengths = new int[starts.length];
+            for (int i = 0; i < starts.length; i++) {
+                lengths[i] = contents.getInt();
+                starts[i] = contents.position();
+                contents.position(contents.position() + lengths[i]);
+            }
+            return new Block(raw, starts, lengths);
+        }
+
+        Post post(int i, String text) {
+            Post p = new Post();
+            p.setId(id(i));
+            p.setAuthor(author(i));
+            p.setLikes(likes(i));
+            p.setText(text);
+            p.setDate(CompactFeed.toLocalDateTime(date(i)));
+            return p;
+        }
+    }
+
+    public PostArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /* Maps every segment file of the directory, creating the directory if needed */
+    public synchronized void load() throws IOException {
+        Files.createDirectories(directory);
+        segments = Collections.emptyList();
+        removed = new int[0];
+        tombstones.clear();
+        refresh();
+    }
+
+    /*
+     * Maps the segment files and reads the tombstone files added to the directory since the last load or refresh,
+     * by this or another instance
+     */
+    public synchronized void refresh() throws IOException {
+        refreshTombstones();
+        Set<Path> known = new HashSet<>();
+        for (Segment segment : segments) {
+            known.add(segment.file);
+        }
+        List<Segment> loaded = new ArrayList<>(segments);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (known.contains(file))
+                    continue;
+                loaded.add(map(file));
+                String name = file.getFileName().toString();
+                long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                nextSegment = Math.max(nextSegment, number + 1);
+            }
+        }
+        if (loaded.size() == segments.size())
+            return;
+        loaded.sort(Comparator.comparing(s -> s.file.getFileName().toString()));
+        segments = Collections.unmodifiableList(loaded);
+    }
+
+    private void refreshTombstones() throws IOException {
+        List<int[]> added = new ArrayList<>();
+        int count = removed.length;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + TOMBSTONE_SUFFIX)) {
+            for (Path file : files) {
+                if (tombstones.contains(file))
+                    continue;
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+                int[] ids = new int[buffer.remaining() / 4];
+                buffer.asIntBuffer().get(ids);
+                added.add(ids);
+                count += ids.length;
+                tombstones.add(file);
+            }
+        }
+        if (!added.isEmpty())
+            addRemoved(added, count);
+    }
+
+    /* Caller must hold the monitor */
+    private void addRemoved(List<int[]> added, int count) {
+        int[] merged = Arrays.copyOf(removed, count);
+        int n = removed.length;
+        for (int[] ids : added) {
+            System.arraycopy(ids, 0, merged, n, ids.length);
+            n += ids.length;
+        }
+        Arrays.sort(merged);
+        removed = merged;
+    }
+
+    private static boolean isRemoved(int[] removed, int postId) {
+        return removed.length > 0 && Arrays.binarySearch(removed, postId) >= 0;
+    }
+
+    /*
+     * Removes the leftovers of interrupted writes, only while no other instance may be writing segments: every
+     * temporary segment, and the temporary tombstones older than STALE_TOMBSTONE_MILLIS
+     */
+    public synchronized void removeTemporaryFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX + ".tmp")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TOMBSTONE_MILLIS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + TOMBSTONE_SUFFIX + ".tmp")) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < staleBefore)
+                        Files.deleteIfExists(file);
+                } catch (NoSuchFileException e) {
+                    // renamed in the meantime
+                }
+            }
+        }
+    }
+
+    /*
+     * Removes the archived posts of the author (a deleted student) from get() and the feeds, returns the number of
+     * posts removed. The tombstone file is written under a temporary name and renamed once synced, like a segment.
+     */
+    public synchronized int removeAuthor(int author) throws IOException {
+        int[] current = removed;
+        List<Integer> ids = new ArrayList<>();
+        for (Segment segment : segments) {
+            segment.forEachOfAuthor(author, i -> {
+                if (!isRemoved(current, segment.id(i)))
+                    ids.add(segment.id(i));
+            });
+        }
+        if (ids.isEmpty())
+            return 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(ids.size() * 4);
+        int[] added = new int[ids.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = ids.get(i);
+            buffer.putInt(added[i]);
+        }
+        buffer.flip();
+        Path file = directory.resolve(author + "-" + UUID.randomUUID() + TOMBSTONE_SUFFIX);
+        Path tmp = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        tombstones.add(file);
+        addRemoved(Collections.singletonList(added), current.length + added.length);
+        return added.length;
+    }
+
+    private static Segment map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+                throw new IOException("Not an archive segment: " + file);
+            return new Segment(file, buffer);
+        }
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getPostCount() {
+        long posts = 0;
+        for (Segment segment : segments) {
+            posts += segment.count;
+        }
+        return posts;
+    }
+
+    /* The date of the newest archived post, null if the archive is empty */
+    public Timestamp getNewest() {
+        long newest = Long.MIN_VALUE;
+        for (Segment segment : segments) {
+            newest = Math.max(newest, segment.newest);
+        }
+        return newest == Long.MIN_VALUE ? null : Timestamp.valueOf(CompactFeed.toLocalDateTime(newest));
+    }
+
+    public boolean contains(int postId) {
+        for (Segment segment : segments) {
+            if (segment.indexOf(postId) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /* Returns the archived post, null if it is not in the archive or was removed */
+    public Post get(int postId) {
+        if (isRemoved(removed, postId))
+            return null;
+        for (Segment segment : segments) {
+            int i = segment.indexOf(postId);
+            if (i >= 0)
+                return segment.post(i, segment.block(i / BLOCK_POSTS).text(i % BLOCK_POSTS));
+        }
+        return null;
+    }
+
+    /*
+     * The archived posts of the given authors older than before (null for no bound), newest first and then by likes,
+     * at most limit of them (null for all)
+     */
+    public Feed getAuthorsFeed(Collection<Integer> authors, Timestamp before, Integer limit) {
+        List<Segment> current = segments;
+        return toFeed(current, scan(current, authorsMatch(authors), before, null, limit, FEED_ORDER));
+    }
+
+    /* The archived posts of the group, same order and bounds as getAuthorsFeed */
+    public Feed getGroupFeed(int groupId, Timestamp before, Integer limit) {
+        List<Segment> current = segments;
+        return toFeed(current, scan(current, groupMatch(groupId), before, null, limit, FEED_ORDER));
+    }
+
+    /*
+     * A page of the archived posts of the given authors: the posts before the (before, beforeId) cursor, newest first
+     * and then by id descending, at most limit of them. With a null beforeId the page starts strictly before before,
+     * with a null before it starts with the newest post.
+     */
+    public Feed getAuthorsPage(Collection<Integer> authors, Timestamp before, Integer beforeId, Integer limit) {
+        List<Segment> current = segments;
+        return toFeed(current, scan(current, authorsMatch(authors), before, beforeId, limit, PAGE_ORDER));
+    }
+
+    /* A page of the archived posts of the group, same order and bounds as getAuthorsPage */
+    public Feed getGroupPage(int groupId, Timestamp before, Integer beforeId, Integer limit) {
+        List<Segment> current = segments;
+        return toFeed(current, scan(current, groupMatch(groupId), before, beforeId, limit,
+                PAGE_ORDER));
+    }
+
+    /* getAuthorsFeed as a CompactFeed, the texts are decoded from the blocks without a Post or String per post */
+    public CompactFeed getCompactAuthorsFeed(Collection<Integer> authors, Timestamp before, Integer limit) {
+        List<Segment> current = segments;
+        return toCompactFeed(current, scan(current, authorsMatch(authors), before, null, limit, FEED_ORDER));
+    }
+
+    /* getGroupFeed as a CompactFeed */
+    public CompactFeed getCompactGroupFeed(int groupId, Timestamp before, Integer limit) {
+        List<Segment> current = segments;
+        return toCompactFeed(current, scan(current, groupMatch(groupId), before, null, limit,
+                FEED_ORDER));
+    }
+
+    private static Match authorsMatch(Collection<Integer> authors) {
+        Set<Integer> authorSet = new HashSet<>(authors);
+        return (segment, entry) -> {
+            for (Integer author : authorSet) {
+                if (author != null)
+                    segment.forEachOfAuthor(author, entry);
+            }
+        };
+    }
+
+    private static Match groupMatch(int groupId) {
+        return (segment, entry) -> segment.forEachOfGroup(groupId, entry);
+    }
+
+    /*
+     * The matching posts before the (before, beforeId) cursor that were not removed, as (segment index, entry index,
+     * date, likes, id) in the given order
+     */
+    private List<long[]> scan(List<Segment> current, Match match, Timestamp before, Integer beforeId,
+                              Integer limit, Comparator<long[]> order) {
+        int[] skipped = removed;
+        long bound = before == null ? Long.MAX_VALUE : CompactFeed.toMicros(before.toLocalDateTime());
+        // posts of the bound's date are taken only below beforeId
+        long boundId = before == null || beforeId == null ? Long.MIN_VALUE : beforeId;
+        List<long[]> hits = new ArrayList<>();
+        for (int s = 0; s < current.size(); s++) {
+            Segment segment = current.get(s);
+            if (segment.oldest > bound)
+                continue;
+            long index = s;
+            match.forEach(segment, i -> {
+                long date = segment.date(i);
+                if ((date < bound || (date == bound && segment.id(i) < boundId)) && !isRemoved(skipped, segment.id(i)))
+                    hits.add(new long[]{index, i, date, segment.likes(i), segment.id(i)});
+            });
+        }
+        hits.sort(order);
+        if (limit != null && hits.size() > limit)
+            return hits.subList(0, Math.max(limit, 0));
+        return hits;
+    }
+
+    private static Feed toFeed(List<Segment> current, List<long[]> hits) {
+        Feed feed = new Feed();
+        Map<Long, Block> blocks = new HashMap<>();
+        for (long[] hit : hits) {
+            Segment segment = current.get((int) hit[0]);
+            int i = (int) hit[1];
+            Block block = blocks.computeIfAbsent(hit[0] << 32 | (i / BLOCK_POSTS),
+                    key -> segment.block(i / BLOCK_POSTS));
+            feed.add(segment.post(i, block.text(i % BLOCK_POSTS)));
+        }
+        return feed;
+    }
+
+    private static CompactFeed toCompactFeed(List<Segment> current, List<long[]> hits) {
+        CompactFeed feed = new CompactFeed(hits.size());
+        Map<Long, Block> blocks = new HashMap<>();
+        for (long[] hit : hits) {
+            Segment segment = current.get((int) hit[0]);
+            int i = (int) hit[1];
+            Block block = blocks.computeIfAbsent(hit[0] << 32 | (i / BLOCK_POSTS),
+                    key -> segment.block(i / BLOCK_POSTS));
+            int j = i % BLOCK_POSTS;
+            feed.add(segment.id(i), segment.author(i), segment.likes(i), block.raw, block.starts[j], block.lengths[j],
+                    segment.date(i));
+        }
+        return feed;
+    }
+
+    /*
+     * Writes the posts as a new segment and maps it. groupIds[i] is the group of posts[i], null for personal posts.
+     * The file is written under a temporary name and renamed once synced, so a segment is either complete or absent.
+     */
+    public synchronized void write(List<Post> posts, List<Integer> groupIds) throws IOException {
+        if (posts.isEmpty())
+            return;
+        refresh(); // the numbers other instances took
+        Integer[] order = new Integer[posts.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> posts.get(i).getId()));
+
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        for (Post p : posts) {
+            long date = CompactFeed.toMicros(p.getDate());
+            oldest = Math.min(oldest, date);
+            newest = Math.max(newest, date);
+        }
+
+        int count = posts.size();
+        int blockCount = (count + BLOCK_POSTS - 1) / BLOCK_POSTS;
+        List<byte[]> blocks = new ArrayList<>(blockCount);
+        int[] rawLengths = new int[blockCount];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            for (int k = 0; k < blockCount; k++) {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(raw);
+                for (int i = k * BLOCK_POSTS; i < Math.min(count, (k + 1) * BLOCK_POSTS); i++) {
+                    byte[] text = posts.get(order[i]).getText().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+                byte[] input = raw.toByteArray();
+                rawLengths[k] = input.length;
+                deflater.reset();
+                deflater.setInput(input);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    compressed.write(chunk, 0, deflater.deflate(chunk));
+                }
+                blocks.add(compressed.toByteArray());
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(count);
+        out.writeInt(blockCount);
+        out.writeLong(oldest);
+        out.writeLong(newest);
+        for (Integer i : order) {
+            Post p = posts.get(i);
+            Integer groupId = groupIds.get(i);
+            out.writeInt(p.getId());
+            out.writeInt(p.getAuthor());
+            out.writeInt(groupId == null ? 0 : groupId);
+            out.writeInt(p.getLikes());
+            out.writeLong(CompactFeed.toMicros(p.getDate()));
+        }
+        long offset = HEADER_SIZE + (long) count * ENTRY_SIZE + (long) blockCount * BLOCK_ENTRY_SIZE;
+        for (int k = 0; k < blockCount; k++) {
+            out.writeLong(offset);
+            out.writeInt(blocks.get(k).length);
+            out.writeInt(rawLengths[k]);
+            offset += blocks.get(k).length;
+        }
+        for (byte[] block : blocks) {
+            out.write(block);
+        }
+        out.flush();
+
+        Path file = directory.resolve(String.format("%016d", nextSegment) + SUFFIX);
+        Path tmp = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        nextSegment++;
+
+        List<Segment> updated = new ArrayList<>(segments);
+        updated.add(map(file));
+        segments = Collections.unmodifiableList(updated);
+    }
+
+    /* Removes every segment and tombstone, for clearTables */
+    public synchronized void clear() throws IOException {
+        List<Segment> cleared = segments;
+        segments = Collections.emptyList();
+        removed = new int[0];
+        for (Segment segment : cleared) {
+            Files.deleteIfExists(segment.file);
+        }
+        for (Path file : tombstones) {
+            Files.deleteIfExists(file);
+        }
+        tombstones.clear();
+    }
+}
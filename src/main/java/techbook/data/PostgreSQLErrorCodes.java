@@ -5,7 +5,8 @@ public enum PostgreSQLErrorCodes {
     NOT_NULL_VIOLATION (23502),
     FOREIGN_KEY_VIOLATION(23503),
     UNIQUE_VIOLATION(23505),
-    CHECK_VIOLATION(23514);
+    CHECK_VIOLATION(23514),
+    TOO_MANY_CONNECTIONS(53300);
 
 
     private final int errorCode;
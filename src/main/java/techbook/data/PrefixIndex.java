@@ -0,0 +1,329 @@
+package techbook.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * In-memory case insensitive prefix index over (name, id) entries, used for type-ahead.
+ * The bulk of the entries live in sorted parallel arrays (one String and one int per entry) and a prefix
+ * lookup is a binary search followed by a short scan. Single adds go to a small sorted delta and single removes
+ * only flag the array position, both are merged back into the arrays once they grow past a fraction of the index.
+ *
+ * Loading takes a snapshot of the source while adds and removes keep coming: between beginLoad() and load() every
+ * change is recorded, and replayed on top of the snapshot. Adds and removes are idempotent, so a change the
+ * snapshot already contains is replayed harmlessly.
+ */
+public class PrefixIndex {
+
+    private static final int MIN_MERGE_THRESHOLD = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private String[] keys = new String[0];
+    private String[] names = new String[0];
+    private int[] ids = new int[0];
+    /* positions of the arrays removed since the last merge */
+    private final BitSet removed = new BitSet();
+    private int removedCount = 0;
+    private final NavigableSet<Entry> added = new TreeSet<>();
+    /* changes made while loads are running, in order */
+    private final List<Change> changes = new ArrayList<>();
+    private int loading = 0;
+    private volatile boolean loaded = false;
+
+    public static class Entry implements Comparable<Entry> {
+        final String key;
+        final String name;
+        final int id;
+
+        Entry(String name, int id) {
+            this(normalize(name), name, id);
+        }
+
+        private Entry(String key, String name, int id) {
+            this.key = key;
+            this.name = name;
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = key.compareTo(o.key);
+            return c != 0 ? c : Integer.compare(id, o.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry entry = (Entry) o;
+            return id == entry.id && key.equals(entry.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + id;
+        }
+    }
+
+    private static class Change {
+        final Entry entry;
+        final boolean add;
+
+        Change(Entry entry, boolean add) {
+            this.entry = entry;
+            this.add = add;
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /* Starts recording the changes, call it before taking the snapshot passed to load() */
+    public void beginLoad() {
+        lock.writeLock().lock();
+        try {
+            loading++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* Ends a beginLoad() whose snapshot could not be taken */
+    public void cancelLoad() {
+        lock.writeLock().lock();
+        try {
+            endLoad();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Replaces the whole content of the index with the given names and ids (names.get(i) belongs to ids.get(i)),
+     * then replays the changes recorded since beginLoad()
+     */
+    public void load(List<String> newNames, List<Integer> newIds) {
+        Entry[] entries = new Entry[newNames.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(newNames.get(i), newIds.get(i));
+        }
+        Arrays.sort(entries);
+        lock.writeLock().lock();
+        try {
+            setEntries(entries, entries.length);
+            added.clear();
+            for (Change change : changes) {
+                apply(change.entry, change.add);
+            }
+            endLoad();
+            loaded = true;
+            mergeIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            setEntries(new Entry[0], 0);
+            added.clear();
+            changes.clear();
+            loaded = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(String name, int id) {
+        change(name, id, true);
+    }
+
+    public void remove(String name, int id) {
+        change(name, id, false);
+    }
+
+    /* Returns up to limit entries whose name starts with prefix (ignoring case), ordered by name */
+    public List<Entry> lookup(String prefix, int limit) {
+        String key = normalize(prefix);
+        List<Entry> result = new ArrayList<>(Math.min(limit, 64));
+        lock.readLock().lock();
+        try {
+            int i = lowerBound(key, Integer.MIN_VALUE);
+            Iterator<Entry> delta = added.tailSet(new Entry(key, prefix, Integer.MIN_VALUE), true).iterator();
+            Entry next = nextMatch(delta, key);
+            while (result.size() < limit) {
+                boolean fromArray = i < keys.length && keys[i].startsWith(key);
+                if (!fromArray && next == null)
+                    break;
+                if (!fromArray || (next != null && compare(next, i) < 0)) {
+                    result.add(next);
+                    next = nextMatch(delta, key);
+                } else {
+                    if (!removed.get(i))
+                        result.add(new Entry(keys[i], names[i], ids[i]));
+                    i++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return keys.length - removedCount + added.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void change(String name, int id, boolean add) {
+        if (name == null)
+            return;
+        Entry entry = new Entry(name, id);
+        lock.writeLock().lock();
+        try {
+            if (loading > 0)
+                changes.add(new Change(entry, add));
+            // before the first load there is nothing to change, the load reads the change from the source
+            if (loaded) {
+                apply(entry, add);
+                mergeIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* Caller must hold the write lock */
+    private void apply(Entry entry, boolean add) {
+        int i = lowerBound(entry.key, entry.id);
+        boolean inArrays = i < keys.length && compare(entry, i) == 0;
+        if (add) {
+            if (!inArrays) {
+                added.add(entry);
+            } else if (removed.get(i)) {
+                removed.clear(i);
+                removedCount--;
+            }
+        } else {
+            if (!inArrays) {
+                added.remove(entry);
+            } else if (!removed.get(i)) {
+                removed.set(i);
+                removedCount++;
+            }
+        }
+    }
+
+    /* Caller must hold the write lock */
+    private void endLoad() {
+        if (loading > 0)
+            loading--;
+        if (loading == 0)
+            changes.clear();
+    }
+
+    private static Entry nextMatch(Iterator<Entry> delta, String key) {
+        if (!delta.hasNext())
+            return null;
+        Entry entry = delta.next();
+        return entry.key.startsWith(key) ? entry : null;
+    }
+
+    /* Compares the entry with the i'th entry of the arrays */
+    private int compare(Entry entry, int i) {
+        int c = entry.key.compareTo(keys[i]);
+        return c != 0 ? c : Integer.compare(entry.id, ids[i]);
+    }
+
+    /* The first position of the arrays whose (key, id) is not below the given one */
+    private int lowerBound(String key, int id) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int c = keys[mid].compareTo(key);
+            if (c < 0 || (c == 0 && ids[mid] < id))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /* Caller must hold the write lock */
+    private void mergeIfNeeded() {
+        if (added.size() + removedCount < Math.max(MIN_MERGE_THRESHOLD, keys.length / 8))
+            return;
+        int count = keys.length - removedCount + added.size();
+        String[] mergedKeys = new String[count];
+        String[] mergedNames = new String[count];
+        int[] mergedIds = new int[count];
+        int n = 0;
+        Iterator<Entry> delta = added.iterator();
+        Entry next = delta.hasNext() ? delta.next() : null;
+        for (int i = 0; i < keys.length; i++) {
+            while (next != null && compare(next, i) < 0) {
+                mergedKeys[n] = next.key;
+                mergedNames[n] = next.name;
+                mergedIds[n++] = next.id;
+                next = delta.hasNext() ? delta.next() : null;
+            }
+            if (!removed.get(i)) {
+                mergedKeys[n] = keys[i];
+                mergedNames[n] = names[i];
+                mergedIds[n++] = ids[i];
+            }
+        }
+        while (next != null) {
+            mergedKeys[n] = next.key;
+            mergedNames[n] = next.name;
+            mergedIds[n++] = next.id;
+            next = delta.hasNext() ? delta.next() : null;
+        }
+        keys = mergedKeys;
+        names = mergedNames;
+        ids = mergedIds;
+        removed.clear();
+        removedCount = 0;
+        added.clear();
+    }
+
+    private void setEntries(Entry[] entries, int count) {
+        keys = new String[count];
+        names = new String[count];
+        ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = entries[i].key;
+            names[i] = entries[i].name;
+            ids[i] = entries[i].id;
+        }
+        removed.clear();
+        removedCount = 0;
+    }
+
+    static String normalize(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,96 @@
+package techbook.data;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/*
+ * A read replica endpoint together with the result of its last health check.
+ * DBConnector runs the checks on a background thread, so routing a read never connects or waits:
+ * a replica is unusable until its first check passes, and after a failed connection until the next one does.
+ */
+class Replica {
+
+    /* Replay lag in seconds; a server that is not in recovery (e.g. a plain second instance in tests) has no lag */
+    private static final String HEALTH_QUERY = "SELECT CASE \n" +
+            "    WHEN NOT pg_is_in_recovery() THEN 0 \n" +
+            "    WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 \n" +
+            "    ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) \n" +
+            "END";
+
+    private final String url;
+    private volatile boolean healthy = false;
+    private volatile double lagSeconds = 0;
+    private volatile long lastCheck = 0;
+
+    Replica(String url) {
+        this.url = url;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    double getLagSeconds() {
+        return lagSeconds;
+    }
+
+    /* Time (millis) of the last health check, 0 before the first one */
+    long getLastCheck() {
+        return lastCheck;
+    }
+
+    /* The result of the last health check, no round trip */
+    boolean isUsable(double maxLagSeconds) {
+        return healthy && lagSeconds <= maxLagSeconds;
+    }
+
+    /* A connection to the replica failed, it is skipped until the next health check passes */
+    void markFailed() {
+        healthy = false;
+    }
+
+    Connection connect(Properties props) throws SQLException {
+        return DriverManager.getConnection(url, props);
+    }
+
+    /* Runs the health check query, called by the background checker */
+    void check(Properties props) {
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        try {
+            connection = connect(props);
+            pstmt = connection.prepareStatement(HEALTH_QUERY);
+            ResultSet results = pstmt.executeQuery();
+            results.next();
+            lagSeconds = results.getDouble(1);
+            healthy = true;
+            results.close();
+        } catch (SQLException | RuntimeException e) { // a check that throws must not stop the next ones
+            healthy = false;
+        } finally {
+            lastCheck = System.currentTimeMillis();
+            try {
+                if (pstmt != null)
+                    pstmt.close();
+                if (connection != null)
+                    connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Replica{");
+        sb.append("url='").append(url).append('\'');
+        sb.append(", healthy=").append(healthy);
+        sb.append(", lagSeconds=").append(lagSeconds);
+        sb.append('}');
+        return sb.toString();
+    }
+}
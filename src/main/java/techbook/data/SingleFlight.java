@@ -0,0 +1,241 @@
+package techbook.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * Request coalescing for the read operations of Solution.
+ * Concurrent calls of the same operation with equal arguments share one execution: the first caller (the leader)
+ * runs it, the others wait for its result instead of running the same queries again. With
+ * coalesce.reuseMillis > 0 a finished result is also handed to the calls that arrive within that window, so a burst
+ * of requests for a hot group costs one query. Every caller that shares a result gets a copy of it, made by the
+ * operation's copy function, so callers can't see each other's changes. The leader keeps the original only when
+ * the result is not kept for reuse. The result of an execution that admission control refused a connection to is
+ * not reused, and the callers that shared it see the rejection as well (AdmissionControl.wasRejected).
+ *
+ * Reads on behalf of a student go through executeFor(): while the student has a recent write (see
+ * DBConnector.hasRecentWrite) the call runs on its own, so it reads the primary and sees the write instead of a
+ * result shared by others or computed before the write.
+ *
+ * An operation runs its body (instead of coalescing again) when isExecuting() is true, that is inside a flight:
+ * Solution's read methods start with
+ *     if (!SingleFlight.isExecuting()) return SingleFlight.execute("op", () -> op(args), copy, args);
+ * and the nested reads of a flight run directly.
+ *
+ * coalesce.enabled      false runs every call on its own
+ * coalesce.reuseMillis  how long a finished result is reused, 0 for in-flight sharing only
+ */
+public class SingleFlight {
+
+    /* Finished flights are swept once there are this many */
+    private static final int SWEEP_THRESHOLD = 4096;
+
+    private static volatile boolean enabled = true;
+    private static volatile long reuseMillis = 0;
+    private static volatile boolean configured = false;
+
+    private static final ConcurrentHashMap<List<Object>, Flight> flights = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Metrics> metrics = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Boolean> executing = ThreadLocal.withInitial(() -> false);
+
+    private static class Flight {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        volatile long expiresAt = Long.MAX_VALUE;
+        /* admission control refused a connection to the execution, its result is not the answer */
+        volatile boolean rejected = false;
+
+        boolean isExpired(long now) {
+            return result.isDone() && now >= expiresAt;
+        }
+    }
+
+    /* Per operation counters. Every call is either the execution, joins one in flight or reuses a finished one */
+    public static class Metrics {
+
+        private long calls = 0;
+        private long executions = 0;
+        private long coalesced = 0;
+        private long reused = 0;
+
+        private synchronized void count(boolean leader, boolean done) {
+            calls++;
+            if (leader) {
+                executions++;
+            } else if (done) {
+                reused++;
+            } else {
+                coalesced++;
+            }
+        }
+
+        public synchronized long getCalls() {
+            return calls;
+        }
+
+        public synchronized long getExecutions() {
+            return executions;
+        }
+
+        /* Calls that waited for an execution in flight */
+        public synchronized long getCoalesced() {
+            return coalesced;
+        }
+
+        /* Calls served by a finished execution within the reuse window */
+        public synchronized long getReused() {
+            return reused;
+        }
+
+        /* The fraction of the calls that did not execute, 0 when nothing was shared */
+        public synchronized double getCoalescingRatio() {
+            return calls == 0 ? 0 : (double) (coalesced + reused) / calls;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder sb = new StringBuilder("Metrics{");
+            sb.append("calls=").append(calls);
+            sb.append(", executions=").append(executions);
+            sb.append(", coalesced=").append(coalesced);
+            sb.append(", reused=").append(reused);
+            sb.append(", coalescingRatio=").append(String.format("%.3f", getCoalescingRatio()));
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /* Reads the coalesce.* settings, called once the configuration is loaded */
+    static void configure(Properties props) {
+        enabled = Boolean.parseBoolean(props.getProperty("coalesce.enabled", "true"));
+        reuseMillis = Long.parseLong(props.getProperty("coalesce.reuseMillis", "0"));
+        configured = true;
+    }
+
+    /* True while the current thread runs the body of a flight */
+    public static boolean isExecuting() {
+        return executing.get();
+    }
+
+    /*
+     * Runs the operation, or shares the result of an equal one in flight (or finished within the reuse window).
+     * Exceptions of the execution are thrown to every caller sharing it.
+     */
+    public static <T> T execute(String operation, Supplier<T> body, UnaryOperator<T> copy, Object... args) {
+        if (!configured)
+            DBConnector.getProperties(); // loads the configuration, which calls configure()
+        if (!enabled)
+            return run(body);
+
+        List<Object> key = new ArrayList<>(args.length + 1);
+        key.add(operation);
+        key.addAll(Arrays.asList(args));
+        Metrics counters = metrics.computeIfAbsent(operation, op -> new Metrics());
+        while (true) {
+            Flight mine = new Flight();
+            Flight flight = flights.putIfAbsent(key, mine);
+            if (flight == null) {
+                counters.count(true, false);
+                return lead(key, mine, body, copy);
+            }
+            if (flight.isExpired(System.currentTimeMillis())) {
+                flights.remove(key, flight);
+                continue;
+            }
+            counters.count(false, flight.result.isDone());
+            T value = join(flight);
+            if (flight.rejected)
+                AdmissionControl.markRejected();
+            return copy.apply(value);
+        }
+    }
+
+    /*
+     * execute() for a read on behalf of the student, which runs on its own while the student has a recent write
+     */
+    public static <T> T executeFor(Integer student, String operation, Supplier<T> body, UnaryOperator<T> copy,
+                                   Object... args) {
+        if (DBConnector.hasRecentWrite(student))
+            return run(body);
+        return execute(operation, body, copy, args);
+    }
+
+    private static <T> T lead(List<Object> key, Flight flight, Supplier<T> body, UnaryOperator<T> copy) {
+        T value;
+        boolean rejectedBefore = AdmissionControl.wasRejected();
+        AdmissionControl.clearRejected();
+        try {
+            value = run(body);
+            flight.rejected = AdmissionControl.wasRejected();
+        } catch (RuntimeException | Error e) {
+            flights.remove(key, flight);
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (rejectedBefore)
+                AdmissionControl.markRejected();
+        }
+        if (reuseMillis > 0 && !flight.rejected) {
+            flight.expiresAt = System.currentTimeMillis() + reuseMillis;
+            flight.result.complete(value);
+            if (flights.size() > SWEEP_THRESHOLD)
+                sweep();
+            // the result is handed out until it expires, the leader's caller gets its own copy as well
+            return copy.apply(value);
+        } else {
+            flights.remove(key, flight);
+            flight.result.complete(value);
+        }
+        return value;
+    }
+
+    private static <T> T run(Supplier<T> body) {
+        boolean outer = executing.get();
+        executing.set(true);
+        try {
+            return body.get();
+        } finally {
+            executing.set(outer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T join(Flight flight) {
+        try {
+            return (T) flight.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        flights.entrySet().removeIf(entry -> entry.getValue().isExpired(now));
+    }
+
+    /* operation -> its counters, by operation name */
+    public static Map<String, Metrics> getMetrics() {
+        return new TreeMap<>(metrics);
+    }
+
+    public static void resetMetrics() {
+        metrics.clear();
+    }
+
+    /* Drops the finished results, for when the data changed under them (e.g. clearTables) */
+    public static void forgetResults() {
+        flights.entrySet().removeIf(entry -> entry.getValue().result.isDone());
+    }
+}
@@ -0,0 +1,363 @@
+package techbook.data;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/*
+ * Slow statement log.
+ * Connections handed out by DBConnector are wrapped so every statement is timed, together with its bind values and
+ * the number of rows it returned or changed. A statement slower than the threshold of its operation (the techbook
+ * method that opened the connection, e.g. "getStudentFeed") is written to rotating files in slowlog.directory.
+ * A sample of the slow queries (SELECT/WITH only) is then explained and the plan is logged under the same entry number.
+ * The explain runs on the connection that ran the query, so the plan comes from the same server (the primary or a
+ * replica): when the caller closes it, a background thread takes it over, runs the explains and only then closes it.
+ * Read-only queries are re-run with EXPLAIN (ANALYZE, BUFFERS) in a rolled back transaction, under the analytical
+ * statement timeout; a WITH that may insert, update or delete is only planned, never executed a second time.
+ *
+ * slowlog.directory           where slow-queries.N.log files go, logging is off when empty
+ * slowlog.thresholdMillis     default threshold, slowlog.threshold.<operation> overrides it per operation
+ * slowlog.explainSampleRate   fraction of the slow queries to explain, 0 to 1
+ * slowlog.redactBinds         log the types of the bind values instead of the values
+ * slowlog.maxFileBytes, slowlog.maxFiles   rotation
+ */
+public class SlowQueryLog {
+
+    private static final int MAX_BIND_LENGTH = 100;
+    /* a connection waiting to be explained on keeps its admission slot, so only a few may wait */
+    private static final int MAX_PENDING_EXPLAINS = 4;
+    private static final Pattern DATA_MODIFYING = Pattern.compile("\\b(INSERT|UPDATE|DELETE)\\b");
+
+    private static volatile boolean enabled = false;
+    private static Properties settings = null;
+    private static long defaultThresholdMillis = 200;
+    private static double explainSampleRate = 0.1;
+    private static boolean redactBinds = true;
+
+    private static final Logger log = Logger.getLogger("techbook.slowlog");
+    private static final AtomicLong entries = new AtomicLong();
+    private static final ThreadPoolExecutor explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_EXPLAINS), r -> {
+                Thread t = new Thread(r, "slow-query-explainer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /* Reads the slowlog.* settings and opens the log files, called once the configuration is loaded */
+    static synchronized void configure(Properties props) {
+        String directory = props.getProperty("slowlog.directory", "").trim();
+        if (directory.isEmpty())
+            return;
+        try {
+            FileHandler handler = new FileHandler(directory + "/slow-queries.%g.log",
+                    Integer.parseInt(props.getProperty("slowlog.maxFileBytes", String.valueOf(10 * 1024 * 1024))),
+                    Integer.parseInt(props.getProperty("slowlog.maxFiles", "5")), true);
+            handler.setFormatter(new Formatter() {
+                @Override
+                public String format(LogRecord record) {
+                    return record.getMessage() + System.lineSeparator();
+                }
+            });
+            log.setUseParentHandlers(false);
+            log.addHandler(handler);
+            log.setLevel(Level.INFO);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        settings = props;
+        defaultThresholdMillis = Long.parseLong(props.getProperty("slowlog.thresholdMillis", "200"));
+        explainSampleRate = Double.parseDouble(props.getProperty("slowlog.explainSampleRate", "0.1"));
+        redactBinds = Boolean.parseBoolean(props.getProperty("slowlog.redactBinds", "true"));
+        enabled = true;
+    }
+
+    /* Wraps the connection so its statements are timed, returns it as is when the log is off */
+    static Connection wrap(Connection connection) {
+        if (!enabled || connection == null)
+            return connection;
+        String operation = DBConnector.callerOperation();
+        long threshold = Long.parseLong(settings.getProperty("slowlog.threshold." + operation,
+                String.valueOf(defaultThresholdMillis)));
+        List<Sample> samples = new ArrayList<>();
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        if (closed.compareAndSet(false, true))
+                            close(connection, samples);
+                        return null;
+                    }
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof PreparedStatement) {
+                        return timed((Statement) result, PreparedStatement.class, operation, threshold,
+                                (String) args[0], samples);
+                    } else if (result instanceof Statement) {
+                        return timed((Statement) result, Statement.class, operation, threshold, null, samples);
+                    }
+                    return result;
+                });
+    }
+
+    /* A sampled slow query, explained on its connection once the caller closed it */
+    private static class Sample {
+        final long entry;
+        final String sql;
+        final Object[] binds;
+
+        Sample(long entry, String sql, Object[] binds) {
+            this.entry = entry;
+            this.sql = sql;
+            this.binds = binds;
+        }
+    }
+
+    /* One execution of a statement, logged when the statement is executed again or closed */
+    private static class Execution {
+        final String operation;
+        final long threshold;
+        /* the samples of the statement's connection */
+        final List<Sample> samples;
+        String sql;
+        Object[] binds = new Object[8];
+        /* the highest parameter index bound, trailing NULLs included */
+        int bindCount = 0;
+        long nanos = -1;
+        long rows = 0;
+
+        Execution(String operation, long threshold, String sql, List<Sample> samples) {
+            this.operation = operation;
+            this.threshold = threshold;
+            this.sql = sql;
+            this.samples = samples;
+        }
+
+        void bind(int index, Object value) {
+            if (index > binds.length)
+                binds = Arrays.copyOf(binds, Math.max(index, binds.length * 2));
+            binds[index - 1] = value;
+            bindCount = Math.max(bindCount, index);
+        }
+
+        void finish() {
+            if (nanos < 0)
+                return;
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            if (millis >= threshold)
+                record(this, millis);
+            nanos = -1;
+            rows = 0;
+        }
+    }
+
+    /* A parameter bound with setNull, keeps its type for the explain */
+    private static class NullBind {
+        final int sqlType;
+
+        NullBind(int sqlType) {
+            this.sqlType = sqlType;
+        }
+    }
+
+    private static Statement timed(Statement statement, Class<? extends Statement> type, String operation,
+                                   long threshold, String sql, List<Sample> samples) {
+        Execution execution = new Execution(operation, threshold, sql, samples);
+        return (Statement) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (type == PreparedStatement.class && name.startsWith("set") && args != null
+                            && args.length >= 2 && args[0] instanceof Integer) {
+                        execution.bind((Integer) args[0],
+                                name.equals("setNull") ? new NullBind((Integer) args[1]) : args[1]);
+                    } else if (name.equals("clearParameters")) {
+                        Arrays.fill(execution.binds, null);
+                        execution.bindCount = 0;
+                    } else if (name.startsWith("execute")) {
+                        execution.finish();
+                        if (args != null && args.length > 0 && args[0] instanceof String)
+                            execution.sql = (String) args[0];
+                        long start = System.nanoTime();
+                        Object result = invoke(statement, method, args);
+                        execution.nanos = System.nanoTime() - start;
+                        if (result instanceof Integer) {
+                            execution.rows = (Integer) result;
+                        } else if (result instanceof Long) {
+                            execution.rows = (Long) result;
+                        } else if (result instanceof ResultSet) {
+                            return counted((ResultSet) result, execution);
+                        }
+                        return result;
+                    } else if (name.equals("getResultSet")) {
+                        Object result = invoke(statement, method, args);
+                        return result == null ? null : counted((ResultSet) result, execution);
+                    } else if (name.equals("close")) {
+                        execution.finish();
+                    }
+                    return invoke(statement, method, args);
+                });
+    }
+
+    private static ResultSet counted(ResultSet results, Execution execution) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(results, method, args);
+                    if (method.getName().equals("next") && Boolean.TRUE.equals(result))
+                        execution.rows++;
+                    return result;
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void record(Execution execution, long millis) {
+        long entry = entries.incrementAndGet();
+        String sql = execution.sql == null ? "" : execution.sql;
+        Object[] binds = Arrays.copyOf(execution.binds, execution.bindCount);
+        StringBuilder sb = new StringBuilder();
+        sb.append("#").append(entry).append(' ').append(Instant.now());
+        sb.append(" operation=").append(execution.operation);
+        sb.append(" duration_ms=").append(millis);
+        sb.append(" threshold_ms=").append(execution.threshold);
+        sb.append(" rows=").append(execution.rows).append(System.lineSeparator());
+        sb.append("  sql: ").append(sql.replaceAll("\\s+", " ").trim()).append(System.lineSeparator());
+        sb.append("  binds:");
+        for (int i = 0; i < binds.length; i++) {
+            sb.append(" $").append(i + 1).append('=').append(describe(binds[i]));
+        }
+        log.info(sb.toString());
+
+        if (isQuery(sql) && ThreadLocalRandom.current().nextDouble() < explainSampleRate) {
+            synchronized (execution.samples) {
+                execution.samples.add(new Sample(entry, sql, binds));
+            }
+        }
+    }
+
+    /* Closes the caller's connection, or hands it to the explainer if queries run on it are to be explained */
+    private static void close(Connection connection, List<Sample> samples) throws SQLException {
+        List<Sample> pending;
+        synchronized (samples) {
+            pending = new ArrayList<>(samples);
+        }
+        if (pending.isEmpty()) {
+            connection.close();
+            return;
+        }
+        try {
+            explainer.execute(() -> explain(connection, pending));
+        } catch (RejectedExecutionException e) {
+            // explains are best effort, drop them when the explainer is behind
+            connection.close();
+        }
+    }
+
+    private static String describe(Object value) {
+        if (value == null || value instanceof NullBind)
+            return "NULL";
+        if (redactBinds)
+            return "<" + value.getClass().getSimpleName() + ">";
+        String text = value.toString();
+        return text.length() > MAX_BIND_LENGTH ? text.substring(0, MAX_BIND_LENGTH) + "..." : "'" + text + "'";
+    }
+
+    private static boolean isQuery(String sql) {
+        String start = sql.trim().toUpperCase();
+        return start.startsWith("SELECT") || start.startsWith("WITH");
+    }
+
+    /* A WITH whose parts may write (e.g. WITH deleted AS (DELETE ... RETURNING ...) SELECT ...) */
+    private static boolean mayModify(String sql) {
+        return !sql.trim().toUpperCase().startsWith("SELECT") && DATA_MODIFYING.matcher(sql.toUpperCase()).find();
+    }
+
+    /*
+     * Explains the samples on the connection they ran on, then closes it. The caller's open transaction, if any, is
+     * rolled back first, as closing the connection would have done.
+     */
+    private static void explain(Connection connection, List<Sample> samples) {
+        try {
+            if (!connection.getAutoCommit())
+                connection.rollback();
+            AdmissionControl.setStatementTimeout(connection, AdmissionControl.ANALYTICAL.getStatementTimeoutMillis());
+            connection.setAutoCommit(false);
+            for (Sample sample : samples) {
+                log.info(explain(connection, sample));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Re-runs the query with EXPLAIN ANALYZE in a transaction that is rolled back, or only plans it if it may modify
+     * data: its writes would be rolled back, but would still take row locks and advance sequences
+     */
+    private static String explain(Connection connection, Sample sample) {
+        PreparedStatement pstmt = null;
+        StringBuilder sb = new StringBuilder();
+        sb.append("#").append(sample.entry).append(" plan:").append(System.lineSeparator());
+        try {
+            pstmt = connection.prepareStatement(
+                    (mayModify(sample.sql) ? "EXPLAIN " : "EXPLAIN (ANALYZE, BUFFERS) ") + sample.sql);
+            for (int i = 0; i < sample.binds.length; i++) {
+                if (sample.binds[i] instanceof NullBind) {
+                    pstmt.setNull(i + 1, ((NullBind) sample.binds[i]).sqlType);
+                } else {
+                    pstmt.setObject(i + 1, sample.binds[i]);
+                }
+            }
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                sb.append("  ").append(results.getString(1)).append(System.lineSeparator());
+            }
+            results.close();
+        } catch (SQLException e) {
+            sb.append("  explain failed: ").append(e.getMessage()).append(System.lineSeparator());
+        } finally {
+            try {
+                connection.rollback();
+                if (pstmt != null)
+                    pstmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return sb.toString().trim();
+    }
+}
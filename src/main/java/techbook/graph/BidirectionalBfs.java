@@ -0,0 +1,130 @@
+package techbook.graph;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Shortest path between two students in the friendship graph.
+ * Two BFS trees grow from both ends, and each step expands whichever frontier is smaller, a whole level at a time.
+ * The first student reached by both trees lies on a shortest path. This visits about 2 * b^(d/2) students instead
+ * of b^d for a one sided BFS, and a level costs one call to the adjacency source: one query against the database,
+ * or plain lookups on a FriendGraph.
+ */
+public class BidirectionalBfs {
+
+    /* Source of adjacency lists, asked for a whole frontier at once */
+    public interface Adjacency {
+        /* Friends of each of the given students, students without friends may be left out */
+        Map<Integer, int[]> neighbours(List<Integer> students) throws SQLException;
+    }
+
+    /* Adjacency lists read from FriendPairs, one query per frontier */
+    public static Adjacency of(Connection connection) {
+        return students -> {
+            Map<Integer, int[]> neighbours = new HashMap<>();
+            PreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT id1, array_agg(id2) FROM FriendPairs WHERE id1 = ANY(?) GROUP BY id1");
+            try {
+                Array ids = connection.createArrayOf("integer", students.toArray());
+                pstmt.setArray(1, ids);
+                ResultSet results = pstmt.executeQuery();
+                while (results.next()) {
+                    Integer[] friends = (Integer[]) results.getArray(2).getArray();
+                    int[] list = new int[friends.length];
+                    for (int i = 0; i < friends.length; i++) {
+                        list[i] = friends[i];
+                    }
+                    neighbours.put(results.getInt(1), list);
+                }
+                results.close();
+            } finally {
+                pstmt.close();
+            }
+            return neighbours;
+        };
+    }
+
+    /* Adjacency lists of an in-process graph, kept current by FriendGraph.catchUp() */
+    public static Adjacency of(FriendGraph graph) {
+        return students -> {
+            Map<Integer, int[]> neighbours = new HashMap<>();
+            for (Integer student : students) {
+                neighbours.put(student, graph.neighbours(student));
+            }
+            return neighbours;
+        };
+    }
+
+    /*
+     * Finds a shortest path of at most maxDepth friendships between the two students.
+     * output: the students along the path, from source to target (just the source if both are the same),
+     * or an empty list if they are not connected within maxDepth
+     */
+    public static List<Integer> shortestPath(Adjacency adjacency, int source, int target, int maxDepth)
+            throws SQLException {
+        if (source == target)
+            return Collections.singletonList(source);
+
+        Map<Integer, Integer> parentsFromSource = new HashMap<>();
+        Map<Integer, Integer> parentsFromTarget = new HashMap<>();
+        parentsFromSource.put(source, source);
+        parentsFromTarget.put(target, target);
+        List<Integer> sourceFrontier = Collections.singletonList(source);
+        List<Integer> targetFrontier = Collections.singletonList(target);
+
+        for (int depth = 0; depth < maxDepth; depth++) {
+            if (sourceFrontier.isEmpty() || targetFrontier.isEmpty())
+                break;
+            boolean fromSource = sourceFrontier.size() <= targetFrontier.size();
+            List<Integer> frontier = fromSource ? sourceFrontier : targetFrontier;
+            Map<Integer, Integer> parents = fromSource ? parentsFromSource : parentsFromTarget;
+            Map<Integer, Integer> otherParents = fromSource ? parentsFromTarget : parentsFromSource;
+
+            List<Integer> next = new ArrayList<>();
+            Map<Integer, int[]> neighbours = adjacency.neighbours(frontier);
+            for (Integer student : frontier) {
+                int[] friends = neighbours.get(student);
+                if (friends == null)
+                    continue;
+                for (int friend : friends) {
+                    if (parents.containsKey(friend))
+                        continue;
+                    parents.put(friend, student);
+                    if (otherParents.containsKey(friend))
+                        return path(friend, parentsFromSource, parentsFromTarget);
+                    next.add(friend);
+                }
+            }
+            if (fromSource) {
+                sourceFrontier = next;
+            } else {
+                targetFrontier = next;
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    private static List<Integer> path(int meeting, Map<Integer, Integer> parentsFromSource,
+                                      Map<Integer, Integer> parentsFromTarget) {
+        List<Integer> path = new ArrayList<>();
+        for (int student = meeting; ; student = parentsFromSource.get(student)) {
+            path.add(student);
+            if (parentsFromSource.get(student) == student)
+                break;
+        }
+        Collections.reverse(path);
+        for (int student = meeting; parentsFromTarget.get(student) != student; ) {
+            student = parentsFromTarget.get(student);
+            path.add(student);
+        }
+        return path;
+    }
+}
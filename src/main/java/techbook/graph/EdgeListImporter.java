@@ -0,0 +1,397 @@
+package techbook.graph;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import techbook.data.DBConnector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bulk import of friendships from an edge-list file: one "id1 id2" pair per line, separated by spaces, tabs, commas
+ * or semicolons. Columns after the second are ignored, lines starting with '#' or '%' are comments.
+ *
+ * The file is memory-mapped and split into line aligned regions that are parsed in parallel straight from the
+ * mapped bytes, every edge becoming one long (smaller id in the high half), so no String is allocated per line.
+ * The edges are then sorted and deduplicated, self-loops and students that don't exist are dropped, and the rest
+ * is COPYed into a temporary table and inserted into Friends in a single transaction, skipping friendships that
+ * already exist.
+ * The import bypasses the change feed: a FriendGraphSnapshot should be written again afterwards.
+ */
+public class EdgeListImporter {
+
+    public static final String PARSE = "parse";
+    public static final String LOAD = "load";
+
+    private static final long MAX_REGION_SIZE = 256L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int PROGRESS_EDGES = 1 << 20;
+
+    public static class Result {
+        long lines = 0;
+        long malformed = 0;
+        long selfLoops = 0;
+        long duplicates = 0;
+        long unknownStudents = 0;
+        long inserted = -1;
+
+        /* Number of lines holding an edge (comments and blank lines excluded) */
+        public long getLines() {
+            return lines;
+        }
+
+        public long getMalformed() {
+            return malformed;
+        }
+
+        public long getSelfLoops() {
+            return selfLoops;
+        }
+
+        /* Edges given more than once, in either direction */
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        /* Edges dropped since one of their students does not exist */
+        public long getUnknownStudents() {
+            return unknownStudents;
+        }
+
+        /* New friendships, or -1 if the import failed */
+        public long getInserted() {
+            return inserted;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("Result{");
+            sb.append("lines=").append(lines);
+            sb.append(", malformed=").append(malformed);
+            sb.append(", selfLoops=").append(selfLoops);
+            sb.append(", duplicates=").append(duplicates);
+            sb.append(", unknownStudents=").append(unknownStudents);
+            sb.append(", inserted=").append(inserted);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /*
+     * Imports the edges of the file using the given number of parsing threads.
+     * progress may be null.
+     * output: the import statistics, getInserted() is -1 in case of an error
+     */
+    public static Result importFile(Path file, int threads, ImportProgress progress) {
+        Result result = new Result();
+        long[] edges;
+        try {
+            edges = parse(file, Math.max(1, threads), progress, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return result;
+        }
+        int count = dedupe(edges, result);
+
+        // a bulk load is bounded by its size, not by a statement timeout
+        Connection connection = DBConnector.getDedicatedConnection();
+        if (connection == null)
+            return result;
+        try {
+            count = dropUnknownStudents(connection, edges, count, result);
+            result.inserted = load(connection, edges, count, progress);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                rollbackException.printStackTrace();
+            }
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    /* Parses the file into canonical edges, (smaller id << 32) | bigger id, in file order per region */
+    static long[] parse(Path file, int threads, ImportProgress progress, Result result) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = regionBounds(channel, size, Math.max(threads * 4L, size / MAX_REGION_SIZE + 1));
+            AtomicLong parsedBytes = new AtomicLong();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Region>> futures = new ArrayList<>();
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long start = bounds[i];
+                    long end = bounds[i + 1];
+                    futures.add(pool.submit(() -> {
+                        Region region = new Region();
+                        region.parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                        long done = parsedBytes.addAndGet(end - start);
+                        if (progress != null)
+                            progress.onProgress(PARSE, done, size);
+                        return region;
+                    }));
+                }
+                List<Region> regions = new ArrayList<>();
+                long total = 0;
+                for (Future<Region> future : futures) {
+                    Region region = future.get();
+                    regions.add(region);
+                    total += region.count;
+                    result.lines += region.lines;
+                    result.malformed += region.malformed;
+                    result.selfLoops += region.selfLoops;
+                }
+                long[] edges = new long[(int) total];
+                int position = 0;
+                for (Region region : regions) {
+                    System.arraycopy(region.edges, 0, edges, position, region.count);
+                    position += region.count;
+                }
+                return edges;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /* Splits the file into about the given number of regions, each starting at the beginning of a line */
+    private static long[] regionBounds(FileChannel channel, long size, long regions) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long step = Math.max(1, size / regions);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = step;
+        while (position < size) {
+            // move the boundary right after the next newline
+            long boundary = size;
+            search:
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0)
+                    break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        boundary = position + i + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+            if (boundary >= size)
+                break;
+            bounds.add(boundary);
+            position = boundary + step;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /* Edges parsed from one region, canonicalized as (smaller id << 32) | bigger id */
+    private static class Region {
+        long[] edges = new long[1024];
+        int count = 0;
+        long lines = 0;
+        long malformed = 0;
+        long selfLoops = 0;
+
+        void parse(MappedByteBuffer bytes) {
+            long first = 0;
+            long value = 0;
+            int fields = 0;
+            boolean inNumber = false;
+            boolean bad = false;
+            boolean comment = false;
+            boolean empty = true;
+            int limit = bytes.limit();
+            for (int i = 0; i <= limit; i++) {
+                byte c = i < limit ? bytes.get(i) : (byte) '\n';
+                if (c == '\n') {
+                    if (inNumber && fields < 2) {
+                        if (fields == 0)
+                            first = value;
+                        fields++;
+                    }
+                    if (!comment && !empty) {
+                        lines++;
+                        if (bad || fields < 2) {
+                            malformed++;
+                        } else {
+                            add((int) first, (int) value);
+                        }
+                    }
+                    value = 0;
+                    fields = 0;
+                    inNumber = false;
+                    bad = false;
+                    comment = false;
+                    empty = true;
+                } else if (comment || bad || fields >= 2) {
+                    // rest of the line is ignored, value keeps the second id
+                } else if (c >= '0' && c <= '9') {
+                    value = inNumber ? value * 10 + (c - '0') : c - '0';
+                    inNumber = true;
+                    empty = false;
+                    if (value > Integer.MAX_VALUE)
+                        bad = true;
+                } else if (c == ' ' || c == '\t' || c == ',' || c == ';' || c == '\r') {
+                    if (inNumber) {
+                        if (fields == 0)
+                            first = value;
+                        fields++;
+                        inNumber = false;
+                    }
+                } else if ((c == '#' || c == '%') && empty) {
+                    comment = true;
+                } else {
+                    bad = true;
+                    empty = false;
+                }
+            }
+        }
+
+        private void add(int id1, int id2) {
+            if (id1 == id2) {
+                selfLoops++;
+                return;
+            }
+            if (count == edges.length)
+                edges = Arrays.copyOf(edges, edges.length * 2);
+            edges[count++] = id1 < id2 ? ((long) id1 << 32) | id2 : ((long) id2 << 32) | id1;
+        }
+    }
+
+    /* Sorts the edges and moves every distinct edge to the front, returns their number */
+    static int dedupe(long[] edges, Result result) {
+        Arrays.parallelSort(edges);
+        int count = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (count == 0 || edges[count - 1] != edges[i])
+                edges[count++] = edges[i];
+        }
+        result.duplicates = edges.length - count;
+        return count;
+    }
+
+    private static int dropUnknownStudents(Connection connection, long[] edges, int count, Result result)
+            throws SQLException {
+        int[] students = new int[1024];
+        int studentCount = 0;
+        connection.setAutoCommit(false);
+        PreparedStatement pstmt = connection.prepareStatement("SELECT id FROM LiveStudents ORDER BY id");
+        try {
+            pstmt.setFetchSize(10000);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                if (studentCount == students.length)
+                    students = Arrays.copyOf(students, students.length * 2);
+                students[studentCount++] = results.getInt(1);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int id1 = (int) (edges[i] >>> 32);
+            int id2 = (int) edges[i];
+            if (Arrays.binarySearch(students, 0, studentCount, id1) >= 0
+                    && Arrays.binarySearch(students, 0, studentCount, id2) >= 0)
+                edges[kept++] = edges[i];
+        }
+        result.unknownStudents = count - kept;
+        return kept;
+    }
+
+    /*
+     * COPYs the edges into a temporary table and moves them into Friends, all in one transaction.
+     * Students deleted since they were checked are dropped by the join instead of failing the import.
+     */
+    private static long load(Connection connection, long[] edges, int count, ImportProgress progress)
+            throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("CREATE TEMP TABLE friends_import (id1 integer, id2 integer) ON COMMIT DROP");
+            CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY friends_import FROM STDIN");
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int length = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (length > COPY_BUFFER_SIZE - 24) {
+                        copy.writeToCopy(buffer, 0, length);
+                        length = 0;
+                    }
+                    length = writeInt(buffer, length, (int) (edges[i] >>> 32));
+                    buffer[length++] = '\t';
+                    length = writeInt(buffer, length, (int) edges[i]);
+                    buffer[length++] = '\n';
+                    if (progress != null && (i + 1) % PROGRESS_EDGES == 0)
+                        progress.onProgress(LOAD, i + 1, count);
+                }
+                copy.writeToCopy(buffer, 0, length);
+                copy.endCopy();
+            } catch (SQLException e) {
+                copy.cancelCopy();
+                throw e;
+            }
+            long inserted = stmt.executeUpdate(
+                    "INSERT INTO Friends (id1, id2) \n" +
+                    "SELECT i.id1, i.id2 FROM friends_import i \n" +
+                    "    JOIN LiveStudents a ON a.id = i.id1 JOIN LiveStudents b ON b.id = i.id2 \n" +
+                    "ON CONFLICT DO NOTHING");
+            connection.commit();
+            if (progress != null)
+                progress.onProgress(LOAD, count, count);
+            return inserted;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /* Writes the decimal digits of a non-negative int, returns the new length */
+    private static int writeInt(byte[] buffer, int length, int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return length + digits;
+    }
+}
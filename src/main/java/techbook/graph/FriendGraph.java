@@ -0,0 +1,241 @@
+package techbook.graph;
+
+import techbook.business.ChangeEvent;
+import techbook.data.DBConnector;
+
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * In-process friendship graph for warm starts: a memory-mapped FriendGraphSnapshot plus an overlay of the adjacency
+ * lists that changed since the snapshot was written.
+ * catchUp() reads the FRIEND and STUDENT events recorded in ChangeEvents after the last seq it has applied and
+ * re-reads the current friends of every student they touch, so the overlay holds the database state and no
+ * add/remove bookkeeping is needed. A deleted student also drops out of the lists of its former friends, since
+ * those are re-read as well.
+ * Concurrent transactions may commit their events out of seq order, so an event committed right around a
+ * catchUp() can be skipped; writing a new snapshot now and then bounds that drift.
+ * If the outbox no longer reaches back to the graph's seq (the events were purged after changes.retentionHours),
+ * catchUp() writes a new snapshot from Friends over the snapshot file and continues from it.
+ */
+public class FriendGraph {
+
+    private static final int CATCH_UP_BATCH = 1000;
+
+    private final Path snapshotFile;
+    private volatile FriendGraphSnapshot snapshot;
+    private final Map<Integer, int[]> overlay = new HashMap<>();
+    private long seq;
+
+    private FriendGraph(Path snapshotFile, FriendGraphSnapshot snapshot) {
+        this.snapshotFile = snapshotFile;
+        this.snapshot = snapshot;
+        this.seq = snapshot.getSeq();
+    }
+
+    /*
+     * Maps the snapshot and catches up with the changes made after it.
+     * output: the graph, or null if the snapshot can't be read or the catch up failed
+     */
+    public static FriendGraph open(Path snapshotFile) {
+        FriendGraphSnapshot snapshot = FriendGraphSnapshot.open(snapshotFile);
+        if (snapshot == null)
+            return null;
+        FriendGraph graph = new FriendGraph(snapshotFile, snapshot);
+        return graph.catchUp() < 0 ? null : graph;
+    }
+
+    /* The last ChangeEvents seq applied to the graph */
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    /* Returns the friends of the student in ascending order, an empty array if the student has none */
+    public int[] neighbours(int studentId) {
+        synchronized (this) {
+            int[] changed = overlay.get(studentId);
+            if (changed != null)
+                return changed.clone();
+        }
+        return snapshot.neighbours(studentId);
+    }
+
+    public int degree(int studentId) {
+        synchronized (this) {
+            int[] changed = overlay.get(studentId);
+            if (changed != null)
+                return changed.length;
+        }
+        return snapshot.degree(studentId);
+    }
+
+    public boolean areFriends(int studentId1, int studentId2) {
+        return Arrays.binarySearch(neighbours(studentId1), studentId2) >= 0;
+    }
+
+    /* Number of adjacency lists that differ from the snapshot, a new snapshot is worth writing when it grows large */
+    public synchronized int getOverlaySize() {
+        return overlay.size();
+    }
+
+    /*
+     * Applies the friendship changes recorded after the last applied seq.
+     * output: the number of events applied, -1 in case of an error
+     */
+    public int catchUp() {
+        Connection connection = DBConnector.getAnalyticalConnection();
+        if (connection == null)
+            return -1;
+        int applied = 0;
+        try {
+            if (isBehindOutbox(connection, getSeq()) && !rebuild())
+                return -1;
+            List<ChangeEvent> events;
+            do {
+                events = readEvents(connection, getSeq());
+                Set<Integer> touched = new HashSet<>();
+                for (ChangeEvent e : events) {
+                    if (e.getStudentId() != null)
+                        touched.add(e.getStudentId());
+                    if (ChangeEvent.FRIEND.equals(e.getEntity())) {
+                        touched.add(Integer.valueOf(e.getEntityId()));
+                    } else {
+                        // the deleted student's friends lost it through the cascade
+                        for (int friend : neighbours(Integer.valueOf(e.getEntityId()))) {
+                            touched.add(friend);
+                        }
+                    }
+                }
+                Map<Integer, int[]> current = readNeighbours(connection, touched);
+                synchronized (this) {
+                    overlay.putAll(current);
+                    if (!events.isEmpty())
+                        seq = events.get(events.size() - 1).getSeq();
+                }
+                applied += events.size();
+            } while (events.size() == CATCH_UP_BATCH);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return applied;
+    }
+
+    /*
+     * True if events after afterSeq were recorded but the oldest one left in the outbox is past afterSeq + 1, i.e.
+     * some were purged before they were applied. While older events are still kept, a seq skipped by a rolled back
+     * transaction is not taken for a purged one.
+     */
+    private static boolean isBehindOutbox(Connection connection, long afterSeq) throws SQLException {
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT MIN(seq), pg_sequence_last_value(pg_get_serial_sequence('ChangeEvents', 'seq')) " +
+                "FROM ChangeEvents");
+        try {
+            ResultSet results = pstmt.executeQuery();
+            results.next();
+            long oldest = results.getLong(1);
+            boolean empty = results.wasNull();
+            long last = results.getLong(2); // null (0) if no event was recorded yet
+            results.close();
+            return last > afterSeq && (empty || oldest > afterSeq + 1);
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /* Writes a new snapshot from Friends and replaces the graph's snapshot and overlay with it */
+    private boolean rebuild() {
+        if (FriendGraphSnapshot.write(snapshotFile) < 0)
+            return false;
+        FriendGraphSnapshot rebuilt = FriendGraphSnapshot.open(snapshotFile);
+        if (rebuilt == null)
+            return false;
+        synchronized (this) {
+            snapshot = rebuilt;
+            overlay.clear();
+            seq = rebuilt.getSeq();
+        }
+        return true;
+    }
+
+    private static List<ChangeEvent> readEvents(Connection connection, long afterSeq) throws SQLException {
+        List<ChangeEvent> events = new ArrayList<>();
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT seq, entity, entity_id, student_id FROM ChangeEvents " +
+                "WHERE seq > ? AND entity IN ('" + ChangeEvent.FRIEND + "', '" + ChangeEvent.STUDENT + "') " +
+                "ORDER BY seq LIMIT " + CATCH_UP_BATCH);
+        try {
+            pstmt.setLong(1, afterSeq);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                ChangeEvent e = new ChangeEvent();
+                e.setSeq(results.getLong(1));
+                e.setEntity(results.getString(2));
+                e.setEntityId(results.getString(3));
+                int studentId = results.getInt(4);
+                e.setStudentId(results.wasNull() ? null : studentId);
+                events.add(e);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        return events;
+    }
+
+    /* Current friends of each of the given students, an empty array for those without friends */
+    private static Map<Integer, int[]> readNeighbours(Connection connection, Set<Integer> studentIds)
+            throws SQLException {
+        Map<Integer, int[]> neighbours = new HashMap<>();
+        if (studentIds.isEmpty())
+            return neighbours;
+        PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT s.id, COALESCE(array_agg(f.id2 ORDER BY f.id2) FILTER (WHERE f.id2 IS NOT NULL), '{}') \n" +
+                "FROM unnest(?::integer[]) AS s(id) LEFT JOIN FriendPairs f ON f.id1 = s.id \n" +
+                "GROUP BY s.id");
+        try {
+            Array ids = connection.createArrayOf("integer", studentIds.toArray());
+            pstmt.setArray(1, ids);
+            ResultSet results = pstmt.executeQuery();
+            while (results.next()) {
+                Integer[] friends = (Integer[]) results.getArray(2).getArray();
+                int[] list = new int[friends.length];
+                for (int i = 0; i < friends.length; i++) {
+                    list[i] = friends[i];
+                }
+                neighbours.put(results.getInt(1), list);
+            }
+            results.close();
+        } finally {
+            pstmt.close();
+        }
+        return neighbours;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("FriendGraph{");
+        sb.append("snapshot=").append(snapshot);
+        sb.append(", seq=").append(seq);
+        sb.append(", overlay=").append(overlay.size());
+        sb.append('}');
+        return sb.toString();
+    }
+}
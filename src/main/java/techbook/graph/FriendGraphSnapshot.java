@@ -0,0 +1,264 @@
+package techbook.graph;
+
+import techbook.data.AdmissionControl;
+import techbook.data.DBConnector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Read-only, memory-mapped adjacency lists of the friendship graph, in CSR form:
+ *
+ *   header   magic (int), format version (int), node count n (int), unused (int),
+ *            edge count m (long), ChangeEvents seq the snapshot reflects (long)
+ *   ids      n ints, the students that have friends, ascending
+ *   offsets  n + 1 longs, the neighbours of ids[i] are neighbours[offsets[i], offsets[i + 1])
+ *   neighbours  m ints, each list ascending
+ *
+ * All values are big endian. Every friendship appears in both students' lists.
+ * The neighbour array is mapped in chunks, so snapshots larger than 2GB can be read.
+ */
+public class FriendGraphSnapshot {
+
+    static final int MAGIC = 0x54424647; // "TBFG"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    private static final int CHUNK_INTS = 1 << 28; // 1GB of neighbours per mapping
+    private static final int FETCH_SIZE = 10000;
+
+    private final int nodeCount;
+    private final long edgeCount;
+    private final long seq;
+    private final IntBuffer ids;
+    private final LongBuffer offsets;
+    private final IntBuffer[] neighbourChunks;
+
+    private FriendGraphSnapshot(int nodeCount, long edgeCount, long seq, IntBuffer ids, LongBuffer offsets,
+                                IntBuffer[] neighbourChunks) {
+        this.nodeCount = nodeCount;
+        this.edgeCount = edgeCount;
+        this.seq = seq;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.neighbourChunks = neighbourChunks;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    /* The last ChangeEvents seq included in the snapshot, changes after it have to be caught up */
+    public long getSeq() {
+        return seq;
+    }
+
+    /* Returns the friends of the student in ascending order, an empty array if the student has none */
+    public int[] neighbours(int studentId) {
+        int i = indexOf(studentId);
+        if (i < 0)
+            return new int[0];
+        long from = offsets.get(i);
+        long to = offsets.get(i + 1);
+        int[] result = new int[(int) (to - from)];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = neighbour(from + k);
+        }
+        return result;
+    }
+
+    public int degree(int studentId) {
+        int i = indexOf(studentId);
+        return i < 0 ? 0 : (int) (offsets.get(i + 1) - offsets.get(i));
+    }
+
+    /* The i-th student (in ascending id order) that has friends */
+    public int nodeAt(int i) {
+        return ids.get(i);
+    }
+
+    private int neighbour(long position) {
+        return neighbourChunks[(int) (position / CHUNK_INTS)].get((int) (position % CHUNK_INTS));
+    }
+
+    private int indexOf(int studentId) {
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = ids.get(mid);
+            if (id < studentId)
+                low = mid + 1;
+            else if (id > studentId)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /*
+     * Maps a snapshot file read-only. The mappings stay valid after the channel is closed.
+     * output: the snapshot, or null if the file can't be read or is not a snapshot
+     */
+    public static FriendGraphSnapshot open(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+                return null;
+            int nodeCount = header.getInt();
+            header.getInt();
+            long edgeCount = header.getLong();
+            long seq = header.getLong();
+
+            long idsPosition = HEADER_SIZE;
+            long offsetsPosition = align8(idsPosition + 4L * nodeCount);
+            long neighboursPosition = offsetsPosition + 8L * (nodeCount + 1);
+            if (channel.size() < neighboursPosition + 4L * edgeCount)
+                return null;
+
+            IntBuffer ids = map(channel, idsPosition, 4L * nodeCount).asIntBuffer();
+            LongBuffer offsets = map(channel, offsetsPosition, 8L * (nodeCount + 1)).asLongBuffer();
+            List<IntBuffer> chunks = new ArrayList<>();
+            for (long start = 0; start < edgeCount; start += CHUNK_INTS) {
+                long ints = Math.min(CHUNK_INTS, edgeCount - start);
+                chunks.add(map(channel, neighboursPosition + 4L * start, 4L * ints).asIntBuffer());
+            }
+            return new FriendGraphSnapshot(nodeCount, edgeCount, seq, ids, offsets, chunks.toArray(new IntBuffer[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return buffer;
+    }
+
+    private static long align8(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /*
+     * Writes a snapshot of the Friends table into the given file. The snapshot is written next to it and renamed
+     * over it at the end, so a process still mapping the previous snapshot keeps reading consistent data.
+     * FriendPairs is streamed ordered by (id1, id2) with a cursor, inside a repeatable read transaction that also
+     * reads the current ChangeEvents seq, so the snapshot reflects exactly the changes up to that seq.
+     * The neighbour array is written sequentially after a gap for the header, ids and offsets, which are kept in
+     * memory (one int and one long per student) and written last.
+     * output: the seq of the snapshot, -1 in case of an error
+     */
+    public static long write(Path file) {
+        Connection connection = DBConnector.getAnalyticalReadConnection();
+        if (connection == null)
+            return -1;
+        PreparedStatement pstmt = null;
+        try {
+            // streaming the whole table is bounded by its size, not by the analytical statement timeout
+            AdmissionControl.clearStatementTimeout(connection);
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+            pstmt = connection.prepareStatement(
+                    "SELECT (SELECT COUNT(DISTINCT id1) FROM FriendPairs), (SELECT COUNT(*) FROM FriendPairs), " +
+                    "(SELECT COALESCE(MAX(seq), 0) FROM ChangeEvents)");
+            ResultSet results = pstmt.executeQuery();
+            results.next();
+            int nodeCount = results.getInt(1);
+            long edgeCount = results.getLong(2);
+            long seq = results.getLong(3);
+            results.close();
+            pstmt.close();
+
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            int[] ids = new int[nodeCount];
+            long[] offsets = new long[nodeCount + 1];
+            long offsetsPosition = align8(HEADER_SIZE + 4L * nodeCount);
+            long neighboursPosition = offsetsPosition + 8L * (nodeCount + 1);
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.position(neighboursPosition);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+
+                pstmt = connection.prepareStatement("SELECT id1, id2 FROM FriendPairs ORDER BY id1, id2");
+                pstmt.setFetchSize(FETCH_SIZE);
+                results = pstmt.executeQuery();
+                int node = -1;
+                long edge = 0;
+                while (results.next() && edge < edgeCount) {
+                    int id1 = results.getInt(1);
+                    if (node < 0 || ids[node] != id1) {
+                        node++;
+                        ids[node] = id1;
+                        offsets[node] = edge;
+                    }
+                    out.writeInt(results.getInt(2));
+                    edge++;
+                }
+                results.close();
+                out.flush();
+                offsets[nodeCount] = edge;
+
+                ByteBuffer head = ByteBuffer.allocate((int) neighboursPosition).order(ByteOrder.BIG_ENDIAN);
+                head.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(nodeCount).putInt(0).putLong(edge).putLong(seq);
+                head.asIntBuffer().put(ids);
+                head.position((int) offsetsPosition);
+                head.asLongBuffer().put(offsets);
+                head.position(0);
+                while (head.hasRemaining()) {
+                    channel.write(head, head.position());
+                }
+                channel.force(true);
+            }
+            connection.commit();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return seq;
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            try {
+                if (pstmt != null)
+                    pstmt.close();
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("FriendGraphSnapshot{");
+        sb.append("nodeCount=").append(nodeCount);
+        sb.append(", edgeCount=").append(edgeCount);
+        sb.append(", seq=").append(seq);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,10 @@
+package techbook.graph;
+
+public interface ImportProgress {
+
+    /*
+     * Called from the importer's threads as work gets done: phase is one of EdgeListImporter.PARSE (done and total
+     * in bytes) or EdgeListImporter.LOAD (done and total in edges)
+     */
+    void onProgress(String phase, long done, long total);
+}
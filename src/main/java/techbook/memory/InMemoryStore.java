@@ -0,0 +1,796 @@
+package techbook.memory;
+
+import techbook.TechbookStore;
+import techbook.business.Feed;
+import techbook.business.HomePage;
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.business.Student;
+import techbook.business.StudentIdPair;
+import techbook.graph.BidirectionalBfs;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/*
+ * The techbook API kept entirely in process, for tests and for deployments that do not need Postgres.
+ * Students and posts are held in IntHashMaps keyed by their ids, and every student and group keeps its posts in a
+ * tree ordered newest first, so a feed is a k-way merge of the author (or group) trees that stops as soon as the
+ * page is full, instead of a scan and sort of all the posts. Friends are a sorted int[] per student, replaced on
+ * every change, so mutual friends are a merge of two arrays and BFS frontiers share the arrays without copying.
+ *
+ * Every call runs under one read/write lock: reads share it, writes are exclusive. The ReturnValues follow the
+ * checks of the SQL engine in the same order (see Solution), so both engines answer the same calls the same way.
+ *
+ * Deleting a student works as in the SQL engine (see StudentPurger): the memberships, likes and friendships go
+ * right away, the student and his\her posts move to the deleted maps, where they are invisible but keep their ids
+ * taken until purgeDeletedStudents.
+ */
+public class InMemoryStore implements TechbookStore {
+
+    private static final int[] NO_FRIENDS = new int[0];
+
+    /* Order of the post trees: newest first, then by id so that posts of the same date are distinct */
+    private static final Comparator<PostRow> NEWEST_FIRST = (a, b) -> {
+        int byDate = b.date.compareTo(a.date);
+        return byDate != 0 ? byDate : Integer.compare(b.id, a.id);
+    };
+
+    /* Order of the feeds, as in the SQL engine: ORDER BY pdate DESC, n_likes DESC */
+    private static final Comparator<PostRow> FEED_ORDER = (a, b) -> {
+        int byDate = b.date.compareTo(a.date);
+        if (byDate != 0)
+            return byDate;
+        int byLikes = Integer.compare(b.likedBy.size(), a.likedBy.size());
+        return byLikes != 0 ? byLikes : Integer.compare(a.id, b.id);
+    };
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final IntHashMap<StudentRow> students = new IntHashMap<>();
+    private final IntHashMap<PostRow> posts = new IntHashMap<>();
+    /* deleted students and their posts, until the purge */
+    private final IntHashMap<StudentRow> deletedStudents = new IntHashMap<>();
+    private final IntHashMap<PostRow> deletedPosts = new IntHashMap<>();
+    private final HashMap<String, GroupRow> groups = new HashMap<>();
+    private int nextGroupId = 1;
+
+    private final BidirectionalBfs.Adjacency adjacency = ids -> {
+        Map<Integer, int[]> neighbours = new HashMap<>();
+        for (Integer id : ids) {
+            StudentRow student = students.get(id);
+            if (student != null)
+                neighbours.put(id, student.friends);
+        }
+        return neighbours;
+    };
+
+    private static final class StudentRow {
+        final int id;
+        final String name;
+        GroupRow faculty;
+        int[] friends = NO_FRIENDS; // sorted, replaced rather than modified
+        final IntHashMap<GroupRow> groups = new IntHashMap<>();
+        final IntHashMap<PostRow> likes = new IntHashMap<>();
+        final NavigableSet<PostRow> posts = new TreeSet<>(NEWEST_FIRST);
+
+        StudentRow(int id, String name, GroupRow faculty) {
+            this.id = id;
+            this.name = name;
+            this.faculty = faculty;
+        }
+    }
+
+    private static final class GroupRow {
+        final int id;
+        final String name;
+        final IntHashMap<StudentRow> members = new IntHashMap<>();
+        final NavigableSet<PostRow> posts = new TreeSet<>(NEWEST_FIRST);
+
+        GroupRow(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static final class PostRow {
+        final int id;
+        final StudentRow author;
+        final GroupRow group; // null for a public post
+        final LocalDateTime date;
+        String text;
+        final IntHashMap<StudentRow> likedBy = new IntHashMap<>();
+
+        PostRow(int id, StudentRow author, GroupRow group, String text, LocalDateTime date) {
+            this.id = id;
+            this.author = author;
+            this.group = group;
+            this.text = text;
+            this.date = date;
+        }
+    }
+
+    /* One post tree being merged into a feed */
+    private static final class Cursor {
+        final Iterator<PostRow> rest;
+        PostRow head;
+
+        Cursor(Iterator<PostRow> rest) {
+            this.rest = rest;
+            head = rest.next();
+        }
+
+        boolean advance() {
+            head = rest.hasNext() ? rest.next() : null;
+            return head != null;
+        }
+    }
+
+    @Override
+    public void createTables() {
+        clearTables();
+    }
+
+    @Override
+    public void clearTables() {
+        writing(() -> {
+            students.clear();
+            posts.clear();
+            deletedStudents.clear();
+            deletedPosts.clear();
+            groups.clear();
+            nextGroupId = 1;
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public void dropTables() {
+        clearTables();
+    }
+
+    @Override
+    public ReturnValue addStudent(Student student) {
+        return writing(() -> {
+            if (student.getFaculty() == null)
+                return ReturnValue.BAD_PARAMS;
+            Integer id = student.getId();
+            if (id == null || id <= 0 || student.getName() == null)
+                return ReturnValue.BAD_PARAMS;
+            if (students.containsKey(id) || deletedStudents.containsKey(id))
+                return ReturnValue.ALREADY_EXISTS;
+            // the SQL engine creates the faculty in the student's transaction, so a failed add leaves no group
+            GroupRow faculty = group(student.getFaculty());
+            StudentRow row = new StudentRow(id, student.getName(), faculty);
+            students.put(id, row);
+            join(row, faculty);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue deleteStudent(Integer studentId) {
+        return writing(() -> {
+            StudentRow student = studentId == null ? null : students.remove(studentId);
+            if (student == null)
+                return ReturnValue.NOT_EXISTS;
+            deletedStudents.put(student.id, student);
+            for (PostRow post : student.posts) {
+                // the likes on the post stay until the purge, as in the SQL engine
+                posts.remove(post.id);
+                deletedPosts.put(post.id, post);
+                if (post.group != null)
+                    post.group.posts.remove(post);
+            }
+            for (PostRow post : student.likes.values()) {
+                post.likedBy.remove(student.id);
+            }
+            student.likes.clear();
+            for (int friend : student.friends) {
+                StudentRow other = students.get(friend);
+                other.friends = without(other.friends, student.id);
+            }
+            for (GroupRow group : student.groups.values()) {
+                group.members.remove(student.id);
+            }
+            student.friends = NO_FRIENDS;
+            student.groups.clear();
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue purgeDeletedStudents() {
+        return writing(() -> {
+            for (PostRow post : deletedPosts.values()) {
+                for (StudentRow student : post.likedBy.values()) {
+                    student.likes.remove(post.id);
+                }
+            }
+            deletedPosts.clear();
+            deletedStudents.clear();
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public Student getStudentProfile(Integer studentId) {
+        return reading(() -> toStudent(studentId == null ? null : students.get(studentId)));
+    }
+
+    @Override
+    public ArrayList<Student> getStudentProfiles(List<Integer> studentIds) {
+        return reading(() -> {
+            ArrayList<Student> profiles = new ArrayList<>(studentIds.size());
+            for (Integer id : studentIds) {
+                profiles.add(toStudent(id == null ? null : students.get(id)));
+            }
+            return profiles;
+        });
+    }
+
+    @Override
+    public ReturnValue updateStudentFaculty(Student student) {
+        return writing(() -> {
+            ReturnValue result = joined(student.getId(), student.getFaculty());
+            if (!result.equals(ReturnValue.OK))
+                return result;
+            students.get(student.getId()).faculty = groups.get(student.getFaculty());
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue addPost(Post post, String groupName) {
+        return writing(() -> {
+            StudentRow author = post.getAuthor() == null ? null : students.get(post.getAuthor());
+            GroupRow group = null;
+            if (groupName != null) {
+                // a post in a group is only written by its members
+                group = groups.get(groupName);
+                if (group == null || author == null || !group.members.containsKey(author.id))
+                    return ReturnValue.NOT_EXISTS;
+            }
+            if (post.getId() == null || post.getId() <= 0 || post.getText() == null || post.getDate() == null)
+                return ReturnValue.BAD_PARAMS;
+            if (posts.containsKey(post.getId()) || deletedPosts.containsKey(post.getId()))
+                return ReturnValue.ALREADY_EXISTS;
+            if (author == null)
+                return ReturnValue.NOT_EXISTS;
+
+            PostRow row = new PostRow(post.getId(), author, group, post.getText(), post.getDate());
+            posts.put(row.id, row);
+            author.posts.add(row);
+            if (group != null)
+                group.posts.add(row);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue deletePost(Integer postId) {
+        return writing(() -> {
+            PostRow post = postId == null ? null : posts.get(postId);
+            if (post == null)
+                return ReturnValue.NOT_EXISTS;
+            removePost(post);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public Post getPost(Integer postId) {
+        return reading(() -> toPost(postId == null ? null : posts.get(postId)));
+    }
+
+    @Override
+    public ArrayList<Post> getPosts(List<Integer> postIds) {
+        return reading(() -> {
+            ArrayList<Post> found = new ArrayList<>(postIds.size());
+            for (Integer id : postIds) {
+                found.add(toPost(id == null ? null : posts.get(id)));
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public ReturnValue updatePost(Post post) {
+        return writing(() -> {
+            PostRow row = post.getId() == null ? null : posts.get(post.getId());
+            if (row == null)
+                return ReturnValue.NOT_EXISTS;
+            if (post.getText() == null)
+                return ReturnValue.BAD_PARAMS;
+            row.text = post.getText();
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue likePost(Integer studentId, Integer postId) {
+        return writing(() -> {
+            StudentRow student = studentId == null ? null : students.get(studentId);
+            PostRow post = postId == null ? null : posts.get(postId);
+            // a student likes a post of one of his\her groups, or a public post if he\she is a member of any group
+            if (student == null || post == null
+                    || (post.group == null ? student.groups.isEmpty() : !student.groups.containsKey(post.group.id)))
+                return ReturnValue.NOT_EXISTS;
+            if (post.likedBy.containsKey(student.id))
+                return ReturnValue.ALREADY_EXISTS;
+            post.likedBy.put(student.id, student);
+            student.likes.put(post.id, post);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue unlikePost(Integer studentId, Integer postId) {
+        return writing(() -> {
+            StudentRow student = studentId == null ? null : students.get(studentId);
+            PostRow post = student == null || postId == null ? null : student.likes.remove(postId);
+            if (post == null)
+                return ReturnValue.NOT_EXISTS;
+            // the post may be one of a deleted student, the like is still there until the purge
+            post.likedBy.remove(student.id);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue makeAsFriends(Integer studentId1, Integer studentId2) {
+        return writing(() -> {
+            if (studentId1 == null || studentId2 == null || studentId1.equals(studentId2))
+                return ReturnValue.BAD_PARAMS;
+            StudentRow student1 = students.get(studentId1);
+            StudentRow student2 = students.get(studentId2);
+            if (student1 != null && Arrays.binarySearch(student1.friends, studentId2) >= 0)
+                return ReturnValue.ALREADY_EXISTS;
+            if (student1 == null || student2 == null)
+                return ReturnValue.NOT_EXISTS;
+            student1.friends = with(student1.friends, student2.id);
+            student2.friends = with(student2.friends, student1.id);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue makeAsNotFriends(Integer studentId1, Integer studentId2) {
+        return writing(() -> {
+            StudentRow student1 = studentId1 == null ? null : students.get(studentId1);
+            StudentRow student2 = studentId2 == null ? null : students.get(studentId2);
+            if (student1 == null || student2 == null || Arrays.binarySearch(student1.friends, student2.id) < 0)
+                return ReturnValue.NOT_EXISTS;
+            student1.friends = without(student1.friends, student2.id);
+            student2.friends = without(student2.friends, student1.id);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public ReturnValue joinGroup(Integer studentId, String groupName) {
+        return writing(() -> joined(studentId, groupName));
+    }
+
+    @Override
+    public ReturnValue leaveGroup(Integer studentId, String groupName) {
+        return writing(() -> {
+            StudentRow student = studentId == null ? null : students.get(studentId);
+            GroupRow group = groupName == null ? null : groups.get(groupName);
+            if (student == null || group == null || student.groups.remove(group.id) == null)
+                return ReturnValue.NOT_EXISTS;
+            group.members.remove(student.id);
+            return ReturnValue.OK;
+        });
+    }
+
+    @Override
+    public Integer getGroupMemberCount(String groupName) {
+        return reading(() -> {
+            GroupRow group = groupName == null ? null : groups.get(groupName);
+            return group == null ? -1 : group.members.size();
+        });
+    }
+
+    @Override
+    public Feed getStudentFeed(Integer id) {
+        return reading(() -> feed(studentPosts(id), null));
+    }
+
+    @Override
+    public Feed getGroupFeed(String groupName) {
+        return reading(() -> feed(groupPosts(groupName), null));
+    }
+
+    @Override
+    public ArrayList<Feed> getGroupFeeds(List<String> groupNames) {
+        return reading(() -> {
+            ArrayList<Feed> feeds = new ArrayList<>(groupNames.size());
+            for (String groupName : groupNames) {
+                feeds.add(feed(groupPosts(groupName), null));
+            }
+            return feeds;
+        });
+    }
+
+    @Override
+    public Feed getStudentFeedPage(Integer id, Timestamp before, Integer beforeId, Integer limit) {
+        if (limit == null || limit < 0)
+            return new Feed();
+        return reading(() -> page(studentPosts(id), before, beforeId, limit));
+    }
+
+    @Override
+    public Feed getGroupFeedPage(String groupName, Timestamp before, Integer beforeId, Integer limit) {
+        if (limit == null || limit < 0)
+            return new Feed();
+        return reading(() -> page(groupPosts(groupName), before, beforeId, limit));
+    }
+
+    @Override
+    public HomePage getHomePage(Integer studentId, Integer feedLimit, Integer pymkLimit) {
+        if (studentId == null || (feedLimit != null && feedLimit < 0) || (pymkLimit != null && pymkLimit < 0))
+            return HomePage.badHomePage();
+        return reading(() -> {
+            StudentRow student = students.get(studentId);
+            if (student == null)
+                return HomePage.badHomePage();
+            HomePage page = new HomePage();
+            page.setStudent(toStudent(student));
+            page.setFeed(feed(studentPosts(studentId), feedLimit));
+            page.setPeopleYouMayKnow(peopleYouMayKnow(student, pymkLimit));
+            return page;
+        });
+    }
+
+    @Override
+    public ArrayList<Student> getPeopleYouMayKnowList(Integer studentId) {
+        return reading(() -> {
+            StudentRow student = studentId == null ? null : students.get(studentId);
+            return student == null ? new ArrayList<>() : peopleYouMayKnow(student, null);
+        });
+    }
+
+    @Override
+    public ArrayList<Student> getMutualFriends(Integer studentId1, Integer studentId2, Integer limit) {
+        return reading(() -> {
+            ArrayList<Student> mutual = new ArrayList<>();
+            StudentRow student1 = studentId1 == null ? null : students.get(studentId1);
+            StudentRow student2 = studentId2 == null ? null : students.get(studentId2);
+            if (student1 == null || student2 == null || (limit != null && limit < 0))
+                return mutual;
+            int max = limit == null ? Integer.MAX_VALUE : limit;
+            int[] a = student1.friends;
+            int[] b = student2.friends;
+            for (int i = 0, j = 0; i < a.length && j < b.length && mutual.size() < max; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    mutual.add(toStudent(students.get(a[i])));
+                    i++;
+                    j++;
+                }
+            }
+            return mutual;
+        });
+    }
+
+    @Override
+    public LinkedHashMap<Integer, Integer> getMutualFriendCounts(Integer studentId, List<Integer> candidates) {
+        return reading(() -> {
+            LinkedHashMap<Integer, Integer> counts = new LinkedHashMap<>();
+            if (candidates == null)
+                return counts;
+            StudentRow student = studentId == null ? null : students.get(studentId);
+            for (Integer candidate : candidates) {
+                StudentRow other = candidate == null ? null : students.get(candidate);
+                counts.put(candidate, student == null || other == null ? 0
+                        : intersectionSize(student.friends, other.friends));
+            }
+            return counts;
+        });
+    }
+
+    @Override
+    public ArrayList<StudentIdPair> getRemotelyConnectedPairs() {
+        return reading(() -> {
+            ArrayList<StudentIdPair> pairs = new ArrayList<>();
+            int[] ids = students.keys();
+            Arrays.sort(ids);
+            for (int id : ids) {
+                StudentRow source = students.get(id);
+                if (source.friends.length == 0)
+                    continue;
+                // BFS by levels, the students first reached at level 5 or deeper are remotely connected
+                IntHashMap<StudentRow> visited = new IntHashMap<>();
+                visited.put(source.id, source);
+                ArrayList<StudentRow> frontier = new ArrayList<>();
+                frontier.add(source);
+                ArrayList<Integer> remote = new ArrayList<>();
+                for (int distance = 1; !frontier.isEmpty(); distance++) {
+                    ArrayList<StudentRow> next = new ArrayList<>();
+                    for (StudentRow student : frontier) {
+                        for (int friend : student.friends) {
+                            if (visited.containsKey(friend))
+                                continue;
+                            StudentRow row = students.get(friend);
+                            visited.put(friend, row);
+                            next.add(row);
+                            if (distance >= 5 && friend < source.id)
+                                remote.add(friend);
+                        }
+                    }
+                    frontier = next;
+                }
+                remote.sort(null);
+                for (Integer other : remote) {
+                    StudentIdPair pair = new StudentIdPair();
+                    pair.setStudentId1(source.id);
+                    pair.setStudentId2(other);
+                    pairs.add(pair);
+                }
+            }
+            return pairs;
+        });
+    }
+
+    @Override
+    public Integer getDegreesOfSeparation(Integer studentId1, Integer studentId2, Integer maxDepth) {
+        if (maxDepth == null)
+            return -1;
+        ArrayList<Integer> path = connectionPath(studentId1, studentId2, maxDepth);
+        return path.isEmpty() ? -1 : path.size() - 1;
+    }
+
+    @Override
+    public ArrayList<Integer> getConnectionPath(Integer studentId1, Integer studentId2) {
+        return connectionPath(studentId1, studentId2, Integer.MAX_VALUE);
+    }
+
+    private ArrayList<Integer> connectionPath(Integer studentId1, Integer studentId2, int maxDepth) {
+        if (studentId1 == null || studentId2 == null)
+            return new ArrayList<>();
+        return reading(() -> {
+            try {
+                return new ArrayList<>(BidirectionalBfs.shortestPath(adjacency, studentId1, studentId2, maxDepth));
+            } catch (SQLException e) { // not thrown by an in-memory adjacency
+                return new ArrayList<>();
+            }
+        });
+    }
+
+    /* Creates the group if it does not exist yet, like createGroup in Solution */
+    private GroupRow group(String name) {
+        GroupRow group = groups.get(name);
+        if (group == null) {
+            group = new GroupRow(nextGroupId++, name);
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    private ReturnValue joined(Integer studentId, String groupName) {
+        if (groupName == null || studentId == null)
+            return ReturnValue.BAD_PARAMS;
+        StudentRow student = students.get(studentId);
+        if (student == null)
+            return ReturnValue.NOT_EXISTS;
+        GroupRow group = group(groupName); // as in addStudent, only a student that exists creates the group
+        if (student.groups.containsKey(group.id))
+            return ReturnValue.ALREADY_EXISTS;
+        join(student, group);
+        return ReturnValue.OK;
+    }
+
+    private static void join(StudentRow student, GroupRow group) {
+        student.groups.put(group.id, group);
+        group.members.put(student.id, student);
+    }
+
+    private void removePost(PostRow post) {
+        posts.remove(post.id);
+        post.author.posts.remove(post);
+        if (post.group != null)
+            post.group.posts.remove(post);
+        for (StudentRow student : post.likedBy.values()) {
+            student.likes.remove(post.id);
+        }
+    }
+
+    /* The post trees of the student and of his\her friends, none if there is no such student */
+    private List<NavigableSet<PostRow>> studentPosts(Integer id) {
+        StudentRow student = id == null ? null : students.get(id);
+        if (student == null)
+            return new ArrayList<>();
+        List<NavigableSet<PostRow>> sources = new ArrayList<>(student.friends.length + 1);
+        sources.add(student.posts);
+        for (int friend : student.friends) {
+            sources.add(students.get(friend).posts);
+        }
+        return sources;
+    }
+
+    private List<NavigableSet<PostRow>> groupPosts(String groupName) {
+        GroupRow group = groupName == null ? null : groups.get(groupName);
+        List<NavigableSet<PostRow>> sources = new ArrayList<>(1);
+        if (group != null)
+            sources.add(group.posts);
+        return sources;
+    }
+
+    /* The heads of the post trees, from the posts that follow the probe on (all of them if null) */
+    private static PriorityQueue<Cursor> heads(List<NavigableSet<PostRow>> sources, PostRow probe) {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(sources.size() + 1,
+                (a, b) -> NEWEST_FIRST.compare(a.head, b.head));
+        for (NavigableSet<PostRow> source : sources) {
+            Iterator<PostRow> rest = (probe == null ? source : source.tailSet(probe, false)).iterator();
+            if (rest.hasNext())
+                heads.add(new Cursor(rest));
+        }
+        return heads;
+    }
+
+    /*
+     * Merges the post trees newest first, up to limit posts (no limit if null). The trees order posts of the same
+     * date by id, so the merge goes on to the end of the last date taken, and those are then ordered by likes.
+     */
+    private static Feed feed(List<NavigableSet<PostRow>> sources, Integer limit) {
+        Feed feed = new Feed();
+        if (limit != null && limit < 0)
+            return feed;
+        int max = limit == null ? Integer.MAX_VALUE : limit;
+        PriorityQueue<Cursor> heads = heads(sources, null);
+
+        ArrayList<PostRow> rows = new ArrayList<>();
+        while (!heads.isEmpty()) {
+            Cursor cursor = heads.poll();
+            if (rows.size() >= max && (rows.isEmpty() || !rows.get(rows.size() - 1).date.equals(cursor.head.date)))
+                break;
+            rows.add(cursor.head);
+            if (cursor.advance())
+                heads.add(cursor);
+        }
+        rows.sort(FEED_ORDER);
+        for (int i = 0; i < rows.size() && i < max; i++) {
+            feed.add(toPost(rows.get(i)));
+        }
+        return feed;
+    }
+
+    /*
+     * Merges the post trees in their own order (newest first, then by id descending), taking limit posts after the
+     * (before, beforeId) cursor, as getStudentFeedPage does in the SQL engine
+     */
+    private static Feed page(List<NavigableSet<PostRow>> sources, Timestamp before, Integer beforeId, int limit) {
+        PostRow probe = before == null ? null : new PostRow(beforeId == null ? Integer.MIN_VALUE : beforeId,
+                null, null, null, before.toLocalDateTime());
+        PriorityQueue<Cursor> heads = heads(sources, probe);
+        Feed feed = new Feed();
+        while (!heads.isEmpty() && feed.size() < limit) {
+            Cursor cursor = heads.poll();
+            feed.add(toPost(cursor.head));
+            if (cursor.advance())
+                heads.add(cursor);
+        }
+        return feed;
+    }
+
+    /* Friends of friends who share a group with the student, by id */
+    private ArrayList<Student> peopleYouMayKnow(StudentRow student, Integer limit) {
+        TreeSet<Integer> candidates = new TreeSet<>();
+        for (int friend : student.friends) {
+            for (int id : students.get(friend).friends) {
+                if (id != student.id && Arrays.binarySearch(student.friends, id) < 0 && !candidates.contains(id)
+                        && shareGroup(student, students.get(id)))
+                    candidates.add(id);
+            }
+        }
+        ArrayList<Student> people = new ArrayList<>();
+        for (Integer id : candidates) {
+            if (limit != null && people.size() >= limit)
+                break;
+            people.add(toStudent(students.get(id)));
+        }
+        return people;
+    }
+
+    private static boolean shareGroup(StudentRow a, StudentRow b) {
+        if (a.groups.size() > b.groups.size())
+            return shareGroup(b, a);
+        for (int group : a.groups.keys()) {
+            if (b.groups.containsKey(group))
+                return true;
+        }
+        return false;
+    }
+
+    private static int intersectionSize(int[] a, int[] b) {
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private static int[] with(int[] sorted, int id) {
+        int at = -Arrays.binarySearch(sorted, id) - 1;
+        int[] result = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, at);
+        result[at] = id;
+        System.arraycopy(sorted, at, result, at + 1, sorted.length - at);
+        return result;
+    }
+
+    private static int[] without(int[] sorted, int id) {
+        int at = Arrays.binarySearch(sorted, id);
+        if (at < 0)
+            return sorted;
+        int[] result = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, at);
+        System.arraycopy(sorted, at + 1, result, at, sorted.length - at - 1);
+        return result;
+    }
+
+    private static Student toStudent(StudentRow row) {
+        if (row == null)
+            return Student.badStudent();
+        Student student = new Student();
+        student.setId(row.id);
+        student.setName(row.name);
+        student.setFaculty(row.faculty.name);
+        return student;
+    }
+
+    private static Post toPost(PostRow row) {
+        if (row == null)
+            return Post.badPost();
+        Post post = new Post();
+        post.setId(row.id);
+        post.setAuthor(row.author.id);
+        post.setText(row.text);
+        post.setLikes(row.likedBy.size());
+        post.setDate(row.date);
+        return post;
+    }
+
+    private <T> T reading(Supplier<T> body) {
+        lock.readLock().lock();
+        try {
+            return body.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ReturnValue writing(Supplier<ReturnValue> body) {
+        lock.writeLock().lock();
+        try {
+            return body.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package techbook.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/*
+ * One client connection. Everything but wakeup() runs on the server's selector thread.
+ * Requests are parsed as soon as they are read, up to server.maxPipelined of them waiting for their responses;
+ * past that the connection is not read until responses go out, so a client can't queue unbounded work.
+ * The responses are written in request order, each as soon as its worker has written some of it.
+ */
+class HttpConnection {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final TechbookServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ArrayDeque<HttpResponse> responses = new ArrayDeque<>();
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // write mode between reads
+    private boolean inputClosed = false; // no request is parsed after a bad one or the client's end of stream
+    private boolean closed = false;
+    private long lastActive = System.currentTimeMillis();
+
+    HttpConnection(TechbookServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /* Any thread: a response of this connection has more to send */
+    void wakeup() {
+        server.wakeup(this);
+    }
+
+    void read() throws IOException {
+        int n = channel.read(in);
+        if (n > 0)
+            lastActive = System.currentTimeMillis();
+        parseRequests();
+        if (n < 0)
+            inputClosed = true; // the requests read so far are still answered
+        if (!in.hasRemaining() && !inputClosed && responses.size() < server.getMaxPipelined()) {
+            if (in.capacity() >= server.getMaxRequestBytes()) {
+                reject(413, "request too large");
+            } else {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, server.getMaxRequestBytes()));
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+        write();
+    }
+
+    private void parseRequests() {
+        in.flip();
+        try {
+            while (!inputClosed && responses.size() < server.getMaxPipelined()) {
+                HttpRequest request = HttpRequest.parse(in);
+                if (request == null)
+                    break;
+                HttpResponse response = new HttpResponse(this, request, server.getMaxBufferedBytes());
+                responses.add(response);
+                if (!request.isKeepAlive())
+                    inputClosed = true;
+                server.dispatch(request, response);
+            }
+        } catch (HttpRequest.BadRequest e) {
+            in.compact();
+            reject(e.status, e.getMessage());
+            return;
+        }
+        in.compact();
+    }
+
+    /* Answers with an error after the responses already queued, and closes the connection then */
+    private void reject(int status, String message) {
+        inputClosed = true;
+        HttpResponse response = new HttpResponse(this, HttpRequest.closing(), server.getMaxBufferedBytes());
+        responses.add(response);
+        Routes.sendError(response, status, message);
+    }
+
+    /* Writes what the responses have ready, in request order */
+    void write() throws IOException {
+        while (!closed && !responses.isEmpty()) {
+            HttpResponse head = responses.peek();
+            ByteBuffer buffer = head.peek();
+            if (buffer != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    break; // the socket is full
+                head.sent(buffer);
+                lastActive = System.currentTimeMillis();
+            } else if (head.isComplete()) {
+                responses.poll();
+                if (!head.isKeepAlive()) {
+                    close();
+                    return;
+                }
+                parseRequests(); // pipelined requests held back by maxPipelined
+            } else {
+                break; // the worker has not written more yet
+            }
+        }
+        if (!closed && inputClosed && responses.isEmpty()) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (closed)
+            return;
+        int ops = 0;
+        if (!inputClosed && responses.size() < server.getMaxPipelined())
+            ops |= SelectionKey.OP_READ;
+        HttpResponse head = responses.peek();
+        if (head != null && head.peek() != null)
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /* True if the connection waits for the client only, and has for longer than timeoutMillis */
+    boolean isIdle(long now, long timeoutMillis) {
+        return responses.isEmpty() && now - lastActive > timeoutMillis;
+    }
+
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (HttpResponse response : responses) {
+            response.abort();
+        }
+        responses.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,177 @@
+package techbook.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * One parsed HTTP/1.x request. parse() takes requests off the front of a connection's input buffer one at a time,
+ * so pipelined requests are read in order. Request bodies need a Content-Length, chunked uploads are refused.
+ */
+class HttpRequest {
+
+    /* A request that can't be parsed, answered with the status and the connection is closed */
+    static class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final String method;
+    private final String[] segments;
+    private final Map<String, String> query;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final boolean keepAlive;
+    private final boolean http11;
+
+    private HttpRequest(String method, String[] segments, Map<String, String> query, Map<String, String> headers,
+                        byte[] body, boolean keepAlive, boolean http11) {
+        this.method = method;
+        this.segments = segments;
+        this.query = query;
+        this.headers = headers;
+        this.body = body;
+        this.keepAlive = keepAlive;
+        this.http11 = http11;
+    }
+
+    /*
+     * Parses the request at the start of the buffer (in read mode) and moves its position past it.
+     * Returns null, leaving the buffer as it was, while the request is not complete.
+     */
+    static HttpRequest parse(ByteBuffer in) throws BadRequest {
+        int start = in.position();
+        int headEnd = indexOfBlankLine(in, start);
+        if (headEnd < 0)
+            return null;
+
+        byte[] headBytes = new byte[headEnd - start];
+        read(in, start, headBytes);
+        String[] lines = new String(headBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1."))
+            throw new BadRequest(400, "bad request line");
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                throw new BadRequest(400, "bad header");
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        if (headers.containsKey("transfer-encoding"))
+            throw new BadRequest(411, "chunked request bodies are not supported");
+
+        int length;
+        try {
+            length = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        } catch (NumberFormatException e) {
+            throw new BadRequest(400, "bad content-length");
+        }
+        if (length < 0)
+            throw new BadRequest(400, "bad content-length");
+        int bodyStart = headEnd + 4;
+        if (in.limit() - bodyStart < length)
+            return null;
+        byte[] body = new byte[length];
+        read(in, bodyStart, body);
+        in.position(bodyStart + length);
+
+        String connection = headers.getOrDefault("connection", "").toLowerCase();
+        boolean http11 = !requestLine[2].equals("HTTP/1.0");
+        boolean keepAlive = http11 ? !connection.equals("close") : connection.equals("keep-alive");
+
+        String target = requestLine[1];
+        int question = target.indexOf('?');
+        // split before decoding, so that an encoded '/' (%2F) stays inside its segment, e.g. a group name
+        String[] segments = (question < 0 ? target : target.substring(0, question)).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = decode(segments[i], false);
+        }
+        Map<String, String> query = new HashMap<>();
+        if (question >= 0) {
+            for (String pair : target.substring(question + 1).split("&")) {
+                if (pair.isEmpty())
+                    continue;
+                int eq = pair.indexOf('=');
+                query.put(decode(eq < 0 ? pair : pair.substring(0, eq), true),
+                        eq < 0 ? "" : decode(pair.substring(eq + 1), true));
+            }
+        }
+        return new HttpRequest(requestLine[0], segments, query, headers, body, keepAlive, http11);
+    }
+
+    /* Stands for a request that could not be parsed, its response closes the connection */
+    static HttpRequest closing() {
+        return new HttpRequest("", new String[0], new HashMap<>(), new HashMap<>(), new byte[0], false, true);
+    }
+
+    /* The offset of the \r\n\r\n ending the request head, -1 if it wasn't read yet */
+    private static int indexOfBlankLine(ByteBuffer in, int start) {
+        for (int i = start; i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static void read(ByteBuffer in, int offset, byte[] into) {
+        ByteBuffer view = in.duplicate();
+        view.position(offset);
+        view.get(into);
+    }
+
+    /* Percent decoding, '+' only stands for a space in the query string */
+    private static String decode(String s, boolean plusIsSpace) throws BadRequest {
+        try {
+            return URLDecoder.decode(plusIsSpace ? s : s.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            throw new BadRequest(400, "bad URL encoding");
+        }
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /* The decoded segments of the path, the first one is the empty string before the leading '/' */
+    String[] getPathSegments() {
+        return segments;
+    }
+
+    /* The query parameter, null if absent */
+    String getParameter(String name) {
+        return query.get(name);
+    }
+
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    String getBody() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /* HTTP/1.0 clients can't take chunked responses */
+    boolean isHttp11() {
+        return http11;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + String.join("/", segments);
+    }
+}
@@ -0,0 +1,212 @@
+package techbook.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/*
+ * The response to one request, written by a worker thread and sent by the server's selector thread.
+ * The body is buffered CHUNK_SIZE bytes at a time: a body that fits in one chunk is sent with a Content-Length,
+ * a longer one goes out chunk by chunk (Transfer-Encoding: chunked, or until the connection closes for HTTP/1.0)
+ * while the worker keeps writing it.
+ *
+ * Responses of pipelined requests are sent in request order, so a response can be written before it is its
+ * connection's turn. Its worker waits whenever more than maxBufferedBytes are not sent yet, whether the response is
+ * being sent or waits for its turn, so neither a slow client nor a deep pipeline buffers more than that per response.
+ * The responses before it were handed to the workers first, so they do not wait for it.
+ */
+class HttpResponse {
+
+    static final int CHUNK_SIZE = 8192;
+
+    private final HttpConnection connection;
+    private final boolean keepAlive;
+    private final boolean chunkedAllowed;
+    private final long maxBufferedBytes;
+
+    /* guarded by this */
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long bufferedBytes = 0;
+    private boolean headSent = false;
+    private boolean finished = false;
+    private boolean aborted = false;
+    private volatile boolean persistent = false;
+
+    HttpResponse(HttpConnection connection, HttpRequest request, long maxBufferedBytes) {
+        this.connection = connection;
+        this.keepAlive = request.isKeepAlive();
+        this.chunkedAllowed = request.isHttp11();
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /* False if the connection is to be closed after this response, known once the head is written */
+    boolean isKeepAlive() {
+        return persistent;
+    }
+
+    /* Sends a whole response */
+    void send(int status, String contentType, byte[] body) throws IOException {
+        enqueue(head(status, contentType, body.length), ByteBuffer.wrap(body));
+        finish();
+    }
+
+    /*
+     * The body of a streamed response, the status and content type are sent with the first chunk.
+     * Closing the stream completes the response.
+     */
+    OutputStream body(int status, String contentType) {
+        return new OutputStream() {
+            private final byte[] chunk = new byte[CHUNK_SIZE];
+            private int length = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (length == chunk.length)
+                    flushChunk(false);
+                chunk[length++] = (byte) b;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                flushChunk(true);
+                finish();
+            }
+
+            private void flushChunk(boolean last) throws IOException {
+                boolean first = !isStarted();
+                if (first && last) {
+                    enqueue(head(status, contentType, length), ByteBuffer.wrap(chunk, 0, length));
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.allocate(length + 16);
+                if (chunkedAllowed && length > 0) {
+                    data.put(ascii(Integer.toHexString(length) + "\r\n")).put(chunk, 0, length).put(ascii("\r\n"));
+                } else {
+                    data.put(chunk, 0, length);
+                }
+                if (chunkedAllowed && last)
+                    data.put(ascii("0\r\n\r\n"));
+                data.flip();
+                length = 0;
+                if (first) {
+                    enqueue(head(status, contentType, -1), data);
+                } else {
+                    enqueue(data);
+                }
+            }
+        };
+    }
+
+    private ByteBuffer head(int status, String contentType, int contentLength) {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason(status));
+        head.append("\r\nContent-Type: ").append(contentType);
+        if (contentLength >= 0) {
+            head.append("\r\nContent-Length: ").append(contentLength);
+        } else if (chunkedAllowed) {
+            head.append("\r\nTransfer-Encoding: chunked");
+        }
+        persistent = keepAlive && (contentLength >= 0 || chunkedAllowed);
+        head.append(persistent ? "\r\nConnection: keep-alive" : "\r\nConnection: close");
+        head.append("\r\n\r\n");
+        return ByteBuffer.wrap(ascii(head.toString()));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 409:
+                return "Conflict";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    /* True once some of the response was handed to the connection */
+    synchronized boolean isStarted() {
+        return headSent;
+    }
+
+    /*
+     * Ends a response that failed half way: what was written is sent and the connection is closed then, so the
+     * client sees a cut chunked body (or a short one) rather than a complete response.
+     */
+    void abandon() {
+        persistent = false;
+        finish();
+    }
+
+    private void enqueue(ByteBuffer... buffers) throws IOException {
+        synchronized (this) {
+            try {
+                while (!aborted && bufferedBytes > maxBufferedBytes) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while the response was sent");
+            }
+            if (aborted)
+                throw new IOException("connection closed");
+            headSent = true;
+            for (ByteBuffer buffer : buffers) {
+                pending.add(buffer);
+                bufferedBytes += buffer.remaining();
+            }
+        }
+        connection.wakeup();
+    }
+
+    private void finish() {
+        synchronized (this) {
+            finished = true;
+        }
+        connection.wakeup();
+    }
+
+    /* Selector thread side */
+
+    /* The next buffer to send, null if there is none yet */
+    synchronized ByteBuffer peek() {
+        return pending.peek();
+    }
+
+    /* Called once the buffer returned by peek() was sent */
+    synchronized void sent(ByteBuffer buffer) {
+        pending.poll();
+        bufferedBytes -= buffer.limit();
+        notifyAll();
+    }
+
+    synchronized boolean isComplete() {
+        return finished && pending.isEmpty();
+    }
+
+    /* The connection closed, a worker still writing gets an IOException */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,181 @@
+package techbook.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Parser for the request bodies: a JSON object whose values are strings, numbers, booleans, null, or arrays of
+ * those. Numbers are read as Long (or Double when they have a fraction or an exponent).
+ * Anything else is rejected with an IllegalArgumentException, which the routes answer with BAD_PARAMS.
+ */
+class JsonReader {
+
+    private final String json;
+    private int pos = 0;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    static Map<String, Object> parseObject(String json) {
+        JsonReader reader = new JsonReader(json);
+        Map<String, Object> object = reader.object();
+        reader.skipSpaces();
+        if (reader.pos != json.length())
+            throw reader.error("trailing characters");
+        return object;
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new HashMap<>();
+        expect('{');
+        if (peek() == '}') {
+            pos++;
+            return object;
+        }
+        do {
+            skipSpaces();
+            String name = string();
+            expect(':');
+            object.put(name, value(true));
+        } while (next() == ',');
+        pos--;
+        expect('}');
+        return object;
+    }
+
+    private Object value(boolean arrayAllowed) {
+        char c = peek();
+        if (c == '"')
+            return string();
+        if (c == '[' && arrayAllowed)
+            return array();
+        if (c == '-' || (c >= '0' && c <= '9'))
+            return number();
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            return true;
+        }
+        if (json.startsWith("false", pos)) {
+            pos += 5;
+            return false;
+        }
+        if (json.startsWith("null", pos)) {
+            pos += 4;
+            return null;
+        }
+        throw error("unexpected value");
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<>();
+        expect('[');
+        if (peek() == ']') {
+            pos++;
+            return array;
+        }
+        do {
+            array.add(value(false));
+        } while (next() == ',');
+        pos--;
+        expect(']');
+        return array;
+    }
+
+    private Number number() {
+        int start = pos;
+        while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0) {
+            pos++;
+        }
+        String text = json.substring(start, pos);
+        try {
+            if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0)
+                return Double.parseDouble(text);
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw error("bad number " + text);
+        }
+    }
+
+    private String string() {
+        if (peek() != '"')
+            throw error("expected a string");
+        pos++;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= json.length())
+                throw error("unterminated string");
+            char c = json.charAt(pos++);
+            if (c == '"')
+                return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= json.length())
+                throw error("unterminated string");
+            char escaped = json.charAt(pos++);
+            switch (escaped) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length())
+                        throw error("bad escape");
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("bad escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(escaped); // \" \\ \/
+            }
+        }
+    }
+
+    private void expect(char c) {
+        if (next() != c)
+            throw error("expected '" + c + "'");
+    }
+
+    /* The next non blank character, consumed */
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    /* The next non blank character, not consumed */
+    private char peek() {
+        skipSpaces();
+        if (pos >= json.length())
+            throw error("unexpected end");
+        return json.charAt(pos);
+    }
+
+    private void skipSpaces() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("bad JSON at " + pos + ": " + message);
+    }
+}
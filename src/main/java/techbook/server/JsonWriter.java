@@ -0,0 +1,197 @@
+package techbook.server;
+
+import techbook.business.CompactFeed;
+import techbook.business.Post;
+import techbook.business.Student;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+
+/*
+ * Streaming JSON output. Values are encoded as UTF-8 straight into the given stream (a response body), nothing is
+ * built as a String first, so a feed is sent while it is still being written.
+ * The writer only tracks whether a comma is due: callers are trusted to open and close what they write.
+ */
+class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final OutputStream out;
+    private boolean comma = false;
+
+    JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        separate();
+        out.write('{');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endObject() throws IOException {
+        out.write('}');
+        comma = true;
+        return this;
+    }
+
+    JsonWriter beginArray() throws IOException {
+        separate();
+        out.write('[');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endArray() throws IOException {
+        out.write(']');
+        comma = true;
+        return this;
+    }
+
+    JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter value(CharSequence value) throws IOException {
+        separate();
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        comma = true;
+        return this;
+    }
+
+    /* The string value[start, end) */
+    JsonWriter value(CharSequence value, int start, int end) throws IOException {
+        separate();
+        string(value, start, end);
+        comma = true;
+        return this;
+    }
+
+    JsonWriter value(Number value) throws IOException {
+        separate();
+        ascii(value == null ? "null" : value.toString());
+        comma = true;
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separate();
+        ascii(value ? "true" : "false");
+        comma = true;
+        return this;
+    }
+
+    JsonWriter value(LocalDateTime value) throws IOException {
+        return value(value == null ? null : value.toString());
+    }
+
+    JsonWriter student(Student student) throws IOException {
+        return beginObject()
+                .name("id").value(student.getId())
+                .name("name").value(student.getName())
+                .name("faculty").value(student.getFaculty())
+                .endObject();
+    }
+
+    JsonWriter post(Post post) throws IOException {
+        return beginObject()
+                .name("id").value(post.getId())
+                .name("author").value(post.getAuthor())
+                .name("text").value(post.getText())
+                .name("likes").value(post.getLikes())
+                .name("date").value(post.getDate())
+                .endObject();
+    }
+
+    /* Writes the posts of a compact feed as an array, the texts go out without a String per post */
+    JsonWriter posts(CompactFeed feed) throws IOException {
+        beginArray();
+        for (int i = 0; i < feed.size(); i++) {
+            beginObject()
+                    .name("id").value(feed.getId(i))
+                    .name("author").value(feed.getAuthor(i))
+                    .name("text").value(feed.getTexts(), feed.getTextStart(i), feed.getTextEnd(i))
+                    .name("likes").value(feed.getLikes(i))
+                    .name("date").value(feed.getDate(i))
+                    .endObject();
+        }
+        return endArray();
+    }
+
+    private void separate() throws IOException {
+        if (comma)
+            out.write(',');
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    private void string(CharSequence s) throws IOException {
+        string(s, 0, s.length());
+    }
+
+    private void string(CharSequence s, int start, int end) throws IOException {
+        out.write('"');
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                escape(c);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (codePoint >> 18));
+                out.write(0x80 | ((codePoint >> 12) & 0x3f));
+                out.write(0x80 | ((codePoint >> 6) & 0x3f));
+                out.write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                escape(c); // unpaired, not encodable as UTF-8
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        out.write('"');
+    }
+
+    private void escape(char c) throws IOException {
+        switch (c) {
+            case '\n':
+                ascii("\\n");
+                break;
+            case '\r':
+                ascii("\\r");
+                break;
+            case '\t':
+                ascii("\\t");
+                break;
+            default:
+                ascii("\\u");
+                out.write(HEX[(c >> 12) & 0xf]);
+                out.write(HEX[(c >> 8) & 0xf]);
+                out.write(HEX[(c >> 4) & 0xf]);
+                out.write(HEX[c & 0xf]);
+        }
+    }
+}
@@ -0,0 +1,620 @@
+package techbook.server;
+
+import techbook.Solution;
+import techbook.business.CompactFeed;
+import techbook.business.Feed;
+import techbook.business.GroupActivity;
+import techbook.business.HomePage;
+import techbook.business.Post;
+import techbook.business.ReturnValue;
+import techbook.business.Student;
+import techbook.business.StudentIdPair;
+import techbook.data.AdmissionControl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The HTTP/JSON routes of the Solution API, run on the server's workers.
+ *
+ * Writes answer {"result": "<ReturnValue>"} with the matching status: OK 200, BAD_PARAMS 400, NOT_EXISTS 404,
+ * ALREADY_EXISTS 409, OVERLOADED 503 and ERROR 500. Reads answer the JSON of what Solution returned, 404 for
+ * a bad student or post, and 503 as well when admission control shed one of their queries (the result is then
+ * empty, not the answer). Dates are ISO local date-times (2017-12-31T23:59:59), lists of ids are comma separated.
+ * A feed page cursor (before, and beforeId with it) needs a limit, without one the request gets 400.
+ *
+ *   GET    /students?ids=1,2,3                      getStudentProfiles
+ *   POST   /students {id, name, faculty}            addStudent
+ *   GET    /students/{id}                           getStudentProfile
+ *   DELETE /students/{id}                           deleteStudent
+ *   PUT    /students/{id}/faculty {faculty}         updateStudentFaculty
+ *   GET    /students/{id}/feed[?before=&beforeId=&limit=] getCompactStudentFeed, getStudentFeedPage with a limit
+ *   GET    /students/{id}/home?feedLimit=&pymkLimit= getHomePage
+ *   GET    /students/{id}/people-you-may-know       getPeopleYouMayKnowList
+ *   GET    /students/{id}/mutual-friends/{id2}?limit=, /mutual-friend-counts?candidates=
+ *   GET    /students/{id}/path/{id2}, /degrees/{id2}?maxDepth=
+ *   PUT    /students/{id}/friends/{id2}             makeAsFriends (DELETE: makeAsNotFriends)
+ *   PUT    /students/{id}/groups/{name}             joinGroup (DELETE: leaveGroup)
+ *   GET    /posts?ids=1,2,3                         getPosts
+ *   POST   /posts {id, author, text, date, group}   addPost (group and date are optional)
+ *   GET    /posts/{id}                              getPost
+ *   PUT    /posts/{id} {text}                       updatePost
+ *   DELETE /posts/{id}                              deletePost
+ *   PUT    /posts/{id}/likes/{studentId}            likePost (DELETE: unlikePost)
+ *   GET    /groups?names=a,b                        getGroupFeeds
+ *   GET    /groups/{name}/feed[?before=&beforeId=&limit=] getCompactGroupFeed, getGroupFeedPage with a limit
+ *   GET    /groups/{name}/member-count              getGroupMemberCount
+ *   GET    /groups/{name}/trending?minutes=&k=      getTrendingPosts (group "public" for the public posts)
+ *   GET    /groups/{name}/activity?from=&to=        getGroupActivity
+ *   GET    /search?q=&group=&limit=                 searchPosts
+ *   GET    /autocomplete/students?prefix=&limit=, /autocomplete/groups?prefix=&limit=
+ *   GET    /remotely-connected-pairs                getRemotelyConnectedPairs
+ *   GET    /health
+ */
+class Routes {
+
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String PUBLIC_GROUP = "public";
+
+    private interface JsonBody {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    /* Answers the request, never throws */
+    static void handle(HttpRequest request, HttpResponse response) {
+        AdmissionControl.clearRejected();
+        try {
+            route(request, response, request.getPathSegments());
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            fail(response, 400, e.getMessage());
+        } catch (IOException e) {
+            // the client is gone
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail(response, 500, "internal error");
+        }
+    }
+
+    /* A response that already started can't get an error status, it is cut short instead */
+    private static void fail(HttpResponse response, int status, String message) {
+        if (response.isStarted()) {
+            response.abandon();
+        } else {
+            sendError(response, status, message);
+        }
+    }
+
+    /* Answers {"error": message}, never throws */
+    static void sendError(HttpResponse response, int status, String message) {
+        try {
+            send(response, status, json -> json.beginObject().name("error").value(message).endObject());
+        } catch (IOException e) {
+            // the client is gone
+        }
+    }
+
+    /* segments[0] is the empty string before the leading '/' */
+    private static void route(HttpRequest request, HttpResponse response, String[] segments) throws IOException {
+        String method = request.getMethod();
+        String resource = segments.length > 1 ? segments[1] : "";
+        switch (resource) {
+            case "students":
+                students(request, response, method, segments);
+                return;
+            case "posts":
+                posts(request, response, method, segments);
+                return;
+            case "groups":
+                groups(request, response, method, segments);
+                return;
+            case "search":
+                if (expect(response, method, "GET", segments, 2))
+                    sendFeed(response, Solution.searchPosts(request.getParameter("q"),
+                            request.getParameter("group"), intParameter(request, "limit", 20)));
+                return;
+            case "autocomplete":
+                autocomplete(request, response, method, segments);
+                return;
+            case "remotely-connected-pairs":
+                if (expect(response, method, "GET", segments, 2)) {
+                    ArrayList<StudentIdPair> pairs = Solution.getRemotelyConnectedPairs();
+                    send(response, 200, json -> {
+                        json.beginArray();
+                        for (StudentIdPair pair : pairs) {
+                            json.beginArray().value(pair.getStudentId1()).value(pair.getStudentId2()).endArray();
+                        }
+                        json.endArray();
+                    });
+                }
+                return;
+            case "health":
+                if (expect(response, method, "GET", segments, 2))
+                    send(response, 200, json -> json.beginObject().name("status").value("UP").endObject());
+                return;
+            default:
+                sendError(response, 404, "no such resource");
+        }
+    }
+
+    private static void students(HttpRequest request, HttpResponse response, String method, String[] segments)
+            throws IOException {
+        if (segments.length == 2) {
+            if (method.equals("GET")) {
+                ArrayList<Student> students = Solution.getStudentProfiles(intList(request, "ids"));
+                send(response, 200, json -> {
+                    json.beginArray();
+                    for (Student s : students) {
+                        json.student(s);
+                    }
+                    json.endArray();
+                });
+            } else if (method.equals("POST")) {
+                Map<String, Object> body = JsonReader.parseObject(request.getBody());
+                Student student = new Student();
+                student.setId(intField(body, "id"));
+                student.setName(stringField(body, "name"));
+                student.setFaculty(stringField(body, "faculty"));
+                sendResult(response, Solution.addStudent(student));
+            } else {
+                sendError(response, 405, "use GET or POST");
+            }
+            return;
+        }
+
+        Integer id = intSegment(segments[2]);
+        if (segments.length == 3) {
+            if (method.equals("GET")) {
+                Student student = Solution.getStudentProfile(id);
+                if (student.equals(Student.badStudent())) {
+                    sendError(response, 404, "no such student");
+                } else {
+                    send(response, 200, json -> json.student(student));
+                }
+            } else if (method.equals("DELETE")) {
+                sendResult(response, Solution.deleteStudent(id));
+            } else {
+                sendError(response, 405, "use GET or DELETE");
+            }
+            return;
+        }
+
+        String relation = segments[3];
+        if (segments.length == 4) {
+            switch (relation) {
+                case "faculty":
+                    if (expect(response, method, "PUT", segments, 4)) {
+                        Student student = new Student();
+                        student.setId(id);
+                        student.setFaculty(stringField(JsonReader.parseObject(request.getBody()), "faculty"));
+                        sendResult(response, Solution.updateStudentFaculty(student));
+                    }
+                    return;
+                case "feed":
+                    if (expect(response, method, "GET", segments, 4)) {
+                        Integer limit = pageLimit(request);
+                        if (limit == null) {
+                            sendFeed(response, Solution.getCompactStudentFeed(id));
+                        } else {
+                            sendFeed(response, Solution.getStudentFeedPage(id, timestampParameter(request, "before"),
+                                    intParameter(request, "beforeId", null), limit));
+                        }
+                    }
+                    return;
+                case "home":
+                    if (expect(response, method, "GET", segments, 4)) {
+                        HomePage page = Solution.getHomePage(id, intParameter(request, "feedLimit", 20),
+                                intParameter(request, "pymkLimit", 10));
+                        if (page.getStudent().equals(Student.badStudent())) {
+                            sendError(response, 404, "no such student");
+                        } else {
+                            send(response, 200, json -> {
+                                json.beginObject().name("student").student(page.getStudent());
+                                json.name("feed");
+                                posts(json, page.getFeed());
+                                json.name("peopleYouMayKnow").beginArray();
+                                for (Student s : page.getPeopleYouMayKnow()) {
+                                    json.student(s);
+                                }
+                                json.endArray().endObject();
+                            });
+                        }
+                    }
+                    return;
+                case "people-you-may-know":
+                    if (expect(response, method, "GET", segments, 4))
+                        sendStudents(response, Solution.getPeopleYouMayKnowList(id));
+                    return;
+                case "mutual-friend-counts":
+                    if (expect(response, method, "GET", segments, 4)) {
+                        Map<Integer, Integer> counts = Solution.getMutualFriendCounts(id,
+                                intList(request, "candidates"));
+                        send(response, 200, json -> {
+                            json.beginObject();
+                            for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                                json.name(entry.getKey().toString()).value(entry.getValue());
+                            }
+                            json.endObject();
+                        });
+                    }
+                    return;
+                default:
+                    sendError(response, 404, "no such resource");
+                    return;
+            }
+        }
+
+        if (segments.length != 5) {
+            sendError(response, 404, "no such resource");
+            return;
+        }
+        switch (relation) {
+            case "mutual-friends":
+                if (expect(response, method, "GET", segments, 5))
+                    sendStudents(response, Solution.getMutualFriends(id, intSegment(segments[4]),
+                            intParameter(request, "limit", Integer.MAX_VALUE)));
+                return;
+            case "path":
+                if (expect(response, method, "GET", segments, 5)) {
+                    ArrayList<Integer> path = Solution.getConnectionPath(id, intSegment(segments[4]));
+                    send(response, 200, json -> {
+                        json.beginArray();
+                        for (Integer step : path) {
+                            json.value(step);
+                        }
+                        json.endArray();
+                    });
+                }
+                return;
+            case "degrees":
+                if (expect(response, method, "GET", segments, 5)) {
+                    Integer degrees = Solution.getDegreesOfSeparation(id, intSegment(segments[4]),
+                            intParameter(request, "maxDepth", Integer.MAX_VALUE));
+                    send(response, 200, json -> json.beginObject().name("degrees").value(degrees).endObject());
+                }
+                return;
+            case "friends":
+                if (method.equals("PUT")) {
+                    sendResult(response, Solution.makeAsFriends(id, intSegment(segments[4])));
+                } else if (method.equals("DELETE")) {
+                    sendResult(response, Solution.makeAsNotFriends(id, intSegment(segments[4])));
+                } else {
+                    sendError(response, 405, "use PUT or DELETE");
+                }
+                return;
+            case "groups":
+                if (method.equals("PUT")) {
+                    sendResult(response, Solution.joinGroup(id, segments[4]));
+                } else if (method.equals("DELETE")) {
+                    sendResult(response, Solution.leaveGroup(id, segments[4]));
+                } else {
+                    sendError(response, 405, "use PUT or DELETE");
+                }
+                return;
+            default:
+                sendError(response, 404, "no such resource");
+        }
+    }
+
+    private static void posts(HttpRequest request, HttpResponse response, String method, String[] segments)
+            throws IOException {
+        if (segments.length == 2) {
+            if (method.equals("GET")) {
+                ArrayList<Post> posts = Solution.getPosts(intList(request, "ids"));
+                send(response, 200, json -> {
+                    json.beginArray();
+                    for (Post p : posts) {
+                        json.post(p);
+                    }
+                    json.endArray();
+                });
+            } else if (method.equals("POST")) {
+                Map<String, Object> body = JsonReader.parseObject(request.getBody());
+                Post post = new Post();
+                post.setId(intField(body, "id"));
+                post.setAuthor(intField(body, "author"));
+                post.setText(stringField(body, "text"));
+                String date = stringField(body, "date");
+                post.setDate(date == null ? LocalDateTime.now() : LocalDateTime.parse(date));
+                sendResult(response, Solution.addPost(post, stringField(body, "group")));
+            } else {
+                sendError(response, 405, "use GET or POST");
+            }
+            return;
+        }
+
+        Integer id = intSegment(segments[2]);
+        if (segments.length == 3) {
+            if (method.equals("GET")) {
+                Post post = Solution.getPost(id);
+                if (post.equals(Post.badPost())) {
+                    sendError(response, 404, "no such post");
+                } else {
+                    send(response, 200, json -> json.post(post));
+                }
+            } else if (method.equals("PUT")) {
+                Post post = new Post();
+                post.setId(id);
+                post.setText(stringField(JsonReader.parseObject(request.getBody()), "text"));
+                sendResult(response, Solution.updatePost(post));
+            } else if (method.equals("DELETE")) {
+                sendResult(response, Solution.deletePost(id));
+            } else {
+                sendError(response, 405, "use GET, PUT or DELETE");
+            }
+            return;
+        }
+
+        if (segments.length != 5 || !segments[3].equals("likes")) {
+            sendError(response, 404, "no such resource");
+        } else if (method.equals("PUT")) {
+            sendResult(response, Solution.likePost(intSegment(segments[4]), id));
+        } else if (method.equals("DELETE")) {
+            sendResult(response, Solution.unlikePost(intSegment(segments[4]), id));
+        } else {
+            sendError(response, 405, "use PUT or DELETE");
+        }
+    }
+
+    private static void groups(HttpRequest request, HttpResponse response, String method, String[] segments)
+            throws IOException {
+        if (segments.length == 2) {
+            if (expect(response, method, "GET", segments, 2)) {
+                ArrayList<Feed> feeds = Solution.getGroupFeeds(stringList(request, "names"));
+                send(response, 200, json -> {
+                    json.beginArray();
+                    for (Feed feed : feeds) {
+                        posts(json, feed);
+                    }
+                    json.endArray();
+                });
+            }
+            return;
+        }
+        if (segments.length != 4) {
+            sendError(response, 404, "no such resource");
+            return;
+        }
+
+        String name = segments[2];
+        switch (segments[3]) {
+            case "feed":
+                if (expect(response, method, "GET", segments, 4)) {
+                    Integer limit = pageLimit(request);
+                    if (limit == null) {
+                        sendFeed(response, Solution.getCompactGroupFeed(name));
+                    } else {
+                        sendFeed(response, Solution.getGroupFeedPage(name, timestampParameter(request, "before"),
+                                intParameter(request, "beforeId", null), limit));
+                    }
+                }
+                return;
+            case "member-count":
+                if (expect(response, method, "GET", segments, 4)) {
+                    Integer count = Solution.getGroupMemberCount(name);
+                    send(response, 200, json -> json.beginObject().name("members").value(count).endObject());
+                }
+                return;
+            case "trending":
+                if (expect(response, method, "GET", segments, 4))
+                    sendFeed(response, Solution.getTrendingPosts(name.equals(PUBLIC_GROUP) ? null : name,
+                            Duration.ofMinutes(intParameter(request, "minutes", 60)), intParameter(request, "k", 10)));
+                return;
+            case "activity":
+                if (expect(response, method, "GET", segments, 4)) {
+                    ArrayList<GroupActivity> days = Solution.getGroupActivity(name,
+                            LocalDate.parse(requiredParameter(request, "from")),
+                            LocalDate.parse(requiredParameter(request, "to")));
+                    send(response, 200, json -> {
+                        json.beginArray();
+                        for (GroupActivity day : days) {
+                            json.beginObject()
+                                    .name("day").value(day.getDay().toString())
+                                    .name("posts").value(day.getPosts())
+                                    .name("likes").value(day.getLikes())
+                                    .name("joins").value(day.getJoins())
+                                    .name("leaves").value(day.getLeaves())
+                                    .endObject();
+                        }
+                        json.endArray();
+                    });
+                }
+                return;
+            default:
+                sendError(response, 404, "no such resource");
+        }
+    }
+
+    private static void autocomplete(HttpRequest request, HttpResponse response, String method, String[] segments)
+            throws IOException {
+        if (!expect(response, method, "GET", segments, 3))
+            return;
+        String prefix = requiredParameter(request, "prefix");
+        Integer limit = intParameter(request, "limit", 10);
+        if (segments[2].equals("students")) {
+            ArrayList<Student> students = Solution.autocompleteStudents(prefix, limit);
+            send(response, 200, json -> {
+                json.beginArray();
+                for (Student s : students) {
+                    json.beginObject().name("id").value(s.getId()).name("name").value(s.getName()).endObject();
+                }
+                json.endArray();
+            });
+        } else if (segments[2].equals("groups")) {
+            ArrayList<String> groups = Solution.autocompleteGroups(prefix, limit);
+            send(response, 200, json -> {
+                json.beginArray();
+                for (String group : groups) {
+                    json.value(group);
+                }
+                json.endArray();
+            });
+        } else {
+            sendError(response, 404, "no such resource");
+        }
+    }
+
+    /* Answers 404 or 405 unless the request has the method and the number of path segments, returns false then */
+    private static boolean expect(HttpResponse response, String method, String expected, String[] segments,
+                                  int length) {
+        if (segments.length != length) {
+            sendError(response, 404, "no such resource");
+            return false;
+        }
+        if (!method.equals(expected)) {
+            sendError(response, 405, "use " + expected);
+            return false;
+        }
+        return true;
+    }
+
+    /* Responses */
+
+    private static void send(HttpResponse response, int status, JsonBody body) throws IOException {
+        if (status < 500 && AdmissionControl.wasRejected()) {
+            status = 503;
+            body = json -> json.beginObject().name("error").value("overloaded").endObject();
+        }
+        OutputStream out = response.body(status, JSON);
+        try {
+            body.write(new JsonWriter(out));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void sendResult(HttpResponse response, ReturnValue result) throws IOException {
+        byte[] body = ("{\"result\":\"" + result + "\"}").getBytes(StandardCharsets.UTF_8);
+        response.send(status(result), JSON, body);
+    }
+
+    private static int status(ReturnValue result) {
+        switch (result) {
+            case OK:
+                return 200;
+            case BAD_PARAMS:
+                return 400;
+            case NOT_EXISTS:
+                return 404;
+            case ALREADY_EXISTS:
+                return 409;
+            case OVERLOADED:
+                return 503;
+            default:
+                return 500;
+        }
+    }
+
+    private static void sendFeed(HttpResponse response, Feed feed) throws IOException {
+        send(response, 200, json -> posts(json, feed));
+    }
+
+    /* Compact feeds are streamed straight from their arrays */
+    private static void sendFeed(HttpResponse response, CompactFeed feed) throws IOException {
+        send(response, 200, json -> json.posts(feed));
+    }
+
+    private static void posts(JsonWriter json, Feed feed) throws IOException {
+        json.beginArray();
+        for (Post p : feed) {
+            json.post(p);
+        }
+        json.endArray();
+    }
+
+    private static void sendStudents(HttpResponse response, ArrayList<Student> students) throws IOException {
+        send(response, 200, json -> {
+            json.beginArray();
+            for (Student s : students) {
+                json.student(s);
+            }
+            json.endArray();
+        });
+    }
+
+    /* Parameters, malformed ones throw IllegalArgumentException */
+
+    private static Integer intSegment(String segment) {
+        try {
+            return Integer.valueOf(segment);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not an id: " + segment);
+        }
+    }
+
+    private static String requiredParameter(HttpRequest request, String name) {
+        String value = request.getParameter(name);
+        if (value == null)
+            throw new IllegalArgumentException("missing parameter " + name);
+        return value;
+    }
+
+    private static Integer intParameter(HttpRequest request, String name, Integer defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter " + name + " is not a number");
+        }
+    }
+
+    /* The limit of a feed page, null for the whole feed, which takes no page cursor */
+    private static Integer pageLimit(HttpRequest request) {
+        Integer limit = intParameter(request, "limit", null);
+        boolean hasBefore = timestampParameter(request, "before") != null;
+        boolean hasBeforeId = intParameter(request, "beforeId", null) != null;
+        if (limit == null && (hasBefore || hasBeforeId))
+            throw new IllegalArgumentException("parameters before and beforeId need a limit");
+        if (hasBeforeId && !hasBefore)
+            throw new IllegalArgumentException("parameter beforeId needs before");
+        return limit;
+    }
+
+    private static Timestamp timestampParameter(HttpRequest request, String name) {
+        String value = request.getParameter(name);
+        return value == null || value.isEmpty() ? null : Timestamp.valueOf(LocalDateTime.parse(value));
+    }
+
+    private static List<String> stringList(HttpRequest request, String name) {
+        List<String> values = new ArrayList<>();
+        for (String value : requiredParameter(request, name).split(",")) {
+            if (!value.isEmpty())
+                values.add(value);
+        }
+        return values;
+    }
+
+    private static List<Integer> intList(HttpRequest request, String name) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : stringList(request, name)) {
+            values.add(intSegment(value));
+        }
+        return values;
+    }
+
+    private static Integer intField(Map<String, Object> body, String name) {
+        Object value = body.get(name);
+        if (value == null)
+            throw new IllegalArgumentException("missing field " + name);
+        if (!(value instanceof Long) || (Long) value != ((Long) value).intValue())
+            throw new IllegalArgumentException("field " + name + " is not an integer");
+        return ((Long) value).intValue();
+    }
+
+    private static String stringField(Map<String, Object> body, String name) {
+        Object value = body.get(name);
+        if (value != null && !(value instanceof String))
+            throw new IllegalArgumentException("field " + name + " is not a string");
+        return (String) value;
+    }
+}
@@ -0,0 +1,217 @@
+package techbook.server;
+
+import techbook.Solution;
+import techbook.data.DBConnector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Embedded HTTP/JSON server for the Solution API (see Routes for the routes).
+ * One selector thread does all the socket I/O without blocking: it accepts connections, parses requests (kept
+ * alive and pipelined), and writes responses as their workers produce them. The Solution calls run on a bounded
+ * pool of workers sized to the interactive bulkhead of AdmissionControl (admission.interactive.maxLimit), since more
+ * workers would only wait there for a connection; requests beyond the pool and its queue get 503 right away.
+ *
+ * Run it from the assembly jar with
+ *     java -jar target/236363_winter17-18_hw2-1.jar serve [port]
+ * and load it with any HTTP benchmark tool, e.g.
+ *     wrk -t4 -c64 -d30s http://localhost:8080/students/1/feed
+ *
+ * server.port               port to listen on
+ * server.workers            worker threads, 0 for admission.interactive.maxLimit
+ * server.queue              requests waiting for a worker before 503
+ * server.maxPipelined       requests of one connection waiting for their responses before it is not read
+ * server.maxRequestBytes    largest request head and body
+ * server.maxBufferedBytes   bytes of a response written by its worker but not sent yet before the worker waits
+ * server.idleTimeoutMillis  idle keep-alive connections are closed after this long
+ */
+public class TechbookServer {
+
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private final int port;
+    private final int maxPipelined;
+    private final int maxRequestBytes;
+    private final long maxBufferedBytes;
+    private final long idleTimeoutMillis;
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentLinkedQueue<HttpConnection> ready = new ConcurrentLinkedQueue<>();
+
+    private Selector selector = null;
+    private ServerSocketChannel serverChannel = null;
+    private Thread selectorThread = null;
+    private volatile boolean running = false;
+
+    public TechbookServer(int port) {
+        this.port = port;
+        maxPipelined = Integer.parseInt(DBConnector.getProperty("server.maxPipelined", "16"));
+        maxRequestBytes = Integer.parseInt(DBConnector.getProperty("server.maxRequestBytes", "1048576"));
+        maxBufferedBytes = Long.parseLong(DBConnector.getProperty("server.maxBufferedBytes", "262144"));
+        idleTimeoutMillis = Long.parseLong(DBConnector.getProperty("server.idleTimeoutMillis", "30000"));
+        int size = Integer.parseInt(DBConnector.getProperty("server.workers", "0"));
+        if (size <= 0)
+            size = Integer.parseInt(DBConnector.getProperty("admission.interactive.maxLimit", "100"));
+        int queue = Integer.parseInt(DBConnector.getProperty("server.queue", "1000"));
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), r -> {
+            Thread t = new Thread(r, "techbook-server-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public TechbookServer() {
+        this(Integer.parseInt(DBConnector.getProperty("server.port", "8080")));
+    }
+
+    /* Serves until stop() */
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(this::serve, "techbook-server");
+        selectorThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+
+    /* The port listened on, the actual one when constructed with port 0 */
+    public int getPort() {
+        return serverChannel == null ? port : serverChannel.socket().getLocalPort();
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    HttpConnection connection = (HttpConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        } else if (key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                HttpConnection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.write();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                closeIdle();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof HttpConnection)
+                    ((HttpConnection) key.attachment()).close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new HttpConnection(this, channel, key));
+        }
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof HttpConnection) {
+                HttpConnection connection = (HttpConnection) key.attachment();
+                if (connection.isIdle(now, idleTimeoutMillis))
+                    connection.close();
+            }
+        }
+    }
+
+    /* Selector thread: hands the request to a worker, or answers 503 when they are all busy */
+    void dispatch(HttpRequest request, HttpResponse response) {
+        try {
+            workers.execute(() -> Routes.handle(request, response));
+        } catch (RejectedExecutionException e) {
+            Routes.sendError(response, 503, "overloaded");
+        }
+    }
+
+    /* Any thread: the connection has something to write */
+    void wakeup(HttpConnection connection) {
+        ready.add(connection);
+        selector.wakeup();
+    }
+
+    int getMaxPipelined() {
+        return maxPipelined;
+    }
+
+    int getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        TechbookServer server = args.length > 0 ? new TechbookServer(Integer.parseInt(args[0]))
+                : new TechbookServer();
+        Solution.loadAutocompleteIndexes();
+        server.start();
+        System.out.println("Serving the techbook API on port " + server.getPort());
+    }
+}
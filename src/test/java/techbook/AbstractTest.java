@@ -3,24 +3,81 @@ package techbook;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import techbook.memory.InMemoryStore;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Every test runs once against each selected storage engine, the store under test is in the store field.
+ * The engines are picked with -Dtechbook.engines (comma separated, "sql,memory" by default), e.g.
+ * -Dtechbook.engines=memory runs the tests without Postgres. Only the selected engines create their tables.
+ */
+@RunWith(Parameterized.class)
 public abstract class AbstractTest {
 
+    private static final Map<String, TechbookStore> stores = selectedStores();
+
+    /* Tests outside this hierarchy that need Postgres check isSelected("sql") before connecting */
+    public static boolean isSelected(String engine)
+    {
+        for (String name : System.getProperty("techbook.engines", "sql,memory").split(",")) {
+            if (name.trim().equals(engine))
+                return true;
+        }
+        return false;
+    }
+
+    private static Map<String, TechbookStore> selectedStores()
+    {
+        Map<String, TechbookStore> selected = new LinkedHashMap<>();
+        if (isSelected("sql"))
+            selected.put("sql", new SqlStore());
+        if (isSelected("memory"))
+            selected.put("memory", new InMemoryStore());
+        return selected;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines()
+    {
+        List<Object[]> engines = new ArrayList<>();
+        for (Map.Entry<String, TechbookStore> entry : stores.entrySet()) {
+            engines.add(new Object[]{entry.getKey(), entry.getValue()});
+        }
+        return engines;
+    }
+
+    @Parameterized.Parameter(0)
+    public String engine;
+
+    @Parameterized.Parameter(1)
+    public TechbookStore store;
+
     @BeforeClass
     public static void createTables()
     {
-        Solution.createTables();
+        for (TechbookStore selected : stores.values()) {
+            selected.createTables();
+        }
     }
 
     @AfterClass
     public static void dropTables()
     {
-        Solution.dropTables();
+        for (TechbookStore selected : stores.values()) {
+            selected.dropTables();
+        }
     }
 
     @Before
     public void clearTables()
     {
-        Solution.clearTables();
+        store.clearTables();
     }
 }
@@ -34,10 +34,10 @@ public class SimpleTest extends AbstractTest{
         student.setId(1);
         student.setName("student");
         student.setFaculty("CS");
-        ReturnValue result = Solution.addStudent(student);
+        ReturnValue result = store.addStudent(student);
         assertEquals(OK, result);
 
-        Student resultStudent = Solution.getStudentProfile(1);
+        Student resultStudent = store.getStudentProfile(1);
         assertEquals(student, resultStudent);
 
     }
@@ -49,7 +49,7 @@ public class SimpleTest extends AbstractTest{
         student.setId(1);
         student.setName("student");
         student.setFaculty("CS");
-        ReturnValue result = Solution.addStudent(student);
+        ReturnValue result = store.addStudent(student);
         assertEquals(OK, result);
 
         Student nonexisting = new Student();
@@ -60,17 +60,14 @@ public class SimpleTest extends AbstractTest{
 
         // Join:
         // each student auto-joins its faculty group
-        assertEquals(ALREADY_EXISTS, Solution.joinGroup(student.getId(), "CS"));
-        assertEquals(NOT_EXISTS, Solution.joinGroup(nonexisting.getId(), "CS"));
-        assertEquals(OK, Solution.joinGroup(student.getId(), "EE"));
+        assertEquals(ALREADY_EXISTS, store.joinGroup(student.getId(), "CS"));
+        assertEquals(NOT_EXISTS, store.joinGroup(nonexisting.getId(), "CS"));
+        assertEquals(OK, store.joinGroup(student.getId(), "EE"));
 
         // Leave:
-        assertEquals(OK, Solution.leaveGroup(student.getId(), "EE"));
-        assertEquals(NOT_EXISTS, Solution.leaveGroup(student.getId(), "NO SUCH GROUP"));
-        assertEquals(NOT_EXISTS, Solution.leaveGroup(nonexisting.getId(), "EE"));
-
-
-        assertTrue("Write more tests", false);
+        assertEquals(OK, store.leaveGroup(student.getId(), "EE"));
+        assertEquals(NOT_EXISTS, store.leaveGroup(student.getId(), "NO SUCH GROUP"));
+        assertEquals(NOT_EXISTS, store.leaveGroup(nonexisting.getId(), "EE"));
     }
 
     @Test
@@ -80,44 +77,42 @@ public class SimpleTest extends AbstractTest{
         student.setId(1);
         student.setName("student");
         student.setFaculty("CS");
-        ReturnValue result = Solution.addStudent(student);
+        ReturnValue result = store.addStudent(student);
         assertEquals(OK, result);
 
         LocalDateTime now = LocalDateTime.now();
         Post post = new Post();
         post.setId(1);
         post.setLikes(0);
-        post.setAuthour(student.getId());
+        post.setAuthor(student.getId());
         post.setText("I am a post!");
         post.setDate(now);
 
         Post to_delete = new Post();
         to_delete.setId(2);
         to_delete.setLikes(0);
-        to_delete.setAuthour(student.getId());
+        to_delete.setAuthor(student.getId());
         to_delete.setText("They want to delete me!!!");
         to_delete.setDate(now);
 
 
         // AddPost:
-        assertEquals(OK, Solution.addPost(post, "CS"));
-        assertEquals(ALREADY_EXISTS, Solution.addPost(post, "CS"));
-        assertEquals(NOT_EXISTS, Solution.addPost(to_delete, "ME")); // student not in 'ME' group
+        assertEquals(OK, store.addPost(post, "CS"));
+        assertEquals(ALREADY_EXISTS, store.addPost(post, "CS"));
+        assertEquals(NOT_EXISTS, store.addPost(to_delete, "ME")); // student not in 'ME' group
 
         // DeletePost:
-        assertEquals(NOT_EXISTS, Solution.deletePost(to_delete.getId())); // to_delete hasn't been posted yet
-        assertEquals(OK, Solution.addPost(to_delete, "CS")); // now we post it
-        assertEquals(OK, Solution.deletePost(to_delete.getId()));
+        assertEquals(NOT_EXISTS, store.deletePost(to_delete.getId())); // to_delete hasn't been posted yet
+        assertEquals(OK, store.addPost(to_delete, "CS")); // now we post it
+        assertEquals(OK, store.deletePost(to_delete.getId()));
 
         // GetPost:
-        Post from_db = Solution.getPost(post.getId());
+        Post from_db = store.getPost(post.getId());
         assertEquals(post.getId(), from_db.getId());
-        assertEquals(post.getAuthour(), from_db.getAuthour());
+        assertEquals(post.getAuthor(), from_db.getAuthor());
         assertEquals(post.getText(), from_db.getText());
         assertEquals(post.getDate(), from_db.getDate()); // FIXME
         assertEquals(post.getLikes(), from_db.getLikes()); // there was no likes, so it should stay 0
-
-        assertTrue("Write more tests", false);
     }
 
     @Test
@@ -130,30 +125,30 @@ public class SimpleTest extends AbstractTest{
             student.setFaculty("CS");
             student.setName("noname");
             students.add(student);
-            Solution.addStudent(student);
+            store.addStudent(student);
         }
 
-        assertEquals(new ArrayList<StudentIdPair>(), Solution.getRemotelyConnectedPairs());
+        assertEquals(new ArrayList<StudentIdPair>(), store.getRemotelyConnectedPairs());
 
-        Solution.makeAsFriends(1,2);
-        Solution.makeAsFriends(2,3);
-        Solution.makeAsFriends(3,4);
-        Solution.makeAsFriends(4,5);
+        store.makeAsFriends(1,2);
+        store.makeAsFriends(2,3);
+        store.makeAsFriends(3,4);
+        store.makeAsFriends(4,5);
 
-        Solution.makeAsFriends(6,7);
-        Solution.makeAsFriends(7,8);
-        Solution.makeAsFriends(8,9);
-        Solution.makeAsFriends(9,10);
+        store.makeAsFriends(6,7);
+        store.makeAsFriends(7,8);
+        store.makeAsFriends(8,9);
+        store.makeAsFriends(9,10);
 
-        Solution.makeAsFriends(11,12);
-        Solution.makeAsFriends(12,13);
-        Solution.makeAsFriends(13,14);
-        Solution.makeAsFriends(14,15);
+        store.makeAsFriends(11,12);
+        store.makeAsFriends(12,13);
+        store.makeAsFriends(13,14);
+        store.makeAsFriends(14,15);
 
-        Solution.makeAsFriends(2,8);
-        Solution.makeAsFriends(5,10);
-        Solution.makeAsFriends(6,11);
-        Solution.makeAsFriends(10,12);
+        store.makeAsFriends(2,8);
+        store.makeAsFriends(5,10);
+        store.makeAsFriends(6,11);
+        store.makeAsFriends(10,12);
 
         /*
         * Expected APSP length(acc. to Floyd-Marshall run):
@@ -216,7 +211,7 @@ public class SimpleTest extends AbstractTest{
            expectedStudents.add(newPair);
         });
 
-        ArrayList<StudentIdPair> result = Solution.getRemotelyConnectedPairs();
+        ArrayList<StudentIdPair> result = store.getRemotelyConnectedPairs();
 
         //System.out.println(result);
 
@@ -230,27 +225,27 @@ public class SimpleTest extends AbstractTest{
         student1.setId(1);
         student1.setName("cs student");
         student1.setFaculty("CS");
-        Solution.addStudent(student1);
+        store.addStudent(student1);
 
         Student student2 = new Student();
         student2.setId(2);
         student2.setName("ee student");
         student2.setFaculty("EE");
-        Solution.addStudent(student2);
+        store.addStudent(student2);
 
         student1.setFaculty("EE");
-        assertEquals(OK, Solution.updateStudentFaculty(student1));
+        assertEquals(OK, store.updateStudentFaculty(student1));
 
         // If leaveGroup returns OK - student was a member of a group
-        assertEquals(OK, Solution.leaveGroup(student1.getId(), "CS"));
-        assertEquals(OK, Solution.leaveGroup(student1.getId(), "EE"));
+        assertEquals(OK, store.leaveGroup(student1.getId(), "CS"));
+        assertEquals(OK, store.leaveGroup(student1.getId(), "EE"));
 
         Student nonexisting = new Student();
         nonexisting.setId(123456789);
         nonexisting.setName("I'm not in DB");
         nonexisting.setFaculty("CS");
 
-        assertEquals(NOT_EXISTS, Solution.updateStudentFaculty(nonexisting));
+        assertEquals(NOT_EXISTS, store.updateStudentFaculty(nonexisting));
     }
 
 }
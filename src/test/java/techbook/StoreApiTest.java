@@ -0,0 +1,213 @@
+package techbook;
+
+import org.junit.Test;
+import techbook.business.Feed;
+import techbook.business.HomePage;
+import techbook.business.Post;
+import techbook.business.Student;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static techbook.business.ReturnValue.ALREADY_EXISTS;
+import static techbook.business.ReturnValue.OK;
+
+/*
+ * The bulk, paging, home page, friendship and deletion APIs, answered the same way by every engine
+ */
+public class StoreApiTest extends AbstractTest {
+
+    private static final LocalDateTime DATE = LocalDateTime.of(2017, 12, 31, 12, 0);
+
+    private Student addStudent(int id, String faculty)
+    {
+        Student student = new Student();
+        student.setId(id);
+        student.setName("student " + id);
+        student.setFaculty(faculty);
+        assertEquals(OK, store.addStudent(student));
+        return student;
+    }
+
+    private Post post(int id, int author, LocalDateTime date)
+    {
+        Post post = new Post();
+        post.setId(id);
+        post.setLikes(0);
+        post.setAuthor(author);
+        post.setText("post " + id);
+        post.setDate(date);
+        return post;
+    }
+
+    private static List<Integer> ids(Feed feed)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (Post p : feed) {
+            ids.add(p.getId());
+        }
+        return ids;
+    }
+
+    private static List<Integer> studentIds(List<Student> students)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (Student s : students) {
+            ids.add(s.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void bulkReadsKeepTheOrderOfTheIds()
+    {
+        Student first = addStudent(1, "CS");
+        Student second = addStudent(2, "EE");
+        assertEquals(OK, store.addPost(post(1, 1, DATE), "CS"));
+        assertEquals(OK, store.addPost(post(2, 2, DATE), null));
+
+        assertEquals(Arrays.asList(second, Student.badStudent(), Student.badStudent(), first),
+                store.getStudentProfiles(Arrays.asList(2, null, 99, 1)));
+
+        List<Post> posts = store.getPosts(Arrays.asList(2, 99, null, 1));
+        assertEquals(Integer.valueOf(2), posts.get(0).getId());
+        assertEquals(Post.badPost(), posts.get(1));
+        assertEquals(Post.badPost(), posts.get(2));
+        assertEquals("post 1", posts.get(3).getText());
+
+        List<Feed> feeds = store.getGroupFeeds(Arrays.asList("EE", "CS", null, "no such group"));
+        assertEquals(4, feeds.size());
+        assertEquals(0, feeds.get(0).size());
+        assertEquals(Arrays.asList(1), ids(feeds.get(1)));
+        assertEquals(0, feeds.get(2).size());
+        assertEquals(0, feeds.get(3).size());
+    }
+
+    @Test
+    public void feedPagesFollowTheCursor()
+    {
+        addStudent(1, "CS");
+        addStudent(2, "CS");
+        assertEquals(OK, store.makeAsFriends(1, 2));
+        for (int id = 1; id <= 5; id++) {
+            assertEquals(OK, store.addPost(post(id, id % 2 + 1, DATE), "CS"));
+        }
+        assertEquals(OK, store.addPost(post(6, 1, DATE.plusHours(1)), null));
+
+        Timestamp date = Timestamp.valueOf(DATE);
+        assertEquals(Arrays.asList(6, 5), ids(store.getStudentFeedPage(1, null, null, 2)));
+        assertEquals(Arrays.asList(4, 3), ids(store.getStudentFeedPage(1, date, 5, 2)));
+        assertEquals(Arrays.asList(2, 1), ids(store.getStudentFeedPage(1, date, 3, 2)));
+        assertEquals(0, store.getStudentFeedPage(1, date, 1, 2).size());
+        // without beforeId the page starts strictly before the date
+        assertEquals(Arrays.asList(5, 4), ids(store.getStudentFeedPage(1, Timestamp.valueOf(DATE.plusHours(1)),
+                null, 2)));
+
+        assertEquals(Arrays.asList(5, 4, 3), ids(store.getGroupFeedPage("CS", null, null, 3)));
+        assertEquals(Arrays.asList(2, 1), ids(store.getGroupFeedPage("CS", date, 3, 3)));
+
+        // null and negative limits give an empty page, as do unknown students and groups
+        assertEquals(0, store.getStudentFeedPage(1, null, null, null).size());
+        assertEquals(0, store.getStudentFeedPage(1, null, null, -1).size());
+        assertEquals(0, store.getStudentFeedPage(1, null, null, 0).size());
+        assertEquals(0, store.getStudentFeedPage(99, null, null, 2).size());
+        assertEquals(0, store.getStudentFeedPage(null, null, null, 2).size());
+        assertEquals(0, store.getGroupFeedPage("CS", null, null, null).size());
+        assertEquals(0, store.getGroupFeedPage(null, null, null, 2).size());
+    }
+
+    @Test
+    public void homePage()
+    {
+        Student first = addStudent(1, "CS");
+        addStudent(2, "EE");
+        addStudent(3, "CS");
+        assertEquals(OK, store.makeAsFriends(1, 2));
+        assertEquals(OK, store.makeAsFriends(2, 3));
+        assertEquals(OK, store.addPost(post(1, 2, DATE), null));
+        assertEquals(OK, store.addPost(post(2, 1, DATE.plusHours(1)), null));
+
+        HomePage page = store.getHomePage(1, 1, null);
+        assertEquals(first, page.getStudent());
+        assertEquals(Arrays.asList(2), ids(page.getFeed()));
+        assertEquals(Arrays.asList(3), studentIds(page.getPeopleYouMayKnow()));
+
+        page = store.getHomePage(1, null, 0);
+        assertEquals(Arrays.asList(2, 1), ids(page.getFeed()));
+        assertTrue(page.getPeopleYouMayKnow().isEmpty());
+
+        assertEquals(Student.badStudent(), store.getHomePage(99, 1, 1).getStudent());
+        assertEquals(Student.badStudent(), store.getHomePage(null, 1, 1).getStudent());
+        assertEquals(Student.badStudent(), store.getHomePage(1, -1, 1).getStudent());
+        assertEquals(Student.badStudent(), store.getHomePage(1, 1, -1).getStudent());
+    }
+
+    @Test
+    public void mutualFriends()
+    {
+        for (int id = 1; id <= 5; id++) {
+            addStudent(id, "CS");
+        }
+        for (int friend = 3; friend <= 5; friend++) {
+            assertEquals(OK, store.makeAsFriends(1, friend));
+            assertEquals(OK, store.makeAsFriends(2, friend));
+        }
+
+        assertEquals(Arrays.asList(3, 4, 5), studentIds(store.getMutualFriends(1, 2, null)));
+        assertEquals(Arrays.asList(3, 4), studentIds(store.getMutualFriends(1, 2, 2)));
+        assertTrue(store.getMutualFriends(1, 2, -1).isEmpty());
+        assertTrue(store.getMutualFriends(1, null, null).isEmpty());
+        assertTrue(store.getMutualFriends(1, 99, null).isEmpty());
+
+        LinkedHashMap<Integer, Integer> counts = store.getMutualFriendCounts(1, Arrays.asList(2, null, 3, 99));
+        assertEquals(Arrays.asList(2, null, 3, 99), new ArrayList<>(counts.keySet()));
+        assertEquals(Arrays.asList(3, 0, 0, 0), new ArrayList<>(counts.values()));
+        assertEquals(Arrays.asList(0), new ArrayList<>(store.getMutualFriendCounts(null, Arrays.asList(2)).values()));
+        assertTrue(store.getMutualFriendCounts(1, null).isEmpty());
+    }
+
+    @Test
+    public void degreesAndPaths()
+    {
+        for (int id = 1; id <= 4; id++) {
+            addStudent(id, "CS");
+        }
+        assertEquals(OK, store.makeAsFriends(1, 2));
+        assertEquals(OK, store.makeAsFriends(2, 3));
+
+        assertEquals(Integer.valueOf(2), store.getDegreesOfSeparation(1, 3, 5));
+        assertEquals(Integer.valueOf(-1), store.getDegreesOfSeparation(1, 3, 1));
+        assertEquals(Integer.valueOf(-1), store.getDegreesOfSeparation(1, 3, null));
+        assertEquals(Integer.valueOf(-1), store.getDegreesOfSeparation(1, 4, 5));
+        assertEquals(Integer.valueOf(-1), store.getDegreesOfSeparation(null, 3, 5));
+
+        assertEquals(Arrays.asList(1, 2, 3), store.getConnectionPath(1, 3));
+        assertTrue(store.getConnectionPath(1, 4).isEmpty());
+        assertTrue(store.getConnectionPath(1, null).isEmpty());
+    }
+
+    @Test
+    public void idsOfDeletedStudentsStayTakenUntilThePurge()
+    {
+        Student first = addStudent(1, "CS");
+        addStudent(2, "CS");
+        assertEquals(OK, store.addPost(post(10, 1, DATE), null));
+
+        assertEquals(OK, store.deleteStudent(1));
+        assertEquals(Student.badStudent(), store.getStudentProfile(1));
+        assertEquals(Post.badPost(), store.getPost(10));
+        assertEquals(ALREADY_EXISTS, store.addStudent(first));
+        assertEquals(ALREADY_EXISTS, store.addPost(post(10, 2, DATE), null));
+
+        assertEquals(OK, store.purgeDeletedStudents());
+        assertEquals(OK, store.addStudent(first));
+        assertEquals(OK, store.addPost(post(10, 2, DATE), null));
+        assertEquals(Integer.valueOf(2), store.getPost(10).getAuthor());
+    }
+}
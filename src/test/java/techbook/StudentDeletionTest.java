@@ -0,0 +1,84 @@
+package techbook;
+
+import org.junit.Test;
+import techbook.business.Post;
+import techbook.business.Student;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static techbook.business.ReturnValue.NOT_EXISTS;
+import static techbook.business.ReturnValue.OK;
+
+public class StudentDeletionTest extends AbstractTest {
+
+    private void addStudent(int id, String faculty)
+    {
+        Student student = new Student();
+        student.setId(id);
+        student.setName("student " + id);
+        student.setFaculty(faculty);
+        assertEquals(OK, store.addStudent(student));
+    }
+
+    private void addPost(int id, int author, String groupName)
+    {
+        Post post = new Post();
+        post.setId(id);
+        post.setLikes(0);
+        post.setAuthor(author);
+        post.setText("post " + id);
+        post.setDate(LocalDateTime.now());
+        assertEquals(OK, store.addPost(post, groupName));
+    }
+
+    @Test
+    public void deletedStudentLeavesEverything()
+    {
+        addStudent(1, "CS");
+        addStudent(2, "CS");
+        assertEquals(OK, store.joinGroup(1, "EE"));
+        assertEquals(OK, store.makeAsFriends(1, 2));
+        addPost(1, 2, "CS");
+        addPost(2, 2, null);
+        assertEquals(OK, store.likePost(1, 1));
+        assertEquals(OK, store.likePost(1, 2));
+
+        assertEquals(OK, store.deleteStudent(1));
+
+        // the rows are gone, not only hidden
+        assertEquals(NOT_EXISTS, store.leaveGroup(1, "CS"));
+        assertEquals(NOT_EXISTS, store.leaveGroup(1, "EE"));
+        assertEquals(NOT_EXISTS, store.unlikePost(1, 1));
+        assertEquals(NOT_EXISTS, store.unlikePost(1, 2));
+        assertEquals(NOT_EXISTS, store.makeAsNotFriends(1, 2));
+        assertEquals(NOT_EXISTS, store.makeAsNotFriends(2, 1));
+
+        // each group lost the member once
+        assertEquals(Integer.valueOf(1), store.getGroupMemberCount("CS"));
+        assertEquals(Integer.valueOf(0), store.getGroupMemberCount("EE"));
+        assertEquals(Integer.valueOf(0), store.getPost(1).getLikes());
+        assertEquals(Integer.valueOf(0), store.getPost(2).getLikes());
+        assertFalse(store.getStudentFeed(2).isEmpty());
+    }
+
+    @Test
+    public void postsOfDeletedStudentDisappear()
+    {
+        addStudent(1, "CS");
+        addStudent(2, "CS");
+        assertEquals(OK, store.makeAsFriends(1, 2));
+        addPost(1, 1, "CS");
+        addPost(2, 1, null);
+
+        assertEquals(OK, store.deleteStudent(1));
+
+        assertEquals(NOT_EXISTS, store.deleteStudent(1));
+        assertEquals(NOT_EXISTS, store.deletePost(1));
+        assertEquals(NOT_EXISTS, store.likePost(2, 1));
+        assertEquals(NOT_EXISTS, store.likePost(2, 2));
+        assertEquals(0, store.getGroupFeed("CS").size());
+        assertEquals(0, store.getStudentFeed(2).size());
+    }
+}
@@ -0,0 +1,105 @@
+package techbook.business;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactFeedTest {
+
+    private static Post post(int id, int author, int likes, String text, LocalDateTime date)
+    {
+        Post p = new Post();
+        p.setId(id);
+        p.setAuthor(author);
+        p.setLikes(likes);
+        p.setText(text);
+        p.setDate(date);
+        return p;
+    }
+
+    @Test
+    public void rowsRoundTrip()
+    {
+        LocalDateTime date = LocalDateTime.of(2017, 12, 31, 23, 59, 59, 123456000);
+        Post first = post(1, 10, 3, "first post", date);
+        Post second = post(2, 20, 0, "", date.minusDays(1));
+
+        CompactFeed feed = new CompactFeed(1); // grows past its initial capacity
+        feed.add(first);
+        feed.add(second);
+
+        assertEquals(2, feed.size());
+        assertEquals(1, feed.getId(0));
+        assertEquals(20, feed.getAuthor(1));
+        assertEquals(3, feed.getLikes(0));
+        assertEquals("first post", feed.getText(0).toString());
+        assertEquals("", feed.getText(1).toString());
+        assertEquals(date, feed.getDate(0));
+        assertEquals(first, feed.getPost(0));
+        assertEquals(second, feed.toFeed().get(1));
+    }
+
+    @Test
+    public void textsShareOneBuffer()
+    {
+        CompactFeed feed = new CompactFeed();
+        feed.add(1, 1, 0, "abc", 0);
+        feed.add(2, 1, 0, "de", 0);
+
+        assertEquals("abcde", feed.getTexts().toString());
+        assertEquals(3, feed.getTextStart(1));
+        assertEquals(5, feed.getTextEnd(1));
+    }
+
+    @Test
+    public void decodesUtf8Bytes()
+    {
+        String text = "שלום, naïve café 😀 €";
+        byte[] bytes = ("xx" + text + "yy").getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length - 4;
+
+        CompactFeed feed = new CompactFeed();
+        feed.add(7, 1, 0, bytes, 2, length, 0);
+        assertEquals(text, feed.getText(0).toString());
+
+        // malformed input decodes like new String(bytes, UTF_8)
+        byte[] malformed = {'a', (byte) 0xc3, 'b', (byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xff};
+        feed.add(8, 1, 0, malformed, 0, malformed.length, 0);
+        assertEquals(new String(malformed, StandardCharsets.UTF_8), feed.getText(1).toString());
+    }
+
+    @Test
+    public void copiesRowsOfAnotherFeed()
+    {
+        CompactFeed source = new CompactFeed();
+        source.add(post(1, 2, 3, "one", LocalDateTime.of(2018, 1, 1, 0, 0)));
+        source.add(post(4, 5, 6, "two", LocalDateTime.of(2018, 1, 2, 0, 0)));
+
+        CompactFeed copy = new CompactFeed();
+        copy.add(source, 1);
+        copy.add(source, 0);
+
+        assertEquals(source.getPost(1), copy.getPost(0));
+        assertEquals(source.getPost(0), copy.getPost(1));
+    }
+
+    @Test
+    public void microsRoundTrip()
+    {
+        LocalDateTime before1970 = LocalDateTime.of(1969, 7, 20, 20, 17, 40, 1000);
+        assertEquals(before1970, CompactFeed.toLocalDateTime(CompactFeed.toMicros(before1970)));
+        assertEquals(0, CompactFeed.toMicros(LocalDateTime.of(1970, 1, 1, 0, 0)));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void checksIndexes()
+    {
+        CompactFeed feed = new CompactFeed();
+        assertTrue(feed.isEmpty());
+        feed.getId(0);
+    }
+}
@@ -0,0 +1,48 @@
+package techbook.data;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundJobTest {
+
+    @Test
+    public void failedRunDoesNotCancelTheJob() throws InterruptedException
+    {
+        BackgroundJob job = new BackgroundJob("background-job-test");
+        CountDownLatch runs = new CountDownLatch(3);
+        job.start(() -> {
+            runs.countDown();
+            throw new NullPointerException("no connection");
+        }, 0, 10);
+        try {
+            assertTrue(runs.await(5, TimeUnit.SECONDS));
+        } finally {
+            job.stop();
+        }
+    }
+
+    @Test
+    public void stoppedJobDoesNotRunAgain() throws InterruptedException
+    {
+        BackgroundJob job = new BackgroundJob("background-job-test");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        job.start(() -> {
+            runs.incrementAndGet();
+            first.countDown();
+        }, 0, 10);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        job.stop();
+        Thread.sleep(20); // a run in progress finishes
+        int stoppedAt = runs.get();
+        Thread.sleep(50);
+        assertEquals(stoppedAt, runs.get());
+        job.stop(); // stopping twice is fine
+    }
+}
@@ -0,0 +1,119 @@
+package techbook.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LikeWindowCounterTest {
+
+    private static final long MINUTE = 60 * 1000;
+    /* a few buckets, so the current bucket may change during a test */
+    private static final long WINDOW = 10 * MINUTE;
+
+    private final LikeWindowCounter counter = new LikeWindowCounter(MINUTE, 24 * 60);
+
+    private void like(int postId, int group, int times)
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < times; i++) {
+            counter.like(postId, group, now);
+        }
+    }
+
+    @Test
+    public void topOrdersByLikesThenNewerPost()
+    {
+        like(1, 7, 3);
+        like(2, 7, 1);
+        like(3, 7, 3);
+        like(4, 8, 5);
+
+        assertArrayEquals(new int[]{3, 1, 2}, counter.top(7, WINDOW, 10));
+        assertArrayEquals(new int[]{3, 1}, counter.top(7, WINDOW, 2));
+        assertArrayEquals(new int[]{4}, counter.top(8, WINDOW, 10));
+        assertArrayEquals(new int[0], counter.top(9, WINDOW, 10));
+    }
+
+    @Test
+    public void windowLeavesOlderLikesOut()
+    {
+        long now = System.currentTimeMillis();
+        counter.like(1, 7, now - 2 * 60 * MINUTE);
+        counter.like(1, 7, now - 2 * 60 * MINUTE);
+        counter.like(2, 7, now);
+
+        assertArrayEquals(new int[]{2}, counter.top(7, WINDOW, 10));
+        assertArrayEquals(new int[]{1, 2}, counter.top(7, 24 * 60 * MINUTE, 10));
+        // beyond the horizon
+        counter.like(3, 7, now - 2 * 24 * 60 * MINUTE);
+        assertArrayEquals(new int[]{1, 2}, counter.top(7, 24 * 60 * MINUTE, 10));
+    }
+
+    @Test
+    public void cachedAnswerFollowsLikesAndUnlikes()
+    {
+        like(1, 7, 2);
+        like(2, 7, 1);
+        assertArrayEquals(new int[]{1}, counter.top(7, WINDOW, 1));
+
+        like(2, 7, 1); // ties with post 1 and wins as the newer post
+        assertArrayEquals(new int[]{2}, counter.top(7, WINDOW, 1));
+
+        counter.unlike(2, 7, System.currentTimeMillis());
+        assertArrayEquals(new int[]{1}, counter.top(7, WINDOW, 1));
+
+        counter.unlike(1, 7, System.currentTimeMillis());
+        counter.unlike(1, 7, System.currentTimeMillis());
+        assertArrayEquals(new int[]{2}, counter.top(7, WINDOW, 1));
+    }
+
+    @Test
+    public void removedPostIsNotReturned()
+    {
+        like(1, 7, 2);
+        like(2, 7, 1);
+        assertArrayEquals(new int[]{1, 2}, counter.top(7, WINDOW, 10));
+
+        counter.remove(1, 7);
+        assertArrayEquals(new int[]{2}, counter.top(7, WINDOW, 10));
+        counter.unlike(1, 7, System.currentTimeMillis()); // nothing left to take back
+        assertArrayEquals(new int[]{2}, counter.top(7, WINDOW, 10));
+    }
+
+    @Test
+    public void callersCannotChangeTheCachedAnswer()
+    {
+        like(1, 7, 2);
+        like(2, 7, 1);
+        counter.top(7, WINDOW, 10)[0] = 5;
+        assertArrayEquals(new int[]{1, 2}, counter.top(7, WINDOW, 10));
+        counter.top(7, WINDOW, 10)[1] = 5;
+        assertArrayEquals(new int[]{1, 2}, counter.top(7, WINDOW, 10));
+    }
+
+    @Test
+    public void nonPositiveKReturnsNothing()
+    {
+        like(1, 7, 2);
+        assertArrayEquals(new int[0], counter.top(7, WINDOW, 0));
+        assertArrayEquals(new int[0], counter.top(7, WINDOW, -1));
+        assertArrayEquals(new int[]{1}, counter.top(7, WINDOW, 10));
+    }
+
+    @Test
+    public void likesLeaveTheHorizon() throws InterruptedException
+    {
+        LikeWindowCounter shortCounter = new LikeWindowCounter(20, 2);
+        shortCounter.like(1, 7, System.currentTimeMillis());
+        shortCounter.like(2, 8, System.currentTimeMillis());
+        assertEquals(1, shortCounter.top(7, 40, 10).length);
+
+        Thread.sleep(100);
+        assertArrayEquals(new int[0], shortCounter.top(7, 40, 10));
+        // group 8 was never queried again, the sweep dropped it as well
+        shortCounter.like(3, 9, System.currentTimeMillis());
+        assertArrayEquals(new int[0], shortCounter.top(8, 40, 10));
+        assertArrayEquals(new int[]{3}, shortCounter.top(9, 40, 10));
+    }
+}
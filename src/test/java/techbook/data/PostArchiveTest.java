@@ -0,0 +1,172 @@
+package techbook.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import techbook.business.Feed;
+import techbook.business.Post;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PostArchiveTest {
+
+    private static final LocalDateTime DATE = LocalDateTime.of(2016, 3, 1, 12, 0);
+
+    private Path directory;
+    private PostArchive archive;
+
+    @Before
+    public void createArchive() throws IOException
+    {
+        directory = Files.createTempDirectory("post-archive");
+        archive = new PostArchive(directory);
+        archive.load();
+    }
+
+    @After
+    public void removeArchive() throws IOException
+    {
+        archive.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    private static Post post(int id, int author, int likes, LocalDateTime date)
+    {
+        Post p = new Post();
+        p.setId(id);
+        p.setAuthor(author);
+        p.setLikes(likes);
+        p.setText("post " + id);
+        p.setDate(date);
+        return p;
+    }
+
+    private static List<Integer> ids(Feed feed)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (Post p : feed) {
+            ids.add(p.getId());
+        }
+        return ids;
+    }
+
+    /* posts 1..n, author id % 3, group id % 2 (0 for personal posts), one hour apart */
+    private void writeSegment(int from, int to) throws IOException
+    {
+        List<Post> posts = new ArrayList<>();
+        List<Integer> groupIds = new ArrayList<>();
+        for (int id = from; id <= to; id++) {
+            posts.add(post(id, id % 3, id % 5, DATE.plusHours(id)));
+            groupIds.add(id % 2 == 0 ? null : 1);
+        }
+        archive.write(posts, groupIds);
+    }
+
+    @Test
+    public void feedsComeFromTheIndexes() throws IOException
+    {
+        writeSegment(1, 150);
+        writeSegment(151, 300);
+
+        Feed byAuthor = archive.getAuthorsFeed(Arrays.asList(1, 2), null, null);
+        assertEquals(200, byAuthor.size());
+        assertEquals(Integer.valueOf(299), byAuthor.get(0).getId());
+        for (Post p : byAuthor) {
+            assertTrue(p.getAuthor() != 0);
+        }
+
+        Feed group = archive.getGroupFeed(1, Timestamp.valueOf(DATE.plusHours(200)), 3);
+        assertEquals(Arrays.asList(199, 197, 195), ids(group));
+        assertEquals(0, archive.getGroupFeed(2, null, null).size());
+        assertEquals("post 7", archive.get(7).getText());
+        assertNull(archive.get(301));
+    }
+
+    @Test
+    public void pagesFollowTheCursorWithinOneDate() throws IOException
+    {
+        List<Post> posts = new ArrayList<>();
+        for (int id = 1; id <= 5; id++) {
+            posts.add(post(id, 1, 0, DATE));
+        }
+        archive.write(posts, Arrays.asList(null, null, null, null, null));
+
+        Timestamp date = Timestamp.valueOf(DATE);
+        assertEquals(Arrays.asList(5, 4), ids(archive.getAuthorsPage(Arrays.asList(1), null, null, 2)));
+        assertEquals(Arrays.asList(3, 2), ids(archive.getAuthorsPage(Arrays.asList(1), date, 4, 2)));
+        assertEquals(Arrays.asList(1), ids(archive.getAuthorsPage(Arrays.asList(1), date, 2, 2)));
+        assertEquals(0, archive.getAuthorsPage(Arrays.asList(1), date, null, 2).size());
+    }
+
+    @Test
+    public void refreshMapsTheSegmentsOfOtherInstances() throws IOException
+    {
+        PostArchive other = new PostArchive(directory);
+        other.load();
+        writeSegment(1, 10);
+        assertTrue(other.isEmpty());
+
+        other.refresh();
+        assertEquals(1, other.getSegmentCount());
+        assertTrue(other.contains(10));
+
+        // the next segment of the other instance does not take the number of the first one
+        other.write(Arrays.asList(post(11, 1, 0, DATE)), Arrays.asList((Integer) null));
+        archive.refresh();
+        assertEquals(2, archive.getSegmentCount());
+        assertEquals(11, archive.getPostCount());
+    }
+
+    @Test
+    public void removedAuthorsStayRemoved() throws IOException
+    {
+        writeSegment(1, 30);
+        assertEquals(10, archive.removeAuthor(1));
+        assertEquals(0, archive.removeAuthor(1));
+
+        assertNull(archive.get(1));
+        assertTrue(archive.contains(1));
+        assertEquals("post 2", archive.get(2).getText());
+        for (Post p : archive.getGroupFeed(1, null, null)) {
+            assertTrue(p.getAuthor() != 1);
+        }
+        assertEquals(0, archive.getAuthorsPage(Arrays.asList(1), null, null, 5).size());
+
+        // tombstones are files of the directory, other instances read them too
+        PostArchive other = new PostArchive(directory);
+        other.load();
+        assertNull(other.get(4));
+        assertEquals(20, other.getAuthorsFeed(Arrays.asList(0, 1, 2), null, null).size());
+    }
+
+    @Test
+    public void leftoversOfInterruptedWritesAreRemoved() throws IOException
+    {
+        writeSegment(1, 10);
+        Path segment = Files.createFile(directory.resolve("7.seg.tmp"));
+        Path staleTombstone = Files.createFile(directory.resolve("1-stale.del.tmp"));
+        Files.setLastModifiedTime(staleTombstone, FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000));
+        Path recentTombstone = Files.createFile(directory.resolve("1-recent.del.tmp"));
+
+        archive.removeTemporaryFiles();
+        assertFalse(Files.exists(segment));
+        assertFalse(Files.exists(staleTombstone));
+        // may still be renamed by the instance writing it
+        assertTrue(Files.exists(recentTombstone));
+        Files.delete(recentTombstone);
+        assertEquals(10, archive.getPostCount());
+    }
+}
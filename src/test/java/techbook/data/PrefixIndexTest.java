@@ -0,0 +1,121 @@
+package techbook.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrefixIndexTest {
+
+    private static List<Integer> ids(List<PrefixIndex.Entry> entries)
+    {
+        List<Integer> ids = new ArrayList<>();
+        for (PrefixIndex.Entry entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    private static PrefixIndex loaded(String... names)
+    {
+        PrefixIndex index = new PrefixIndex();
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            ids.add(i + 1);
+        }
+        index.load(Arrays.asList(names), ids);
+        return index;
+    }
+
+    @Test
+    public void lookupMergesLoadedAndAddedEntries()
+    {
+        PrefixIndex index = loaded("Alice", "bob", "Alicia"); // ids 1, 2, 3
+        index.add("alfred", 4);
+        index.add("ALICE", 5);
+
+        assertEquals(Arrays.asList(4, 1, 5, 3), ids(index.lookup("al", 10)));
+        assertEquals(Arrays.asList(4, 1), ids(index.lookup("AL", 2)));
+        assertEquals("Alice", index.lookup("alice", 1).get(0).getName());
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    public void removeAndAddAgain()
+    {
+        PrefixIndex index = loaded("Alice", "bob");
+        index.remove("Alice", 1);
+        index.remove("Alice", 1);
+        assertTrue(index.lookup("a", 10).isEmpty());
+        assertEquals(1, index.size());
+
+        index.add("Alice", 1);
+        index.add("Alice", 1);
+        assertEquals(Arrays.asList(1), ids(index.lookup("a", 10)));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void changesBeforeTheFirstLoadAreIgnored()
+    {
+        PrefixIndex index = new PrefixIndex();
+        index.add("Alice", 1);
+        assertFalse(index.isLoaded());
+        index.load(new ArrayList<>(), new ArrayList<>());
+        assertTrue(index.isLoaded());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void changesDuringALoadAreReplayed()
+    {
+        PrefixIndex index = new PrefixIndex();
+        index.beginLoad();
+        index.add("Alice", 1);  // already in the snapshot below
+        index.add("Alicia", 2); // missed by the snapshot
+        index.remove("bob", 3); // still in the snapshot
+        index.load(Arrays.asList("Alice", "bob"), Arrays.asList(1, 3));
+
+        assertEquals(Arrays.asList(1, 2), ids(index.lookup("", 10)));
+        assertEquals(2, index.size());
+
+        // the recorded changes are not replayed again by the next load
+        index.load(Arrays.asList("bob"), Arrays.asList(3));
+        assertEquals(Arrays.asList(3), ids(index.lookup("", 10)));
+    }
+
+    @Test
+    public void cancelledLoadStopsRecording()
+    {
+        PrefixIndex index = loaded("Alice");
+        index.beginLoad();
+        index.add("Alicia", 2);
+        index.cancelLoad();
+        assertEquals(Arrays.asList(1, 2), ids(index.lookup("a", 10)));
+
+        index.load(Arrays.asList("Alice"), Arrays.asList(1));
+        assertEquals(Arrays.asList(1), ids(index.lookup("a", 10)));
+    }
+
+    @Test
+    public void manyChangesAreMerged()
+    {
+        PrefixIndex index = loaded();
+        for (int id = 1; id <= 3000; id++) {
+            index.add(String.format("name%04d", id), id);
+        }
+        for (int id = 1; id <= 3000; id += 2) {
+            index.remove(String.format("name%04d", id), id);
+        }
+        assertEquals(1500, index.size());
+        assertEquals(Arrays.asList(2, 4, 6), ids(index.lookup("name", 3)));
+        List<PrefixIndex.Entry> found = index.lookup("name29", 100);
+        assertEquals(50, found.size());
+        assertEquals(2998, found.get(49).getId());
+    }
+}
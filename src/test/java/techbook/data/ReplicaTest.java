@@ -0,0 +1,93 @@
+package techbook.data;
+
+import org.junit.Test;
+import techbook.AbstractTest;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/*
+ * The primary stands in for a replica: it is not in recovery, so its lag is 0.
+ * Checking the primary needs Postgres, those tests are skipped unless the sql engine is selected.
+ */
+public class ReplicaTest {
+
+    private static final String UNREACHABLE = "jdbc:postgresql://127.0.0.1:1/cs236363";
+
+    private static Properties checkProps()
+    {
+        Properties props = new Properties(DBConnector.getProperties());
+        props.setProperty("connectTimeout", "1");
+        return props;
+    }
+
+    private static Replica primary()
+    {
+        return new Replica(DBConnector.getProperty("database", ""));
+    }
+
+    private static Replica checkedPrimary()
+    {
+        assumeTrue("needs Postgres", AbstractTest.isSelected("sql"));
+        Replica replica = primary();
+        replica.check(checkProps());
+        return replica;
+    }
+
+    @Test
+    public void uncheckedReplicaIsNotUsed()
+    {
+        Replica replica = primary();
+        assertFalse(replica.isUsable(5));
+        assertEquals(0, replica.getLastCheck());
+    }
+
+    @Test
+    public void checkedReplicaIsUsed()
+    {
+        Replica replica = checkedPrimary();
+        assertTrue(replica.isUsable(5));
+        assertEquals(0, replica.getLagSeconds(), 0);
+        assertTrue(replica.getLastCheck() > 0);
+    }
+
+    @Test
+    public void laggingReplicaIsNotUsed()
+    {
+        Replica replica = checkedPrimary();
+        assertFalse(replica.isUsable(-1));
+    }
+
+    @Test
+    public void unreachableReplicaIsNotUsed()
+    {
+        Replica replica = new Replica(UNREACHABLE);
+        replica.check(checkProps());
+        assertFalse(replica.isUsable(5));
+        assertTrue(replica.getLastCheck() > 0);
+    }
+
+    @Test
+    public void failedReplicaIsSkippedUntilNextCheck()
+    {
+        Replica replica = checkedPrimary();
+        replica.markFailed();
+        assertFalse(replica.isUsable(5));
+
+        replica.check(checkProps());
+        assertTrue(replica.isUsable(5));
+    }
+
+    @Test
+    public void recentWritesNeedReplicas()
+    {
+        // no replica is configured, so there is no write to track and reads may go anywhere
+        DBConnector.markWrite(1);
+        assertFalse(DBConnector.hasRecentWrite(1));
+        assertFalse(DBConnector.hasRecentWrite(null));
+    }
+}
@@ -0,0 +1,175 @@
+package techbook.data;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final AtomicInteger executions = new AtomicInteger();
+
+    @After
+    public void restoreSettings()
+    {
+        callers.shutdownNow();
+        Properties props = DBConnector.getProperties();
+        SingleFlight.configure(props != null ? props : new Properties());
+    }
+
+    private static void reuseFor(long millis)
+    {
+        Properties props = new Properties();
+        props.setProperty("coalesce.enabled", "true");
+        props.setProperty("coalesce.reuseMillis", String.valueOf(millis));
+        SingleFlight.configure(props);
+    }
+
+    private List<Integer> call(String operation, int arg)
+    {
+        return SingleFlight.execute(operation, () -> {
+            executions.incrementAndGet();
+            return new ArrayList<>(Arrays.asList(arg, arg));
+        }, ArrayList::new, arg);
+    }
+
+    /* Waits until the operation has the given number of callers waiting for an execution in flight */
+    private static void awaitCoalesced(String operation, long coalesced) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SingleFlight.getMetrics().get(operation).getCoalesced() < coalesced) {
+            assertTrue("callers did not join the flight", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareOneExecution() throws Exception
+    {
+        reuseFor(0);
+        String operation = "concurrentCallsShareOneExecution";
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<List<Integer>> leader = callers.submit(() -> SingleFlight.execute(operation, () -> {
+            executions.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<>(Arrays.asList(1, 2));
+        }, ArrayList::new, 7));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<Future<List<Integer>>> followers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            followers.add(callers.submit(() -> call(operation, 7)));
+        }
+        awaitCoalesced(operation, 3);
+        release.countDown();
+
+        List<Integer> result = leader.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(1, 2), result);
+        for (Future<List<Integer>> follower : followers) {
+            List<Integer> shared = follower.get(5, TimeUnit.SECONDS);
+            assertEquals(result, shared);
+            assertNotSame(result, shared);
+        }
+        assertEquals(1, executions.get());
+        SingleFlight.Metrics metrics = SingleFlight.getMetrics().get(operation);
+        assertEquals(4, metrics.getCalls());
+        assertEquals(1, metrics.getExecutions());
+    }
+
+    @Test
+    public void finishedResultsAreOnlyReusedWithinTheWindow()
+    {
+        reuseFor(0);
+        String operation = "finishedResultsAreOnlyReusedWithinTheWindow";
+        call(operation, 1);
+        call(operation, 1);
+        call(operation, 2);
+        assertEquals(3, executions.get());
+
+        reuseFor(60000);
+        List<Integer> first = call(operation, 3);
+        List<Integer> second = call(operation, 3);
+        assertEquals(4, executions.get());
+        assertEquals(first, second);
+        assertNotSame(first, second);
+        first.clear(); // a caller's changes don't reach the others
+        assertEquals(Arrays.asList(3, 3), call(operation, 3));
+        assertEquals(2, SingleFlight.getMetrics().get(operation).getReused());
+
+        SingleFlight.forgetResults();
+        call(operation, 3);
+        assertEquals(5, executions.get());
+    }
+
+    @Test
+    public void bodyOfAFlightRunsNestedReadsDirectly()
+    {
+        reuseFor(0);
+        assertFalse(SingleFlight.isExecuting());
+        boolean nested = SingleFlight.execute("bodyOfAFlightRunsNestedReadsDirectly",
+                SingleFlight::isExecuting, b -> b);
+        assertTrue(nested);
+        assertFalse(SingleFlight.isExecuting());
+    }
+
+    @Test
+    public void rejectionReachesTheCallersSharingTheExecution() throws Exception
+    {
+        reuseFor(60000);
+        String operation = "rejectionReachesTheCallersSharingTheExecution";
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> leader = callers.submit(() -> {
+            AdmissionControl.clearRejected();
+            SingleFlight.execute(operation, () -> {
+                executions.incrementAndGet();
+                AdmissionControl.markRejected(); // as if its connection was refused
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new ArrayList<Integer>();
+            }, ArrayList::new, 1);
+            return AdmissionControl.wasRejected();
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Boolean> follower = callers.submit(() -> {
+            AdmissionControl.clearRejected();
+            call(operation, 1);
+            return AdmissionControl.wasRejected();
+        });
+        awaitCoalesced(operation, 1);
+        release.countDown();
+
+        assertTrue(leader.get(5, TimeUnit.SECONDS));
+        assertTrue(follower.get(5, TimeUnit.SECONDS));
+        // not kept for reuse
+        AdmissionControl.clearRejected();
+        assertEquals(Arrays.asList(1, 1), call(operation, 1));
+        assertFalse(AdmissionControl.wasRejected());
+        assertEquals(2, executions.get());
+    }
+}
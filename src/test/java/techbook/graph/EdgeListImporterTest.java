@@ -0,0 +1,116 @@
+package techbook.graph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EdgeListImporterTest {
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = Files.createTempFile("edges", ".txt");
+    }
+
+    @After
+    public void removeFile() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    private static long edge(int id1, int id2)
+    {
+        return ((long) id1 << 32) | id2;
+    }
+
+    private long[] parse(String contents, int threads, EdgeListImporter.Result result) throws IOException
+    {
+        Files.write(file, contents.getBytes(StandardCharsets.US_ASCII));
+        long[] edges = EdgeListImporter.parse(file, threads, null, result);
+        Arrays.sort(edges);
+        return edges;
+    }
+
+    @Test
+    public void separatorsCommentsAndExtraColumns() throws IOException
+    {
+        EdgeListImporter.Result result = new EdgeListImporter.Result();
+        long[] edges = parse("# id1 id2\n" +
+                "1 2\n" +
+                "3\t4\r\n" +
+                "5,6\n" +
+                "7;8;2017-01-01\n" +
+                "\n" +
+                "   \n" +
+                "  % indented comment\n" +
+                "12  11 extra columns\n" +
+                "20 21", 1, result);
+
+        assertArrayEquals(new long[]{edge(1, 2), edge(3, 4), edge(5, 6), edge(7, 8), edge(11, 12), edge(20, 21)},
+                edges);
+        assertEquals(6, result.getLines());
+        assertEquals(0, result.getMalformed());
+        assertEquals(0, result.getSelfLoops());
+    }
+
+    @Test
+    public void malformedLinesAndSelfLoopsAreCounted() throws IOException
+    {
+        EdgeListImporter.Result result = new EdgeListImporter.Result();
+        long[] edges = parse("1 2\n" +
+                "9\n" +
+                "a b\n" +
+                "-1 2\n" +
+                "3 4x\n" +
+                "2147483648 1\n" +
+                "2147483647 1\n" +
+                "10 10\n", 1, result);
+
+        assertArrayEquals(new long[]{edge(1, 2), edge(1, Integer.MAX_VALUE)}, edges);
+        assertEquals(8, result.getLines());
+        assertEquals(5, result.getMalformed());
+        assertEquals(1, result.getSelfLoops());
+    }
+
+    @Test
+    public void duplicatesInEitherDirectionAreDropped() throws IOException
+    {
+        EdgeListImporter.Result result = new EdgeListImporter.Result();
+        long[] edges = parse("1 2\n2 1\n1 3\n1 2\n", 1, result);
+        int count = EdgeListImporter.dedupe(edges, result);
+
+        assertEquals(2, count);
+        assertArrayEquals(new long[]{edge(1, 2), edge(1, 3)}, Arrays.copyOf(edges, count));
+        assertEquals(2, result.getDuplicates());
+    }
+
+    @Test
+    public void regionsSplitOnLineBoundaries() throws IOException
+    {
+        int lines = 20000;
+        StringBuilder contents = new StringBuilder();
+        long[] expected = new long[lines];
+        for (int i = 0; i < lines; i++) {
+            // lines of different lengths, so region bounds fall inside lines
+            contents.append(i * 7919 + 1).append(i % 3 == 0 ? "\t" : " ").append(i).append('\n');
+            expected[i] = edge(i, i * 7919 + 1);
+        }
+        Arrays.sort(expected);
+
+        EdgeListImporter.Result result = new EdgeListImporter.Result();
+        assertArrayEquals(expected, parse(contents.toString(), 8, result));
+        assertEquals(lines, result.getLines());
+        assertEquals(0, result.getMalformed());
+    }
+}
@@ -0,0 +1,119 @@
+package techbook.graph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FriendGraphSnapshotTest {
+
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = Files.createTempFile("friend-graph", ".snapshot");
+    }
+
+    @After
+    public void removeFile() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    /* Writes the snapshot format by hand: header, ids, padding to 8 bytes, offsets, neighbours */
+    private static byte[] snapshot(int magic, int version, long seq, int[] ids, long[] offsets, int[] neighbours)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeInt(version);
+        out.writeInt(ids.length);
+        out.writeInt(0);
+        out.writeLong(neighbours.length);
+        out.writeLong(seq);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+        if (ids.length % 2 != 0)
+            out.writeInt(0);
+        for (long offset : offsets) {
+            out.writeLong(offset);
+        }
+        for (int neighbour : neighbours) {
+            out.writeInt(neighbour);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /* Friendships 1-2 and 2-5, an odd number of students so the offsets are padded */
+    private static byte[] smallGraph(int magic, int version) throws IOException
+    {
+        return snapshot(magic, version, 42, new int[]{1, 2, 5}, new long[]{0, 1, 3, 4}, new int[]{2, 1, 5, 2});
+    }
+
+    @Test
+    public void readsTheAdjacencyLists() throws IOException
+    {
+        Files.write(file, smallGraph(FriendGraphSnapshot.MAGIC, FriendGraphSnapshot.FORMAT_VERSION));
+        FriendGraphSnapshot graph = FriendGraphSnapshot.open(file);
+
+        assertNotNull(graph);
+        assertEquals(3, graph.getNodeCount());
+        assertEquals(4, graph.getEdgeCount());
+        assertEquals(42, graph.getSeq());
+        assertEquals(5, graph.nodeAt(2));
+        assertArrayEquals(new int[]{2}, graph.neighbours(1));
+        assertArrayEquals(new int[]{1, 5}, graph.neighbours(2));
+        assertArrayEquals(new int[]{2}, graph.neighbours(5));
+        assertEquals(2, graph.degree(2));
+        // students without friends, below, between and above the ids
+        assertArrayEquals(new int[0], graph.neighbours(0));
+        assertArrayEquals(new int[0], graph.neighbours(3));
+        assertArrayEquals(new int[0], graph.neighbours(6));
+        assertEquals(0, graph.degree(3));
+    }
+
+    @Test
+    public void readsAnEmptyGraph() throws IOException
+    {
+        Files.write(file, snapshot(FriendGraphSnapshot.MAGIC, FriendGraphSnapshot.FORMAT_VERSION, 0,
+                new int[0], new long[]{0}, new int[0]));
+        FriendGraphSnapshot graph = FriendGraphSnapshot.open(file);
+
+        assertNotNull(graph);
+        assertEquals(0, graph.getNodeCount());
+        assertEquals(0, graph.getEdgeCount());
+        assertArrayEquals(new int[0], graph.neighbours(1));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException
+    {
+        Files.write(file, smallGraph(0x12345678, FriendGraphSnapshot.FORMAT_VERSION));
+        assertNull(FriendGraphSnapshot.open(file));
+
+        Files.write(file, smallGraph(FriendGraphSnapshot.MAGIC, FriendGraphSnapshot.FORMAT_VERSION + 1));
+        assertNull(FriendGraphSnapshot.open(file));
+
+        byte[] complete = smallGraph(FriendGraphSnapshot.MAGIC, FriendGraphSnapshot.FORMAT_VERSION);
+        Files.write(file, Arrays.copyOf(complete, complete.length - 4));
+        assertNull(FriendGraphSnapshot.open(file));
+
+        Files.delete(file);
+        assertNull(FriendGraphSnapshot.open(file));
+    }
+}
@@ -0,0 +1,109 @@
+package techbook.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestTest {
+
+    private static ByteBuffer buffer(String requests)
+    {
+        return ByteBuffer.wrap(requests.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpRequest parse(String request) throws HttpRequest.BadRequest
+    {
+        return HttpRequest.parse(buffer(request));
+    }
+
+    private static void assertBadRequest(String request, int status)
+    {
+        try {
+            parse(request);
+            fail("parsed " + request);
+        } catch (HttpRequest.BadRequest e) {
+            assertEquals(status, e.status);
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsAreParsedInOrder() throws HttpRequest.BadRequest
+    {
+        ByteBuffer in = buffer("PUT /posts/5 HTTP/1.1\r\nContent-Length: 13\r\n\r\n{\"text\":\"hi\"}" +
+                "GET /students/1/feed?limit=10 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "GET /health HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        HttpRequest first = HttpRequest.parse(in);
+        assertEquals("PUT", first.getMethod());
+        assertArrayEquals(new String[]{"", "posts", "5"}, first.getPathSegments());
+        assertEquals("{\"text\":\"hi\"}", first.getBody());
+        assertTrue(first.isKeepAlive());
+
+        HttpRequest second = HttpRequest.parse(in);
+        assertEquals("GET", second.getMethod());
+        assertArrayEquals(new String[]{"", "students", "1", "feed"}, second.getPathSegments());
+        assertEquals("10", second.getParameter("limit"));
+        assertEquals("localhost", second.getHeader("HOST"));
+        assertEquals("", second.getBody());
+
+        HttpRequest third = HttpRequest.parse(in);
+        assertArrayEquals(new String[]{"", "health"}, third.getPathSegments());
+        assertFalse(third.isKeepAlive());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void incompleteRequestLeavesTheBufferAsItWas() throws HttpRequest.BadRequest
+    {
+        ByteBuffer in = buffer("GET /health HTTP/1.1\r\n\r\nPOST /students HTTP/1.1\r\nContent-Length: 10\r\n\r\n{\"id\"");
+        HttpRequest.parse(in);
+        int position = in.position();
+        assertNull(HttpRequest.parse(in));
+        assertEquals(position, in.position());
+
+        assertNull(parse("GET /health HTTP/1.1\r\nHost: local"));
+    }
+
+    @Test
+    public void pathIsSplitBeforeItIsDecoded() throws HttpRequest.BadRequest
+    {
+        HttpRequest request = parse("PUT /students/1/groups/a%2Fb+c%20d HTTP/1.1\r\n\r\n");
+        assertArrayEquals(new String[]{"", "students", "1", "groups", "a/b+c d"}, request.getPathSegments());
+
+        request = parse("GET /search?q=big+cats&group=a%26b&flag HTTP/1.1\r\n\r\n");
+        assertEquals("big cats", request.getParameter("q"));
+        assertEquals("a&b", request.getParameter("group"));
+        assertEquals("", request.getParameter("flag"));
+        assertNull(request.getParameter("limit"));
+    }
+
+    @Test
+    public void keepAliveFollowsTheProtocolVersion() throws HttpRequest.BadRequest
+    {
+        assertTrue(parse("GET / HTTP/1.1\r\n\r\n").isKeepAlive());
+        assertFalse(parse("GET / HTTP/1.1\r\nConnection: Close\r\n\r\n").isKeepAlive());
+        assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isKeepAlive());
+        assertTrue(parse("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n").isKeepAlive());
+        assertFalse(parse("GET / HTTP/1.0\r\n\r\n").isHttp11());
+    }
+
+    @Test
+    public void malformedRequestsAreRejected()
+    {
+        assertBadRequest("GET /health\r\n\r\n", 400);
+        assertBadRequest("GET /health SPDY/3\r\n\r\n", 400);
+        assertBadRequest("GET /health HTTP/1.1\r\nno colon\r\n\r\n", 400);
+        assertBadRequest("GET /health HTTP/1.1\r\nContent-Length: -1\r\n\r\n", 400);
+        assertBadRequest("GET /health HTTP/1.1\r\nContent-Length: ten\r\n\r\n", 400);
+        assertBadRequest("POST /posts HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n", 411);
+        assertBadRequest("GET /groups/%zz HTTP/1.1\r\n\r\n", 400);
+    }
+}
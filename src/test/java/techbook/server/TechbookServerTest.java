@@ -0,0 +1,107 @@
+package techbook.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TechbookServerTest {
+
+    private static final Pattern STATUS_LINE = Pattern.compile("HTTP/1\\.1 (\\d{3}) ");
+
+    private TechbookServer server;
+
+    @Before
+    public void startServer() throws IOException
+    {
+        server = new TechbookServer(0);
+        server.start();
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop();
+    }
+
+    /* Sends the requests at once and reads until the server closes the connection */
+    private String exchange(String requests) throws IOException
+    {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<Integer> statuses(String responses)
+    {
+        List<Integer> statuses = new ArrayList<>();
+        Matcher matcher = STATUS_LINE.matcher(responses);
+        while (matcher.find()) {
+            statuses.add(Integer.valueOf(matcher.group(1)));
+        }
+        return statuses;
+    }
+
+    @Test
+    public void pipelinedResponsesComeInRequestOrder() throws IOException
+    {
+        String responses = exchange("GET /health HTTP/1.1\r\n\r\n" +
+                "GET /no-such-resource HTTP/1.1\r\n\r\n" +
+                "POST /health HTTP/1.1\r\nContent-Length: 2\r\n\r\n{}" +
+                "GET /health HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add(200);
+        expected.add(404);
+        expected.add(405);
+        expected.add(200);
+        assertEquals(expected, statuses(responses));
+        assertTrue(responses.contains("Content-Length: 15\r\nConnection: keep-alive\r\n\r\n{\"status\":\"UP\"}"));
+        assertTrue(responses.endsWith("Connection: close\r\n\r\n{\"status\":\"UP\"}"));
+    }
+
+    @Test
+    public void badRequestIsAnsweredAfterTheOnesBeforeIt() throws IOException
+    {
+        String responses = exchange("GET /health HTTP/1.1\r\n\r\n" +
+                "GET /health\r\n\r\n" +
+                "GET /health HTTP/1.1\r\n\r\n");
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add(200);
+        expected.add(400);
+        assertEquals(expected, statuses(responses));
+        assertTrue(responses.endsWith("Connection: close\r\n\r\n{\"error\":\"bad request line\"}"));
+    }
+
+    @Test
+    public void http10ResponseClosesTheConnection() throws IOException
+    {
+        String responses = exchange("GET /health HTTP/1.0\r\n\r\n");
+        List<Integer> expected = new ArrayList<>();
+        expected.add(200);
+        assertEquals(expected, statuses(responses));
+    }
+}